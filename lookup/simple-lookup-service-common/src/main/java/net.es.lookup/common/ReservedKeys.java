@@ -11,6 +11,15 @@ public class ReservedKeys {
     public static final String RECORD_EXPIRES = "expires";
     public static final String RECORD_SKIP = "skip";
     public static final String RECORD_MAXRESULTS = "maxresults";
+    public static final String RECORD_CURSOR = "cursor";
+    public static final String RECORD_FIELDS = "fields";
+    public static final String RECORD_FACETS = "facets";
+    public static final String RECORD_CARDINALITY = "cardinality";
+    public static final String RECORD_FACET_SIZE = "facet-size";
+    public static final String RECORD_LOCATION_NEAR = "location-near";
+    public static final String RECORD_LOCATION_RADIUS = "location-radius";
+    public static final String RECORD_LOCATION_BOX = "location-box";
+    public static final String RECORD_SORT = "sort";
     public static final String RECORD_PRIVATEKEY = "privatekey";
     public static final String RECORD_STATE = "state";
 
@@ -24,6 +24,9 @@ public class ReservedValues {
   public static final String RECORD_OPERATOR_ANY = "any";
   public static final String RECORD_OPERATOR_DEFAULT = RECORD_OPERATOR_ALL;
 
+  // sort values
+  public static final String RECORD_SORT_DISTANCE = "distance";
+
   public static final String RECORD_VALUE_TYPE_ERROR = "error";
   // server keys
   public static final String SERVER_STATUS_UNKNOWN = "unknown";
@@ -53,4 +56,8 @@ public class ReservedValues {
   // error messages
   public static final String RECORD_BULKRENEW_EXPIRED_ERRORMESSAGE = "expired";
   public static final String RECORD_BULKRENEW_NOTFOUND_ERRORMESSAGE = "notfound";
+  public static final String RECORD_BULKREGISTER_INVALID_ERRORMESSAGE = "invalid";
+  public static final String RECORD_BULKREGISTER_DUPLICATE_ERRORMESSAGE = "duplicate";
+  public static final String RECORD_BULKREGISTER_LEASE_ERRORMESSAGE = "lease-denied";
+  public static final String RECORD_BULKREGISTER_DATABASE_ERRORMESSAGE = "database-error";
 }
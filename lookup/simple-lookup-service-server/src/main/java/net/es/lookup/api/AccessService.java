@@ -1,14 +1,17 @@
 package net.es.lookup.api;
 
 import java.io.IOException;
-import java.util.HashMap;
+import java.util.Collections;
+import java.util.List;
 import java.util.Map;
 import net.es.lookup.common.Message;
+import net.es.lookup.common.exception.api.BadRequestException;
 import net.es.lookup.common.exception.api.InternalErrorException;
 import net.es.lookup.common.exception.api.NotFoundException;
 import net.es.lookup.common.exception.internal.DataFormatException;
 import net.es.lookup.common.exception.internal.DatabaseException;
 
+import net.es.lookup.database.FieldProjection;
 import net.es.lookup.database.ServiceElasticSearch;
 import net.es.lookup.protocol.json.JSONGetServiceResponse;
 import net.es.lookup.protocol.json.JSONMessage;
@@ -34,7 +37,7 @@ public class AccessService {
     Message serviceRecord;
     try {
       ServiceElasticSearch db = ServiceElasticSearch.getInstance();
-      serviceRecord = db.getRecordByURI(serviceid);
+      serviceRecord = db.getCachedRecordByURI(serviceid);
 
       if (serviceRecord != null) {
 
@@ -73,18 +76,38 @@ public class AccessService {
    */
   public String getKeyService(String serviceid, String key) {
 
+    return getKeysService(serviceid, Collections.singletonList(key));
+  }
+
+  /**
+   * Method to retrieve some keys and values from the record. Only the requested keys are read
+   * from the database.
+   *
+   * @param serviceid id of the record (uri)
+   * @param keys the keys of the key-values to be retrieved
+   * @return String Json message of the key-values that exist expressed as string
+   */
+  public String getKeysService(String serviceid, List<String> keys) {
+
     LOG.info("Processing getServiceKey...");
     LOG.info(" serviceid: " + serviceid);
 
     JSONGetServiceResponse response;
     Message serviceRecord;
 
+    FieldProjection fields = FieldProjection.of(keys);
+    if (fields == null || fields.getExcludes().length > 0) {
+      LOG.error("Invalid keys: " + keys);
+      LOG.info("GetServiceKey status: FAILED; exiting");
+      throw new BadRequestException("Invalid keys\n");
+    }
+
     try {
       ServiceElasticSearch db = ServiceElasticSearch.getInstance();
-      serviceRecord = db.getRecordByURI(serviceid);
+      serviceRecord = db.getCachedRecordByURI(serviceid, fields);
       if (serviceRecord != null) {
 
-        if (serviceRecord.getKey(key) == null) {
+        if (serviceRecord.getMap().isEmpty()) {
 
           LOG.error("The key does not exist.");
           LOG.info("GetServiceKey status: FAILED; exiting");
@@ -92,8 +115,7 @@ public class AccessService {
         }
 
         LOG.info("GetServiceKey status: SUCCESS");
-        Map<String, Object> keyValueMap = new HashMap<>();
-        keyValueMap.put(key, serviceRecord.getKey(key));
+        Map<String, Object> keyValueMap = serviceRecord.getMap();
         response = new JSONGetServiceResponse(keyValueMap);
 
         try {
@@ -22,9 +22,11 @@ import org.apache.logging.log4j.Logger;
 import java.net.URISyntaxException;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.Set;
 
 public class BulkRenewService {
   private static Logger LOG = LogManager.getLogger(BulkRenewService.class);
@@ -38,9 +40,19 @@ public class BulkRenewService {
   public String bulkRenew(String renewRequests) {
 
     // parse records
-    JsonBulkRenewRequest jsonBulkRenewRequest = new JsonBulkRenewRequest(renewRequests);
+    return bulkRenew(new JsonBulkRenewRequest(renewRequests));
+  }
+
+  /**
+   * The method bulk renews records.
+   *
+   * @param jsonBulkRenewRequest Request containing list of uris, parsed while the body was read.
+   * @return String Json message as a string.
+   */
+  public String bulkRenew(JsonBulkRenewRequest jsonBulkRenewRequest) {
 
-    if (renewRequests.isEmpty()) {
+    if (jsonBulkRenewRequest.getStatus() == JsonBulkRenewRequest.VALID
+        && jsonBulkRenewRequest.getMap().isEmpty()) {
 
       LOG.error("net.es.lookup.api.BulkRenewService: Empty bulk request received");
       throw new BadRequestException("Request cannot be empty");
@@ -79,9 +91,12 @@ public class BulkRenewService {
           (List<String>) jsonBulkRenewRequest.getKey(ReservedKeys.RECORD_BULK_URIS);
       Map<String, Message> bulkUpdateRequests = new HashMap<>();
 
+      // one multi-get for the whole batch; lease checks then run over the in-memory records
+      Map<String, Message> serviceRecords = db.getRecordsByURIs(allRecordUris);
+
       for (String uri : allRecordUris) {
 
-        Message serviceRecord = db.getRecordByURI(uri);
+        Message serviceRecord = serviceRecords.get(uri);
 
         if (serviceRecord == null) {
 
@@ -116,6 +131,13 @@ public class BulkRenewService {
       Message renewResponse = new Message();
       if(!bulkUpdateRequests.isEmpty()){
         renewResponse = db.bulkUpdate(bulkUpdateRequests);
+        Set<String> changedTypes = new HashSet<>();
+        for (Message renewed : bulkUpdateRequests.values()) {
+          changedTypes.add(renewed.getRecordType());
+        }
+        for (String type : changedTypes) {
+          QueryResultCache.recordsChanged(type);
+        }
       }
       JsonBulkRenewResponse jsonBulkRenewResponse =
           formatJsonBulkRenewResponse(allRecordUris.size(), renewResponse, failedUris);
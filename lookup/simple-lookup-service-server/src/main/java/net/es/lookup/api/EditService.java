@@ -21,11 +21,11 @@ import net.es.lookup.publish.Publisher;
 import net.es.lookup.service.PublishService;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
+import org.joda.time.DateTime;
 
 import java.io.IOException;
 import java.net.URISyntaxException;
 import java.util.ArrayList;
-import java.util.Map;
 
 /** Author: sowmya. Date: 10/29/13 Time: 3:24 PM */
 public class EditService {
@@ -41,15 +41,42 @@ public class EditService {
    */
   public String renewService(String serviceid, String service) {
 
+    return renewService(serviceid, service, false);
+  }
+
+  /**
+   * Method to renew record. Only the lease fields are updated in the database.
+   *
+   * @param serviceid id of the record to renew
+   * @param service renew request
+   * @param fullRecord if true, the full renewed record is returned. Otherwise only uri, type, ttl,
+   *     expires and state are returned
+   * @return String Json message of the renewed record expressed as string.
+   */
+  public String renewService(String serviceid, String service, boolean fullRecord) {
+
+    return renewService(serviceid, new JSONRenewRequest(service), fullRecord);
+  }
+
+  /**
+   * Method to renew record with a request parsed from the request body. See {@link
+   * #renewService(String, String, boolean)}.
+   *
+   * @param serviceid id of the record to renew
+   * @param request renew request, parsed while the body was read
+   * @param fullRecord if true, the full renewed record is returned
+   * @return String Json message of the renewed record expressed as string.
+   */
+  public String renewService(String serviceid, JSONRenewRequest request, boolean fullRecord) {
+
     LOG.info("Processing renewService...");
     LOG.info(" serviceid: " + serviceid);
 
     JSONRenewResponse response;
     Message errorResponse = new Message();
-    JSONRenewRequest request = new JSONRenewRequest(service);
 
     // renew can be empty for now. next version will require the privatekey
-    if (!service.isEmpty() && request.getStatus() == JSONRenewRequest.INCORRECT_FORMAT) {
+    if (request.getStatus() == JSONRenewRequest.INCORRECT_FORMAT) {
 
       LOG.error(
           "requestStatus:" + request.getStatus() + " ServiceRecord requestUrl format is Incorrect");
@@ -62,57 +89,70 @@ public class EditService {
 
     if (this.isValid(request) && this.isAuthed(serviceid, request)) {
 
+      LeaseManager leaseManager = LeaseManager.getInstance();
+      long ttl;
       try {
-        ServiceElasticSearch db = ServiceElasticSearch.getInstance();
-        Message serviceRecord = db.getRecordByURI(serviceid);
-
-        if (serviceRecord != null) {
-
-          LOG.debug("servicerecord not null");
-          Map<String, Object> serviceMap = serviceRecord.getMap();
-          if (request.getTTL() != null && !request.getTTL().isEmpty()) {
 
-            serviceMap.put(ReservedKeys.RECORD_TTL, request.getTTL());
+        ttl = leaseManager.leaseSeconds(request.getTTL());
 
-          } else {
+      } catch (IllegalArgumentException e) {
 
-            serviceMap.put(ReservedKeys.RECORD_TTL, new ArrayList());
-          }
-          Message newRequest = new Message(serviceMap);
-          boolean gotLease = LeaseManager.getInstance().requestLease(newRequest);
-
-          if (gotLease) {
-
-            LOG.debug("gotLease for " + serviceid);
-            // update state
+        LOG.fatal("Failed to secure lease for the renew record. Wrong TTL format");
+        LOG.info("Renew status: FAILED; exiting");
+        throw new ForbiddenRequestException("Failed to secure lease for the renewal record");
+      }
 
-            newRequest.add(ReservedKeys.RECORD_STATE, ReservedValues.RECORD_VALUE_STATE_RENEW);
-            Message res = db.updateService(serviceid, newRequest);
-            LOG.debug("Renewed " + serviceid);
+      Object requestedTTL;
+      if (request.getTTL() != null && !request.getTTL().isEmpty()) {
 
-            if (PublishService.isServiceOn()) {
-              Publisher publisher = Publisher.getInstance();
-              publisher.eventNotification(res);
-            }
-            response = new JSONRenewResponse(res.getMap());
-            LOG.debug("Sending back response for " + serviceid);
-            LOG.debug("Response is " + JSONMessage.toString(response));
+        requestedTTL = request.getTTL();
 
-            return JSONMessage.toString(response);
+      } else {
 
-          } else {
+        requestedTTL = new ArrayList();
+      }
+      String expires = new DateTime().plus(ttl * 1000).toString();
 
-            LOG.fatal("Failed to secure lease for the renew record");
-            LOG.info("Renew status: FAILED; exiting");
-            throw new ForbiddenRequestException("Failed to secure lease for the renewal record");
+      try {
+        ServiceElasticSearch db = ServiceElasticSearch.getInstance();
+        // the publisher needs the full record
+        boolean fetchRecord = fullRecord || PublishService.isServiceOn();
+        Message res =
+            db.renewLease(
+                serviceid,
+                requestedTTL,
+                expires,
+                ReservedValues.RECORD_VALUE_STATE_RENEW,
+                leaseManager.getPruneTime().getMillis(),
+                fetchRecord);
+
+        if (res != null) {
+
+          LOG.debug("Renewed " + serviceid);
+          QueryResultCache.recordChanged(serviceid);
+
+          if (PublishService.isServiceOn()) {
+            Publisher publisher = Publisher.getInstance();
+            publisher.eventNotification(res);
           }
+          response = new JSONRenewResponse(res.getMap());
+          LOG.debug("Sending back response for " + serviceid);
+          LOG.debug("Response is " + JSONMessage.toString(response));
+
+          return JSONMessage.toString(response);
 
         } else {
 
-          LOG.error("ServiceRecord Not Found in DB.");
-          LOG.info("RenewService status: FAILED; exiting");
-          throw new NotFoundException("ServiceRecord Not Found in DB\n");
+          LOG.fatal("Failed to secure lease for the renew record");
+          LOG.info("Renew status: FAILED; exiting");
+          throw new ForbiddenRequestException("Failed to secure lease for the renewal record");
         }
+
+      } catch (RecordNotFoundException e) {
+
+        LOG.error("ServiceRecord Not Found in DB.");
+        LOG.info("RenewService status: FAILED; exiting");
+        throw new NotFoundException("ServiceRecord Not Found in DB\n");
       } catch ( DatabaseException e) {
 
 
@@ -162,12 +202,22 @@ public class EditService {
    */
   public String deleteService(String serviceid, String service) {
 
+    return deleteService(serviceid, new JSONDeleteRequest(service));
+  }
+
+  /**
+   * Method to delete record with a request parsed from the request body.
+   *
+   * @param serviceid id of the record to delete
+   * @param request delete request, parsed while the body was read
+   * @return Strimg Json message of the deleted record expressed as string.
+   */
+  public String deleteService(String serviceid, JSONDeleteRequest request) {
+
     LOG.info("Processing deleteRecord...");
     LOG.info("serviceid: " + serviceid);
     JSONDeleteResponse response;
 
-    JSONDeleteRequest request = new JSONDeleteRequest(service);
-
     if (request.getStatus() == JSONDeleteRequest.INCORRECT_FORMAT) {
 
       LOG.debug("INCORRECT FORMAT");
@@ -192,6 +242,7 @@ public class EditService {
           throw new NotFoundException("ServiceRecord not found in DB\n");
 
         } else {
+          QueryResultCache.recordsChanged(serviceRecord.getRecordType());
           // update state
           serviceRecord.add(ReservedKeys.RECORD_STATE, ReservedValues.RECORD_VALUE_STATE_DELETE);
 
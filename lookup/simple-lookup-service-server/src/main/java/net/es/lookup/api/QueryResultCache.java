@@ -0,0 +1,594 @@
+package net.es.lookup.api;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+import net.es.lookup.common.Message;
+import net.es.lookup.common.ReservedKeys;
+import net.es.lookup.common.ReservedValues;
+import net.es.lookup.database.FieldProjection;
+import net.es.lookup.database.GeoFilter;
+import net.es.lookup.utils.jmx.MBeanRegistrar;
+
+/**
+ * Cache of serialized query responses, keyed by the normalized query, operators and limits.
+ *
+ * <p>Identical queries that arrive while one is being loaded wait for that load instead of
+ * running their own search, unless they are streamed: a streamed load lasts as long as its
+ * client takes to read it, so identical streamed queries run their own search meanwhile. A
+ * response is dropped when a record that it may contain is written
+ * through this server: queries restricted to record types depend on a generation counter per
+ * type, any other query on a counter bumped by every write. Writes by other servers sharing the
+ * index, and writes that a search cannot see yet because the index was not refreshed, show up
+ * after at most maxStalenessMillis.
+ */
+public final class QueryResultCache implements QueryResultCacheMXBean {
+
+  // Time a request waits for an identical query that is already being loaded
+  private static final long SHARED_LOAD_TIMEOUT_MILLIS = 10000;
+
+  private static volatile QueryResultCache instance;
+
+  private final int maxEntries;
+  private final long maxBytes;
+  private final int maxEntryBytes;
+  private final long maxStalenessMillis;
+
+  private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+  private final ConcurrentHashMap<String, Load> loading = new ConcurrentHashMap<>();
+
+  private final AtomicLong allGeneration = new AtomicLong();
+  private final AtomicLong untypedGeneration = new AtomicLong();
+  private final ConcurrentHashMap<String, AtomicLong> typeGenerations = new ConcurrentHashMap<>();
+  private final AtomicLong invalidations = new AtomicLong();
+
+  private long bytes;
+  private long hits;
+  private long misses;
+  private long sharedLoads;
+  private long loads;
+  private long failedLoads;
+  private long tooLarge;
+  private long evictions;
+
+  /** A serialized response and, for a page of results, the cursor of the next page. */
+  static final class Result {
+
+    final byte[] body;
+    final String cursor;
+
+    Result(byte[] body, String cursor) {
+      this.body = body;
+      this.cursor = cursor;
+    }
+  }
+
+  /** A normalized query and the record types it can match, or null if it can match any type. */
+  static final class Key {
+
+    final String text;
+    final Set<String> types;
+
+    Key(String text, Set<String> types) {
+      this.text = text;
+      this.types = types;
+    }
+  }
+
+  /** A load of a query by one request, which identical queries wait for. */
+  static final class Load {
+
+    final long stamp;
+    final long startMillis;
+    private final CompletableFuture<Result> result = new CompletableFuture<>();
+
+    Load(long stamp, long startMillis) {
+      this.stamp = stamp;
+      this.startMillis = startMillis;
+    }
+
+    /** Returns the response, or null if the load failed, was too large or took too long. */
+    Result await() {
+      try {
+        return result.get(SHARED_LOAD_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        return null;
+      } catch (ExecutionException | TimeoutException e) {
+        return null;
+      }
+    }
+  }
+
+  /**
+   * Outcome of a lookup. Either the response to send, or the load that the caller has to run and
+   * finish, or neither if the query is to be run without the cache.
+   */
+  static final class Lookup {
+
+    final Result result;
+    final Load load;
+
+    Lookup(Result result, Load load) {
+      this.result = result;
+      this.load = load;
+    }
+  }
+
+  private static class Entry {
+
+    final Result result;
+    final long stamp;
+    final long expiresAt;
+
+    Entry(Result result, long stamp, long expiresAt) {
+      this.result = result;
+      this.stamp = stamp;
+      this.expiresAt = expiresAt;
+    }
+
+    // responses too large to cache are remembered without a body
+    long size() {
+      return result == null ? 0 : result.body.length;
+    }
+  }
+
+  /**
+   * @param maxEntries number of responses kept, must be positive
+   * @param maxBytes total size of the responses kept
+   * @param maxEntryBytes size of the largest response kept. Larger responses are remembered as
+   *     such so identical queries are streamed directly
+   * @param maxStalenessMillis time a response is kept at most
+   */
+  QueryResultCache(int maxEntries, long maxBytes, int maxEntryBytes, long maxStalenessMillis) {
+
+    if (maxEntries <= 0) {
+      throw new IllegalArgumentException("Query cache size must be positive");
+    }
+    this.maxEntries = maxEntries;
+    this.maxBytes = maxBytes;
+    this.maxEntryBytes = (int) Math.min(maxEntryBytes, maxBytes);
+    this.maxStalenessMillis = maxStalenessMillis;
+  }
+
+  /** Caches query responses from now on. */
+  public static void enable(
+      int maxEntries, long maxBytes, int maxEntryBytes, long maxStalenessMillis) {
+
+    QueryResultCache cache =
+        new QueryResultCache(maxEntries, maxBytes, maxEntryBytes, maxStalenessMillis);
+    MBeanRegistrar.register("QueryResultCache", "query", cache);
+    instance = cache;
+  }
+
+  /** Returns the cache, or null if query responses are not cached. */
+  static QueryResultCache getInstance() {
+
+    return instance;
+  }
+
+  /**
+   * Drops the cached responses that may contain records of the type, or every response if the
+   * type is null. Does nothing when the cache is disabled.
+   */
+  static void recordsChanged(String recordType) {
+
+    QueryResultCache cache = instance;
+    if (cache != null) {
+      cache.invalidate(recordType);
+    }
+  }
+
+  /** Drops the cached responses that may contain the record. */
+  static void recordChanged(String recordURI) {
+
+    recordsChanged(typeOf(recordURI));
+  }
+
+  /** Returns the record type in a record uri of the form prefix/type/id, or null. */
+  static String typeOf(String recordURI) {
+
+    if (recordURI == null) {
+      return null;
+    }
+    String[] parts = recordURI.split("/");
+    return parts.length == 3 ? parts[1] : null;
+  }
+
+  /**
+   * Returns the key of a query.
+   *
+   * @param kind distinguishes queries whose responses are serialized differently
+   * @param fields keys of the records returned, or null for entire records
+   * @param geo location filter of the query, or null
+   */
+  static Key key(
+      String kind,
+      Message queryParameters,
+      Message operators,
+      int maxResult,
+      int skip,
+      String cursor,
+      FieldProjection fields,
+      GeoFilter geo) {
+
+    Map<String, Object> query = queryParameters.getMap();
+    Map<String, Object> operatorMap = operators.getMap();
+    StringBuilder text = new StringBuilder();
+    append(text, kind);
+    append(text, query);
+    Map<String, Object> normalizedOperators = new TreeMap<>();
+    for (Map.Entry<String, Object> entry : operatorMap.entrySet()) {
+      Object value = entry.getValue();
+      normalizedOperators.put(
+          entry.getKey(), value instanceof String ? ((String) value).toLowerCase() : value);
+    }
+    append(text, normalizedOperators);
+    append(text, maxResult + "/" + skip + "/" + (cursor == null ? "" : cursor));
+    append(text, fields == null ? "" : fields.toString());
+    append(text, geo == null ? "" : geo.toString());
+    return new Key(text.toString(), types(query, operatorMap.get(ReservedKeys.RECORD_OPERATOR)));
+  }
+
+  /**
+   * Returns the record types a query can match, or null if it can match records of any type. A
+   * record only matches if it has one of the values given for type, unless the query is a
+   * disjunction over several keys or matches types by pattern.
+   */
+  private static Set<String> types(Map<String, Object> query, Object operator) {
+
+    Object type = query.get(ReservedKeys.RECORD_TYPE);
+    if (type == null) {
+      return null;
+    }
+    if (query.size() > 1 && !ReservedValues.RECORD_OPERATOR_ALL.equalsIgnoreCase((String) operator)) {
+      return null;
+    }
+    List<?> values = type instanceof List ? (List<?>) type : Collections.singletonList(type);
+    Set<String> types = new HashSet<>();
+    for (Object value : values) {
+      if (!(value instanceof String) || !isTypeName((String) value)) {
+        return null;
+      }
+      types.add(((String) value).toLowerCase());
+    }
+    return types.isEmpty() ? null : types;
+  }
+
+  private static boolean isTypeName(String value) {
+
+    if (value.isEmpty()) {
+      return false;
+    }
+    for (char c : value.toCharArray()) {
+      if (!Character.isLetterOrDigit(c) && c != '-' && c != '_') {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  // Length prefixed so that no two different queries share a key. Lists are sorted since the
+  // order of the values does not change the result
+  private static void append(StringBuilder text, Object value) {
+
+    if (value instanceof Map) {
+      Map<String, Object> sorted = new TreeMap<>((Map<String, Object>) value);
+      text.append('{').append(sorted.size());
+      for (Map.Entry<String, Object> entry : sorted.entrySet()) {
+        append(text, entry.getKey());
+        append(text, entry.getValue());
+      }
+      text.append('}');
+    } else if (value instanceof List) {
+      List<String> items = new ArrayList<>();
+      for (Object item : (List<?>) value) {
+        StringBuilder itemText = new StringBuilder();
+        append(itemText, item);
+        items.add(itemText.toString());
+      }
+      Collections.sort(items);
+      text.append('[').append(items.size());
+      for (String item : items) {
+        text.append(item);
+      }
+      text.append(']');
+    } else {
+      String string = String.valueOf(value);
+      text.append(string.length()).append(':').append(string);
+    }
+  }
+
+  /**
+   * Returns the cached response of the query, waiting for a load of the same query that is
+   * already running. Otherwise the returned lookup holds a load, and the caller runs the query
+   * and passes the response to finish.
+   */
+  Lookup lookup(Key key) {
+
+    return lookup(key, true);
+  }
+
+  /**
+   * Returns the cached response of the query, see {@link #lookup(Key)}.
+   *
+   * @param waitForLoad false to run the query without the cache instead of waiting for a load of
+   *     the same query, for queries whose loads last as long as a client download
+   */
+  Lookup lookup(Key key, boolean waitForLoad) {
+
+    Entry entry = get(key);
+    if (entry != null) {
+      return new Lookup(entry.result, null);
+    }
+    Load load = new Load(stamp(key), System.currentTimeMillis());
+    Load running = loading.putIfAbsent(key.text, load);
+    if (running == null) {
+      return new Lookup(null, load);
+    }
+    // a load that never finished is taken over
+    if (load.startMillis - running.startMillis > SHARED_LOAD_TIMEOUT_MILLIS
+        && loading.replace(key.text, running, load)) {
+      running.result.complete(null);
+      return new Lookup(null, load);
+    }
+    if (!waitForLoad) {
+      return new Lookup(null, null);
+    }
+    synchronized (this) {
+      sharedLoads++;
+    }
+    return new Lookup(running.await(), null);
+  }
+
+  /**
+   * Caches the response of a load and hands it to the requests waiting for it.
+   *
+   * @param result the response, or null if the query failed
+   */
+  void finish(Key key, Load load, Result result) {
+
+    if (load.result.isDone()) {
+      return;
+    }
+    if (result == null) {
+      synchronized (this) {
+        failedLoads++;
+      }
+    } else {
+      store(key, load, result.body.length <= maxEntryBytes ? result : null);
+    }
+    loading.remove(key.text, load);
+    load.result.complete(result);
+  }
+
+  /**
+   * Ends a load whose response turned out to be too large to cache. The waiting requests run the
+   * query themselves, and so do identical queries for as long as a response would be kept.
+   */
+  void finishTooLarge(Key key, Load load) {
+
+    if (load.result.isDone()) {
+      return;
+    }
+    store(key, load, null);
+    loading.remove(key.text, load);
+    load.result.complete(null);
+  }
+
+  /**
+   * Returns a stream that writes to out and keeps a copy of what was written for the cache.
+   * Finishes the load as too large once the copy exceeds the largest cached response.
+   */
+  Capture capture(Key key, Load load, OutputStream out) {
+
+    return new Capture(key, load, out);
+  }
+
+  /** Drops the cached responses that may contain records of the type, or every response. */
+  void invalidate(String recordType) {
+
+    invalidations.incrementAndGet();
+    allGeneration.incrementAndGet();
+    if (recordType == null || !isTypeName(recordType)) {
+      untypedGeneration.incrementAndGet();
+    } else {
+      typeGenerations
+          .computeIfAbsent(recordType.toLowerCase(), type -> new AtomicLong())
+          .incrementAndGet();
+    }
+  }
+
+  // Changes whenever a record the query may match is written
+  private long stamp(Key key) {
+
+    if (key.types == null) {
+      return allGeneration.get();
+    }
+    long stamp = untypedGeneration.get();
+    for (String type : key.types) {
+      AtomicLong generation = typeGenerations.get(type);
+      if (generation != null) {
+        stamp += generation.get();
+      }
+    }
+    return stamp;
+  }
+
+  private synchronized Entry get(Key key) {
+
+    Entry entry = entries.get(key.text);
+    if (entry != null
+        && (entry.expiresAt <= System.currentTimeMillis() || entry.stamp != stamp(key))) {
+      remove(key.text);
+      entry = null;
+    }
+    if (entry == null || entry.result == null) {
+      misses++;
+    } else {
+      hits++;
+    }
+    return entry;
+  }
+
+  private synchronized void store(Key key, Load load, Result result) {
+
+    if (result == null) {
+      tooLarge++;
+    } else {
+      loads++;
+    }
+    long expiresAt = load.startMillis + maxStalenessMillis;
+    // a record was written while the query ran
+    if (stamp(key) != load.stamp || expiresAt <= System.currentTimeMillis()) {
+      return;
+    }
+    Entry entry = new Entry(result, load.stamp, expiresAt);
+    remove(key.text);
+    entries.put(key.text, entry);
+    bytes += entry.size();
+    Iterator<Entry> oldest = entries.values().iterator();
+    while (entries.size() > maxEntries || bytes > maxBytes) {
+      bytes -= oldest.next().size();
+      oldest.remove();
+      evictions++;
+    }
+  }
+
+  private void remove(String text) {
+
+    Entry entry = entries.remove(text);
+    if (entry != null) {
+      bytes -= entry.size();
+    }
+  }
+
+  /** Copies a streamed response for the cache. */
+  final class Capture extends FilterOutputStream {
+
+    private final Key key;
+    private final Load load;
+    private ByteArrayOutputStream copy = new ByteArrayOutputStream();
+
+    private Capture(Key key, Load load, OutputStream out) {
+      super(out);
+      this.key = key;
+      this.load = load;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+      out.write(b);
+      keep(new byte[] {(byte) b}, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+      out.write(b, off, len);
+      keep(b, off, len);
+    }
+
+    private void keep(byte[] b, int off, int len) {
+      if (copy == null) {
+        return;
+      }
+      if (copy.size() + len > maxEntryBytes) {
+        copy = null;
+        finishTooLarge(key, load);
+      } else {
+        copy.write(b, off, len);
+      }
+    }
+
+    /**
+     * Finishes the load.
+     *
+     * @param complete false if the response was cut short by an error
+     */
+    void finish(boolean complete) {
+      if (copy == null) {
+        return;
+      }
+      QueryResultCache.this.finish(
+          key, load, complete ? new Result(copy.toByteArray(), null) : null);
+      copy = null;
+    }
+  }
+
+  @Override
+  public synchronized int getSize() {
+    return entries.size();
+  }
+
+  @Override
+  public synchronized long getBytes() {
+    return bytes;
+  }
+
+  @Override
+  public int getMaxEntries() {
+    return maxEntries;
+  }
+
+  @Override
+  public synchronized long getHits() {
+    return hits;
+  }
+
+  @Override
+  public synchronized long getMisses() {
+    return misses;
+  }
+
+  @Override
+  public synchronized double getHitRatio() {
+    long requests = hits + misses;
+    return requests == 0 ? 0 : (double) hits / requests;
+  }
+
+  @Override
+  public synchronized long getSharedLoads() {
+    return sharedLoads;
+  }
+
+  @Override
+  public synchronized long getLoads() {
+    return loads;
+  }
+
+  @Override
+  public synchronized long getFailedLoads() {
+    return failedLoads;
+  }
+
+  @Override
+  public synchronized long getTooLarge() {
+    return tooLarge;
+  }
+
+  @Override
+  public synchronized long getEvictions() {
+    return evictions;
+  }
+
+  @Override
+  public long getInvalidations() {
+    return invalidations.get();
+  }
+}
@@ -0,0 +1,29 @@
+package net.es.lookup.api;
+
+/** Metrics of the query result cache. */
+public interface QueryResultCacheMXBean {
+
+  int getSize();
+
+  long getBytes();
+
+  int getMaxEntries();
+
+  long getHits();
+
+  long getMisses();
+
+  double getHitRatio();
+
+  long getSharedLoads();
+
+  long getLoads();
+
+  long getFailedLoads();
+
+  long getTooLarge();
+
+  long getEvictions();
+
+  long getInvalidations();
+}
@@ -1,27 +1,203 @@
 package net.es.lookup.api;
 
+import com.google.gson.Gson;
+import net.es.lookup.common.MemoryGovernor;
 import net.es.lookup.common.Message;
 import net.es.lookup.common.ReservedKeys;
 import net.es.lookup.common.ReservedValues;
+import net.es.lookup.common.exception.api.BadRequestException;
 import net.es.lookup.common.exception.api.InternalErrorException;
 import net.es.lookup.common.exception.api.NotFoundException;
 import net.es.lookup.common.exception.api.ServiceUnavailableTemporarilyException;
 import net.es.lookup.common.exception.internal.DataFormatException;
 import net.es.lookup.common.exception.internal.DatabaseException;
+import net.es.lookup.database.FieldProjection;
+import net.es.lookup.database.GeoFilter;
+import net.es.lookup.database.QueryFacets;
+import net.es.lookup.database.QueryPage;
+import net.es.lookup.database.QueryScroll;
 import net.es.lookup.database.ServiceElasticSearch;
-import net.es.lookup.protocol.json.JSONMessage;
+import net.es.lookup.protocol.json.JSONRecordWriter;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import javax.ws.rs.core.Response;
+import javax.ws.rs.core.StreamingOutput;
 
 public class QueryServices {
 
   private static Logger LOG = LogManager.getLogger(QueryServices.class);
   private String params;
 
-  public static boolean QUERY_ALL_FLAG = false;
+  /** Response header carrying the continuation token for the next page of results. */
+  public static final String CURSOR_HEADER = "X-Lookup-Cursor";
+
+  /** Number of values returned for each facet unless the request asks for another number. */
+  public static final int DEFAULT_FACET_SIZE = 10;
+
+  public static final int MAX_FACET_SIZE = 1000;
+
+  /** Maximum number of keys aggregated by one facets request. */
+  public static final int MAX_FACET_KEYS = 20;
+
+  // Heap reserved per record while a response is built: the record and its json
+  private static final long RECORD_BYTES = 4096;
+
+  // Records in a page when the query does not set maxresults, and in a scroll page
+  private static final int DEFAULT_PAGE_RECORDS = 5000;
+
+  // Records reserved for an unpaged query built whole in memory, whose size is not known ahead
+  private static final int UNPAGED_RECORDS = 20000;
+
+  // Time a streamed response may wait to be written, as long as Elasticsearch keeps an idle
+  // scroll. Past it the scroll is closed, e.g. when the client went away before the body
+  private static final long UNWRITTEN_STREAM_TIMEOUT_SECONDS = 60;
+
+  private static final ScheduledExecutorService STREAM_TIMER =
+      Executors.newSingleThreadScheduledExecutor(
+          runnable -> {
+            Thread thread = new Thread(runnable, "unwritten-stream-timer");
+            thread.setDaemon(true);
+            return thread;
+          });
+
+  /**
+   * Method to query for records using the request, honoring maxResults and skip.
+   * Unpaged queries are streamed to the client (see streamQuery).
+   * Paged queries run a single search instead of draining a scroll. When more results are
+   * available the response carries a continuation token in the CURSOR_HEADER header, which the
+   * client sends back as the cursor parameter to fetch the next page.
+   *
+   * @param request Request containing keywords and operators
+   * @param maxResult maximum results to be returned, 0 for all
+   * @param skip number of results to skip, cannot be combined with a cursor
+   * @param cursor continuation token from a previous page, or null
+   * @return Response with the json records as entity
+   */
+  public Response query(Message request, int maxResult, int skip, String cursor) {
+
+    return query(request, maxResult, skip, cursor, null);
+  }
+
+  /**
+   * Method to query for the given keys of records using the request, honoring maxResults and
+   * skip. See {@link #query(Message, int, int, String)}.
+   *
+   * @param fields keys of the records to return, or null for entire records
+   */
+  public Response query(
+      Message request, int maxResult, int skip, String cursor, FieldProjection fields) {
+
+    return query(request, maxResult, skip, cursor, fields, null);
+  }
+
+  /**
+   * Method to query for the given keys of records within a location filter, honoring maxResults
+   * and skip. See {@link #query(Message, int, int, String)}.
+   *
+   * @param fields keys of the records to return, or null for entire records
+   * @param geo location filter, or null for records anywhere
+   */
+  public Response query(
+      Message request,
+      int maxResult,
+      int skip,
+      String cursor,
+      FieldProjection fields,
+      GeoFilter geo) {
+
+    boolean paged = maxResult > 0 || skip > 0 || (cursor != null && !cursor.isEmpty());
+    if (!paged) {
+      return streamQuery(request, fields, geo);
+    }
+
+    LOG.info("Processing paged queryService...");
+    LOG.info("Received message: " + request.getMap());
+
+    if (maxResult < 0 || skip < 0) {
+      throw new BadRequestException("maxresults and skip cannot be negative");
+    }
+    if (skip > 0 && cursor != null && !cursor.isEmpty()) {
+      throw new BadRequestException("skip cannot be combined with a cursor");
+    }
+
+    Message queryParameters = getQueryParameters(request);
+    Message operators = getOperators(request, queryParameters);
+    QueryResultCache cache = QueryResultCache.getInstance();
+    QueryResultCache.Key key = null;
+    QueryResultCache.Load load = null;
+    if (cache != null) {
+      key =
+          QueryResultCache.key(
+              "page", queryParameters, operators, maxResult, skip, cursor, fields, geo);
+      QueryResultCache.Lookup lookup = cache.lookup(key);
+      if (lookup.result != null) {
+        LOG.info("Query status: SUCCESS; cached");
+        return pageResponse(lookup.result);
+      }
+      load = lookup.load;
+    }
+
+    QueryResultCache.Result result = null;
+    try (MemoryGovernor.Reservation reservation =
+        MemoryGovernor.reserve((maxResult > 0 ? maxResult : DEFAULT_PAGE_RECORDS) * RECORD_BYTES)) {
+      ServiceElasticSearch db = ServiceElasticSearch.getInstance();
+      if (db == null) {
+        throw new NotFoundException("Cannot access database");
+      }
+
+      QueryPage page =
+          db.queryPage(queryParameters, operators, maxResult, skip, cursor, fields, geo);
+      result =
+          new QueryResultCache.Result(
+              JSONRecordWriter.toBytes(page.getRecords()), page.getNextCursor());
+      LOG.info("Query status: SUCCESS;");
+      return pageResponse(result);
+
+    } catch (IllegalArgumentException e) {
+
+      LOG.error("Invalid page request: " + e.getMessage());
+      LOG.info("Query status: FAILED; exiting");
+      throw new BadRequestException(
+          cursor != null && !cursor.isEmpty() ? "Invalid cursor" : "Invalid page request");
+
+    } catch (DatabaseException e) {
+
+      LOG.fatal("Error retrieving results:" + e.getMessage());
+      LOG.info("Query status: FAILED; exiting");
+      throw new InternalErrorException("Error retrieving results");
+
+    } catch (DataFormatException e) {
+
+      LOG.error("Data formatting exception");
+      LOG.info("Query status: FAILED; exiting");
+      throw new InternalErrorException("Error formatting elements");
+    } finally {
+      if (load != null) {
+        cache.finish(key, load, result);
+      }
+    }
+  }
+
+  private static Response pageResponse(QueryResultCache.Result result) {
+
+    Response.ResponseBuilder response = Response.ok(result.body);
+    if (result.cursor != null) {
+      response.header(CURSOR_HEADER, result.cursor);
+    }
+    return response.build();
+  }
 
   /**
    * Method to query for records using the request.
@@ -37,23 +213,38 @@ public class QueryServices {
 
     Message queryParameters = getQueryParameters(request);
     Message operators = getOperators(request, queryParameters);
+    QueryResultCache cache = QueryResultCache.getInstance();
+    QueryResultCache.Key key = null;
+    QueryResultCache.Load load = null;
+    if (cache != null) {
+      key =
+          QueryResultCache.key(
+              "list", queryParameters, operators, maxResult, 0, null, null, null);
+      QueryResultCache.Lookup lookup = cache.lookup(key);
+      if (lookup.result != null) {
+        LOG.info("Query status: SUCCESS; cached");
+        return new String(lookup.result.body, StandardCharsets.UTF_8);
+      }
+      load = lookup.load;
+    }
+
+    QueryResultCache.Result result = null;
     // Query DB
-    try {
+    try (MemoryGovernor.Reservation reservation =
+        MemoryGovernor.reserve(UNPAGED_RECORDS * RECORD_BYTES)) {
       ServiceElasticSearch db = ServiceElasticSearch.getInstance();
 
       if (db != null) {
 
           List<Message> res = db.query(request, queryParameters, operators, maxResult);
           // Build response
-          response = JSONMessage.toString(res);
+          result = new QueryResultCache.Result(JSONRecordWriter.toBytes(res), null);
+          response = new String(result.body, StandardCharsets.UTF_8);
 
 
         LOG.info("Query status: SUCCESS;");
         LOG.debug("Response is: "+ response);
 
-        if (queryParameters.getMap().size() == 0) {
-          QUERY_ALL_FLAG = true;
-        }
         LOG.debug("Sending response");
         return response;
       } else {
@@ -72,6 +263,11 @@ public class QueryServices {
       LOG.info("Query status: FAILED; exiting");
       throw new InternalErrorException("Error formatting elements");
 
+    } catch (ServiceUnavailableTemporarilyException e) {
+
+      LOG.info("Query status: REJECTED; low on memory");
+      throw e;
+
     } catch (OutOfMemoryError e) {
 
       LOG.error("The response was too large so ran out of memory");
@@ -85,6 +281,254 @@ public class QueryServices {
       LOG.info("Query status: FAILED; exiting");
       throw new ServiceUnavailableTemporarilyException(
           "Server is unable to process the request at this time. Please try later");
+    } finally {
+      if (load != null) {
+        cache.finish(key, load, result);
+      }
+    }
+  }
+
+  /**
+   * Streams all records matching the request to the client. Each scroll page is written to the
+   * connection as soon as it arrives from the database and the next page is not requested until
+   * the previous one has been written, so memory use stays at about one page regardless of the
+   * size of the result set. A search permit is only held while a page is fetched, and the scroll
+   * is closed if the response is not written within a minute.
+   *
+   * @param request Request containing keywords and operators
+   * @return Response whose entity streams the json records
+   */
+  public Response streamQuery(Message request) {
+
+    return streamQuery(request, null);
+  }
+
+  /**
+   * Streams the given keys of all records matching the request to the client.
+   *
+   * @param request Request containing keywords and operators
+   * @param fields keys of the records to return, or null for entire records
+   * @return Response whose entity streams the json records
+   */
+  public Response streamQuery(Message request, FieldProjection fields) {
+
+    return streamQuery(request, fields, null);
+  }
+
+  /**
+   * Streams the given keys of all records matching the request and the location filter to the
+   * client.
+   *
+   * @param request Request containing keywords and operators
+   * @param fields keys of the records to return, or null for entire records
+   * @param geo location filter, or null for records anywhere
+   * @return Response whose entity streams the json records
+   */
+  public Response streamQuery(Message request, FieldProjection fields, GeoFilter geo) {
+
+    LOG.info("Processing streaming queryService...");
+    LOG.info("Received message: " + request.getMap());
+
+    Message queryParameters = getQueryParameters(request);
+    Message operators = getOperators(request, queryParameters);
+    ServiceElasticSearch db = ServiceElasticSearch.getInstance();
+    if (db == null) {
+      throw new NotFoundException("Cannot access database");
+    }
+
+    // results too large for the cache are streamed without it
+    QueryResultCache cache = QueryResultCache.getInstance();
+    QueryResultCache.Key key = null;
+    QueryResultCache.Load load = null;
+    if (cache != null) {
+      key = QueryResultCache.key("stream", queryParameters, operators, 0, 0, null, fields, geo);
+      // a streamed load lasts as long as its client's download, so nobody waits for it
+      QueryResultCache.Lookup lookup = cache.lookup(key, false);
+      if (lookup.result != null) {
+        LOG.info("Query status: SUCCESS; cached");
+        return Response.ok(lookup.result.body).build();
+      }
+      load = lookup.load;
+    }
+
+    // the reservation is held until the last page is written
+    final MemoryGovernor.Reservation reservation;
+    try {
+      reservation = MemoryGovernor.reserve(DEFAULT_PAGE_RECORDS * RECORD_BYTES);
+    } catch (ServiceUnavailableTemporarilyException e) {
+      if (load != null) {
+        cache.finish(key, load, null);
+      }
+      LOG.info("Query status: REJECTED; low on memory");
+      throw e;
+    }
+
+    // open the scroll before committing the response so database errors still get a 500
+    final QueryScroll scroll;
+    try {
+      scroll = db.scrollQuery(queryParameters, operators, 0, fields, geo);
+    } catch (DatabaseException | OutOfMemoryError e) {
+      reservation.close();
+      if (load != null) {
+        cache.finish(key, load, null);
+      }
+      if (e instanceof OutOfMemoryError) {
+        LOG.error("The response was too large so ran out of memory");
+        LOG.info("Query status: FAILED; exiting");
+        throw new ServiceUnavailableTemporarilyException(
+            "Server is unable to process large query requests at this time. Please try later");
+      }
+      LOG.fatal("Error retrieving results:" + e.getMessage());
+      LOG.info("Query status: FAILED; exiting");
+      throw new InternalErrorException("Error retrieving results");
+    }
+
+    final QueryResultCache.Key cacheKey = key;
+    final QueryResultCache.Load cacheLoad = load;
+    // whoever comes first, the write or the timer, owns the scroll and closes it
+    final AtomicBoolean claimed = new AtomicBoolean();
+    final ScheduledFuture<?> timeout =
+        STREAM_TIMER.schedule(
+            () -> {
+              if (claimed.compareAndSet(false, true)) {
+                LOG.info("Query status: FAILED; response was never written");
+                scroll.close();
+                reservation.close();
+                if (cacheLoad != null) {
+                  cache.finish(cacheKey, cacheLoad, null);
+                }
+              }
+            },
+            UNWRITTEN_STREAM_TIMEOUT_SECONDS,
+            TimeUnit.SECONDS);
+    StreamingOutput stream =
+        output -> {
+          if (!claimed.compareAndSet(false, true)) {
+            throw new IOException("Query results expired before they were written");
+          }
+          timeout.cancel(false);
+          QueryResultCache.Capture capture =
+              cacheLoad == null ? null : cache.capture(cacheKey, cacheLoad, output);
+          boolean complete = false;
+          try (MemoryGovernor.Reservation streamReservation = reservation;
+              QueryScroll records = scroll;
+              JSONRecordWriter jsonWriter =
+                  new JSONRecordWriter(capture == null ? output : capture)) {
+            jsonWriter.beginArray();
+            List<Message> page;
+            while (!(page = records.nextPage()).isEmpty()) {
+              jsonWriter.writeRecords(page);
+              jsonWriter.flush();
+            }
+            jsonWriter.endArray();
+            complete = true;
+            LOG.info("Query status: SUCCESS;");
+          } catch (DatabaseException | DataFormatException e) {
+            // the response is already committed, so the only option left is to abort it
+            LOG.error("Error streaming results: " + e.getMessage());
+            LOG.info("Query status: FAILED; exiting");
+            throw new IOException("Error streaming results", e);
+          } catch (OutOfMemoryError e) {
+            // still answered with a 503 if nothing was flushed yet
+            LOG.error("The response was too large so ran out of memory");
+            LOG.info("Query status: FAILED; exiting");
+            throw new ServiceUnavailableTemporarilyException(
+                "Server is unable to process large query requests at this time. Please try later");
+          } finally {
+            if (capture != null) {
+              capture.finish(complete);
+            }
+          }
+        };
+    return Response.ok(stream).build();
+  }
+
+  /**
+   * Method to count the records matching the request and aggregate the values of some keys.
+   * Everything is computed by the database, no record is read.
+   *
+   * @param request Request containing keywords and operators
+   * @param valueKeys keys whose most frequent values are counted
+   * @param cardinalityKeys keys whose distinct values are counted approximately
+   * @param size number of values returned for each of valueKeys
+   * @return json object with the count, the facets and the cardinalities
+   */
+  public String facets(
+      Message request, List<String> valueKeys, List<String> cardinalityKeys, int size) {
+
+    return facets(request, null, valueKeys, cardinalityKeys, size);
+  }
+
+  /**
+   * Method to count the records matching the request and the location filter and aggregate the
+   * values of some keys. See {@link #facets(Message, List, List, int)}.
+   *
+   * @param geo location filter, or null for records anywhere
+   */
+  public String facets(
+      Message request,
+      GeoFilter geo,
+      List<String> valueKeys,
+      List<String> cardinalityKeys,
+      int size) {
+
+    LOG.info("Processing facets...");
+    LOG.info("Received message: " + request.getMap());
+
+    if (size < 1 || size > MAX_FACET_SIZE) {
+      throw new BadRequestException("facet-size must be between 1 and " + MAX_FACET_SIZE);
+    }
+    if (valueKeys.size() + cardinalityKeys.size() > MAX_FACET_KEYS) {
+      throw new BadRequestException("At most " + MAX_FACET_KEYS + " keys can be aggregated");
+    }
+
+    Message queryParameters = getQueryParameters(request);
+    Message operators = getOperators(request, queryParameters);
+    ServiceElasticSearch db = ServiceElasticSearch.getInstance();
+    if (db == null) {
+      throw new NotFoundException("Cannot access database");
+    }
+
+    try {
+      QueryFacets facets =
+          db.facets(queryParameters, operators, geo, valueKeys, cardinalityKeys, size);
+
+      Map<String, Object> response = new LinkedHashMap<>();
+      response.put("count", facets.getCount());
+      if (!valueKeys.isEmpty()) {
+        Map<String, Object> valueFacets = new LinkedHashMap<>();
+        for (Map.Entry<String, Map<String, Long>> facet : facets.getValues().entrySet()) {
+          List<Map<String, Object>> values = new ArrayList<>();
+          for (Map.Entry<String, Long> value : facet.getValue().entrySet()) {
+            Map<String, Object> bucket = new LinkedHashMap<>();
+            bucket.put("value", value.getKey());
+            bucket.put("count", value.getValue());
+            values.add(bucket);
+          }
+          Map<String, Object> valueFacet = new LinkedHashMap<>();
+          valueFacet.put("values", values);
+          valueFacet.put("other", facets.getOtherCounts().get(facet.getKey()));
+          valueFacets.put(facet.getKey(), valueFacet);
+        }
+        response.put("facets", valueFacets);
+      }
+      if (!cardinalityKeys.isEmpty()) {
+        response.put("cardinality", facets.getCardinalities());
+      }
+      LOG.info("Facets status: SUCCESS;");
+      return new Gson().toJson(response);
+
+    } catch (IllegalArgumentException e) {
+
+      LOG.error("Invalid facets request: " + e.getMessage());
+      LOG.info("Facets status: FAILED; exiting");
+      throw new BadRequestException("Invalid facets request");
+
+    } catch (DatabaseException e) {
+
+      LOG.fatal("Error computing facets:" + e.getMessage());
+      LOG.info("Facets status: FAILED; exiting");
+      throw new InternalErrorException("Error retrieving results");
     }
   }
 
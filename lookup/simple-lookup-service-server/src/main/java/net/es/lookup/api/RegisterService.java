@@ -1,10 +1,13 @@
 package net.es.lookup.api;
 
+import java.io.InputStream;
 import java.util.Map.Entry;
 import net.es.lookup.common.LeaseManager;
 import net.es.lookup.common.Message;
+import net.es.lookup.common.RecordFingerprint;
 import net.es.lookup.common.ReservedKeys;
 import net.es.lookup.common.ReservedValues;
+import net.es.lookup.common.ResponseCodes;
 import net.es.lookup.common.exception.api.BadRequestException;
 import net.es.lookup.common.exception.api.ForbiddenRequestException;
 import net.es.lookup.common.exception.api.InternalErrorException;
@@ -13,6 +16,7 @@ import net.es.lookup.common.exception.internal.DataFormatException;
 import net.es.lookup.common.exception.internal.DatabaseException;
 import net.es.lookup.common.exception.internal.DuplicateEntryException;
 import net.es.lookup.database.ServiceElasticSearch;
+import net.es.lookup.protocol.json.JSONBulkRegisterRequest;
 import net.es.lookup.protocol.json.JSONMessage;
 import net.es.lookup.protocol.json.JSONRegisterRequest;
 import net.es.lookup.protocol.json.JSONRegisterResponse;
@@ -29,12 +33,24 @@ public class RegisterService {
 
   private static Logger Log = LogManager.getLogger(RegisterService.class);
 
+  public static final int MAX_BULK_RECORDS = 1000;
+
   public String registerService(String message) {
 
-    Log.info(" Processing register service.");
     Log.info(" Received message: " + message);
+    return registerService(new JSONRegisterRequest(message));
+  }
+
+  /**
+   * Registers a record parsed from the request body.
+   *
+   * @param request record to register, parsed while the body was read
+   * @return json message of the registered record
+   */
+  public String registerService(JSONRegisterRequest request) {
+
+    Log.info(" Processing register service.");
     JSONRegisterResponse response;
-    JSONRegisterRequest request = new JSONRegisterRequest(message);
 
     if (request.getStatus() == JSONRegisterRequest.INCORRECT_FORMAT) {
       Log.info("Register status: FAiled; exiting");
@@ -48,40 +64,14 @@ public class RegisterService {
 
       if (gotLease) {
 
-        String recordType = request.getRecordType();
-
-        String uri = this.newUri(recordType);
-        request.add(ReservedKeys.RECORD_URI, uri);
-
-        // Add the state
-        request.add(ReservedKeys.RECORD_STATE, ReservedValues.RECORD_VALUE_STATE_REGISTER);
-
-        // Build the matching query requestURl that must fail for the service to be published
-        Message query = new Message();
-        Message operators = new Message();
+        this.assignUri(request);
 
-        operators.add(ReservedKeys.RECORD_OPERATOR, ReservedValues.RECORD_OPERATOR_ALL);
-
-
-        Map<String, Object> keyValues = request.getMap();
-
-        for (Object o : keyValues.entrySet()) {
-
-          Entry<String, Object> pairs = (Entry) o;
-
-          if (!isIgnoreKey(pairs.getKey())) {
-
-            Log.debug("key-value pair:" + pairs.getKey() + "=" + pairs.getValue());
-            operators.add(pairs.getKey(), ReservedValues.RECORD_OPERATOR_ALL);
-            query.add(pairs.getKey(), pairs.getValue());
-          }
-        }
         try {
           ServiceElasticSearch db = ServiceElasticSearch.getInstance();
           try {
-            Message res = db.queryAndPublishService(request, query, operators);
+            Message res = db.createService(request);
+            QueryResultCache.recordsChanged(request.getRecordType());
 
-            System.gc(); // Todo fix memory management
             response = new JSONRegisterResponse(res.getMap());
             String responseString;
             try {
@@ -144,6 +134,158 @@ public class RegisterService {
     return "\n";
   }
 
+  /**
+   * Registers a batch of records. Leases and validation are done per record and all the records
+   * that pass are written with a single bulk request.
+   *
+   * @param message json array or newline delimited json of records, read no further than
+   *     MAX_BULK_RECORDS records
+   * @return json array with, in request order, the uri and expires of each registered record or
+   *     the error code and message of each record that was not registered
+   */
+  public String bulkRegisterService(InputStream message) {
+
+    Log.info(" Processing bulk register service.");
+    JSONBulkRegisterRequest bulkRequest = new JSONBulkRegisterRequest(message, MAX_BULK_RECORDS);
+
+    if (bulkRequest.getStatus() == JSONBulkRegisterRequest.INCORRECT_FORMAT) {
+      Log.error("Incorrect Json Data format");
+      Log.info("Bulk register status: FAILED; exiting");
+      throw new BadRequestException("Error parsing Json elements.");
+    }
+
+    List<JSONRegisterRequest> records = bulkRequest.getRecords();
+    if (bulkRequest.getStatus() == JSONBulkRegisterRequest.TOO_MANY_RECORDS
+        || records.isEmpty()) {
+      Log.error("Bulk register request has no records or more than " + MAX_BULK_RECORDS);
+      Log.info("Bulk register status: FAILED; exiting");
+      throw new BadRequestException(
+          "Bulk register requires between 1 and " + MAX_BULK_RECORDS + " records");
+    }
+
+    Message[] results = new Message[records.size()];
+    List<Message> accepted = new ArrayList<>();
+    List<Integer> acceptedPositions = new ArrayList<>();
+
+    for (int i = 0; i < records.size(); i++) {
+
+      JSONRegisterRequest request = records.get(i);
+      if (request.getStatus() == JSONRegisterRequest.INCORRECT_FORMAT
+          || !this.isValid(request)
+          || !this.isAuthed(request)) {
+
+        results[i] = createErrorRecord(ResponseCodes.ERROR_BULK_INVALID);
+        continue;
+      }
+
+      if (!LeaseManager.getInstance().requestLease(request)) {
+
+        results[i] = createErrorRecord(ResponseCodes.ERROR_BULK_LEASE_DENIED);
+        continue;
+      }
+
+      this.assignUri(request);
+      accepted.add(request);
+      acceptedPositions.add(i);
+    }
+
+    try {
+
+      ServiceElasticSearch db = ServiceElasticSearch.getInstance();
+      List<Exception> failures = db.bulkCreate(accepted);
+      Set<String> changedTypes = new HashSet<>();
+
+      for (int j = 0; j < accepted.size(); j++) {
+
+        Message record = accepted.get(j);
+        Exception failure = failures.get(j);
+        int position = acceptedPositions.get(j);
+
+        if (failure == null) {
+
+          Message result = new Message();
+          result.add(ReservedKeys.RECORD_URI, record.getURI());
+          result.add(ReservedKeys.RECORD_EXPIRES, record.getExpires());
+          results[position] = result;
+          changedTypes.add(record.getRecordType());
+
+          if (PublishService.isServiceOn()) {
+            Publisher publisher = Publisher.getInstance();
+            publisher.eventNotification(record);
+          }
+        } else if (failure instanceof DuplicateEntryException) {
+
+          results[position] = createErrorRecord(ResponseCodes.ERROR_BULK_DUPLICATE);
+        } else {
+
+          results[position] = createErrorRecord(ResponseCodes.ERROR_BULK_DATABASE);
+        }
+      }
+      for (String type : changedTypes) {
+        QueryResultCache.recordsChanged(type);
+      }
+    } catch (DatabaseException e) {
+
+      Log.error("Error connecting with database");
+      throw new InternalErrorException("Error connecting to database");
+    }
+
+    try {
+
+      String responseString = JSONMessage.toString(Arrays.asList(results));
+      Log.info("Bulk register status: SUCCESS; exiting");
+      return responseString;
+    } catch (DataFormatException e) {
+
+      Log.fatal("Data formatting exception");
+      Log.info("Bulk register status: FAILED due to Data formatting error; exiting");
+      throw new InternalErrorException(
+          "Error in creating response. Data formatting exception at server.");
+    }
+  }
+
+  /**
+   * Sets the uri and state of a record that is about to be registered. The uri is derived from
+   * the record's content fingerprint (every key except the lease and LS-managed ones), so a
+   * duplicate registration fails on create instead of needing a query.
+   */
+  private void assignUri(Message request) {
+
+    Map<String, Object> content = new HashMap<>();
+    for (Object o : request.getMap().entrySet()) {
+
+      Entry<String, Object> pairs = (Entry) o;
+
+      if (!isIgnoreKey(pairs.getKey())) {
+
+        Log.debug("key-value pair:" + pairs.getKey() + "=" + pairs.getValue());
+        content.put(pairs.getKey(), pairs.getValue());
+      }
+    }
+
+    String uri = this.newUri(request.getRecordType(), RecordFingerprint.fingerprint(content));
+    request.add(ReservedKeys.RECORD_URI, uri);
+
+    // Add the state
+    request.add(ReservedKeys.RECORD_STATE, ReservedValues.RECORD_VALUE_STATE_REGISTER);
+  }
+
+  private Message createErrorRecord(int failureCode) {
+
+    Message error = new Message();
+    error.add(ReservedKeys.ERROR_CODE, String.valueOf(failureCode));
+    if (failureCode == ResponseCodes.ERROR_BULK_INVALID) {
+      error.add(ReservedKeys.ERROR_MESSAGE, ReservedValues.RECORD_BULKREGISTER_INVALID_ERRORMESSAGE);
+    } else if (failureCode == ResponseCodes.ERROR_BULK_DUPLICATE) {
+      error.add(ReservedKeys.ERROR_MESSAGE, ReservedValues.RECORD_BULKREGISTER_DUPLICATE_ERRORMESSAGE);
+    } else if (failureCode == ResponseCodes.ERROR_BULK_LEASE_DENIED) {
+      error.add(ReservedKeys.ERROR_MESSAGE, ReservedValues.RECORD_BULKREGISTER_LEASE_ERRORMESSAGE);
+    } else {
+      error.add(ReservedKeys.ERROR_MESSAGE, ReservedValues.RECORD_BULKREGISTER_DATABASE_ERRORMESSAGE);
+    }
+    return error;
+  }
+
   private boolean isAuthed(JSONRegisterRequest request) {
 
     // The only case where a service registration is denied is when a service with the same name,
@@ -159,11 +301,11 @@ public class RegisterService {
     return (res && request.getRecordType() != null && !request.getRecordType().isEmpty());
   }
 
-  private String newUri(String recordType) {
+  private String newUri(String recordType, UUID fingerprint) {
 
     if (recordType != null && !recordType.isEmpty()) {
       return
-          LookupService.SERVICE_URI_PREFIX + "/" + recordType + "/" + UUID.randomUUID().toString();
+          LookupService.SERVICE_URI_PREFIX + "/" + recordType + "/" + fingerprint.toString();
     } else {
       Log.error("Error creating URI: Record Type not found");
       throw new BadRequestException("Cannot create URI. Record Type not found");
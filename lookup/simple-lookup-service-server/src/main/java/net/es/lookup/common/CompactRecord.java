@@ -0,0 +1,177 @@
+package net.es.lookup.common;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Immutable record held in two arrays, the form in which the RecordCache keeps records. A Message
+ * holds a HashMap entry and an ArrayList per key; here keys are shared through the KeyDictionary,
+ * a list of one string is stored as the string and a longer list of strings as a String[].
+ * Converting back to a Message gives the same map, strings and lists of strings as they were.
+ * Requests still build and answer with Messages, which only live as long as the request.
+ */
+public final class CompactRecord {
+
+  private static final long[] NO_LISTS = new long[0];
+
+  private final String[] keys;
+  // a String, a String[] for lists of strings, or another immutable value
+  private final Object[] values;
+  // bit i is set when the String at values[i] was a list of one string
+  private final long[] singletonLists;
+
+  private CompactRecord(String[] keys, Object[] values, long[] singletonLists) {
+
+    this.keys = keys;
+    this.values = values;
+    this.singletonLists = singletonLists;
+  }
+
+  public static CompactRecord of(Message message) {
+
+    @SuppressWarnings("unchecked")
+    Map<String, Object> map = message.getMap();
+    return of(map);
+  }
+
+  public static CompactRecord of(Map<String, Object> map) {
+
+    int size = map.size();
+    String[] keys = new String[size];
+    Object[] values = new Object[size];
+    long[] singletonLists = NO_LISTS;
+    int i = 0;
+    for (Map.Entry<String, Object> entry : map.entrySet()) {
+      keys[i] = KeyDictionary.intern(entry.getKey());
+      Object value = entry.getValue();
+      if (value instanceof List) {
+        List<?> list = (List<?>) value;
+        if (isStrings(list)) {
+          if (list.size() == 1) {
+            if (singletonLists == NO_LISTS) {
+              singletonLists = new long[(size + 63) / 64];
+            }
+            singletonLists[i / 64] |= 1L << (i % 64);
+            value = list.get(0);
+          } else {
+            value = list.toArray(new String[list.size()]);
+          }
+        } else {
+          value = Collections.unmodifiableList(new ArrayList<>(list));
+        }
+      } else if (value instanceof Map) {
+        value = Collections.unmodifiableMap(new LinkedHashMap<>((Map<?, ?>) value));
+      }
+      values[i] = value;
+      i++;
+    }
+    return new CompactRecord(keys, values, singletonLists);
+  }
+
+  private static boolean isStrings(List<?> list) {
+
+    for (Object element : list) {
+      if (!(element instanceof String)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  public int size() {
+
+    return keys.length;
+  }
+
+  public boolean hasKey(String key) {
+
+    return indexOf(key) >= 0;
+  }
+
+  /**
+   * Returns the value of a key as in the Message it was built from, but unmodifiable, or null if
+   * the record does not have the key.
+   */
+  public Object get(String key) {
+
+    int i = indexOf(key);
+    if (i < 0) {
+      return null;
+    }
+    Object value = values[i];
+    if (value instanceof String[]) {
+      return Collections.unmodifiableList(Arrays.asList((String[]) value));
+    }
+    if (isSingletonList(i)) {
+      return Collections.singletonList(value);
+    }
+    return value;
+  }
+
+  /** Returns the value of a key holding a string, or the first string of a list, or null. */
+  public String getFirst(String key) {
+
+    int i = indexOf(key);
+    if (i < 0) {
+      return null;
+    }
+    Object value = values[i];
+    if (value instanceof String) {
+      return (String) value;
+    }
+    if (value instanceof String[]) {
+      String[] strings = (String[]) value;
+      return strings.length == 0 ? null : strings[0];
+    }
+    return null;
+  }
+
+  /** Returns a Message holding a modifiable copy of the record. */
+  public Message toMessage() {
+
+    return new Message(toMap());
+  }
+
+  /** Returns a modifiable copy of the record, with strings and modifiable lists of strings. */
+  public Map<String, Object> toMap() {
+
+    Map<String, Object> map = new HashMap<>(keys.length * 4 / 3 + 1);
+    for (int i = 0; i < keys.length; i++) {
+      Object value = values[i];
+      if (value instanceof String[]) {
+        value = new ArrayList<>(Arrays.asList((String[]) value));
+      } else if (isSingletonList(i)) {
+        List<String> list = new ArrayList<>(1);
+        list.add((String) value);
+        value = list;
+      } else if (value instanceof List) {
+        value = new ArrayList<>((List<?>) value);
+      } else if (value instanceof Map) {
+        value = new LinkedHashMap<>((Map<?, ?>) value);
+      }
+      map.put(keys[i], value);
+    }
+    return map;
+  }
+
+  private int indexOf(String key) {
+
+    for (int i = 0; i < keys.length; i++) {
+      // keys are interned, so the identity check usually decides
+      if (keys[i] == key || keys[i].equals(key)) {
+        return i;
+      }
+    }
+    return -1;
+  }
+
+  private boolean isSingletonList(int i) {
+
+    return singletonLists != NO_LISTS && (singletonLists[i / 64] & (1L << (i % 64))) != 0;
+  }
+}
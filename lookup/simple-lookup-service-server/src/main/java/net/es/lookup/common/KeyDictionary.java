@@ -0,0 +1,97 @@
+package net.es.lookup.common;
+
+import java.lang.ref.WeakReference;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+/**
+ * Server wide dictionary of record keys, so that records share one String per key instead of a
+ * copy per record. The reserved keys are always held. Other keys are held weakly and dropped once
+ * no record uses them, so whatever keys clients send, the dictionary holds no more than the keys
+ * of the records in memory.
+ */
+public final class KeyDictionary {
+
+  // keys are spread over several maps so that parsing threads seldom wait for each other
+  private static final int STRIPES = 16;
+
+  private static final List<String> RESERVED_KEYS = readReservedKeys();
+
+  // never modified once built
+  private static final Map<String, String> RESERVED = new HashMap<>();
+
+  // the values only refer to the keys weakly, or the keys would never be dropped
+  private static final List<Map<String, WeakReference<String>>> KEYS = new ArrayList<>(STRIPES);
+
+  static {
+    for (String key : RESERVED_KEYS) {
+      RESERVED.put(key, key);
+    }
+    for (int i = 0; i < STRIPES; i++) {
+      KEYS.add(new WeakHashMap<>());
+    }
+  }
+
+  private KeyDictionary() {}
+
+  /** Returns the shared instance of the key. */
+  public static String intern(String key) {
+
+    String reserved = RESERVED.get(key);
+    if (reserved != null) {
+      return reserved;
+    }
+    Map<String, WeakReference<String>> stripe = KEYS.get((key.hashCode() & 0x7fffffff) % STRIPES);
+    synchronized (stripe) {
+      WeakReference<String> shared = stripe.get(key);
+      String interned = shared == null ? null : shared.get();
+      if (interned != null) {
+        return interned;
+      }
+      stripe.put(key, new WeakReference<>(key));
+      return key;
+    }
+  }
+
+  /** Returns the values of the ReservedKeys constants. */
+  public static List<String> reservedKeys() {
+
+    return RESERVED_KEYS;
+  }
+
+  /** Returns the number of keys in the dictionary, reserved keys included. */
+  public static int size() {
+
+    int size = RESERVED.size();
+    for (Map<String, WeakReference<String>> stripe : KEYS) {
+      synchronized (stripe) {
+        size += stripe.size();
+      }
+    }
+    return size;
+  }
+
+  private static List<String> readReservedKeys() {
+
+    List<String> keys = new ArrayList<>();
+    for (Field field : ReservedKeys.class.getFields()) {
+      if (Modifier.isStatic(field.getModifiers()) && field.getType() == String.class) {
+        try {
+          String key = (String) field.get(null);
+          if (key != null && !keys.contains(key)) {
+            keys.add(key);
+          }
+        } catch (IllegalAccessException e) {
+          // public fields are accessible
+        }
+      }
+    }
+    return Collections.unmodifiableList(keys);
+  }
+}
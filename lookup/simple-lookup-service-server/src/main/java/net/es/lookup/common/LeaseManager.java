@@ -39,6 +39,40 @@ public class LeaseManager {
     DEFAULT_LEASE = lcfg.getDefaultLease();
   }
 
+  /**
+   * Returns the lease to grant for the requested TTL. Missing, zero or out of range TTLs get the
+   * default lease.
+   *
+   * @param requestedTTL ISO 8601 period requested by the client, may be null or empty
+   * @return lease in seconds
+   * @throws IllegalArgumentException if the TTL is not a valid ISO 8601 period
+   */
+  public long leaseSeconds(String requestedTTL) {
+
+    if (requestedTTL == null || requestedTTL.isEmpty()) {
+
+      return LeaseManager.DEFAULT_LEASE;
+    }
+
+    PeriodFormatter fmt = ISOPeriodFormat.standard();
+    Duration duration = fmt.parsePeriod(requestedTTL).toStandardDuration();
+    long ttl = duration.getStandardSeconds();
+
+    if (ttl == 0 || ttl > LeaseManager.MAX_LEASE || ttl < LeaseManager.MIN_LEASE) {
+
+      ttl = LeaseManager.DEFAULT_LEASE;
+    }
+    return ttl;
+  }
+
+  /**
+   * Returns the prune time. Records that expired before it can no longer be renewed.
+   */
+  public DateTime getPruneTime() {
+
+    return new Instant().minus(lcfg.getPruneThreshold() * 1000L).toDateTime();
+  }
+
   public boolean requestLease(Message message) {
 
     Instant now = new Instant();
@@ -77,29 +111,14 @@ public class LeaseManager {
       }
     }
 
-    if (requestedTTL != null && requestedTTL != "") {
+    try {
 
-      PeriodFormatter fmt = ISOPeriodFormat.standard();
+      ttl = this.leaseSeconds(requestedTTL);
 
-      try {
+    } catch (IllegalArgumentException e) {
 
-        Duration duration = fmt.parsePeriod(requestedTTL).toStandardDuration();
-        ttl = new Long(duration.getStandardSeconds());
-
-      } catch (IllegalArgumentException e) {
-
-        LOG.info("Cannot grant lease. Wrong TTL format");
-        return false;
-      }
-
-      if (ttl == 0 || ttl > LeaseManager.MAX_LEASE || ttl < LeaseManager.MIN_LEASE) {
-
-        ttl = LeaseManager.DEFAULT_LEASE;
-      }
-
-    } else {
-
-      ttl = LeaseManager.DEFAULT_LEASE;
+      LOG.info("Cannot grant lease. Wrong TTL format");
+      return false;
     }
 
     Instant newExpires = now.plus(ttl * 1000); // this method requires milliseconds
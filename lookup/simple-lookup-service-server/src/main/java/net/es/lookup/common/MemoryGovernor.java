@@ -0,0 +1,287 @@
+package net.es.lookup.common;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryNotificationInfo;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+import java.util.function.LongSupplier;
+import javax.management.NotificationEmitter;
+import net.es.lookup.common.exception.api.ServiceUnavailableTemporarilyException;
+import net.es.lookup.utils.jmx.MBeanRegistrar;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Admission control for requests that build large responses in memory.
+ *
+ * <p>A request reserves the heap its response needs before running and releases it when the
+ * response is written. It is admitted while the reservations in flight fit in a budget and the
+ * heap is not tight, which is when the pool holding long-lived objects was still above a threshold
+ * after its last collection and still is. Otherwise it waits for reservations to be released, and
+ * is rejected with a 503 and a Retry-After header if that takes longer than the queue timeout.
+ * This keeps the server from running out of memory under load without forcing collections.
+ */
+public final class MemoryGovernor implements MemoryGovernorMXBean {
+
+  private static Logger LOG = LogManager.getLogger(MemoryGovernor.class);
+
+  // Heap occupancy changes only with collections, so waiting requests check it this often
+  private static final long POLL_MILLIS = 100;
+
+  private static volatile MemoryGovernor instance;
+
+  private final BooleanSupplier heapTight;
+  private final long maxInFlightBytes;
+  private final long queueTimeoutMillis;
+  private final int retryAfterSeconds;
+
+  private long inFlightBytes;
+  private int inFlight;
+  private long admitted;
+  private long queued;
+  private long rejected;
+
+  /** Heap reserved for one response, released by close. */
+  public static final class Reservation implements AutoCloseable {
+
+    static final Reservation NONE = new Reservation(null, 0);
+
+    private final MemoryGovernor governor;
+    private final long bytes;
+    private boolean closed;
+
+    Reservation(MemoryGovernor governor, long bytes) {
+      this.governor = governor;
+      this.bytes = bytes;
+    }
+
+    @Override
+    public void close() {
+
+      synchronized (this) {
+        if (closed) {
+          return;
+        }
+        closed = true;
+      }
+      if (governor != null) {
+        governor.release(bytes);
+      }
+    }
+  }
+
+  /**
+   * @param heapTight tells whether the heap is too full to admit requests
+   * @param maxInFlightBytes total of the reservations admitted at once. A larger reservation is
+   *     admitted when nothing else is in flight
+   * @param queueTimeoutMillis time a request waits to be admitted before it is rejected
+   * @param retryAfterSeconds time after which rejected clients are told to retry
+   */
+  MemoryGovernor(
+      BooleanSupplier heapTight,
+      long maxInFlightBytes,
+      long queueTimeoutMillis,
+      int retryAfterSeconds) {
+
+    if (maxInFlightBytes <= 0) {
+      throw new IllegalArgumentException("Memory budget must be positive");
+    }
+    this.heapTight = heapTight;
+    this.maxInFlightBytes = maxInFlightBytes;
+    this.queueTimeoutMillis = queueTimeoutMillis;
+    this.retryAfterSeconds = retryAfterSeconds;
+  }
+
+  /**
+   * Governs memory from now on.
+   *
+   * @param heapThresholdPercent occupancy of the long-lived heap after a collection, in percent of
+   *     its maximum, above which no request is admitted
+   * @param maxInFlightPercent total of the reservations admitted at once, in percent of the heap
+   */
+  public static void enable(
+      int heapThresholdPercent,
+      int maxInFlightPercent,
+      long queueTimeoutMillis,
+      int retryAfterSeconds) {
+
+    BooleanSupplier heapTight = () -> false;
+    MemoryPoolMXBean pool = tenuredPool();
+    if (pool != null) {
+      long threshold = pool.getUsage().getMax() / 100 * heapThresholdPercent;
+      pool.setCollectionUsageThreshold(threshold);
+      heapTight =
+          heapTight(
+              pool::isCollectionUsageThresholdExceeded, () -> pool.getUsage().getUsed(), threshold);
+      ((NotificationEmitter) ManagementFactory.getMemoryMXBean())
+          .addNotificationListener(
+              (notification, handback) -> {
+                if (MemoryNotificationInfo.MEMORY_COLLECTION_THRESHOLD_EXCEEDED.equals(
+                    notification.getType())) {
+                  LOG.warn(
+                      "Heap above "
+                          + heapThresholdPercent
+                          + "% after collection, holding back large queries");
+                }
+              },
+              null,
+              null);
+    } else {
+      LOG.warn("No heap pool reports its occupancy after collections, only reservations are used");
+    }
+
+    long maxHeap = Runtime.getRuntime().maxMemory();
+    MemoryGovernor governor =
+        new MemoryGovernor(
+            heapTight, maxHeap / 100 * maxInFlightPercent, queueTimeoutMillis, retryAfterSeconds);
+    MBeanRegistrar.register("MemoryGovernor", "heap", governor);
+    instance = governor;
+  }
+
+  /**
+   * Tells whether the heap is tight. The flag set by a collection only changes with the next
+   * collection of the pool, which may not come for long after the heap was freed, so the heap is
+   * tight only while the pool is also still above the threshold.
+   *
+   * @param exceededAfterCollection whether the pool was above the threshold after its last
+   *     collection
+   * @param used current occupancy of the pool
+   */
+  static BooleanSupplier heapTight(
+      BooleanSupplier exceededAfterCollection, LongSupplier used, long threshold) {
+
+    return () -> exceededAfterCollection.getAsBoolean() && used.getAsLong() >= threshold;
+  }
+
+  /** Returns the governor, or null if memory is not governed. */
+  public static MemoryGovernor getInstance() {
+
+    return instance;
+  }
+
+  /**
+   * Reserves heap for a response with the governor, see {@link #admit(long)}. Nothing is reserved
+   * when memory is not governed.
+   */
+  public static Reservation reserve(long bytes) {
+
+    MemoryGovernor governor = instance;
+    return governor == null ? Reservation.NONE : governor.admit(bytes);
+  }
+
+  /**
+   * Reserves heap for a response, waiting up to the queue timeout for it to be available.
+   *
+   * @param bytes estimate of the heap taken while the response is built and written
+   * @return the reservation, to be closed once the response is written
+   * @throws ServiceUnavailableTemporarilyException if the heap is not available in time
+   */
+  public Reservation admit(long bytes) {
+
+    long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(queueTimeoutMillis);
+    synchronized (this) {
+      boolean waiting = false;
+      while (!fits(bytes)) {
+        long remainingMillis = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+        if (remainingMillis <= 0) {
+          rejected++;
+          LOG.warn(
+              "Rejected request for "
+                  + bytes
+                  + " bytes; "
+                  + inFlightBytes
+                  + " bytes in flight, heap tight: "
+                  + heapTight.getAsBoolean());
+          throw new ServiceUnavailableTemporarilyException(
+              "Server is low on memory. Please try later", retryAfterSeconds);
+        }
+        if (!waiting) {
+          queued++;
+          waiting = true;
+        }
+        try {
+          wait(Math.min(remainingMillis, POLL_MILLIS));
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          rejected++;
+          throw new ServiceUnavailableTemporarilyException(
+              "Server is low on memory. Please try later", retryAfterSeconds);
+        }
+      }
+      inFlightBytes += bytes;
+      inFlight++;
+      admitted++;
+    }
+    return new Reservation(this, bytes);
+  }
+
+  private boolean fits(long bytes) {
+
+    if (heapTight.getAsBoolean()) {
+      return false;
+    }
+    return inFlight == 0 || inFlightBytes + bytes <= maxInFlightBytes;
+  }
+
+  private synchronized void release(long bytes) {
+
+    inFlightBytes -= bytes;
+    inFlight--;
+    notifyAll();
+  }
+
+  /**
+   * Returns the heap pool holding long-lived objects that reports its occupancy after
+   * collections, which is the largest such pool, or null if there is none.
+   */
+  private static MemoryPoolMXBean tenuredPool() {
+
+    MemoryPoolMXBean tenured = null;
+    for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+      if (pool.getType() == MemoryType.HEAP
+          && pool.isCollectionUsageThresholdSupported()
+          && pool.getUsage().getMax() > 0
+          && (tenured == null || pool.getUsage().getMax() > tenured.getUsage().getMax())) {
+        tenured = pool;
+      }
+    }
+    return tenured;
+  }
+
+  @Override
+  public synchronized long getInFlightBytes() {
+    return inFlightBytes;
+  }
+
+  @Override
+  public synchronized int getInFlight() {
+    return inFlight;
+  }
+
+  @Override
+  public long getMaxInFlightBytes() {
+    return maxInFlightBytes;
+  }
+
+  @Override
+  public boolean isHeapTight() {
+    return heapTight.getAsBoolean();
+  }
+
+  @Override
+  public synchronized long getAdmitted() {
+    return admitted;
+  }
+
+  @Override
+  public synchronized long getQueued() {
+    return queued;
+  }
+
+  @Override
+  public synchronized long getRejected() {
+    return rejected;
+  }
+}
@@ -0,0 +1,19 @@
+package net.es.lookup.common;
+
+/** Metrics of the memory governor. */
+public interface MemoryGovernorMXBean {
+
+  long getInFlightBytes();
+
+  int getInFlight();
+
+  long getMaxInFlightBytes();
+
+  boolean isHeapTight();
+
+  long getAdmitted();
+
+  long getQueued();
+
+  long getRejected();
+}
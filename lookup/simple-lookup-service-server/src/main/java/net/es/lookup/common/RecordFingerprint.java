@@ -0,0 +1,84 @@
+package net.es.lookup.common;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.UUID;
+
+/**
+ * Computes a canonical fingerprint of a record's key/value set. Two records with the same keys
+ * and the same values (ignoring surrounding whitespace and the order of list values) get the same
+ * fingerprint, so it can be used as the record id to detect duplicates with a single write.
+ */
+public class RecordFingerprint {
+
+  private static final char KEY_SEPARATOR = '\u0000';
+  private static final char VALUE_SEPARATOR = '\u0001';
+  private static final char ENTRY_SEPARATOR = '\u0002';
+
+  private RecordFingerprint() {}
+
+  /**
+   * Returns the canonical string form of the given key/values: keys sorted, values trimmed and
+   * list values sorted.
+   */
+  public static String canonicalize(Map<String, Object> keyValues) {
+
+    Map<String, List<String>> sorted = new TreeMap<>();
+    for (Map.Entry<String, Object> entry : keyValues.entrySet()) {
+      sorted.put(entry.getKey(), normalize(entry.getValue()));
+    }
+
+    StringBuilder canonical = new StringBuilder();
+    for (Map.Entry<String, List<String>> entry : sorted.entrySet()) {
+      canonical.append(entry.getKey()).append(KEY_SEPARATOR);
+      for (String value : entry.getValue()) {
+        canonical.append(value).append(VALUE_SEPARATOR);
+      }
+      canonical.append(ENTRY_SEPARATOR);
+    }
+    return canonical.toString();
+  }
+
+  /**
+   * Returns the fingerprint of the given key/values as a UUID, built from the first 128 bits of
+   * the SHA-256 digest of the canonical form.
+   */
+  public static UUID fingerprint(Map<String, Object> keyValues) {
+
+    byte[] digest;
+    try {
+      digest =
+          MessageDigest.getInstance("SHA-256")
+              .digest(canonicalize(keyValues).getBytes(StandardCharsets.UTF_8));
+    } catch (NoSuchAlgorithmException e) {
+      // every JVM is required to support SHA-256
+      throw new IllegalStateException(e);
+    }
+    // mark as a custom (version 8), IETF variant UUID
+    digest[6] = (byte) ((digest[6] & 0x0f) | 0x80);
+    digest[8] = (byte) ((digest[8] & 0x3f) | 0x80);
+    ByteBuffer buffer = ByteBuffer.wrap(digest, 0, 16);
+    return new UUID(buffer.getLong(), buffer.getLong());
+  }
+
+  private static List<String> normalize(Object value) {
+
+    List<String> values = new ArrayList<>();
+    if (value instanceof List) {
+      for (Object o : (List) value) {
+        values.add(String.valueOf(o).trim());
+      }
+      Collections.sort(values);
+    } else if (value != null) {
+      values.add(String.valueOf(value).trim());
+    }
+    return values;
+  }
+}
@@ -1,6 +1,7 @@
 package net.es.lookup.common.exception.api;
 
 import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.core.HttpHeaders;
 import javax.ws.rs.core.MediaType;
 import javax.ws.rs.core.Response;
 
@@ -14,4 +15,9 @@ public class ServiceUnavailableTemporarilyException extends WebApplicationExcept
         super(Response.status(Response.Status.SERVICE_UNAVAILABLE).entity(message).type(MediaType.TEXT_PLAIN).build());
     }
 
+    public ServiceUnavailableTemporarilyException(String message, int retryAfterSeconds) {
+        super(Response.status(Response.Status.SERVICE_UNAVAILABLE).entity(message).type(MediaType.TEXT_PLAIN)
+                .header(HttpHeaders.RETRY_AFTER, retryAfterSeconds).build());
+    }
+
 }
@@ -0,0 +1,14 @@
+package net.es.lookup.common.exception.api;
+
+import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.core.HttpHeaders;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Response;
+
+public class TooManyRequestsException extends WebApplicationException {
+    public TooManyRequestsException(String message, int retryAfterSeconds) {
+        super(Response.status(Response.Status.TOO_MANY_REQUESTS).entity(message).type(MediaType.TEXT_PLAIN)
+                .header(HttpHeaders.RETRY_AFTER, retryAfterSeconds).build());
+    }
+
+}
@@ -0,0 +1,255 @@
+package net.es.lookup.database;
+
+import java.util.ArrayList;
+import java.util.List;
+import net.es.lookup.utils.jmx.MBeanRegistrar;
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpHost;
+import org.apache.http.HttpRequestInterceptor;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpResponseInterceptor;
+import org.apache.http.client.entity.GzipDecompressingEntity;
+import org.apache.http.client.protocol.HttpClientContext;
+import org.apache.http.impl.nio.reactor.IOReactorConfig;
+import org.apache.http.protocol.HttpContext;
+import org.elasticsearch.client.HeapBufferedAsyncResponseConsumer;
+import org.elasticsearch.client.Node;
+import org.elasticsearch.client.RequestOptions;
+import org.elasticsearch.client.RestClient;
+import org.elasticsearch.client.RestClientBuilder;
+import org.elasticsearch.client.RestHighLevelClient;
+
+/**
+ * Settings of the connection to the Elasticsearch cluster and the client built from them. The
+ * client starts out with a list of seed nodes. Optionally it discovers the other data nodes of
+ * the cluster (sniffing), sends each request to the nodes with the lowest recent latency and asks
+ * for gzip compressed responses. The latency and failures of each node are published over JMX.
+ */
+public final class ElasticConnection implements ElasticConnectionMXBean {
+
+  // Attribute of the HTTP context holding the System.nanoTime() a request was sent at
+  private static final String SENT_AT = "net.es.lookup.sentAt";
+
+  // Largest response buffered in memory, as for the default response consumer
+  private static final int RESPONSE_BUFFER_LIMIT = 100 * 1024 * 1024;
+
+  private final List<HttpHost> seeds;
+
+  private int maxConnectionsPerRoute = RestClientBuilder.DEFAULT_MAX_CONN_PER_ROUTE;
+  private int maxConnectionsTotal = RestClientBuilder.DEFAULT_MAX_CONN_TOTAL;
+  private int connectTimeoutMillis = RestClientBuilder.DEFAULT_CONNECT_TIMEOUT_MILLIS;
+  private int socketTimeoutMillis = RestClientBuilder.DEFAULT_SOCKET_TIMEOUT_MILLIS;
+  private long keepAliveMillis = 0;
+  private boolean compression = false;
+  private long sniffIntervalMillis = 0;
+  private boolean latencyAwareRouting = false;
+
+  private final ElasticNodes nodes = new ElasticNodes();
+  private RestClient lowLevelClient;
+  private volatile NodeSniffer sniffer;
+  private RequestOptions requestOptions = RequestOptions.DEFAULT;
+
+  /** @param seeds nodes to connect to first, at least one */
+  public ElasticConnection(List<HttpHost> seeds) {
+
+    if (seeds.isEmpty()) {
+      throw new IllegalArgumentException("At least one Elasticsearch node is required");
+    }
+    this.seeds = new ArrayList<>(seeds);
+  }
+
+  /**
+   * Returns a connection to the given nodes.
+   *
+   * @param nodes addresses like "http://host:9200" or "host:9200"
+   * @throws IllegalArgumentException if there is no node or an address is not valid
+   */
+  public static ElasticConnection of(List<String> nodes) {
+
+    List<HttpHost> seeds = new ArrayList<>();
+    for (String node : nodes) {
+      seeds.add(HttpHost.create(node.trim()));
+    }
+    return new ElasticConnection(seeds);
+  }
+
+  /**
+   * @param perRoute connections kept open to each node
+   * @param total connections kept open to all nodes together
+   */
+  public void setMaxConnections(int perRoute, int total) {
+
+    this.maxConnectionsPerRoute = perRoute;
+    this.maxConnectionsTotal = total;
+  }
+
+  /**
+   * @param connectMillis time allowed to open a connection
+   * @param socketMillis time allowed between two packets of a response
+   */
+  public void setTimeouts(int connectMillis, int socketMillis) {
+
+    this.connectTimeoutMillis = connectMillis;
+    this.socketTimeoutMillis = socketMillis;
+  }
+
+  /** @param keepAliveMillis time an idle connection is kept open, 0 as long as the node allows */
+  public void setKeepAliveMillis(long keepAliveMillis) {
+    this.keepAliveMillis = keepAliveMillis;
+  }
+
+  /** @param compression whether to ask for gzip compressed responses */
+  public void setCompression(boolean compression) {
+    this.compression = compression;
+  }
+
+  /** @param sniffIntervalMillis time between two discoveries of the data nodes, 0 to disable */
+  public void setSniffIntervalMillis(long sniffIntervalMillis) {
+    this.sniffIntervalMillis = sniffIntervalMillis;
+  }
+
+  /** @param latencyAwareRouting whether to prefer the nodes with the lowest recent latency */
+  public void setLatencyAwareRouting(boolean latencyAwareRouting) {
+    this.latencyAwareRouting = latencyAwareRouting;
+  }
+
+  /** Builds the client and starts sniffing, if enabled. */
+  synchronized RestHighLevelClient open(String name) {
+
+    if (compression) {
+      RequestOptions.Builder options = RequestOptions.DEFAULT.toBuilder();
+      options.addHeader("Accept-Encoding", "gzip");
+      options.setHttpAsyncResponseConsumerFactory(
+          () -> new GzipResponseConsumer(RESPONSE_BUFFER_LIMIT));
+      requestOptions = options.build();
+    }
+
+    RestClientBuilder builder = RestClient.builder(seeds.toArray(new HttpHost[0]));
+    builder.setRequestConfigCallback(
+        config -> config.setConnectTimeout(connectTimeoutMillis).setSocketTimeout(socketTimeoutMillis));
+    builder.setHttpClientConfigCallback(
+        httpClient -> {
+          httpClient
+              .setMaxConnPerRoute(maxConnectionsPerRoute)
+              .setMaxConnTotal(maxConnectionsTotal)
+              .setDefaultIOReactorConfig(IOReactorConfig.custom().setSoKeepAlive(true).build())
+              .addInterceptorFirst(
+                  (HttpRequestInterceptor)
+                      (request, context) -> context.setAttribute(SENT_AT, System.nanoTime()))
+              .addInterceptorLast((HttpResponseInterceptor) this::recordResponse);
+          if (keepAliveMillis > 0) {
+            httpClient.setKeepAliveStrategy((response, context) -> keepAliveMillis);
+          }
+          return httpClient;
+        });
+    builder.setFailureListener(
+        new RestClient.FailureListener() {
+          @Override
+          public void onFailure(Node node) {
+            nodes.recordFailure(node.getHost());
+            NodeSniffer nodeSniffer = sniffer;
+            if (nodeSniffer != null) {
+              nodeSniffer.sniffSoon();
+            }
+          }
+        });
+    if (latencyAwareRouting) {
+      builder.setNodeSelector(nodes);
+    }
+
+    RestHighLevelClient client = new RestHighLevelClient(builder);
+    lowLevelClient = client.getLowLevelClient();
+    if (sniffIntervalMillis > 0) {
+      sniffer =
+          new NodeSniffer(
+              lowLevelClient, requestOptions, seeds.get(0).getSchemeName(), sniffIntervalMillis);
+      sniffer.start();
+    }
+    MBeanRegistrar.register("ElasticConnection", name, this);
+    return client;
+  }
+
+  private void recordResponse(HttpResponse response, HttpContext context) {
+
+    Object sentAt = context.getAttribute(SENT_AT);
+    HttpHost host = HttpClientContext.adapt(context).getTargetHost();
+    if (sentAt != null && host != null) {
+      nodes.recordResponse(host, (Long) sentAt);
+    }
+  }
+
+  /** Returns the options to send requests with. */
+  RequestOptions getRequestOptions() {
+    return requestOptions;
+  }
+
+  /** Stops sniffing. The client is closed by its owner. */
+  synchronized void close() {
+
+    if (sniffer != null) {
+      sniffer.close();
+      sniffer = null;
+    }
+  }
+
+  @Override
+  public synchronized String[] getNodes() {
+
+    if (lowLevelClient == null) {
+      return new String[0];
+    }
+    List<String> hosts = new ArrayList<>();
+    for (Node node : lowLevelClient.getNodes()) {
+      hosts.add(node.getHost().toURI());
+    }
+    return hosts.toArray(new String[0]);
+  }
+
+  @Override
+  public synchronized long getSniffs() {
+    return sniffer == null ? 0 : sniffer.getSniffs();
+  }
+
+  @Override
+  public synchronized long getFailedSniffs() {
+    return sniffer == null ? 0 : sniffer.getFailedSniffs();
+  }
+
+  @Override
+  public synchronized long getLastSniffMillis() {
+    return sniffer == null ? 0 : sniffer.getLastSniffAt();
+  }
+
+  @Override
+  public boolean isLatencyAwareRouting() {
+    return latencyAwareRouting;
+  }
+
+  @Override
+  public boolean isCompression() {
+    return compression;
+  }
+
+  /** Buffers responses like the default consumer and decompresses gzip encoded ones. */
+  private static final class GzipResponseConsumer extends HeapBufferedAsyncResponseConsumer {
+
+    GzipResponseConsumer(int bufferLimit) {
+      super(bufferLimit);
+    }
+
+    @Override
+    protected HttpResponse buildResult(HttpContext context) throws Exception {
+
+      HttpResponse response = super.buildResult(context);
+      HttpEntity entity = response.getEntity();
+      Header encoding = entity == null ? null : entity.getContentEncoding();
+      if (encoding != null && "gzip".equalsIgnoreCase(encoding.getValue())) {
+        response.setEntity(new GzipDecompressingEntity(entity));
+        response.removeHeaders("Content-Encoding");
+        response.removeHeaders("Content-Length");
+      }
+      return response;
+    }
+  }
+}
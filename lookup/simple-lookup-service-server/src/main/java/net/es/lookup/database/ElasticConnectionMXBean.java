@@ -0,0 +1,17 @@
+package net.es.lookup.database;
+
+/** Metrics of the connection to the Elasticsearch cluster. */
+public interface ElasticConnectionMXBean {
+
+  String[] getNodes();
+
+  long getSniffs();
+
+  long getFailedSniffs();
+
+  long getLastSniffMillis();
+
+  boolean isLatencyAwareRouting();
+
+  boolean isCompression();
+}
@@ -0,0 +1,13 @@
+package net.es.lookup.database;
+
+/** Metrics of the requests sent to one Elasticsearch node. */
+public interface ElasticNodeMXBean {
+
+  String getHost();
+
+  long getRequests();
+
+  long getErrors();
+
+  double getAverageLatencyMillis();
+}
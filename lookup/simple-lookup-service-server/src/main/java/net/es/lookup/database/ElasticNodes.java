@@ -0,0 +1,152 @@
+package net.es.lookup.database;
+
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import net.es.lookup.utils.jmx.MBeanRegistrar;
+import org.apache.http.HttpHost;
+import org.elasticsearch.client.Node;
+import org.elasticsearch.client.NodeSelector;
+
+/**
+ * Latency and errors of the requests sent to each Elasticsearch node, as measured by the HTTP
+ * client. Used as a node selector, it sends requests to the nodes with the lowest recent latency.
+ */
+final class ElasticNodes implements NodeSelector {
+
+  // One request in this many may go to any node, so the latency of slower nodes stays known
+  private static final int EXPLORE_ONE_IN = 20;
+
+  // Nodes within this factor of the fastest node's latency share the requests
+  private static final double TOLERANCE = 1.5;
+
+  // Weight of the newest sample in the average
+  private static final double WEIGHT = 0.2;
+
+  // Samples older than this no longer say anything about the node
+  private static final long STALE_MILLIS = 10000;
+
+  private final ConcurrentMap<HttpHost, Stats> stats = new ConcurrentHashMap<>();
+
+  /** Metrics of one node, registered with JMX when the node is first used. */
+  static final class Stats implements ElasticNodeMXBean {
+
+    private final HttpHost host;
+    private final AtomicLong requests = new AtomicLong();
+    private final AtomicLong errors = new AtomicLong();
+    private double averageMillis = 0;
+    private long lastSampleAt = 0;
+
+    Stats(HttpHost host) {
+      this.host = host;
+    }
+
+    synchronized void record(long latencyNanos) {
+
+      double millis = TimeUnit.NANOSECONDS.toMicros(latencyNanos) / 1000.0;
+      long now = System.currentTimeMillis();
+      if (now - lastSampleAt > STALE_MILLIS) {
+        averageMillis = millis;
+      } else {
+        averageMillis = WEIGHT * millis + (1 - WEIGHT) * averageMillis;
+      }
+      lastSampleAt = now;
+    }
+
+    /** Returns the recent latency in milliseconds, or 0 if the node was not used recently. */
+    synchronized double getRecentMillis() {
+
+      if (System.currentTimeMillis() - lastSampleAt > STALE_MILLIS) {
+        return 0;
+      }
+      return averageMillis;
+    }
+
+    @Override
+    public String getHost() {
+      return host.toURI();
+    }
+
+    @Override
+    public long getRequests() {
+      return requests.get();
+    }
+
+    @Override
+    public long getErrors() {
+      return errors.get();
+    }
+
+    @Override
+    public synchronized double getAverageLatencyMillis() {
+      return averageMillis;
+    }
+  }
+
+  Stats statsOf(HttpHost host) {
+
+    return stats.computeIfAbsent(
+        host,
+        h -> {
+          Stats nodeStats = new Stats(h);
+          MBeanRegistrar.register("ElasticNode", h.toURI(), nodeStats);
+          return nodeStats;
+        });
+  }
+
+  /**
+   * Records a response from a node to a request sent at startNanos, as returned by
+   * System.nanoTime().
+   */
+  void recordResponse(HttpHost host, long startNanos) {
+
+    long latencyNanos = System.nanoTime() - startNanos;
+    Stats nodeStats = statsOf(host);
+    nodeStats.requests.incrementAndGet();
+    nodeStats.record(latencyNanos);
+  }
+
+  /**
+   * Records a failure of a node: a request that got no response, or a response saying the node is
+   * unavailable. The client stops using the node for a while after either.
+   */
+  void recordFailure(HttpHost host) {
+
+    statsOf(host).errors.incrementAndGet();
+  }
+
+  /**
+   * Keeps the nodes whose recent latency is close to the lowest one. Nodes that were not used
+   * recently are kept in preference to all others, so they are measured again.
+   */
+  @Override
+  public void select(Iterable<Node> nodes) {
+
+    if (ThreadLocalRandom.current().nextInt(EXPLORE_ONE_IN) == 0) {
+      return;
+    }
+    double fastest = Double.MAX_VALUE;
+    for (Node node : nodes) {
+      fastest = Math.min(fastest, latencyOf(node));
+    }
+    for (Iterator<Node> iterator = nodes.iterator(); iterator.hasNext(); ) {
+      if (latencyOf(iterator.next()) > fastest * TOLERANCE) {
+        iterator.remove();
+      }
+    }
+  }
+
+  private double latencyOf(Node node) {
+
+    Stats nodeStats = stats.get(node.getHost());
+    return nodeStats == null ? 0 : nodeStats.getRecentMillis();
+  }
+
+  @Override
+  public String toString() {
+    return "LATENCY_AWARE";
+  }
+}
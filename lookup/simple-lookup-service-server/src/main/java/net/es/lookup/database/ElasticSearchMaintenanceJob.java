@@ -6,6 +6,7 @@ import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.joda.time.DateTime;
 import org.joda.time.Instant;
+import org.quartz.DisallowConcurrentExecution;
 import org.quartz.Job;
 import org.quartz.JobDataMap;
 import org.quartz.JobExecutionContext;
@@ -17,6 +18,8 @@ import java.net.URISyntaxException;
 import java.util.Date;
 import java.util.List;
 
+// A prune can outlast the prune interval when throttled; never run two at once
+@DisallowConcurrentExecution
 public class ElasticSearchMaintenanceJob implements Job {
 
   private static Logger LOG = LogManager.getLogger(ElasticSearchMaintenanceJob.class);
@@ -50,7 +53,6 @@ public class ElasticSearchMaintenanceJob implements Job {
     try {
 
       count = db.deleteExpiredRecords(pruneTime);
-      System.gc();
       LOG.info("Record deleted: " + count);
 
     } catch (DatabaseException e) {
@@ -0,0 +1,316 @@
+package net.es.lookup.database;
+
+import com.google.gson.Gson;
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.atomic.AtomicLong;
+import net.es.lookup.common.exception.internal.DatabaseException;
+import org.apache.http.util.EntityUtils;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.elasticsearch.ElasticsearchStatusException;
+import org.elasticsearch.action.admin.cluster.node.tasks.list.ListTasksRequest;
+import org.elasticsearch.client.Request;
+import org.elasticsearch.client.RequestOptions;
+import org.elasticsearch.client.Response;
+import org.elasticsearch.client.RestHighLevelClient;
+import org.elasticsearch.client.RethrottleRequest;
+import org.elasticsearch.client.tasks.GetTaskRequest;
+import org.elasticsearch.client.tasks.GetTaskResponse;
+import org.elasticsearch.index.query.QueryBuilders;
+import org.elasticsearch.index.reindex.DeleteByQueryAction;
+import org.elasticsearch.search.builder.SearchSourceBuilder;
+import org.elasticsearch.tasks.RawTaskStatus;
+import org.elasticsearch.tasks.TaskId;
+import org.elasticsearch.tasks.TaskInfo;
+
+/**
+ * Deletes expired records with a sliced, rate limited delete-by-query that runs as an
+ * Elasticsearch task. The caller blocks until the task is done while the pruner polls its
+ * progress and lowers the rate whenever the recent search latency is above the query latency
+ * SLO, raising it again up to the configured budget once queries are fast.
+ *
+ * <p>The task keeps running in Elasticsearch if this server restarts. The next prune finds it by
+ * its description and waits for it instead of starting a second one.
+ */
+public class ExpiryPruner implements ExpiryPrunerMXBean {
+
+  private static Logger Log = LogManager.getLogger(ExpiryPruner.class);
+
+  public static final float DEFAULT_DOCS_PER_SECOND = 500;
+
+  // Rate the SLO throttling never goes below, so pruning always makes progress
+  private static final float MIN_DOCS_PER_SECOND = 1;
+
+  private static final long MAX_POLL_MILLIS = 1000;
+
+  private final RestHighLevelClient client;
+  private final RequestOptions requestOptions;
+  private final SearchLatency searchLatency;
+
+  private volatile float docsPerSecond = DEFAULT_DOCS_PER_SECOND;
+  private volatile int slices = 0;
+  private volatile long latencySloMillis = 0;
+
+  private volatile boolean running;
+  private volatile long runStartedAt;
+  private volatile long backlog;
+  private volatile float requestsPerSecond;
+  private volatile long lastDeleted;
+  private volatile long lastDurationMillis;
+  private final AtomicLong runs = new AtomicLong();
+  private final AtomicLong resumedRuns = new AtomicLong();
+  private final AtomicLong totalDeleted = new AtomicLong();
+  private final AtomicLong throttleAdjustments = new AtomicLong();
+
+  /** @param requestOptions options of the connection, sent with every request */
+  ExpiryPruner(
+      RestHighLevelClient client, RequestOptions requestOptions, SearchLatency searchLatency) {
+
+    this.client = client;
+    this.requestOptions = requestOptions;
+    this.searchLatency = searchLatency;
+  }
+
+  /**
+   * @param docsPerSecond deletion budget. 0 or less removes the limit and the SLO throttling
+   * @param slices number of slices, 0 lets Elasticsearch pick one per shard
+   * @param latencySloMillis search latency above which pruning slows down, 0 to disable
+   */
+  void configure(float docsPerSecond, int slices, long latencySloMillis) {
+
+    this.docsPerSecond = docsPerSecond;
+    this.slices = slices;
+    this.latencySloMillis = latencySloMillis;
+  }
+
+  /** @return the deletion budget in documents per second, 0 or less when unlimited */
+  float getDocsPerSecond() {
+    return docsPerSecond;
+  }
+
+  /**
+   * Deletes the records of index that expired at or before expiredBeforeMillis. If a prune of the
+   * index started before a restart is still running, waits for it first.
+   *
+   * @param ignoreUnavailable if true, a missing index is not an error
+   * @return number of records deleted
+   * @throws DatabaseException if the task cannot be started or monitored
+   */
+  synchronized long prune(String index, long expiredBeforeMillis, boolean ignoreUnavailable)
+      throws DatabaseException {
+
+    long deleted = 0;
+    try {
+      TaskId running = findRunning(index);
+      if (running != null) {
+        Log.info("Resuming prune task " + running + " on " + index);
+        resumedRuns.incrementAndGet();
+        deleted += await(running);
+      }
+      deleted += await(submit(index, expiredBeforeMillis, ignoreUnavailable));
+    } catch (IOException | ElasticsearchStatusException e) {
+      Log.error("Prune failed " + e.getMessage());
+      throw new DatabaseException(e.getMessage());
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new DatabaseException("Interrupted while pruning");
+    }
+    return deleted;
+  }
+
+  private TaskId findRunning(String index) throws IOException {
+
+    ListTasksRequest request = new ListTasksRequest();
+    request.setActions(DeleteByQueryAction.NAME);
+    request.setDetailed(true);
+    return runningPrune(client.tasks().list(request, requestOptions).getTasks(), index);
+  }
+
+  /**
+   * Returns the prune of the index among the running delete-by-query tasks, such as one started
+   * before a restart, or null if there is none.
+   */
+  static TaskId runningPrune(List<TaskInfo> tasks, String index) {
+
+    for (TaskInfo task : tasks) {
+      String description = task.getDescription();
+      // slices run as child tasks of the one we started
+      if (!task.getParentTaskId().isSet()
+          && description != null
+          && description.contains("[" + index + "]")) {
+        return task.getTaskId();
+      }
+    }
+    return null;
+  }
+
+  private TaskId submit(String index, long expiredBeforeMillis, boolean ignoreUnavailable)
+      throws IOException {
+
+    // the high level client in use cannot start a delete-by-query without waiting for it
+    Request request = new Request("POST", "/" + index + "/_delete_by_query");
+    request.addParameter("wait_for_completion", "false");
+    request.addParameter("conflicts", "proceed");
+    request.addParameter("slices", slices > 0 ? Integer.toString(slices) : "auto");
+    request.addParameter(
+        "requests_per_second", docsPerSecond > 0 ? Float.toString(docsPerSecond) : "-1");
+    if (ignoreUnavailable) {
+      request.addParameter("ignore_unavailable", "true");
+    }
+    SearchSourceBuilder source =
+        new SearchSourceBuilder()
+            .query(QueryBuilders.rangeQuery("_expiresAsTimestamp").lte(expiredBeforeMillis));
+    request.setJsonEntity(source.toString());
+    request.setOptions(requestOptions);
+
+    Response response = client.getLowLevelClient().performRequest(request);
+    Map body = new Gson().fromJson(EntityUtils.toString(response.getEntity()), Map.class);
+    TaskId taskId = new TaskId((String) body.get("task"));
+    Log.info("Started prune task " + taskId + " on " + index);
+    return taskId;
+  }
+
+  /** Waits for the task to finish and returns the number of records it deleted. */
+  private long await(TaskId taskId) throws IOException, InterruptedException {
+
+    running = true;
+    runStartedAt = System.currentTimeMillis();
+    long pollMillis = 50;
+    long deleted = 0;
+    try {
+      while (true) {
+        GetTaskRequest request = new GetTaskRequest(taskId.getNodeId(), taskId.getId());
+        Optional<GetTaskResponse> response = client.tasks().get(request, requestOptions);
+        if (!response.isPresent()) {
+          // the node running it went away; the next prune starts over
+          Log.warn("Prune task " + taskId + " no longer exists");
+          break;
+        }
+        TaskInfo task = response.get().getTaskInfo();
+        runStartedAt = task.getStartTime();
+        if (task.getStatus() instanceof RawTaskStatus) {
+          Map<String, Object> status = ((RawTaskStatus) task.getStatus()).toMap();
+          deleted = count(status, "deleted");
+          backlog =
+              Math.max(0, count(status, "total") - deleted - count(status, "version_conflicts"));
+          float rate = ((Number) status.getOrDefault("requests_per_second", -1)).floatValue();
+          requestsPerSecond = rate < 0 ? Float.POSITIVE_INFINITY : rate;
+        }
+        if (response.get().isCompleted()) {
+          break;
+        }
+        adjustThrottle(taskId);
+        Thread.sleep(pollMillis);
+        pollMillis = Math.min(pollMillis * 2, MAX_POLL_MILLIS);
+      }
+    } finally {
+      running = false;
+      backlog = 0;
+    }
+    lastDeleted = deleted;
+    lastDurationMillis = System.currentTimeMillis() - runStartedAt;
+    totalDeleted.addAndGet(deleted);
+    runs.incrementAndGet();
+    Log.info(
+        "Prune task " + taskId + " deleted " + deleted + " records in " + lastDurationMillis + " ms");
+    return deleted;
+  }
+
+  private void adjustThrottle(TaskId taskId) throws IOException {
+
+    float budget = this.docsPerSecond;
+    long slo = this.latencySloMillis;
+    if (budget <= 0 || slo <= 0) {
+      return;
+    }
+    long latency = searchLatency.getRecentMillis();
+    float rate = throttledRate(budget, slo, latency, requestsPerSecond);
+    if (rate != requestsPerSecond) {
+      Log.debug("Search latency " + latency + " ms, prune rate " + rate + " docs/s");
+      client.deleteByQueryRethrottle(new RethrottleRequest(taskId, rate), requestOptions);
+      requestsPerSecond = rate;
+      throttleAdjustments.incrementAndGet();
+    }
+  }
+
+  /**
+   * Returns the rate pruning runs at next: half the current rate while searches are slower than
+   * the SLO, twice the current rate up to the budget once they are well below it.
+   *
+   * @param current rate of the task, infinite if it is not throttled
+   */
+  static float throttledRate(float budget, long sloMillis, long latencyMillis, float current) {
+
+    float rate = Float.isInfinite(current) ? budget : current;
+    if (latencyMillis > sloMillis) {
+      return Math.max(MIN_DOCS_PER_SECOND, rate / 2);
+    } else if (latencyMillis < sloMillis * 0.8) {
+      return Math.min(budget, rate * 2);
+    }
+    return rate;
+  }
+
+  private static long count(Map<String, Object> status, String key) {
+
+    Object value = status.get(key);
+    return value instanceof Number ? ((Number) value).longValue() : 0;
+  }
+
+  @Override
+  public boolean isRunning() {
+    return running;
+  }
+
+  @Override
+  public long getRuns() {
+    return runs.get();
+  }
+
+  @Override
+  public long getResumedRuns() {
+    return resumedRuns.get();
+  }
+
+  @Override
+  public long getTotalDeleted() {
+    return totalDeleted.get();
+  }
+
+  @Override
+  public long getLastDeleted() {
+    return lastDeleted;
+  }
+
+  @Override
+  public long getLastDurationMillis() {
+    return lastDurationMillis;
+  }
+
+  @Override
+  public long getCurrentRunMillis() {
+    return running ? System.currentTimeMillis() - runStartedAt : 0;
+  }
+
+  @Override
+  public long getBacklog() {
+    return backlog;
+  }
+
+  @Override
+  public float getRequestsPerSecond() {
+    return requestsPerSecond;
+  }
+
+  @Override
+  public long getThrottleAdjustments() {
+    return throttleAdjustments.get();
+  }
+
+  @Override
+  public long getRecentSearchLatencyMillis() {
+    return searchLatency.getRecentMillis();
+  }
+}
@@ -0,0 +1,27 @@
+package net.es.lookup.database;
+
+/** Metrics of expiry pruning. */
+public interface ExpiryPrunerMXBean {
+
+  boolean isRunning();
+
+  long getRuns();
+
+  long getResumedRuns();
+
+  long getTotalDeleted();
+
+  long getLastDeleted();
+
+  long getLastDurationMillis();
+
+  long getCurrentRunMillis();
+
+  long getBacklog();
+
+  float getRequestsPerSecond();
+
+  long getThrottleAdjustments();
+
+  long getRecentSearchLatencyMillis();
+}
@@ -0,0 +1,103 @@
+package net.es.lookup.database;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import net.es.lookup.common.Message;
+import org.elasticsearch.common.xcontent.support.XContentMapValues;
+import org.elasticsearch.search.fetch.subphase.FetchSourceContext;
+
+/**
+ * The keys of a record to return, as given by the fields query parameter. Keys prefixed with "-"
+ * are left out and keys may contain "*" wildcards. The projection is applied by Elasticsearch
+ * source filtering, so the other keys are not transferred or parsed.
+ */
+public final class FieldProjection {
+
+  public static final String EXCLUDE_PREFIX = "-";
+
+  private final String[] includes;
+  private final String[] excludes;
+
+  private FieldProjection(Collection<String> includes, Collection<String> excludes) {
+
+    this.includes = new TreeSet<>(includes).toArray(new String[0]);
+    this.excludes = new TreeSet<>(excludes).toArray(new String[0]);
+  }
+
+  /**
+   * Parses a comma separated list of keys.
+   *
+   * @return the projection, or null if no key is given
+   */
+  public static FieldProjection parse(String fields) {
+
+    if (fields == null) {
+      return null;
+    }
+    return of(Arrays.asList(fields.split(",")));
+  }
+
+  /**
+   * Returns the projection of the given keys, each of which may be prefixed with "-".
+   *
+   * @return the projection, or null if no key is given
+   */
+  public static FieldProjection of(List<String> fields) {
+
+    List<String> includes = new ArrayList<>();
+    List<String> excludes = new ArrayList<>();
+    for (String field : fields) {
+      String key = field.trim();
+      if (key.startsWith(EXCLUDE_PREFIX)) {
+        key = key.substring(EXCLUDE_PREFIX.length()).trim();
+        if (!key.isEmpty()) {
+          excludes.add(key);
+        }
+      } else if (!key.isEmpty()) {
+        includes.add(key);
+      }
+    }
+    if (includes.isEmpty() && excludes.isEmpty()) {
+      return null;
+    }
+    return new FieldProjection(includes, excludes);
+  }
+
+  /** Returns the included keys, all keys if empty. */
+  public String[] getIncludes() {
+    return includes.clone();
+  }
+
+  public String[] getExcludes() {
+    return excludes.clone();
+  }
+
+  FetchSourceContext toFetchSourceContext() {
+
+    return new FetchSourceContext(true, includes, excludes);
+  }
+
+  /** Applies the projection to a record that was read in full, the same way Elasticsearch does. */
+  public Message apply(Message record) {
+
+    return new Message(XContentMapValues.filter((Map<String, ?>) record.getMap(), includes, excludes));
+  }
+
+  /** Returns the projection in a canonical form, equal for equal projections. */
+  @Override
+  public String toString() {
+
+    StringBuilder text = new StringBuilder();
+    for (String include : includes) {
+      text.append(text.length() == 0 ? "" : ",").append(include);
+    }
+    for (String exclude : excludes) {
+      text.append(text.length() == 0 ? "" : ",").append(EXCLUDE_PREFIX).append(exclude);
+    }
+    return text.toString();
+  }
+}
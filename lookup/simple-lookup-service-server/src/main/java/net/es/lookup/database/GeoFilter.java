@@ -0,0 +1,275 @@
+package net.es.lookup.database;
+
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import net.es.lookup.common.ReservedKeys;
+import net.es.lookup.common.ReservedValues;
+import org.elasticsearch.common.unit.DistanceUnit;
+import org.elasticsearch.index.query.BoolQueryBuilder;
+import org.elasticsearch.index.query.QueryBuilder;
+import org.elasticsearch.index.query.QueryBuilders;
+import org.elasticsearch.search.sort.SortBuilder;
+import org.elasticsearch.search.sort.SortBuilders;
+import org.elasticsearch.search.sort.SortOrder;
+
+/**
+ * Restricts a query to the records located within a distance of a point (location-near and
+ * location-radius) and/or within a bounding box (location-box), optionally sorting them by their
+ * distance to the point (sort=distance). Records are located by a geo_point field the server
+ * derives from location-latitude and location-longitude when they are stored or renewed.
+ */
+public final class GeoFilter {
+
+  /** The geo_point field derived from the location keys of a record. */
+  public static final String LOCATION_FIELD = "_location";
+
+  /**
+   * Painless statements deriving the location field of ctx._source the way {@link #locationOf}
+   * does, for records stored without it: records renewed in place and records stored before
+   * locations were indexed.
+   */
+  static final String LOCATION_SCRIPT =
+      "if (ctx._source." + LOCATION_FIELD + " == null) {"
+          + " def lat = ctx._source['" + ReservedKeys.RECORD_LOCATION_LATITUDE + "'];"
+          + " def lon = ctx._source['" + ReservedKeys.RECORD_LOCATION_LONGITUDE + "'];"
+          + " if (lat instanceof List) { lat = lat.isEmpty() ? null : lat[0] }"
+          + " if (lon instanceof List) { lon = lon.isEmpty() ? null : lon[0] }"
+          + " if (lat != null && lon != null) {"
+          + " try {"
+          + " double la = Double.parseDouble(lat.toString().trim());"
+          + " double lo = Double.parseDouble(lon.toString().trim());"
+          + " if (la >= -90 && la <= 90 && lo >= -180 && lo <= 180) {"
+          + " ctx._source." + LOCATION_FIELD + " = ['lat': la, 'lon': lo] }"
+          + " } catch (NumberFormatException e) { lat = null } } }";
+
+  /**
+   * Painless statements deriving the location field of the records stored before locations were
+   * indexed. Records left without one are not written back.
+   */
+  static final String BACKFILL_SCRIPT =
+      LOCATION_SCRIPT + " if (ctx._source." + LOCATION_FIELD + " == null) { ctx.op = 'noop' }";
+
+  private final double[] near;
+  private final double radiusMeters;
+  private final double[] box;
+  private final boolean sortByDistance;
+
+  private GeoFilter(double[] near, double radiusMeters, double[] box, boolean sortByDistance) {
+
+    this.near = near;
+    this.radiusMeters = radiusMeters;
+    this.box = box;
+    this.sortByDistance = sortByDistance;
+  }
+
+  /**
+   * Parses the location parameters of a query.
+   *
+   * @param near "latitude,longitude" of the point to search around, or null
+   * @param radius distance to the point, in kilometers unless a unit like "mi" or "m" is given, or
+   *     null
+   * @param box "top,left,bottom,right" latitudes and longitudes of a bounding box, or null
+   * @param sort "distance" to sort by distance to the point, or null
+   * @return the filter, or null if no parameter is given
+   * @throws IllegalArgumentException if a parameter is not valid
+   */
+  public static GeoFilter parse(String near, String radius, String box, String sort) {
+
+    if (near == null && radius == null && box == null && sort == null) {
+      return null;
+    }
+    double[] point = near == null ? null : coordinates(ReservedKeys.RECORD_LOCATION_NEAR, near, 2);
+    if (point != null) {
+      checkPoint(ReservedKeys.RECORD_LOCATION_NEAR, point[0], point[1]);
+    }
+    double radiusMeters = 0;
+    if (radius != null) {
+      if (point == null) {
+        throw new IllegalArgumentException(
+            ReservedKeys.RECORD_LOCATION_RADIUS + " requires " + ReservedKeys.RECORD_LOCATION_NEAR);
+      }
+      try {
+        radiusMeters =
+            DistanceUnit.parse(radius.trim(), DistanceUnit.KILOMETERS, DistanceUnit.METERS);
+      } catch (IllegalArgumentException e) {
+        throw new IllegalArgumentException("Invalid " + ReservedKeys.RECORD_LOCATION_RADIUS, e);
+      }
+      if (!(radiusMeters > 0) || Double.isInfinite(radiusMeters)) {
+        throw new IllegalArgumentException(ReservedKeys.RECORD_LOCATION_RADIUS + " must be positive");
+      }
+    }
+    double[] corners = box == null ? null : coordinates(ReservedKeys.RECORD_LOCATION_BOX, box, 4);
+    if (corners != null) {
+      checkPoint(ReservedKeys.RECORD_LOCATION_BOX, corners[0], corners[1]);
+      checkPoint(ReservedKeys.RECORD_LOCATION_BOX, corners[2], corners[3]);
+      // left may be greater than right for boxes that cross the date line
+      if (corners[0] < corners[2]) {
+        throw new IllegalArgumentException(
+            ReservedKeys.RECORD_LOCATION_BOX + " top must not be below bottom");
+      }
+    }
+    boolean sortByDistance = false;
+    if (sort != null) {
+      if (!ReservedValues.RECORD_SORT_DISTANCE.equalsIgnoreCase(sort.trim())) {
+        throw new IllegalArgumentException("Unsupported " + ReservedKeys.RECORD_SORT + " " + sort);
+      }
+      if (point == null) {
+        throw new IllegalArgumentException(
+            "Sorting by distance requires " + ReservedKeys.RECORD_LOCATION_NEAR);
+      }
+      sortByDistance = true;
+    }
+    if (point != null && radius == null && !sortByDistance) {
+      throw new IllegalArgumentException(
+          ReservedKeys.RECORD_LOCATION_NEAR + " requires " + ReservedKeys.RECORD_LOCATION_RADIUS
+              + " or " + ReservedKeys.RECORD_SORT + "=" + ReservedValues.RECORD_SORT_DISTANCE);
+    }
+    return new GeoFilter(point, radiusMeters, corners, sortByDistance);
+  }
+
+  private static double[] coordinates(String key, String value, int count) {
+
+    String[] parts = value.split(",");
+    if (parts.length != count) {
+      throw new IllegalArgumentException(key + " must have " + count + " comma separated numbers");
+    }
+    double[] coordinates = new double[count];
+    for (int i = 0; i < count; i++) {
+      try {
+        coordinates[i] = Double.parseDouble(parts[i].trim());
+      } catch (NumberFormatException e) {
+        throw new IllegalArgumentException("Invalid " + key, e);
+      }
+    }
+    return coordinates;
+  }
+
+  private static void checkPoint(String key, double latitude, double longitude) {
+
+    if (!isLatitude(latitude) || !isLongitude(longitude)) {
+      throw new IllegalArgumentException(key + " is out of range");
+    }
+  }
+
+  private static boolean isLatitude(double latitude) {
+    return latitude >= -90 && latitude <= 90;
+  }
+
+  private static boolean isLongitude(double longitude) {
+    return longitude >= -180 && longitude <= 180;
+  }
+
+  /**
+   * Returns the value of the location field for a record, or null if the record does not have
+   * both a latitude and a longitude in range. The keys hold strings, or lists of them, as sent by
+   * clients.
+   */
+  public static Map<String, Object> locationOf(Map<String, Object> record) {
+
+    Double latitude = coordinate(record.get(ReservedKeys.RECORD_LOCATION_LATITUDE));
+    Double longitude = coordinate(record.get(ReservedKeys.RECORD_LOCATION_LONGITUDE));
+    if (latitude == null || longitude == null || !isLatitude(latitude) || !isLongitude(longitude)) {
+      return null;
+    }
+    Map<String, Object> location = new LinkedHashMap<>();
+    location.put("lat", latitude);
+    location.put("lon", longitude);
+    return location;
+  }
+
+  private static Double coordinate(Object value) {
+
+    if (value instanceof List) {
+      List<?> values = (List<?>) value;
+      value = values.isEmpty() ? null : values.get(0);
+    }
+    if (value instanceof Number) {
+      return ((Number) value).doubleValue();
+    }
+    if (value instanceof String) {
+      try {
+        return Double.parseDouble(((String) value).trim());
+      } catch (NumberFormatException e) {
+        return null;
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Adds the geo_point mapping of the location field to an index mapping.
+   *
+   * @param mapping the index mapping, or an empty string for dynamic mapping only
+   */
+  public static String withLocationMapping(String mapping) {
+
+    JsonObject root =
+        mapping == null || mapping.isEmpty()
+            ? new JsonObject()
+            : new JsonParser().parse(mapping).getAsJsonObject();
+    JsonObject properties =
+        root.has("properties") ? root.getAsJsonObject("properties") : new JsonObject();
+    JsonObject location = new JsonObject();
+    location.addProperty("type", "geo_point");
+    properties.add(LOCATION_FIELD, location);
+    root.add("properties", properties);
+    return root.toString();
+  }
+
+  public boolean isSortedByDistance() {
+    return sortByDistance;
+  }
+
+  /** Returns the filter to apply together with the query. */
+  QueryBuilder toQuery() {
+
+    BoolQueryBuilder query = QueryBuilders.boolQuery();
+    if (radiusMeters > 0) {
+      query.filter(
+          QueryBuilders.geoDistanceQuery(LOCATION_FIELD)
+              .point(near[0], near[1])
+              .distance(radiusMeters, DistanceUnit.METERS));
+    }
+    if (box != null) {
+      query.filter(
+          QueryBuilders.geoBoundingBoxQuery(LOCATION_FIELD).setCorners(box[0], box[1], box[2], box[3]));
+    }
+    if (sortByDistance) {
+      // records without a location have no distance to sort on
+      query.filter(QueryBuilders.existsQuery(LOCATION_FIELD));
+    }
+    return query;
+  }
+
+  /** Returns the sort by distance in kilometers, nearest first. */
+  SortBuilder<?> toSort() {
+
+    return SortBuilders.geoDistanceSort(LOCATION_FIELD, near[0], near[1])
+        .unit(DistanceUnit.KILOMETERS)
+        .order(SortOrder.ASC);
+  }
+
+  /** Returns the filter in a canonical form, equal for equal filters. */
+  @Override
+  public String toString() {
+
+    StringBuilder text = new StringBuilder();
+    if (near != null) {
+      text.append("near=").append(near[0]).append(',').append(near[1]);
+    }
+    if (radiusMeters > 0) {
+      text.append(";radius=").append(radiusMeters);
+    }
+    if (box != null) {
+      text.append(";box=").append(box[0]).append(',').append(box[1])
+          .append(',').append(box[2]).append(',').append(box[3]);
+    }
+    if (sortByDistance) {
+      text.append(";sort=").append(ReservedValues.RECORD_SORT_DISTANCE);
+    }
+    return text.toString();
+  }
+}
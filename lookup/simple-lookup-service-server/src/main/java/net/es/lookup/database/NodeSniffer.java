@@ -0,0 +1,167 @@
+package net.es.lookup.database;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import org.apache.http.HttpHost;
+import org.apache.http.util.EntityUtils;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.elasticsearch.client.Node;
+import org.elasticsearch.client.Request;
+import org.elasticsearch.client.RequestOptions;
+import org.elasticsearch.client.Response;
+import org.elasticsearch.client.RestClient;
+
+/**
+ * Keeps the nodes the client sends requests to in line with the cluster. Every intervalMillis,
+ * and shortly after a node fails, the data nodes are read from the nodes info API and replace the
+ * client's nodes. If the cluster cannot be reached the current nodes are kept.
+ */
+final class NodeSniffer {
+
+  private static Logger Log = LogManager.getLogger(NodeSniffer.class);
+
+  // Delay of the sniff that follows a node failure, so a burst of failures causes one sniff
+  private static final long AFTER_FAILURE_DELAY_MILLIS = 1000;
+
+  private final RestClient client;
+  private final RequestOptions options;
+  private final String scheme;
+  private final long intervalMillis;
+  private final ScheduledExecutorService executor;
+  private final AtomicBoolean sniffPending = new AtomicBoolean();
+
+  private final AtomicLong sniffs = new AtomicLong();
+  private final AtomicLong failedSniffs = new AtomicLong();
+  private volatile long lastSniffAt = 0;
+
+  NodeSniffer(RestClient client, RequestOptions options, String scheme, long intervalMillis) {
+
+    this.client = client;
+    this.options = options;
+    this.scheme = scheme;
+    this.intervalMillis = intervalMillis;
+    this.executor =
+        Executors.newSingleThreadScheduledExecutor(
+            runnable -> {
+              Thread thread = new Thread(runnable, "elastic-node-sniffer");
+              thread.setDaemon(true);
+              return thread;
+            });
+  }
+
+  void start() {
+
+    executor.scheduleWithFixedDelay(this::sniff, 0, intervalMillis, TimeUnit.MILLISECONDS);
+  }
+
+  /** Sniffs the nodes soon, unless a sniff is already pending. */
+  void sniffSoon() {
+
+    if (sniffPending.compareAndSet(false, true)) {
+      executor.schedule(
+          () -> {
+            sniffPending.set(false);
+            sniff();
+          },
+          AFTER_FAILURE_DELAY_MILLIS,
+          TimeUnit.MILLISECONDS);
+    }
+  }
+
+  void close() {
+
+    executor.shutdownNow();
+  }
+
+  private void sniff() {
+
+    try {
+      Request request = new Request("GET", "/_nodes/http");
+      request.setOptions(options);
+      Response response = client.performRequest(request);
+      List<Node> nodes = nodesOf(EntityUtils.toString(response.getEntity()), scheme);
+      if (nodes.isEmpty()) {
+        Log.warn("No data nodes with an http address found, keeping " + client.getNodes());
+      } else {
+        client.setNodes(nodes);
+        Log.debug("Sniffed nodes " + nodes);
+      }
+      sniffs.incrementAndGet();
+      lastSniffAt = System.currentTimeMillis();
+    } catch (IOException | RuntimeException e) {
+      failedSniffs.incrementAndGet();
+      Log.warn("Unable to sniff Elasticsearch nodes " + e.getMessage());
+    }
+  }
+
+  /**
+   * Returns the data nodes of a nodes info response. Nodes are reached at their http publish
+   * address with the given scheme.
+   */
+  static List<Node> nodesOf(String nodesInfo, String scheme) {
+
+    List<Node> nodes = new ArrayList<>();
+    JsonObject root = new JsonParser().parse(nodesInfo).getAsJsonObject();
+    if (!root.has("nodes")) {
+      return nodes;
+    }
+    for (Map.Entry<String, JsonElement> entry : root.getAsJsonObject("nodes").entrySet()) {
+      JsonObject info = entry.getValue().getAsJsonObject();
+      if (!info.has("http")) {
+        // http is disabled on this node
+        continue;
+      }
+      boolean master = false;
+      boolean data = false;
+      boolean ingest = false;
+      for (JsonElement role : info.getAsJsonArray("roles")) {
+        master |= "master".equals(role.getAsString());
+        data |= "data".equals(role.getAsString());
+        ingest |= "ingest".equals(role.getAsString());
+      }
+      if (!data) {
+        continue;
+      }
+      String address = info.getAsJsonObject("http").get("publish_address").getAsString();
+      // hostname/ip:port when the node publishes a host name
+      int slash = address.indexOf('/');
+      if (slash >= 0) {
+        String port = address.substring(address.lastIndexOf(':') + 1);
+        address = address.substring(0, slash) + ":" + port;
+      }
+      HttpHost host = HttpHost.create(scheme + "://" + address);
+      nodes.add(
+          new Node(
+              host,
+              null,
+              info.has("name") ? info.get("name").getAsString() : null,
+              info.has("version") ? info.get("version").getAsString() : null,
+              new Node.Roles(master, data, ingest),
+              null));
+    }
+    return nodes;
+  }
+
+  long getSniffs() {
+    return sniffs.get();
+  }
+
+  long getFailedSniffs() {
+    return failedSniffs.get();
+  }
+
+  long getLastSniffAt() {
+    return lastSniffAt;
+  }
+}
@@ -0,0 +1,457 @@
+package net.es.lookup.database;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import net.es.lookup.utils.config.reader.IndexMapReader;
+import org.elasticsearch.index.query.BoolQueryBuilder;
+import org.elasticsearch.index.query.QueryBuilder;
+import org.elasticsearch.index.query.QueryBuilders;
+import org.elasticsearch.index.query.TermsSetQueryBuilder;
+import org.elasticsearch.script.Script;
+
+/**
+ * Compiles sLS key/value queries into non-scoring Elasticsearch filters. Query results are never
+ * ranked, so everything runs in filter context under a constant_score query, where Elasticsearch
+ * can cache the clauses.
+ *
+ * <p>On fields mapped as keyword, exact values become term and terms filters, a list of values
+ * that must all match becomes a terms_set filter, and a value with a single trailing wildcard
+ * becomes a prefix filter. Other wildcards are kept as regexp filters. Fields that are not mapped
+ * as keyword are analyzed, so they keep their match and regexp clauses to return the same
+ * records as before.
+ *
+ * <p>Keywords with the lowercase normalizer of a generated mapping match without regard to case,
+ * and their values are globs where only '*' is special. A leading wildcard becomes a prefix filter
+ * on the reversed sub-field and a wildcard on both sides a phrase of trigrams on the n-gram
+ * sub-field, when the field has them.
+ *
+ * <p>Which clause each key compiles to depends only on the query's shape: the operator, the keys
+ * and the kind of each value. Compiled shapes are cached and bound to the values of each query.
+ */
+public final class QueryCompiler {
+
+  private static final int MAX_CACHED_SHAPES = 1024;
+
+  // Characters with a meaning in Lucene regular expressions. Wildcard values containing them
+  // must stay regexp queries to match the same records
+  private static final String REGEXP_SYNTAX = ".?+*|{}[]()\"\\#@&<>~";
+
+  private static final char EXACT = 'e';
+  private static final char PREFIX = 'p';
+  private static final char REGEXP = 'r';
+
+  // Kinds of glob values on normalized keywords
+  private static final char SUFFIX = 's';
+  private static final char INFIX = 'i';
+  private static final char EXISTS = 'x';
+  private static final char GLOB = 'g';
+
+  // Fields in the mapping, null for analyzed text
+  private final Map<String, Field> fields;
+
+  // Fields that are not in the mapping, or null if they are analyzed text
+  private final Field dynamicField;
+  private final String dynamicUnmatchPrefix;
+
+  private final Map<String, List<KeyPlan>> shapes =
+      new LinkedHashMap<String, List<KeyPlan>>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, List<KeyPlan>> eldest) {
+          return size() > MAX_CACHED_SHAPES;
+        }
+      };
+
+  /** How a keyword field is indexed. */
+  private static class Field {
+
+    final boolean normalized;
+    final boolean reversed;
+    final boolean ngram;
+
+    Field(boolean normalized, boolean reversed, boolean ngram) {
+      this.normalized = normalized;
+      this.reversed = reversed;
+      this.ngram = ngram;
+    }
+  }
+
+  /** How the values of one key are compiled. */
+  private static class KeyPlan {
+
+    final String key;
+    final Field field;
+    final char[] kinds;
+
+    KeyPlan(String key, Field field, char[] kinds) {
+      this.key = key;
+      this.field = field;
+      this.kinds = kinds;
+    }
+  }
+
+  /** @param keywordFields fields mapped as plain keyword in the record index */
+  public QueryCompiler(Set<String> keywordFields) {
+
+    this.fields = new HashMap<>();
+    for (String keywordField : keywordFields) {
+      this.fields.put(keywordField, new Field(false, false, false));
+    }
+    this.dynamicField = null;
+    this.dynamicUnmatchPrefix = null;
+  }
+
+  private QueryCompiler(Map<String, Field> fields, Field dynamicField, String dynamicUnmatchPrefix) {
+
+    this.fields = fields;
+    this.dynamicField = dynamicField;
+    this.dynamicUnmatchPrefix = dynamicUnmatchPrefix;
+  }
+
+  /**
+   * Returns a compiler for an index mapping.
+   *
+   * @param indexMapping mapping as JSON, with the fields under "properties". May be empty
+   * @throws IllegalArgumentException if the mapping is not valid JSON
+   */
+  public static QueryCompiler forMapping(String indexMapping) {
+
+    if (indexMapping == null || indexMapping.isEmpty()) {
+      return forMapping(Collections.emptyMap());
+    }
+    try {
+      Map mapping = new Gson().fromJson(indexMapping, Map.class);
+      return forMapping(mapping == null ? Collections.emptyMap() : mapping);
+    } catch (JsonParseException e) {
+      throw new IllegalArgumentException("Invalid index mapping", e);
+    }
+  }
+
+  /** Returns a compiler for an index mapping, with the fields under "properties". */
+  public static QueryCompiler forMapping(Map indexMapping) {
+
+    Map<String, Field> fields = new HashMap<>();
+    Object properties = indexMapping.get("properties");
+    if (properties instanceof Map) {
+      for (Object entry : ((Map) properties).entrySet()) {
+        Map.Entry property = (Map.Entry) entry;
+        // analyzed fields are kept as null so they do not fall back to the template
+        fields.put((String) property.getKey(), fieldOf(property.getValue()));
+      }
+    }
+
+    // string keys outside the mapping follow the first template that takes every string
+    Field dynamicField = null;
+    String unmatchPrefix = null;
+    Object templates = indexMapping.get("dynamic_templates");
+    if (templates instanceof List) {
+      for (Object named : (List) templates) {
+        if (!(named instanceof Map) || ((Map) named).size() != 1) {
+          continue;
+        }
+        Object template = ((Map) named).values().iterator().next();
+        if (!(template instanceof Map)) {
+          continue;
+        }
+        Map conditions = (Map) template;
+        Object unmatch = conditions.get("unmatch");
+        if (!"string".equals(conditions.get("match_mapping_type"))
+            || conditions.containsKey("match")
+            || conditions.containsKey("path_match")
+            || conditions.containsKey("path_unmatch")
+            || conditions.containsKey("match_pattern")
+            || (unmatch != null && !isPrefixPattern(unmatch))) {
+          continue;
+        }
+        dynamicField = fieldOf(conditions.get("mapping"));
+        if (unmatch != null) {
+          String pattern = (String) unmatch;
+          unmatchPrefix = pattern.substring(0, pattern.length() - 1);
+        }
+        break;
+      }
+    }
+    return new QueryCompiler(fields, dynamicField, unmatchPrefix);
+  }
+
+  private static boolean isPrefixPattern(Object pattern) {
+
+    return pattern instanceof String
+        && ((String) pattern).endsWith("*")
+        && ((String) pattern).indexOf('*') == ((String) pattern).length() - 1;
+  }
+
+  /** Returns how a field mapping is indexed, or null if it is not a keyword. */
+  private static Field fieldOf(Object mapping) {
+
+    if (!(mapping instanceof Map) || !"keyword".equals(((Map) mapping).get("type"))) {
+      return null;
+    }
+    boolean normalized = IndexMapReader.NORMALIZER.equals(((Map) mapping).get("normalizer"));
+    Object subFields = ((Map) mapping).get("fields");
+    boolean reversed = false;
+    boolean ngram = false;
+    if (normalized && subFields instanceof Map) {
+      reversed = hasAnalyzer(subFields, IndexMapReader.REVERSED_FIELD, IndexMapReader.REVERSED_ANALYZER);
+      ngram = hasAnalyzer(subFields, IndexMapReader.NGRAM_FIELD, IndexMapReader.NGRAM_ANALYZER);
+    }
+    return new Field(normalized, reversed, ngram);
+  }
+
+  private static boolean hasAnalyzer(Object subFields, String name, String analyzer) {
+
+    Object subField = ((Map) subFields).get(name);
+    return subField instanceof Map && analyzer.equals(((Map) subField).get("analyzer"));
+  }
+
+  /**
+   * @param queryRequest map of key to a String value or a List of String values
+   * @param operator "all" if every value must match, otherwise any value may match
+   * @return the query, matching all records if queryRequest is empty
+   */
+  public QueryBuilder compile(Map queryRequest, String operator) {
+
+    boolean all = "all".equalsIgnoreCase(operator);
+    String shape = shapeOf(queryRequest, all);
+    List<KeyPlan> plans;
+    synchronized (shapes) {
+      plans = shapes.get(shape);
+    }
+    if (plans == null) {
+      plans = plan(queryRequest);
+      synchronized (shapes) {
+        shapes.put(shape, plans);
+      }
+    }
+
+    BoolQueryBuilder bool = QueryBuilders.boolQuery();
+    for (KeyPlan plan : plans) {
+      for (QueryBuilder clause : bind(plan, values(queryRequest.get(plan.key)), all)) {
+        if (all) {
+          bool.filter(clause);
+        } else {
+          bool.should(clause);
+        }
+      }
+    }
+    if (!all && bool.should().size() > 0) {
+      bool.minimumShouldMatch(1);
+    }
+    return QueryBuilders.constantScoreQuery(bool);
+  }
+
+  /**
+   * Returns the field holding the exact values of a key, for aggregations. Keys that are not
+   * keyword fields are taken to be text with the keyword sub-field of the default dynamic
+   * mapping.
+   */
+  public String valuesField(String key) {
+
+    return fieldFor(key) != null ? key : key + ".keyword";
+  }
+
+  int cachedShapes() {
+
+    synchronized (shapes) {
+      return shapes.size();
+    }
+  }
+
+  private Field fieldFor(String key) {
+
+    Field field = fields.get(key);
+    if (field != null || fields.containsKey(key)) {
+      return field;
+    }
+    if (dynamicUnmatchPrefix != null && key.startsWith(dynamicUnmatchPrefix)) {
+      return null;
+    }
+    return dynamicField;
+  }
+
+  private String shapeOf(Map queryRequest, boolean all) {
+
+    StringBuilder shape = new StringBuilder(all ? "all" : "any");
+    for (Object key : queryRequest.keySet()) {
+      // length prefixed so that no key can run into the next one
+      String keyString = (String) key;
+      shape.append('|').append(keyString.length()).append(':').append(keyString).append(':');
+      boolean glob = isGlob(fieldFor(keyString));
+      for (String value : values(queryRequest.get(key))) {
+        shape.append(kindOf(value, glob));
+      }
+    }
+    return shape.toString();
+  }
+
+  private List<KeyPlan> plan(Map queryRequest) {
+
+    List<KeyPlan> plans = new ArrayList<>();
+    for (Object key : queryRequest.keySet()) {
+      Field field = fieldFor((String) key);
+      List<String> values = values(queryRequest.get(key));
+      char[] kinds = new char[values.size()];
+      for (int i = 0; i < kinds.length; i++) {
+        kinds[i] = kindOf(values.get(i), isGlob(field));
+      }
+      plans.add(new KeyPlan((String) key, field, kinds));
+    }
+    return Collections.unmodifiableList(plans);
+  }
+
+  private static List<QueryBuilder> bind(KeyPlan plan, List<String> values, boolean all) {
+
+    List<QueryBuilder> clauses = new ArrayList<>();
+    Set<String> exact = new LinkedHashSet<>();
+    for (int i = 0; i < values.size(); i++) {
+      String value = values.get(i);
+      if (plan.field == null) {
+        clauses.add(
+            plan.kinds[i] == EXACT
+                ? QueryBuilders.matchQuery(plan.key, value)
+                : QueryBuilders.regexpQuery(plan.key, toRegexp(value)));
+      } else if (plan.kinds[i] == EXACT) {
+        // normalized fields also lowercase the terms of term queries, but not of every query
+        exact.add(plan.field.normalized ? value.toLowerCase() : value);
+      } else if (plan.kinds[i] == PREFIX) {
+        // the wildcard was always lowercased before matching
+        String prefix = value.substring(0, value.length() - 1).toLowerCase();
+        clauses.add(QueryBuilders.prefixQuery(plan.key, prefix));
+      } else if (plan.kinds[i] == REGEXP) {
+        clauses.add(QueryBuilders.regexpQuery(plan.key, toRegexp(value)));
+      } else {
+        clauses.add(bindGlob(plan, plan.kinds[i], value.toLowerCase()));
+      }
+    }
+
+    if (exact.size() == 1) {
+      clauses.add(0, QueryBuilders.termQuery(plan.key, exact.iterator().next()));
+    } else if (exact.size() > 1 && all) {
+      clauses.add(
+          0,
+          new TermsSetQueryBuilder(plan.key, new ArrayList<>(exact))
+              .setMinimumShouldMatchScript(new Script("params.num_terms")));
+    } else if (exact.size() > 1) {
+      clauses.add(0, QueryBuilders.termsQuery(plan.key, exact));
+    }
+    return clauses;
+  }
+
+  private static QueryBuilder bindGlob(KeyPlan plan, char kind, String glob) {
+
+    if (kind == EXISTS) {
+      return QueryBuilders.existsQuery(plan.key);
+    }
+    if (kind == SUFFIX && plan.field.reversed) {
+      String suffix = glob.substring(1);
+      return QueryBuilders.prefixQuery(
+          plan.key + "." + IndexMapReader.REVERSED_FIELD,
+          new StringBuilder(suffix).reverse().toString());
+    }
+    if (kind == INFIX && plan.field.ngram) {
+      // the grams of the infix at consecutive positions only occur in values containing it
+      String infix = glob.substring(1, glob.length() - 1);
+      return QueryBuilders.matchPhraseQuery(plan.key + "." + IndexMapReader.NGRAM_FIELD, infix);
+    }
+    return QueryBuilders.regexpQuery(plan.key, globToRegexp(glob));
+  }
+
+  private static List<String> values(Object value) {
+
+    if (value instanceof String) {
+      return Collections.singletonList((String) value);
+    }
+    if (value instanceof List) {
+      List<String> values = new ArrayList<>();
+      for (Object each : (List) value) {
+        values.add((String) each);
+      }
+      return values;
+    }
+    return Collections.emptyList();
+  }
+
+  private static boolean isGlob(Field field) {
+
+    return field != null && field.normalized;
+  }
+
+  private static char kindOf(String value, boolean glob) {
+
+    int wildcard = value.indexOf('*');
+    if (wildcard < 0) {
+      return EXACT;
+    }
+    if (glob) {
+      return globKindOf(value);
+    }
+    if (wildcard > 0 && wildcard == value.length() - 1) {
+      String prefix = value.substring(0, wildcard);
+      for (int i = 0; i < prefix.length(); i++) {
+        if (REGEXP_SYNTAX.indexOf(prefix.charAt(i)) >= 0) {
+          return REGEXP;
+        }
+      }
+      return PREFIX;
+    }
+    return REGEXP;
+  }
+
+  private static char globKindOf(String value) {
+
+    int first = value.indexOf('*');
+    int last = value.lastIndexOf('*');
+    int wildcards = 0;
+    for (int i = 0; i < value.length(); i++) {
+      if (value.charAt(i) == '*') {
+        wildcards++;
+      }
+    }
+    if (wildcards == value.length()) {
+      return EXISTS;
+    }
+    if (wildcards == 1 && first == value.length() - 1) {
+      return PREFIX;
+    }
+    if (wildcards == 1 && first == 0) {
+      return SUFFIX;
+    }
+    if (wildcards == 2
+        && first == 0
+        && last == value.length() - 1
+        && value.length() - 2 >= IndexMapReader.NGRAM_SIZE) {
+      return INFIX;
+    }
+    return GLOB;
+  }
+
+  private static String toRegexp(String value) {
+
+    return value.toLowerCase().replace("*", ".*");
+  }
+
+  /** Converts a glob, in which only '*' is special, into a regular expression. */
+  private static String globToRegexp(String glob) {
+
+    StringBuilder regexp = new StringBuilder();
+    for (int i = 0; i < glob.length(); i++) {
+      char c = glob.charAt(i);
+      if (c == '*') {
+        regexp.append(".*");
+      } else {
+        if (REGEXP_SYNTAX.indexOf(c) >= 0) {
+          regexp.append('\\');
+        }
+        regexp.append(c);
+      }
+    }
+    return regexp.toString();
+  }
+}
@@ -0,0 +1,43 @@
+package net.es.lookup.database;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+
+/**
+ * Encodes and decodes the opaque continuation token handed back to clients when paging through
+ * query results. The token wraps the sort values of the last hit on a page, which Elasticsearch
+ * uses as the search_after point for the next page.
+ */
+final class QueryCursor {
+
+  private static final Gson GSON = new Gson();
+
+  private QueryCursor() {}
+
+  static String encode(Object[] sortValues) {
+
+    String json = GSON.toJson(sortValues);
+    return Base64.getUrlEncoder().withoutPadding().encodeToString(json.getBytes(StandardCharsets.UTF_8));
+  }
+
+  /**
+   * @param cursor token previously returned by {@link #encode(Object[])}
+   * @return sort values to search after
+   * @throws IllegalArgumentException if the token is not a valid cursor
+   */
+  static Object[] decode(String cursor) {
+
+    try {
+      String json = new String(Base64.getUrlDecoder().decode(cursor), StandardCharsets.UTF_8);
+      Object[] sortValues = GSON.fromJson(json, Object[].class);
+      if (sortValues == null || sortValues.length == 0) {
+        throw new IllegalArgumentException("Empty cursor");
+      }
+      return sortValues;
+    } catch (JsonParseException e) {
+      throw new IllegalArgumentException("Invalid cursor", e);
+    }
+  }
+}
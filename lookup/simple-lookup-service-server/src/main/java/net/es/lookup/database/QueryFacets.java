@@ -0,0 +1,59 @@
+package net.es.lookup.database;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Counts over the records matching a query: the number of records, the most frequent values of
+ * some keys and the estimated number of distinct values of others.
+ */
+public class QueryFacets {
+
+  private final long count;
+  private final Map<String, Map<String, Long>> values = new LinkedHashMap<>();
+  private final Map<String, Long> otherCounts = new LinkedHashMap<>();
+  private final Map<String, Long> cardinalities = new LinkedHashMap<>();
+
+  public QueryFacets(long count) {
+
+    this.count = count;
+  }
+
+  void addValues(String key, Map<String, Long> valueCounts, long otherCount) {
+
+    values.put(key, valueCounts);
+    otherCounts.put(key, otherCount);
+  }
+
+  void addCardinality(String key, long cardinality) {
+
+    cardinalities.put(key, cardinality);
+  }
+
+  /** Returns the number of records matching the query. */
+  public long getCount() {
+
+    return count;
+  }
+
+  /**
+   * Returns, for each key, the most frequent values and the number of records having each,
+   * most frequent first.
+   */
+  public Map<String, Map<String, Long>> getValues() {
+
+    return values;
+  }
+
+  /** Returns, for each key, the number of values that were left out of getValues. */
+  public Map<String, Long> getOtherCounts() {
+
+    return otherCounts;
+  }
+
+  /** Returns, for each key, the approximate number of distinct values. */
+  public Map<String, Long> getCardinalities() {
+
+    return cardinalities;
+  }
+}
@@ -0,0 +1,30 @@
+package net.es.lookup.database;
+
+import java.util.List;
+import net.es.lookup.common.Message;
+
+/**
+ * One page of query results along with the cursor for the next page. The cursor is null when
+ * there are no more results.
+ */
+public class QueryPage {
+
+  private final List<Message> records;
+  private final String nextCursor;
+
+  public QueryPage(List<Message> records, String nextCursor) {
+
+    this.records = records;
+    this.nextCursor = nextCursor;
+  }
+
+  public List<Message> getRecords() {
+
+    return records;
+  }
+
+  public String getNextCursor() {
+
+    return nextCursor;
+  }
+}
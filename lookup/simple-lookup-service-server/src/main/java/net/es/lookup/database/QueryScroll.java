@@ -0,0 +1,114 @@
+package net.es.lookup.database;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Semaphore;
+import net.es.lookup.common.Message;
+import net.es.lookup.common.exception.internal.DatabaseException;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.elasticsearch.ElasticsearchException;
+import org.elasticsearch.action.search.ClearScrollRequest;
+import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.action.search.SearchScrollRequest;
+import org.elasticsearch.client.RequestOptions;
+import org.elasticsearch.client.RestHighLevelClient;
+import org.elasticsearch.common.unit.TimeValue;
+
+/**
+ * An open scroll over the results of a query. Pages are fetched from Elasticsearch one at a time
+ * as the caller asks for them, so results can be handed on (e.g. written to a client) without
+ * holding the whole result set in memory. Each page is fetched under a search permit, which is
+ * released as soon as the page arrives, so a scroll read slowly holds no permit between pages.
+ */
+public class QueryScroll implements Closeable {
+
+  static final TimeValue KEEP_ALIVE = TimeValue.timeValueSeconds(60);
+
+  private static Logger Log = LogManager.getLogger(QueryScroll.class);
+
+  private final RestHighLevelClient client;
+  private final RequestOptions options;
+  private final Semaphore permits;
+  private String scrollId;
+  private List<Message> pending;
+  private boolean exhausted;
+  private boolean closed;
+
+  QueryScroll(
+      RestHighLevelClient client,
+      RequestOptions options,
+      Semaphore permits,
+      SearchResponse firstResponse) {
+
+    this.client = client;
+    this.options = options;
+    this.permits = permits;
+    this.scrollId = firstResponse.getScrollId();
+    this.pending = ServiceElasticSearch.processSearchResponse(firstResponse.getHits());
+    this.exhausted = firstResponse.getHits().getHits().length == 0;
+  }
+
+  /**
+   * Returns the next page of records.
+   *
+   * @return next page of records, empty once the scroll is exhausted
+   * @throws DatabaseException if the scroll request fails
+   */
+  public List<Message> nextPage() throws DatabaseException {
+
+    if (pending != null) {
+      List<Message> page = pending;
+      pending = null;
+      return page;
+    }
+    if (exhausted || closed) {
+      return Collections.emptyList();
+    }
+
+    SearchScrollRequest scrollRequest = new SearchScrollRequest(scrollId);
+    scrollRequest.scroll(KEEP_ALIVE);
+    SearchResponse searchScrollResponse;
+    try {
+      permits.acquire();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new DatabaseException("Interrupted while waiting to run query");
+    }
+    try {
+      searchScrollResponse = client.scroll(scrollRequest, options);
+    } catch (IOException e) {
+      Log.error("Caught Elastic IOException"+e.getMessage());
+      throw new DatabaseException(e.getMessage());
+    } finally {
+      permits.release();
+    }
+    scrollId = searchScrollResponse.getScrollId();
+    if (searchScrollResponse.getHits().getHits().length == 0) {
+      exhausted = true;
+      return Collections.emptyList();
+    }
+    return ServiceElasticSearch.processSearchResponse(searchScrollResponse.getHits());
+  }
+
+  /** Clears the scroll context in Elasticsearch. */
+  @Override
+  public void close() {
+
+    if (closed) {
+      return;
+    }
+    closed = true;
+    try {
+      if (scrollId != null) {
+        ClearScrollRequest clearScrollRequest = new ClearScrollRequest();
+        clearScrollRequest.addScrollId(scrollId);
+        client.clearScroll(clearScrollRequest, options);
+      }
+    } catch (IOException | ElasticsearchException e) {
+      Log.warn("Unable to clear scroll: " + e.getMessage());
+    }
+  }
+}
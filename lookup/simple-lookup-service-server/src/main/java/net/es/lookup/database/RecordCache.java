@@ -0,0 +1,337 @@
+package net.es.lookup.database;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import net.es.lookup.common.CompactRecord;
+import net.es.lookup.common.Message;
+
+/**
+ * Bounded cache of records by URI for read-only lookups.
+ *
+ * <p>New records enter a small LRU window. A record leaving the window replaces the least
+ * recently used record of the main area only if it was requested more often, as estimated by a
+ * count-min sketch of recent lookups (W-TinyLFU). One-off lookups of many records therefore do
+ * not push out the records that are polled all the time.
+ *
+ * <p>Records are held as CompactRecords and copied into a new Message on each hit.
+ *
+ * <p>Entries live at most maxTtlMillis and never beyond the record's expiry. Writes in this
+ * process invalidate the record. A load that started before the invalidation is not cached, so
+ * a lookup racing with a write cannot put the old record back.
+ */
+final class RecordCache implements RecordCacheMXBean {
+
+  // Share of the capacity used by the admission window
+  private static final int WINDOW_PERCENT = 1;
+
+  // Load stamps are kept per stripe of URIs rather than per URI
+  private static final int STRIPES = 256;
+
+  private final int maxRecords;
+  private final int maxWindow;
+  private final long maxTtlMillis;
+
+  private final LinkedHashMap<String, Entry> window = new LinkedHashMap<>(16, 0.75f, true);
+  private final LinkedHashMap<String, Entry> main = new LinkedHashMap<>(16, 0.75f, true);
+  private final FrequencySketch sketch;
+  private final long[] stamps = new long[STRIPES];
+
+  private long hits;
+  private long misses;
+  private long evictions;
+  private long expirations;
+  private long invalidations;
+  private long rejectedLoads;
+  private long loads;
+  private long loadNanos;
+
+  private static class Entry {
+
+    final CompactRecord record;
+    final long recordExpiresMillis;
+    final long expiresAt;
+
+    Entry(CompactRecord record, long recordExpiresMillis, long expiresAt) {
+      this.record = record;
+      this.recordExpiresMillis = recordExpiresMillis;
+      this.expiresAt = expiresAt;
+    }
+  }
+
+  /**
+   * @param maxRecords number of records kept, must be positive
+   * @param maxTtlMillis time a record is kept at most, which bounds how stale a record written by
+   *     another server can be
+   */
+  RecordCache(int maxRecords, long maxTtlMillis) {
+
+    if (maxRecords <= 0) {
+      throw new IllegalArgumentException("Record cache size must be positive");
+    }
+    this.maxRecords = maxRecords;
+    this.maxWindow = Math.max(1, maxRecords * WINDOW_PERCENT / 100);
+    this.maxTtlMillis = maxTtlMillis;
+    this.sketch = new FrequencySketch(maxRecords);
+  }
+
+  /** Returns a copy of the cached record, or null if it is not cached. */
+  synchronized Message get(String recordURI) {
+
+    sketch.increment(recordURI);
+    Entry entry = window.get(recordURI);
+    if (entry == null) {
+      entry = main.get(recordURI);
+    }
+    if (entry == null) {
+      misses++;
+      return null;
+    }
+    if (entry.expiresAt <= System.currentTimeMillis()) {
+      remove(recordURI);
+      expirations++;
+      misses++;
+      return null;
+    }
+    hits++;
+    return entry.record.toMessage();
+  }
+
+  /**
+   * Returns the stamp to pass to put for a record about to be loaded. The put is ignored if the
+   * record is invalidated in between.
+   */
+  synchronized long startLoad(String recordURI) {
+
+    return stamps[stripe(recordURI)];
+  }
+
+  /**
+   * Caches a copy of a loaded record.
+   *
+   * @param stamp value returned by startLoad before the record was read
+   * @param loadStartNanos System.nanoTime() when the load started
+   */
+  synchronized void put(
+      String recordURI, Message record, long recordExpiresMillis, long stamp, long loadStartNanos) {
+
+    loads++;
+    loadNanos += System.nanoTime() - loadStartNanos;
+    long now = System.currentTimeMillis();
+    if (stamps[stripe(recordURI)] != stamp || recordExpiresMillis <= now) {
+      rejectedLoads++;
+      return;
+    }
+    Entry entry =
+        new Entry(
+            CompactRecord.of(record),
+            recordExpiresMillis,
+            Math.min(now + maxTtlMillis, recordExpiresMillis));
+    if (main.containsKey(recordURI)) {
+      main.put(recordURI, entry);
+      return;
+    }
+    window.put(recordURI, entry);
+    if (window.size() > maxWindow) {
+      admit();
+    }
+  }
+
+  /** Moves the oldest record of the window to the main area if it is worth keeping. */
+  private void admit() {
+
+    Iterator<Map.Entry<String, Entry>> oldest = window.entrySet().iterator();
+    Map.Entry<String, Entry> candidate = oldest.next();
+    oldest.remove();
+    if (window.size() + main.size() < maxRecords) {
+      main.put(candidate.getKey(), candidate.getValue());
+      return;
+    }
+    evictions++;
+    Iterator<String> victims = main.keySet().iterator();
+    if (!victims.hasNext()
+        || sketch.frequency(candidate.getKey()) <= sketch.frequency(victims.next())) {
+      return;
+    }
+    victims.remove();
+    main.put(candidate.getKey(), candidate.getValue());
+  }
+
+  /** Removes the record, and keeps a load that started earlier from caching it. */
+  synchronized void invalidate(String recordURI) {
+
+    stamps[stripe(recordURI)]++;
+    if (remove(recordURI)) {
+      invalidations++;
+    }
+  }
+
+  /** Removes the records that expired at or before expiredBeforeMillis. */
+  synchronized void invalidateExpired(long expiredBeforeMillis) {
+
+    invalidations += removeExpired(window, expiredBeforeMillis);
+    invalidations += removeExpired(main, expiredBeforeMillis);
+  }
+
+  /** Removes every record. */
+  synchronized void invalidateAll() {
+
+    for (int i = 0; i < stamps.length; i++) {
+      stamps[i]++;
+    }
+    invalidations += window.size() + main.size();
+    window.clear();
+    main.clear();
+  }
+
+  private boolean remove(String recordURI) {
+
+    return window.remove(recordURI) != null || main.remove(recordURI) != null;
+  }
+
+  private static int removeExpired(Map<String, Entry> entries, long expiredBeforeMillis) {
+
+    int removed = 0;
+    Iterator<Entry> iterator = entries.values().iterator();
+    while (iterator.hasNext()) {
+      if (iterator.next().recordExpiresMillis <= expiredBeforeMillis) {
+        iterator.remove();
+        removed++;
+      }
+    }
+    return removed;
+  }
+
+  private static int stripe(String recordURI) {
+
+    return (recordURI.hashCode() & 0x7fffffff) % STRIPES;
+  }
+
+  @Override
+  public synchronized int getSize() {
+    return window.size() + main.size();
+  }
+
+  @Override
+  public int getMaxRecords() {
+    return maxRecords;
+  }
+
+  @Override
+  public synchronized long getHits() {
+    return hits;
+  }
+
+  @Override
+  public synchronized long getMisses() {
+    return misses;
+  }
+
+  @Override
+  public synchronized double getHitRatio() {
+    long requests = hits + misses;
+    return requests == 0 ? 0 : (double) hits / requests;
+  }
+
+  @Override
+  public synchronized long getEvictions() {
+    return evictions;
+  }
+
+  @Override
+  public synchronized long getExpirations() {
+    return expirations;
+  }
+
+  @Override
+  public synchronized long getInvalidations() {
+    return invalidations;
+  }
+
+  @Override
+  public synchronized long getRejectedLoads() {
+    return rejectedLoads;
+  }
+
+  @Override
+  public synchronized long getLoads() {
+    return loads;
+  }
+
+  @Override
+  public synchronized double getAverageLoadMillis() {
+    return loads == 0 ? 0 : TimeUnit.NANOSECONDS.toMicros(loadNanos / loads) / 1000.0;
+  }
+
+  /**
+   * Count-min sketch of how often each URI was looked up recently. Only the smallest of a URI's
+   * counters are incremented, which keeps collisions from inflating the estimate. Counters
+   * saturate at 15 and are halved once the number of lookups reaches ten times the cache size,
+   * so the estimate follows changes in popularity.
+   */
+  static final class FrequencySketch {
+
+    private static final int DEPTH = 4;
+    private static final int COUNTERS_PER_RECORD = 8;
+    private static final int MAX_COUNT = 15;
+    private static final int[] SEEDS = {0x9e3779b9, 0x85ebca6b, 0xc2b2ae35, 0x27d4eb2f};
+
+    private final byte[][] counters;
+    private final int mask;
+    private final int sampleSize;
+    private int additions;
+
+    FrequencySketch(int maxRecords) {
+
+      int width = (Integer.highestOneBit(Math.max(16, maxRecords - 1)) << 1) * COUNTERS_PER_RECORD;
+      this.counters = new byte[DEPTH][width];
+      this.mask = width - 1;
+      this.sampleSize = 10 * Math.max(16, maxRecords);
+    }
+
+    void increment(String key) {
+
+      int frequency = frequency(key);
+      if (frequency == MAX_COUNT) {
+        return;
+      }
+      int hash = key.hashCode();
+      for (int row = 0; row < DEPTH; row++) {
+        int index = index(hash, row);
+        if (counters[row][index] == frequency) {
+          counters[row][index]++;
+        }
+      }
+      if (++additions >= sampleSize) {
+        reset();
+      }
+    }
+
+    int frequency(String key) {
+
+      int hash = key.hashCode();
+      int frequency = MAX_COUNT;
+      for (int row = 0; row < DEPTH; row++) {
+        frequency = Math.min(frequency, counters[row][index(hash, row)]);
+      }
+      return frequency;
+    }
+
+    private int index(int hash, int row) {
+
+      int h = (hash ^ SEEDS[row]) * SEEDS[(row + 1) % DEPTH];
+      return (h ^ (h >>> 16)) & mask;
+    }
+
+    private void reset() {
+
+      for (byte[] row : counters) {
+        for (int i = 0; i < row.length; i++) {
+          row[i] >>= 1;
+        }
+      }
+      additions /= 2;
+    }
+  }
+}
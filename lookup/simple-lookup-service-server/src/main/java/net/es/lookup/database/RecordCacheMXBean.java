@@ -0,0 +1,27 @@
+package net.es.lookup.database;
+
+/** Metrics of the record cache. */
+public interface RecordCacheMXBean {
+
+  int getSize();
+
+  int getMaxRecords();
+
+  long getHits();
+
+  long getMisses();
+
+  double getHitRatio();
+
+  long getEvictions();
+
+  long getExpirations();
+
+  long getInvalidations();
+
+  long getRejectedLoads();
+
+  long getLoads();
+
+  double getAverageLoadMillis();
+}
@@ -0,0 +1,42 @@
+package net.es.lookup.database;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Moving average of recent search latency. Background work such as expiry pruning reads it to
+ * back off while queries are slow.
+ */
+final class SearchLatency {
+
+  // Weight of the newest sample in the average
+  private static final double WEIGHT = 0.2;
+
+  // Samples older than this no longer say anything about current load
+  private static final long STALE_MILLIS = 10000;
+
+  private double averageMillis = 0;
+
+  private long lastSampleAt = 0;
+
+  /** Records a search that started at startNanos, as returned by System.nanoTime(), and ended now. */
+  synchronized void record(long startNanos) {
+
+    double millis = TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - startNanos) / 1000.0;
+    long now = System.currentTimeMillis();
+    if (now - lastSampleAt > STALE_MILLIS) {
+      averageMillis = millis;
+    } else {
+      averageMillis = WEIGHT * millis + (1 - WEIGHT) * averageMillis;
+    }
+    lastSampleAt = now;
+  }
+
+  /** Returns the average latency in milliseconds, or 0 if there were no recent searches. */
+  synchronized long getRecentMillis() {
+
+    if (System.currentTimeMillis() - lastSampleAt > STALE_MILLIS) {
+      return 0;
+    }
+    return Math.round(averageMillis);
+  }
+}
@@ -2,25 +2,44 @@ package net.es.lookup.database;
 
 import com.google.gson.Gson;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Queue;
+import java.util.Set;
 import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.locks.ReentrantLock;
 import net.es.lookup.common.Message;
+import net.es.lookup.common.ReservedKeys;
 
 import net.es.lookup.common.exception.internal.DatabaseException;
 import net.es.lookup.common.exception.internal.DuplicateEntryException;
 import net.es.lookup.common.exception.internal.RecordNotFoundException;
+import net.es.lookup.utils.config.reader.IndexMapReader;
+import net.es.lookup.utils.jmx.MBeanRegistrar;
 import org.apache.http.HttpHost;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.elasticsearch.ElasticsearchStatusException;
 
+import org.elasticsearch.action.DocWriteRequest;
 import org.elasticsearch.action.DocWriteResponse;
 import org.elasticsearch.action.DocWriteResponse.Result;
+import org.elasticsearch.action.admin.indices.alias.Alias;
+import org.elasticsearch.action.admin.indices.alias.IndicesAliasesRequest;
+import org.elasticsearch.action.admin.indices.alias.IndicesAliasesRequest.AliasActions;
 import org.elasticsearch.action.admin.indices.create.CreateIndexRequest;
 
 import org.elasticsearch.action.admin.indices.delete.DeleteIndexRequest;
@@ -31,57 +50,59 @@ import org.elasticsearch.action.delete.DeleteRequest;
 import org.elasticsearch.action.delete.DeleteResponse;
 import org.elasticsearch.action.get.GetRequest;
 import org.elasticsearch.action.get.GetResponse;
+import org.elasticsearch.action.get.MultiGetItemResponse;
+import org.elasticsearch.action.get.MultiGetRequest;
+import org.elasticsearch.action.get.MultiGetResponse;
 import org.elasticsearch.action.index.IndexRequest;
 
-import org.elasticsearch.action.search.ClearScrollRequest;
-
 import org.elasticsearch.action.search.SearchRequest;
 import org.elasticsearch.action.search.SearchResponse;
-import org.elasticsearch.action.search.SearchScrollRequest;
+import org.elasticsearch.action.support.IndicesOptions;
 import org.elasticsearch.action.support.master.AcknowledgedResponse;
 import org.elasticsearch.action.update.UpdateRequest;
 import org.elasticsearch.action.update.UpdateResponse;
 
+import org.elasticsearch.client.Request;
 import org.elasticsearch.client.RequestOptions;
-import org.elasticsearch.client.RestClient;
 import org.elasticsearch.client.RestHighLevelClient;
 import org.elasticsearch.client.core.CountRequest;
 import org.elasticsearch.client.core.CountResponse;
+import org.elasticsearch.client.indices.GetIndexRequest;
+import org.elasticsearch.client.indices.GetMappingsRequest;
+import org.elasticsearch.client.indices.PutIndexTemplateRequest;
 import org.elasticsearch.client.indices.PutMappingRequest;
+import org.elasticsearch.cluster.metadata.MappingMetaData;
 import org.elasticsearch.common.Strings;
-import org.elasticsearch.common.unit.TimeValue;
 import org.elasticsearch.common.xcontent.XContentType;
 import org.elasticsearch.index.get.GetResult;
 
-import org.elasticsearch.index.query.BoolQueryBuilder;
+import org.elasticsearch.index.query.QueryBuilder;
 import org.elasticsearch.index.query.QueryBuilders;
-import org.elasticsearch.index.query.RangeQueryBuilder;
-import org.elasticsearch.index.reindex.BulkByScrollResponse;
-import org.elasticsearch.index.reindex.DeleteByQueryRequest;
+import org.elasticsearch.rest.RestStatus;
+import org.elasticsearch.script.Script;
+import org.elasticsearch.script.ScriptType;
 import org.elasticsearch.search.SearchHit;
 import org.elasticsearch.search.SearchHits;
+import org.elasticsearch.search.aggregations.AggregationBuilders;
+import org.elasticsearch.search.aggregations.Aggregations;
+import org.elasticsearch.search.aggregations.bucket.terms.Terms;
+import org.elasticsearch.search.aggregations.metrics.Cardinality;
 import org.elasticsearch.search.builder.SearchSourceBuilder;
 import org.elasticsearch.search.fetch.subphase.FetchSourceContext;
+import org.elasticsearch.search.sort.SortOrder;
 import org.joda.time.DateTime;
 import org.joda.time.format.DateTimeFormatter;
 import org.joda.time.format.ISODateTimeFormat;
 
-import javax.ws.rs.InternalServerErrorException;
 import java.io.IOException;
 import java.net.URI;
 import java.net.URISyntaxException;
 
-import static org.elasticsearch.index.query.QueryBuilders.matchQuery;
-import static org.elasticsearch.index.query.QueryBuilders.regexpQuery;
 
 public class ServiceElasticSearch {
 
-  // URl to connect to the databse
-  private URI location;
-  // Port-1 of the database
-  private int port1;
-  // Port-2 of the databse
-  private int port2;
+  // Nodes of the cluster and how to connect to them
+  private ElasticConnection connection;
   // Name of the database
   private String indexName;
 
@@ -91,10 +112,68 @@ public class ServiceElasticSearch {
   private static Logger Log = LogManager.getLogger(ServiceElasticSearch.class);
 
   private RestHighLevelClient client = null;
+
+  // Options of the requests whose responses may be large, e.g. compression
+  private RequestOptions requestOptions = RequestOptions.DEFAULT;
   private static ServiceElasticSearch instance = null;
 
   private int DEFAULT_RESULTS_SIZE = 5000;
 
+  public static final int DEFAULT_MAX_CONCURRENT_SEARCHES = 16;
+
+  // Deterministic sort key for paged queries. Mapped as a keyword in mapping.json
+  private static final String SORT_FIELD = "uri";
+
+  // Sets the lease fields unless the record already expired before params.pruneBefore, and
+  // the location of records stored before locations were indexed
+  private static final String RENEW_SCRIPT =
+      "if (ctx._source._expiresAsTimestamp != null"
+          + " && ctx._source._expiresAsTimestamp < params.pruneBefore) {"
+          + " ctx.op = 'none' } else {"
+          + " for (entry in params.fields.entrySet()) {"
+          + " ctx._source[entry.getKey()] = entry.getValue() } "
+          + GeoFilter.LOCATION_SCRIPT
+          + " }";
+
+  // Caps the number of searches (including their scrolls) in flight against Elasticsearch.
+  // The RestHighLevelClient is thread safe, so this is the only gate on the query path.
+  private volatile Semaphore searchPermits = new Semaphore(DEFAULT_MAX_CONCURRENT_SEARCHES, true);
+
+  // Run by each search holding a permit before it is sent. Null unless set by tests
+  private volatile Runnable beforeSearch = null;
+
+  // Coalesces register and renew writes into bulk requests. Null when disabled
+  private volatile WritePipeline writePipeline = null;
+
+  // Longest a request thread waits for its write to come back from the pipeline, including the
+  // time spent queued behind other batches
+  private static final long PIPELINE_WRITE_TIMEOUT_MILLIS = 30000;
+
+  // Routes records into one index per expiry window. Null when disabled
+  private volatile TimePartitions partitions = null;
+
+  // Minimum time between refreshes of the known partitions triggered by lookup misses
+  private static final long PARTITION_REFRESH_MILLIS = 5000;
+
+  private volatile long partitionsRefreshedAt = 0;
+
+  // Serializes the lookup and the create of a URI when partitioned. The create only detects
+  // duplicates within the partition it writes to, so without this two concurrent registrations
+  // of a URI could both pass the lookup and land in different partitions
+  private final ReentrantLock[] createLocks = newLocks(64);
+
+  private final SearchLatency searchLatency = new SearchLatency();
+
+  private ExpiryPruner pruner;
+
+  // Whether the location field is mapped as a geo_point, which the backfill of locations needs
+  private volatile boolean locationMapped = false;
+
+  private QueryCompiler queryCompiler;
+
+  // Records served to read-only lookups. Null when disabled
+  private volatile RecordCache recordCache = null;
+
   public static ServiceElasticSearch getInstance() {
 
     return ServiceElasticSearch.instance;
@@ -109,17 +188,16 @@ public class ServiceElasticSearch {
     }
 
     ServiceElasticSearch.instance = this;
-    client =
-        new RestHighLevelClient(
-            RestClient.builder(
-                new HttpHost(this.location.toString(), this.port1, "http"),
-                new HttpHost(this.location.toString(), this.port2, "http")));
+    client = connection.open(this.indexName);
+    requestOptions = connection.getRequestOptions();
+    pruner = new ExpiryPruner(client, requestOptions, searchLatency);
+    MBeanRegistrar.register("ExpiryPruner", this.indexName, pruner);
     GetRequest getRequest = new GetRequest(this.indexName, "1");
     getRequest.fetchSourceContext(new FetchSourceContext(false));
     getRequest.storedFields("_none_");
     // Checks if the current index exists and creates it if it doesn't
     try {
-      client.get(getRequest, RequestOptions.DEFAULT);
+      client.get(getRequest, requestOptions);
     } catch (IOException e) {
       Log.error(e.getMessage());
       throw new DatabaseException(e.getMessage());
@@ -127,19 +205,105 @@ public class ServiceElasticSearch {
       // In case index doesn't exist
       Log.info("Creating index");
       CreateIndexRequest create = new CreateIndexRequest(this.indexName.toLowerCase());
+      if (indexMapping != null && !indexMapping.isEmpty()) {
+        create.settings(IndexMapReader.ANALYSIS_SETTINGS, XContentType.JSON);
+      }
       try {
-        client.indices().create(create, RequestOptions.DEFAULT);
+        client.indices().create(create, requestOptions);
 
         if (indexMapping != null && !indexMapping.isEmpty()){
           PutMappingRequest mappingRequest = new PutMappingRequest(this.indexName.toLowerCase());
           mappingRequest.source(this.indexMapping, XContentType.JSON);
-          client.indices().putMapping(mappingRequest, RequestOptions.DEFAULT);
+          client.indices().putMapping(mappingRequest, requestOptions);
         }
       } catch (IOException ex) {
         Log.error("unable to create index!");
         throw new DatabaseException(ex.getMessage());
       }
     }
+    putLocationMapping();
+    queryCompiler = compilerForIndex();
+  }
+
+  /**
+   * Maps the location field as a geo_point. This is also done for indices created before the
+   * field existed; adding a field to a mapping is always allowed. The records stored before then
+   * are given their location by {@link #backfillLocations}.
+   */
+  private void putLocationMapping() {
+
+    PutMappingRequest mappingRequest = new PutMappingRequest(this.indexName.toLowerCase());
+    mappingRequest.source(GeoFilter.withLocationMapping(""), XContentType.JSON);
+    try {
+      client.indices().putMapping(mappingRequest, requestOptions);
+    } catch (IOException | ElasticsearchStatusException e) {
+      // e.g. the field was mapped dynamically by an older server. Location queries will fail
+      Log.warn("Unable to map " + GeoFilter.LOCATION_FIELD + " as a geo_point " + e.getMessage());
+      return;
+    }
+    this.locationMapped = true;
+  }
+
+  /**
+   * Starts an update-by-query task that derives the location of the records that have location
+   * keys but no location field. Records renewed or updated meanwhile get theirs anyway. The task
+   * is throttled to the pruning budget and covers the partitions when they are enabled, so this is
+   * called once pruning and partitioning are configured. Records whose location keys are not a
+   * valid location are left untouched, so once all records are done a restart writes nothing.
+   */
+  public void backfillLocations() {
+
+    if (!this.locationMapped) {
+      return;
+    }
+    TimePartitions timePartitions = this.partitions;
+    String index =
+        timePartitions != null ? timePartitions.getAlias() : this.indexName.toLowerCase();
+    float docsPerSecond = pruner.getDocsPerSecond();
+    // the high level client in use cannot start an update-by-query without waiting for it
+    Request request = new Request("POST", "/" + index + "/_update_by_query");
+    request.addParameter("wait_for_completion", "false");
+    request.addParameter("conflicts", "proceed");
+    request.addParameter(
+        "requests_per_second", docsPerSecond > 0 ? Float.toString(docsPerSecond) : "-1");
+    request.setOptions(requestOptions);
+    SearchSourceBuilder query =
+        new SearchSourceBuilder()
+            .query(
+                QueryBuilders.boolQuery()
+                    .mustNot(QueryBuilders.existsQuery(GeoFilter.LOCATION_FIELD))
+                    .filter(QueryBuilders.existsQuery(ReservedKeys.RECORD_LOCATION_LATITUDE))
+                    .filter(QueryBuilders.existsQuery(ReservedKeys.RECORD_LOCATION_LONGITUDE)));
+    Map<String, Object> body = new Gson().fromJson(query.toString(), Map.class);
+    Map<String, Object> script = new HashMap<>();
+    script.put("lang", Script.DEFAULT_SCRIPT_LANG);
+    script.put("source", GeoFilter.BACKFILL_SCRIPT);
+    body.put("script", script);
+    request.setJsonEntity(new Gson().toJson(body));
+    try {
+      client.getLowLevelClient().performRequest(request);
+      Log.info("Started deriving the location of records stored without one");
+    } catch (IOException e) {
+      Log.warn("Unable to derive the location of stored records " + e.getMessage());
+    }
+  }
+
+  /**
+   * Returns a query compiler for the mapping the index actually has, which is not the configured
+   * one if the index was created before the configuration changed.
+   */
+  private QueryCompiler compilerForIndex() {
+
+    GetMappingsRequest request = new GetMappingsRequest().indices(this.indexName.toLowerCase());
+    try {
+      for (MappingMetaData mapping :
+          client.indices().getMapping(request, requestOptions).mappings().values()) {
+        return QueryCompiler.forMapping(mapping.sourceAsMap());
+      }
+    } catch (IOException | ElasticsearchStatusException e) {
+      Log.warn("Unable to read index mapping, using the configured one " + e.getMessage());
+    }
+    return QueryCompiler.forMapping(this.indexMapping);
   }
 
   /**
@@ -151,24 +315,166 @@ public class ServiceElasticSearch {
    */
   public ServiceElasticSearch(String dburl, int dbport1, int dbport2, String dbname)
       throws URISyntaxException, DatabaseException {
-    this.location = new URI(dburl);
-    this.port1 = dbport1;
-    this.port2 = dbport2;
-    this.indexName = dbname;
-    this.indexMapping = "";
-    init();
+    this(dburl, dbport1, dbport2, dbname, "");
   }
 
   public ServiceElasticSearch(String dburl, int dbport1, int dbport2, String dbname, String indexMapping)
       throws URISyntaxException, DatabaseException {
-    this.location = new URI(dburl);
-    this.port1 = dbport1;
-    this.port2 = dbport2;
+    this(connectionTo(dburl, dbport1, dbport2), dbname, indexMapping);
+  }
+
+  /**
+   * @param connection nodes of the cluster and how to connect to them
+   * @param dbname Name of the Database
+   * @param indexMapping mapping of the index, or an empty string for dynamic mapping only
+   */
+  public ServiceElasticSearch(ElasticConnection connection, String dbname, String indexMapping)
+      throws DatabaseException {
+    this.connection = connection;
     this.indexName = dbname;
     this.indexMapping = indexMapping;
     init();
   }
 
+  private static ElasticConnection connectionTo(String dburl, int dbport1, int dbport2)
+      throws URISyntaxException {
+    String host = new URI(dburl).toString();
+    return new ElasticConnection(
+        Arrays.asList(new HttpHost(host, dbport1, "http"), new HttpHost(host, dbport2, "http")));
+  }
+
+  /**
+   * Sets the maximum number of searches that may run against Elasticsearch at the same time.
+   * Queries beyond this limit wait for a permit instead of piling up on the cluster.
+   *
+   * @param maxConcurrentSearches number of concurrent searches allowed, must be positive
+   */
+  public void setMaxConcurrentSearches(int maxConcurrentSearches) {
+
+    if (maxConcurrentSearches <= 0) {
+      throw new IllegalArgumentException("maxConcurrentSearches must be positive");
+    }
+    this.searchPermits = new Semaphore(maxConcurrentSearches, true);
+  }
+
+  /**
+   * Routes register and renew writes through a WritePipeline that coalesces concurrent writes
+   * into bulk requests.
+   *
+   * @param batchSize maximum number of writes per bulk request
+   * @param lingerMillis how long to wait for more writes after the first one arrives
+   * @param maxInFlightBatches maximum number of bulk requests outstanding at once
+   * @param maxQueuedWrites maximum number of writes waiting to be flushed
+   */
+  public void enableWritePipeline(
+      int batchSize, long lingerMillis, int maxInFlightBatches, int maxQueuedWrites) {
+
+    WritePipeline pipeline =
+        new WritePipeline(
+            client, requestOptions, batchSize, lingerMillis, maxInFlightBatches, maxQueuedWrites);
+    MBeanRegistrar.register("WritePipeline", this.indexName, pipeline);
+    this.writePipeline = pipeline;
+  }
+
+  /**
+   * Configures expiry pruning, which runs as a throttled background task in Elasticsearch.
+   *
+   * @param docsPerSecond deletion budget. 0 or less removes the limit
+   * @param slices number of slices the delete is split in, 0 to use one per shard
+   * @param latencySloMillis pruning slows down while the average search latency is above this,
+   *     0 to disable
+   */
+  public void configurePruning(float docsPerSecond, int slices, long latencySloMillis) {
+
+    pruner.configure(docsPerSecond, slices, latencySloMillis);
+  }
+
+  /**
+   * Caches records for read-only lookups by URI. Writes through this instance invalidate the
+   * record, so the cache is only stale for records written by other servers sharing the index,
+   * and for at most maxTtlMillis.
+   *
+   * @param maxRecords number of records kept, must be positive
+   * @param maxTtlMillis time a record is kept at most. Records are never kept past their expiry
+   */
+  public void enableRecordCache(int maxRecords, long maxTtlMillis) {
+
+    RecordCache cache = new RecordCache(maxRecords, maxTtlMillis);
+    MBeanRegistrar.register("RecordCache", this.indexName, cache);
+    this.recordCache = cache;
+  }
+
+  /**
+   * Stores records in one index per expiry window instead of the single record index. An index
+   * template gives new partitions the record mapping and adds them to a read alias, which also
+   * covers the original index so records stored before partitioning was enabled stay visible.
+   * Those records move into a partition when they are renewed. Pruning drops whole partitions
+   * once their window is past the prune threshold.
+   *
+   * @param windowMillis length of the expiry window covered by one partition
+   * @throws DatabaseException if the index template or alias cannot be created
+   */
+  public void enableTimePartitioning(long windowMillis) throws DatabaseException {
+
+    TimePartitions timePartitions = new TimePartitions(this.indexName, windowMillis);
+    PutIndexTemplateRequest template =
+        new PutIndexTemplateRequest(this.indexName.toLowerCase() + "-partitions");
+    template.patterns(Collections.singletonList(timePartitions.getPattern()));
+    template.alias(new Alias(timePartitions.getAlias()));
+    if (indexMapping != null && !indexMapping.isEmpty()) {
+      template.settings(IndexMapReader.ANALYSIS_SETTINGS, XContentType.JSON);
+    }
+    template.mapping(GeoFilter.withLocationMapping(this.indexMapping), XContentType.JSON);
+    IndicesAliasesRequest aliasRequest = new IndicesAliasesRequest();
+    aliasRequest.addAliasAction(
+        AliasActions.add().index(this.indexName.toLowerCase()).alias(timePartitions.getAlias()));
+    try {
+      client.indices().putTemplate(template, requestOptions);
+      client.indices().updateAliases(aliasRequest, requestOptions);
+      timePartitions.setKnown(listPartitions(timePartitions));
+    } catch (IOException | ElasticsearchStatusException e) {
+      Log.error("Unable to set up time partitioned indices " + e.getMessage());
+      throw new DatabaseException(e.getMessage());
+    }
+    this.partitionsRefreshedAt = System.currentTimeMillis();
+    this.partitions = timePartitions;
+  }
+
+  /**
+   * Sends a single index or update request, through the write pipeline when it is enabled.
+   * Failures of the individual write are thrown as ElasticsearchStatusException in both cases, and
+   * a pipeline write not answered within PIPELINE_WRITE_TIMEOUT_MILLIS as an IOException.
+   */
+  private DocWriteResponse executeWrite(DocWriteRequest<?> request) throws IOException {
+
+    WritePipeline pipeline = this.writePipeline;
+    if (pipeline == null) {
+      if (request instanceof UpdateRequest) {
+        return client.update((UpdateRequest) request, requestOptions);
+      }
+      return client.index((IndexRequest) request, requestOptions);
+    }
+
+    BulkItemResponse item;
+    try {
+      item = pipeline.submit(request).get(PIPELINE_WRITE_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException("Interrupted while waiting for write");
+    } catch (ExecutionException e) {
+      throw new IOException(e.getCause().getMessage(), e.getCause());
+    } catch (TimeoutException e) {
+      // the write may still be applied once its batch is sent
+      throw new IOException(
+          "No response to write after " + PIPELINE_WRITE_TIMEOUT_MILLIS + " ms", e);
+    }
+    if (item.isFailed()) {
+      throw new ElasticsearchStatusException(
+          item.getFailureMessage(), item.getFailure().getStatus(), item.getFailure().getCause());
+    }
+    return item.getResponse();
+  }
+
   /**
    * Closes the connection to the group
    *
@@ -176,6 +482,7 @@ public class ServiceElasticSearch {
    */
   public void closeConnection() throws IOException {
     // client.close();
+    connection.close();
   }
 
   /**
@@ -207,6 +514,152 @@ public class ServiceElasticSearch {
     return removeLsAddedFields(timestampedMessage); // return the message that was added to the index
    }
 
+  /**
+   * Inserts the record only if no document with the same URI exists. Register derives the URI
+   * from the record's content fingerprint, so the create either succeeds or fails with a conflict
+   * in a single write, and two concurrent identical registrations cannot both succeed.
+   *
+   * @param message record to be added to the database
+   * @return Message that was added to the database
+   * @throws DuplicateEntryException Thrown if a record with the same URI already exists
+   * @throws DatabaseException if insertion is unsuccessful
+   */
+  public Message createService(Message message) throws DuplicateEntryException, DatabaseException {
+    TimePartitions timePartitions = this.partitions;
+    if (timePartitions == null) {
+      return create(message);
+    }
+    List<ReentrantLock> locks = lockCreates(Collections.singletonList(message));
+    try {
+      if (!locate(timePartitions, Collections.singletonList(message.getURI())).isEmpty()) {
+        // the create below only detects duplicates within the record's own partition
+        throw new DuplicateEntryException("Record already exists");
+      }
+      return create(message);
+    } finally {
+      unlock(locks);
+    }
+  }
+
+  private Message create(Message message) throws DuplicateEntryException, DatabaseException {
+    Message timestampedMessage = addTimestamp(message); // adding a timestamp to the message
+    IndexRequest request = buildIndexRequest(timestampedMessage).create(true);
+    try {
+      executeWrite(request);
+      invalidateCached(message.getURI());
+    } catch (ElasticsearchStatusException e) {
+      if (e.status() == RestStatus.CONFLICT) {
+        throw new DuplicateEntryException("Record already exists");
+      }
+      Log.error("Throwing DatabaseException"+ e.getMessage());
+      throw new DatabaseException(e.getMessage());
+    } catch (IOException e) {
+      Log.error("Throwing DatabaseException"+ e.getMessage());
+      throw new DatabaseException(e.getMessage());
+    }
+    return removeLsAddedFields(timestampedMessage);
+  }
+
+  private static ReentrantLock[] newLocks(int count) {
+    ReentrantLock[] locks = new ReentrantLock[count];
+    for (int i = 0; i < count; i++) {
+      locks[i] = new ReentrantLock();
+    }
+    return locks;
+  }
+
+  /** Locks the creates of the records' URIs, in a fixed order so that callers cannot deadlock. */
+  private List<ReentrantLock> lockCreates(List<Message> records) {
+    Set<Integer> stripes = new TreeSet<>();
+    for (Message record : records) {
+      stripes.add(Math.floorMod(record.getURI().hashCode(), createLocks.length));
+    }
+    List<ReentrantLock> locks = new ArrayList<>(stripes.size());
+    for (int stripe : stripes) {
+      createLocks[stripe].lock();
+      locks.add(createLocks[stripe]);
+    }
+    return locks;
+  }
+
+  private static void unlock(List<ReentrantLock> locks) {
+    for (ReentrantLock lock : locks) {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Inserts the records with a single bulk request, using the same create semantics as
+   * createService for each record.
+   *
+   * @param records records to be added to the database
+   * @return list in the same order as records holding null for each record that was added, a
+   *     DuplicateEntryException if the record already exists or a DatabaseException if it could
+   *     not be added
+   * @throws DatabaseException if the bulk request fails as a whole
+   */
+  public List<Exception> bulkCreate(List<Message> records) throws DatabaseException {
+    if (records.isEmpty()) {
+      return new ArrayList<>();
+    }
+    TimePartitions timePartitions = this.partitions;
+    if (timePartitions == null) {
+      return bulkCreate(records, Collections.emptySet());
+    }
+    List<ReentrantLock> locks = lockCreates(records);
+    try {
+      List<String> recordURIs = new ArrayList<>(records.size());
+      for (Message record : records) {
+        recordURIs.add(record.getURI());
+      }
+      return bulkCreate(records, locate(timePartitions, recordURIs).keySet());
+    } finally {
+      unlock(locks);
+    }
+  }
+
+  private List<Exception> bulkCreate(List<Message> records, Set<String> existing)
+      throws DatabaseException {
+    List<Exception> results = new ArrayList<>(records.size());
+
+    BulkRequest bulkRequest = new BulkRequest();
+    for (Message record : records) {
+      if (!existing.contains(record.getURI())) {
+        bulkRequest.add(buildIndexRequest(addTimestamp(record)).create(true));
+      }
+    }
+    BulkItemResponse[] items = new BulkItemResponse[0];
+    if (bulkRequest.numberOfActions() > 0) {
+      try {
+        items = client.bulk(bulkRequest, requestOptions).getItems();
+      } catch (IOException e) {
+        Log.error("Caught Elastic IOException"+e.getMessage());
+        throw new DatabaseException(e.getMessage());
+      }
+    }
+    int next = 0;
+    for (Message record : records) {
+      invalidateCached(record.getURI());
+      if (existing.contains(record.getURI())) {
+        results.add(new DuplicateEntryException("Record already exists"));
+        continue;
+      }
+      BulkItemResponse item = items[next++];
+      if (!item.isFailed()) {
+        results.add(null);
+      } else if (item.getFailure().getStatus() == RestStatus.CONFLICT) {
+        results.add(new DuplicateEntryException("Record already exists"));
+      } else {
+        Log.error("Error adding record " + item.getId() + ": " + item.getFailureMessage());
+        results.add(new DatabaseException(item.getFailureMessage()));
+      }
+    }
+    for (Message record : records) {
+      removeLsAddedFields(record);
+    }
+    return results;
+  }
+
   /**
    * Deletes the record for a given URI
    *
@@ -215,14 +668,29 @@ public class ServiceElasticSearch {
    * @throws DatabaseException
    */
   public Message deleteRecord(String recordURI) throws RecordNotFoundException, DatabaseException {
-    DeleteRequest request = new DeleteRequest(this.indexName, recordURI);
-    Message existingRecord = getRecordByURI(recordURI);
+    DeleteRequest request;
+    Message existingRecord;
+    TimePartitions timePartitions = this.partitions;
+    if (timePartitions != null) {
+      GetResponse located =
+          locate(timePartitions, Collections.singletonList(recordURI)).get(recordURI);
+      if (located == null) {
+        throw new RecordNotFoundException("Unable to find record");
+      }
+      request = new DeleteRequest(located.getIndex(), recordURI);
+      existingRecord = removeLsAddedFields(new Message(located.getSourceAsMap()));
+    } else {
+      request = new DeleteRequest(this.indexName, recordURI);
+      existingRecord = getRecordByURI(recordURI);
+    }
     DeleteResponse deleteResponse;
     try {
-      deleteResponse = client.delete(request, RequestOptions.DEFAULT);
+      deleteResponse = client.delete(request, requestOptions);
     } catch (IOException e) {
       Log.error("Caught Elastic IOException"+e.getMessage());
       throw new DatabaseException(e.getMessage());
+    } finally {
+      invalidateCached(recordURI);
     }
     if (deleteResponse.status().getStatus() != 200) {
       throw new RecordNotFoundException("Unable to find record");
@@ -240,14 +708,26 @@ public class ServiceElasticSearch {
   public long deleteAllRecords() throws DatabaseException {
     try {
       DeleteIndexRequest request = new DeleteIndexRequest(this.indexName);
+      TimePartitions timePartitions = this.partitions;
+      if (timePartitions != null) {
+        List<String> indices = new ArrayList<>(listPartitions(timePartitions));
+        indices.add(this.indexName);
+        request = new DeleteIndexRequest(indices.toArray(new String[0]));
+        request.indicesOptions(IndicesOptions.lenientExpandOpen());
+        timePartitions.removeKnown(indices);
+      }
       CountRequest countRequest = new CountRequest();
       SearchSourceBuilder searchSourceBuilder = new SearchSourceBuilder();
       searchSourceBuilder.query(QueryBuilders.matchAllQuery());
       countRequest.source(searchSourceBuilder);
-      CountResponse countResponse = client.count(countRequest, RequestOptions.DEFAULT);
+      CountResponse countResponse = client.count(countRequest, requestOptions);
       long count = countResponse.getCount();
       AcknowledgedResponse deleteIndexResponse =
-          client.indices().delete(request, RequestOptions.DEFAULT);
+          client.indices().delete(request, requestOptions);
+      RecordCache cache = this.recordCache;
+      if (cache != null) {
+        cache.invalidateAll();
+      }
       if (!deleteIndexResponse.isAcknowledged()) {
         throw new IOException();
       }
@@ -271,15 +751,36 @@ public class ServiceElasticSearch {
    * @throws DatabaseException
    */
   public Message getRecordByURI(String recordURI) throws DatabaseException {
+    return getRecordByURI(recordURI, null);
+  }
+
+  /**
+   * Receives the given keys of a record from the database using the record URI
+   *
+   * @param recordURI URI of the record needed to be returned
+   * @param fields keys to return, or null for the entire record
+   * @return the keys of the record that exist as a message object, null if record doesn't exist
+   * @throws DatabaseException if the read fails
+   */
+  public Message getRecordByURI(String recordURI, FieldProjection fields)
+      throws DatabaseException {
+    FetchSourceContext fetchSourceContext =
+        fields == null
+            ? new FetchSourceContext(true, Strings.EMPTY_ARRAY, Strings.EMPTY_ARRAY)
+            : fields.toFetchSourceContext();
+    TimePartitions timePartitions = this.partitions;
+    if (timePartitions != null) {
+      GetResponse located =
+          locate(timePartitions, Collections.singletonList(recordURI), fetchSourceContext)
+              .get(recordURI);
+      return located == null ? null : removeLsAddedFields(new Message(located.getSourceAsMap()));
+    }
     GetRequest getRequest = new GetRequest(this.indexName, recordURI);
-    String[] includes = Strings.EMPTY_ARRAY;
-    String[] excludes = Strings.EMPTY_ARRAY;
-    FetchSourceContext fetchSourceContext = new FetchSourceContext(true, includes, excludes);
     getRequest.fetchSourceContext(fetchSourceContext);
 
     GetResponse getResponse;
     try {
-      getResponse = client.get(getRequest, RequestOptions.DEFAULT);
+      getResponse = client.get(getRequest, requestOptions);
     } catch (IOException e) {
       Log.error("Caught Elastic IOException"+e.getMessage());
       throw new DatabaseException(e.getMessage());
@@ -296,6 +797,114 @@ public class ServiceElasticSearch {
 
   }
 
+  /**
+   * Receives the record for read-only use, from the record cache when it is enabled. The
+   * returned record may be up to the cache's maximum TTL old if another server updated it.
+   *
+   * @param recordURI URI of the record needed to be returned
+   * @return Entire record as a message object null if record doesn't exist
+   * @throws DatabaseException if the record has to be read and the read fails
+   */
+  public Message getCachedRecordByURI(String recordURI) throws DatabaseException {
+    return getCachedRecordByURI(recordURI, null);
+  }
+
+  /**
+   * Receives the given keys of a record for read-only use. A record in the record cache is
+   * projected in memory, otherwise only the keys are read from the database and nothing is
+   * cached.
+   *
+   * @param recordURI URI of the record needed to be returned
+   * @param fields keys to return, or null for the entire record
+   * @return the keys of the record that exist as a message object, null if record doesn't exist
+   * @throws DatabaseException if the record has to be read and the read fails
+   */
+  public Message getCachedRecordByURI(String recordURI, FieldProjection fields)
+      throws DatabaseException {
+    RecordCache cache = this.recordCache;
+    if (fields != null) {
+      Message cached = cache == null ? null : cache.get(recordURI);
+      return cached != null ? fields.apply(cached) : getRecordByURI(recordURI, fields);
+    }
+    if (cache == null) {
+      return getRecordByURI(recordURI);
+    }
+    Message cached = cache.get(recordURI);
+    if (cached != null) {
+      return cached;
+    }
+    long stamp = cache.startLoad(recordURI);
+    long loadStart = System.nanoTime();
+    Message record = getRecordByURI(recordURI);
+    if (record != null && record.getExpires() != null) {
+      long expiresMillis;
+      try {
+        expiresMillis = ISODateTimeFormat.dateTime().parseDateTime(record.getExpires()).getMillis();
+      } catch (IllegalArgumentException e) {
+        // not cached, since the entry could outlive the record
+        return record;
+      }
+      cache.put(recordURI, record, expiresMillis, stamp, loadStart);
+    }
+    return record;
+  }
+
+  private void invalidateCached(String recordURI) {
+    RecordCache cache = this.recordCache;
+    if (cache != null && recordURI != null) {
+      cache.invalidate(recordURI);
+    }
+  }
+
+  /**
+   * Receives the records for the given URIs with a single multi-get request
+   *
+   * @param recordURIs URIs of the records needed to be returned
+   * @return map of URI to record, in the order of recordURIs. URIs whose record doesn't exist
+   *     are left out
+   * @throws DatabaseException if the request fails or any record could not be read
+   */
+  public Map<String, Message> getRecordsByURIs(List<String> recordURIs) throws DatabaseException {
+    Map<String, Message> records = new LinkedHashMap<>();
+    if (recordURIs.isEmpty()) {
+      return records;
+    }
+    TimePartitions timePartitions = this.partitions;
+    if (timePartitions != null) {
+      Map<String, GetResponse> located = locate(timePartitions, recordURIs);
+      for (String recordURI : recordURIs) {
+        GetResponse response = located.get(recordURI);
+        if (response != null) {
+          records.put(recordURI, removeLsAddedFields(new Message(response.getSourceAsMap())));
+        }
+      }
+      return records;
+    }
+    MultiGetRequest multiGetRequest = new MultiGetRequest();
+    for (String recordURI : recordURIs) {
+      multiGetRequest.add(this.indexName, recordURI);
+    }
+
+    MultiGetResponse multiGetResponse;
+    try {
+      multiGetResponse = client.mget(multiGetRequest, requestOptions);
+    } catch (IOException e) {
+      Log.error("Caught Elastic IOException"+e.getMessage());
+      throw new DatabaseException(e.getMessage());
+    }
+    for (MultiGetItemResponse item : multiGetResponse.getResponses()) {
+      if (item.isFailed()) {
+        Log.error("Unable to get record " + item.getId() + ": " + item.getFailure().getMessage());
+        throw new DatabaseException(item.getFailure().getMessage());
+      }
+      Map<String, Object> responseMap = item.getResponse().getSourceAsMap();
+      if (item.getResponse().isExists() && responseMap != null) {
+        records.put(item.getId(), removeLsAddedFields(new Message(responseMap)));
+      }
+    }
+    return records;
+  }
+
   /**
    * This method updates a given request in the database
    *
@@ -311,21 +920,31 @@ public class ServiceElasticSearch {
     Log.debug("Inside updateService");
     try {
       Log.debug("Processing updateService: "+ serviceId);
+      TimePartitions timePartitions = this.partitions;
+      if (timePartitions != null && serviceId != null && !serviceId.isEmpty()) {
+        return updatePartitioned(timePartitions, serviceId, receivedRequest);
+      }
       if (serviceId != null && !serviceId.isEmpty()) {
           Log.debug(receivedRequest.getMap().toString());
           UpdateRequest updateElasticRequest = new UpdateRequest(this.indexName, serviceId);
           updateElasticRequest.doc(receivedRequest.getMap());
           updateElasticRequest.fetchSource(true);
-          UpdateResponse updateResponse = null;
-		try {
-			updateResponse = client.update(updateElasticRequest, RequestOptions.DEFAULT);
-		} catch (IOException e) {
-			// TODO Auto-generated catch block
-			Log.error("Update failed"+ e.getMessage());
-		}
+          UpdateResponse updateResponse;
+          try {
+            updateResponse = (UpdateResponse) executeWrite(updateElasticRequest);
+          } catch (IOException e) {
+            Log.error("Update failed"+ e.getMessage());
+            throw new DatabaseException(e.getMessage());
+          } finally {
+            invalidateCached(serviceId);
+          }
           Log.debug("Updated Response: "+ updateResponse.getResult());
           if (updateResponse.getResult() == DocWriteResponse.Result.UPDATED) {
             GetResult result = updateResponse.getGetResult();
+            if (result == null) {
+              // bulk responses may not carry the updated source
+              return getRecordByURI(serviceId);
+            }
             if (result.isExists()) {
               Map<String, Object> sourceAsMap = result.sourceAsMap();
               if(sourceAsMap == null){
@@ -349,6 +968,222 @@ public class ServiceElasticSearch {
     return null;
   }
 
+  /**
+   * Renews the lease of a record with a single scripted partial update that only touches the lease
+   * fields. The update is skipped if the record already expired before pruneBeforeMillis.
+   *
+   * @param serviceId   The unique service identifier
+   * @param ttl         ttl value to store in the record
+   * @param expires     new expiry time of the record
+   * @param state       new state of the record
+   * @param pruneBeforeMillis records that expired before this time are not renewed
+   * @param fetchRecord if true, the full record is returned. Otherwise only the uri, type and lease
+   *     fields are returned
+   * @return The renewed record, or null if the record is past the prune threshold
+   * @throws RecordNotFoundException if the record does not exist
+   * @throws DatabaseException if the update fails
+   */
+  public Message renewLease(
+      String serviceId,
+      Object ttl,
+      String expires,
+      String state,
+      long pruneBeforeMillis,
+      boolean fetchRecord)
+      throws RecordNotFoundException, DatabaseException {
+    if (serviceId == null || serviceId.isEmpty()) {
+      throw new DatabaseException("Record URI not specified");
+    }
+
+    Map<String, Object> fields = new HashMap<>();
+    fields.put(ReservedKeys.RECORD_TTL, ttl);
+    fields.put(ReservedKeys.RECORD_EXPIRES, expires);
+    fields.put(ReservedKeys.RECORD_STATE, state);
+    fields.put(
+        "_expiresAsTimestamp", ISODateTimeFormat.dateTime().parseDateTime(expires).getMillis());
+    fields.put("_lastUpdated", ISODateTimeFormat.dateTime().withZoneUTC().print(new DateTime()));
+
+    String index = this.indexName;
+    TimePartitions timePartitions = this.partitions;
+    if (timePartitions != null) {
+      GetResponse located =
+          locate(timePartitions, Collections.singletonList(serviceId)).get(serviceId);
+      if (located == null) {
+        throw new RecordNotFoundException("Record URI does not exist");
+      }
+      index = located.getIndex();
+      String target = timePartitions.indexFor((Long) fields.get("_expiresAsTimestamp"));
+      if (!target.equals(index)) {
+        // the renewal moves the record into a later partition, so the script can't be used
+        Map<String, Object> source = new HashMap<>(located.getSourceAsMap());
+        Object expiresAsTimestamp = source.get("_expiresAsTimestamp");
+        if (expiresAsTimestamp != null
+            && ((Number) expiresAsTimestamp).longValue() < pruneBeforeMillis) {
+          Log.debug("Renew skipped for expired record " + serviceId);
+          return null;
+        }
+        source.putAll(fields);
+        if (!source.containsKey(GeoFilter.LOCATION_FIELD)) {
+          Map<String, Object> location = GeoFilter.locationOf(source);
+          if (location != null) {
+            source.put(GeoFilter.LOCATION_FIELD, location);
+          }
+        }
+        executeBulk(buildMove(timePartitions, located, source, target));
+        invalidateCached(serviceId);
+        return fetchRecord
+            ? removeLsAddedFields(new Message(source))
+            : leaseFields(serviceId, source.get(ReservedKeys.RECORD_TYPE), ttl, expires, state);
+      }
+    }
+
+    Map<String, Object> params = new HashMap<>();
+    params.put("fields", fields);
+    params.put("pruneBefore", pruneBeforeMillis);
+
+    UpdateRequest request = new UpdateRequest(index, serviceId);
+    request.script(new Script(ScriptType.INLINE, Script.DEFAULT_SCRIPT_LANG, RENEW_SCRIPT, params));
+    if (fetchRecord) {
+      request.fetchSource(true);
+    } else {
+      // clients build the returned record from its type
+      request.fetchSource(
+          new FetchSourceContext(
+              true, new String[] {ReservedKeys.RECORD_TYPE}, Strings.EMPTY_ARRAY));
+    }
+
+    UpdateResponse response;
+    try {
+      response = (UpdateResponse) executeWrite(request);
+    } catch (ElasticsearchStatusException e) {
+      if (e.status() == RestStatus.NOT_FOUND) {
+        throw new RecordNotFoundException("Record URI does not exist");
+      }
+      throw new DatabaseException(e.getMessage());
+    } catch (IOException e) {
+      throw new DatabaseException(e.getMessage());
+    } finally {
+      invalidateCached(serviceId);
+    }
+
+    if (response.getResult() == DocWriteResponse.Result.NOOP) {
+      Log.debug("Renew skipped for expired record " + serviceId);
+      return null;
+    }
+
+    GetResult result = response.getGetResult();
+    if (fetchRecord) {
+      if (result == null) {
+        // bulk responses may not carry the updated source
+        return getRecordByURI(serviceId);
+      }
+      return removeLsAddedFields(new Message(result.sourceAsMap()));
+    }
+
+    Object type = result == null ? null : result.sourceAsMap().get(ReservedKeys.RECORD_TYPE);
+    return leaseFields(serviceId, type, ttl, expires, state);
+  }
+
+  /**
+   * Returns the fields a renewal changes, with the uri and type of the record. The type is taken
+   * from the uri, lookup/{type}/{id}, if the stored record was not returned.
+   */
+  static Message leaseFields(
+      String serviceId, Object type, Object ttl, String expires, String state) {
+    Message renewed = new Message();
+    renewed.add(ReservedKeys.RECORD_URI, serviceId);
+    if (type == null) {
+      String[] parts = serviceId.split("/");
+      if (parts.length == 3) {
+        type = Collections.singletonList(parts[1]);
+      }
+    }
+    if (type != null) {
+      renewed.add(ReservedKeys.RECORD_TYPE, type);
+    }
+    renewed.add(ReservedKeys.RECORD_TTL, ttl);
+    renewed.add(ReservedKeys.RECORD_EXPIRES, expires);
+    renewed.add(ReservedKeys.RECORD_STATE, state);
+    return renewed;
+  }
+
+  /**
+   * Applies the update to a record stored in a time partition. The record is moved to another
+   * partition if the update changes its expiry window.
+   */
+  private Message updatePartitioned(
+      TimePartitions timePartitions, String serviceId, Message receivedRequest)
+      throws DatabaseException {
+    GetResponse located =
+        locate(timePartitions, Collections.singletonList(serviceId)).get(serviceId);
+    if (located == null) {
+      throw new DatabaseException("Record URI does not exist");
+    }
+    Map<String, Object> merged = new HashMap<>(located.getSourceAsMap());
+    merged.putAll(receivedRequest.getMap());
+
+    List<DocWriteRequest<?>> writes =
+        buildPartitionedUpdate(timePartitions, located, receivedRequest.getMap());
+    if (writes.size() == 1) {
+      try {
+        executeWrite(writes.get(0));
+      } catch (ElasticsearchStatusException | IOException e) {
+        Log.error("Update failed" + e.getMessage());
+        throw new DatabaseException(e.getMessage());
+      }
+    } else {
+      executeBulk(writes);
+    }
+    invalidateCached(serviceId);
+    Log.info("Completed updateService");
+    return removeLsAddedFields(new Message(merged));
+  }
+
+  /**
+   * Builds the writes that apply the update to a located record: a partial update in place, or
+   * an index into the new partition plus a delete from the old one if the update changes the
+   * record's expiry window.
+   */
+  private List<DocWriteRequest<?>> buildPartitionedUpdate(
+      TimePartitions timePartitions, GetResponse located, Map<String, Object> update) {
+    Map<String, Object> merged = new HashMap<>(located.getSourceAsMap());
+    merged.putAll(update);
+    String target =
+        timePartitions.indexFor(((Number) merged.get("_expiresAsTimestamp")).longValue());
+    if (target.equals(located.getIndex())) {
+      return Collections.<DocWriteRequest<?>>singletonList(
+          new UpdateRequest(target, located.getId()).doc(update));
+    }
+    return buildMove(timePartitions, located, merged, target);
+  }
+
+  private List<DocWriteRequest<?>> buildMove(
+      TimePartitions timePartitions, GetResponse located, Map<String, Object> source, String target) {
+    timePartitions.addKnown(target);
+    IndexRequest index =
+        new IndexRequest(target).id(located.getId()).source(new Gson().toJson(source), XContentType.JSON);
+    DeleteRequest delete = new DeleteRequest(located.getIndex(), located.getId());
+    return Arrays.<DocWriteRequest<?>>asList(index, delete);
+  }
+
+  private void executeBulk(List<DocWriteRequest<?>> writes) throws DatabaseException {
+    BulkRequest bulkRequest = new BulkRequest();
+    for (DocWriteRequest<?> write : writes) {
+      bulkRequest.add(write);
+    }
+    BulkResponse bulkResponse;
+    try {
+      bulkResponse = client.bulk(bulkRequest, requestOptions);
+    } catch (IOException e) {
+      Log.error("Caught Elastic IOException"+e.getMessage());
+      throw new DatabaseException(e.getMessage());
+    }
+    if (bulkResponse.hasFailures()) {
+      Log.error("Error writing records: " + bulkResponse.buildFailureMessage());
+      throw new DatabaseException("Error writing records");
+    }
+  }
+
   /**
    * Inserts the given record into the database
    *
@@ -370,17 +1205,38 @@ public class ServiceElasticSearch {
   public Message bulkUpdate(Map<String, Message> records) throws DatabaseException {
     BulkRequest bulkRequest = new BulkRequest();
     int count = 0;
+    TimePartitions timePartitions = this.partitions;
+    Map<String, GetResponse> located = Collections.emptyMap();
+    if (timePartitions != null) {
+      located = locate(timePartitions, records.keySet());
+    }
     for (String recordUri : records.keySet()) {
       Message timeStampedMessage = addTimestamp(records.get(recordUri));
-      bulkRequest.add(new UpdateRequest(this.indexName, recordUri).doc(timeStampedMessage.getMap()));
+      if (timePartitions == null) {
+        bulkRequest.add(new UpdateRequest(this.indexName, recordUri).doc(timeStampedMessage.getMap()));
+      } else if (located.containsKey(recordUri)) {
+        List<DocWriteRequest<?>> writes =
+            buildPartitionedUpdate(
+                timePartitions, located.get(recordUri), timeStampedMessage.getMap());
+        for (DocWriteRequest<?> write : writes) {
+          bulkRequest.add(write);
+        }
+      } else {
+        Log.error("Error updating records: " + recordUri + " not found");
+        throw new DatabaseException("Error updating records");
+      }
       count++;
     }
     BulkResponse bulkResponse;
     try {
-      bulkResponse = client.bulk(bulkRequest, RequestOptions.DEFAULT);
+      bulkResponse = client.bulk(bulkRequest, requestOptions);
     } catch (IOException e) {
       Log.error("Caught Elastic IOException"+e.getMessage());
       throw new DatabaseException(e.getMessage());
+    } finally {
+      for (String recordUri : records.keySet()) {
+        invalidateCached(recordUri);
+      }
     }
     if (bulkResponse.hasFailures()) {
       Log.error("Error updating records");
@@ -401,25 +1257,161 @@ public class ServiceElasticSearch {
    * @throws DatabaseException thrown if error deleting records from database
    */
   public long deleteExpiredRecords(DateTime dateTime) throws DatabaseException {
-    findRecordsInTimeRange(new DateTime(0), dateTime);
-    RangeQueryBuilder rangeQueryBuilder = new RangeQueryBuilder("_expiresAsTimestamp").lte(dateTime.getMillis());
-    DeleteByQueryRequest request =
-        new DeleteByQueryRequest(this.indexName).setQuery(rangeQueryBuilder);
-    BulkByScrollResponse bulkResponse;
+    TimePartitions timePartitions = this.partitions;
+    // when partitioned, only records stored before partitioning was enabled are left in the
+    // original index, and it may have been deleted
+    long deleted = pruner.prune(this.indexName, dateTime.getMillis(), timePartitions != null);
+    if (timePartitions != null) {
+      deleted += dropExpiredPartitions(timePartitions, dateTime.getMillis());
+    }
+    RecordCache cache = this.recordCache;
+    if (cache != null) {
+      cache.invalidateExpired(dateTime.getMillis());
+    }
+    return deleted;
+  }
+
+  /**
+   * Drops the partitions whose whole expiry window ends at or before pruneBeforeMillis.
+   *
+   * @return number of records in the dropped partitions
+   */
+  private long dropExpiredPartitions(TimePartitions timePartitions, long pruneBeforeMillis)
+      throws DatabaseException {
+    try {
+      List<String> existing = listPartitions(timePartitions);
+      timePartitions.setKnown(existing);
+      this.partitionsRefreshedAt = System.currentTimeMillis();
+      List<String> expired = timePartitions.expired(existing, pruneBeforeMillis);
+      if (expired.isEmpty()) {
+        return 0;
+      }
+      String[] indices = expired.toArray(new String[0]);
+      long count = client.count(new CountRequest(indices), requestOptions).getCount();
+      client.indices().delete(new DeleteIndexRequest(indices), requestOptions);
+      timePartitions.removeKnown(expired);
+      Log.info("Dropped expired partitions " + expired);
+      return count;
+    } catch (IOException | ElasticsearchStatusException e) {
+      Log.error("Unable to drop expired partitions " + e.getMessage());
+      throw new DatabaseException(e.getMessage());
+    }
+  }
+
+  /** Lists the partitions that currently exist in Elasticsearch. */
+  private List<String> listPartitions(TimePartitions timePartitions) throws IOException {
+    GetIndexRequest request = new GetIndexRequest(timePartitions.getPattern());
+    request.indicesOptions(IndicesOptions.lenientExpandOpen());
+    List<String> existing = new ArrayList<>();
+    for (String index : client.indices().get(request, requestOptions).getIndices()) {
+      if (timePartitions.windowEnd(index) != null) {
+        existing.add(index);
+      }
+    }
+    return existing;
+  }
+
+  /**
+   * Finds the stored documents of the given records with one realtime multi-get across the known
+   * partitions and the original index. If a record is found in more than one of them, as can
+   * briefly happen while a renewal moves it, the latest partition wins.
+   *
+   * @return map of URI to the document of each record found
+   */
+  private Map<String, GetResponse> locate(
+      TimePartitions timePartitions, Collection<String> recordURIs) throws DatabaseException {
+    return locate(timePartitions, recordURIs, null);
+  }
+
+  /** Like locate, returning only the source the fetchSourceContext selects when it is given. */
+  private Map<String, GetResponse> locate(
+      TimePartitions timePartitions,
+      Collection<String> recordURIs,
+      FetchSourceContext fetchSourceContext)
+      throws DatabaseException {
+    Map<String, GetResponse> located =
+        multiGetPartitions(timePartitions, recordURIs, fetchSourceContext);
+    long now = System.currentTimeMillis();
+    if (located.size() < new HashSet<>(recordURIs).size()
+        && now - this.partitionsRefreshedAt > PARTITION_REFRESH_MILLIS) {
+      // another server may have created a partition this one does not know about yet
+      Set<String> before = new HashSet<>(timePartitions.getKnown());
+      try {
+        timePartitions.setKnown(listPartitions(timePartitions));
+      } catch (IOException | ElasticsearchStatusException e) {
+        throw new DatabaseException(e.getMessage());
+      }
+      this.partitionsRefreshedAt = now;
+      if (!before.containsAll(timePartitions.getKnown())) {
+        located = multiGetPartitions(timePartitions, recordURIs, fetchSourceContext);
+      }
+    }
+    return located;
+  }
+
+  private Map<String, GetResponse> multiGetPartitions(
+      TimePartitions timePartitions,
+      Collection<String> recordURIs,
+      FetchSourceContext fetchSourceContext)
+      throws DatabaseException {
+    Map<String, GetResponse> located = new HashMap<>();
+    if (recordURIs.isEmpty()) {
+      return located;
+    }
+    List<String> indices = new ArrayList<>(timePartitions.getKnown());
+    indices.add(this.indexName.toLowerCase());
+    MultiGetRequest multiGetRequest = new MultiGetRequest();
+    for (String recordURI : recordURIs) {
+      for (String index : indices) {
+        MultiGetRequest.Item item = new MultiGetRequest.Item(index, recordURI);
+        if (fetchSourceContext != null) {
+          item.fetchSourceContext(fetchSourceContext);
+        }
+        multiGetRequest.add(item);
+      }
+    }
+
+    MultiGetResponse multiGetResponse;
     try {
-      bulkResponse = client.deleteByQuery(request, RequestOptions.DEFAULT);
+      multiGetResponse = client.mget(multiGetRequest, requestOptions);
     } catch (IOException e) {
       Log.error("Caught Elastic IOException"+e.getMessage());
       throw new DatabaseException(e.getMessage());
     }
-    return bulkResponse.getDeleted();
+    for (MultiGetItemResponse item : multiGetResponse.getResponses()) {
+      if (item.isFailed()) {
+        String message = item.getFailure().getMessage();
+        if (message != null && message.contains("index_not_found_exception")) {
+          // the partition was dropped since it was listed
+          continue;
+        }
+        Log.error("Unable to get record " + item.getId() + ": " + message);
+        throw new DatabaseException(message);
+      }
+      GetResponse response = item.getResponse();
+      if (!response.isExists() || response.getSourceAsMap() == null) {
+        continue;
+      }
+      GetResponse previous = located.get(item.getId());
+      if (previous == null || isLaterPartition(timePartitions, item.getIndex(), previous.getIndex())) {
+        located.put(item.getId(), response);
+      }
+    }
+    return located;
+  }
+
+  private static boolean isLaterPartition(TimePartitions timePartitions, String index, String other) {
+    Long windowEnd = timePartitions.windowEnd(index);
+    Long otherWindowEnd = timePartitions.windowEnd(other);
+    // the original index holds the oldest records
+    return windowEnd != null && (otherWindowEnd == null || windowEnd > otherWindowEnd);
   }
 
   public List<Message> findRecordsInTimeRange(DateTime start, DateTime end) throws DatabaseException {
 
     List<Message> result = new ArrayList<Message>();
 
-    SearchRequest searchRequest = new SearchRequest(this.indexName);
+    SearchRequest searchRequest = newSearchRequest();
 
     SearchSourceBuilder searchSourceBuilder = new SearchSourceBuilder();
     searchSourceBuilder.query(QueryBuilders.rangeQuery("_lastUpdated").gt(start));
@@ -428,7 +1420,7 @@ public class ServiceElasticSearch {
 
     SearchResponse searchResponse;
     try {
-      searchResponse = client.search(searchRequest, RequestOptions.DEFAULT);
+      searchResponse = client.search(searchRequest, requestOptions);
     } catch (IOException e) {
       Log.error("Caught Elastic IOException"+e.getMessage());
       throw new DatabaseException(e.getMessage());
@@ -450,57 +1442,355 @@ public class ServiceElasticSearch {
   }
 
   /**
-   * Method to query records from database. // Todo fix documentation
+   * Method to query records from database. All pages of the scroll are loaded into the returned
+   * list; use {@link #scrollQuery} to process large results page by page.
    *
    * @param message original query request
    * @param queryRequest query keywords extracted from the original request
    * @param operators operators like ANY, ALL that specifies how query keywords should be applied
-   * @param maxResults max results to be returned. not implemented
+   * @param maxResults scroll page size, DEFAULT_RESULTS_SIZE if 0
    * @return List of all the records
+   * @throws DatabaseException if the search fails
    */
-  public synchronized List<Message> query(
+  public List<Message> query(
       Message message, Message queryRequest, Message operators, int maxResults)
       throws DatabaseException {
-    String operator = (String) operators.getMap().get("operator");
 
     List<Message> finalSearchResults = new ArrayList<>();
-    SearchRequest searchRequest = buildElasticSearchRequest(queryRequest.getMap(), maxResults, operator);
-    Log.debug("Inside query: "+searchRequest.toString());
+    try (QueryScroll scroll = scrollQuery(queryRequest, operators, maxResults)) {
+      List<Message> page;
+      while (!(page = scroll.nextPage()).isEmpty()) {
+        finalSearchResults.addAll(page);
+      }
+    }
+    return finalSearchResults;
+  }
+
+  /**
+   * Opens a scroll over the records matching the query. The caller must close the returned
+   * scroll, which keeps a scroll context open in Elasticsearch until then.
+   *
+   * @param queryRequest query keywords extracted from the original request
+   * @param operators operators like ANY, ALL that specifies how query keywords should be applied
+   * @param pageSize scroll page size, DEFAULT_RESULTS_SIZE if 0
+   * @return the open scroll, positioned before the first page
+   * @throws DatabaseException if the search fails
+   */
+  public QueryScroll scrollQuery(Message queryRequest, Message operators, int pageSize)
+      throws DatabaseException {
+    return scrollQuery(queryRequest, operators, pageSize, null);
+  }
+
+  /**
+   * Opens a scroll over the given keys of the records matching the query. The caller must close
+   * the returned scroll, which keeps a scroll context open in Elasticsearch until then.
+   *
+   * @param queryRequest query keywords extracted from the original request
+   * @param operators operators like ANY, ALL that specifies how query keywords should be applied
+   * @param pageSize scroll page size, DEFAULT_RESULTS_SIZE if 0
+   * @param fields keys of the records to return, or null for entire records
+   * @return the open scroll, positioned before the first page
+   * @throws DatabaseException if the search fails
+   */
+  public QueryScroll scrollQuery(
+      Message queryRequest, Message operators, int pageSize, FieldProjection fields)
+      throws DatabaseException {
+    return scrollQuery(queryRequest, operators, pageSize, fields, null);
+  }
 
-    SearchResponse searchResponse = null;
+  /**
+   * Opens a scroll over the given keys of the records matching the query and the location
+   * filter. See {@link #scrollQuery(Message, Message, int, FieldProjection)}.
+   *
+   * @param geo location filter, or null for records anywhere
+   */
+  public QueryScroll scrollQuery(
+      Message queryRequest,
+      Message operators,
+      int pageSize,
+      FieldProjection fields,
+      GeoFilter geo)
+      throws DatabaseException {
+    String operator = (String) operators.getMap().get("operator");
+
+    SearchRequest searchRequest =
+        buildElasticSearchRequest(queryRequest.getMap(), pageSize, operator, fields, geo);
+    Log.debug("Inside scrollQuery: "+searchRequest.toString());
 
+    Semaphore permits = acquireSearchPermit();
     try {
-      searchResponse = client.search(searchRequest, RequestOptions.DEFAULT);
-      String scrollId = searchResponse.getScrollId();
-      SearchHits hits = searchResponse.getHits();
-      finalSearchResults.addAll(processSearchResponse(hits));
-
-      ClearScrollRequest clearScrollRequest =
-          new ClearScrollRequest(); // to eventually clean up the scrolls
-
-      do {
-        SearchScrollRequest scrollRequest = new SearchScrollRequest(scrollId);
-        scrollRequest.scroll(TimeValue.timeValueSeconds(10));
-        SearchResponse searchScrollResponse = client.scroll(scrollRequest, RequestOptions.DEFAULT);
-        scrollId = searchScrollResponse.getScrollId();
-        hits = searchScrollResponse.getHits();
-        if (hits.getHits().length > 0) {
-          finalSearchResults.addAll(processSearchResponse(hits));
-        }
-        clearScrollRequest.addScrollId(scrollId);
-      } while (hits.getHits().length != 0);
-      client.clearScroll(clearScrollRequest, RequestOptions.DEFAULT); //clearing the scrolls
+      SearchResponse searchResponse = search(searchRequest);
+      return new QueryScroll(client, requestOptions, permits, searchResponse);
     } catch (IOException e) {
       Log.error("Internal server error" + e.getMessage());
-      throw new InternalServerErrorException(e.getMessage());
+      throw new DatabaseException(e.getMessage());
+    } finally {
+      permits.release();
     }
-    return finalSearchResults;
   }
 
-  private synchronized SearchRequest buildElasticSearchRequest(Map queryRequest, int maxResults, String operator) {
+  /**
+   * Returns a single page of query results sorted on the record URI. Unlike {@link #query}, which
+   * drains every hit through a scroll, this runs one search of at most maxResults hits and hands
+   * back a cursor that continues from the last hit with search_after.
+   *
+   * @param queryRequest query keywords extracted from the original request
+   * @param operators operators like ANY, ALL that specifies how query keywords should be applied
+   * @param maxResults page size, DEFAULT_RESULTS_SIZE if 0
+   * @param skip number of hits to skip, 0 when a cursor is given
+   * @param cursor continuation token from a previous page, or null for the first page
+   * @return the page of records and the cursor for the next page
+   * @throws DatabaseException if the search fails
+   * @throws IllegalArgumentException if the cursor is not valid, if both skip and a cursor are
+   *     given, or if Elasticsearch rejects the page, such as one beyond max_result_window
+   */
+  public QueryPage queryPage(
+      Message queryRequest, Message operators, int maxResults, int skip, String cursor)
+      throws DatabaseException {
+    return queryPage(queryRequest, operators, maxResults, skip, cursor, null);
+  }
+
+  /**
+   * Returns a single page of the given keys of the query results. See {@link #queryPage(Message,
+   * Message, int, int, String)}.
+   *
+   * @param fields keys of the records to return, or null for entire records
+   */
+  public QueryPage queryPage(
+      Message queryRequest,
+      Message operators,
+      int maxResults,
+      int skip,
+      String cursor,
+      FieldProjection fields)
+      throws DatabaseException {
+    return queryPage(queryRequest, operators, maxResults, skip, cursor, fields, null);
+  }
+
+  /**
+   * Returns a single page of the given keys of the query results within the location filter.
+   * When the filter sorts by distance, pages are sorted by distance and then by record URI. See
+   * {@link #queryPage(Message, Message, int, int, String)}.
+   *
+   * @param fields keys of the records to return, or null for entire records
+   * @param geo location filter, or null for records anywhere
+   */
+  public QueryPage queryPage(
+      Message queryRequest,
+      Message operators,
+      int maxResults,
+      int skip,
+      String cursor,
+      FieldProjection fields,
+      GeoFilter geo)
+      throws DatabaseException {
+    String operator = (String) operators.getMap().get("operator");
+    int pageSize = maxResults > 0 ? maxResults : DEFAULT_RESULTS_SIZE;
+
+    SearchSourceBuilder searchSourceBuilder = new SearchSourceBuilder();
+    searchSourceBuilder.query(buildElasticSearchQuery(queryRequest.getMap(), operator, geo));
+    searchSourceBuilder.size(pageSize);
+    if (geo != null && geo.isSortedByDistance()) {
+      searchSourceBuilder.sort(geo.toSort());
+    }
+    searchSourceBuilder.sort(SORT_FIELD, SortOrder.ASC);
+    if (fields != null) {
+      searchSourceBuilder.fetchSource(fields.toFetchSourceContext());
+    }
+    if (cursor != null && !cursor.isEmpty()) {
+      if (skip > 0) {
+        throw new IllegalArgumentException("skip cannot be combined with a cursor");
+      }
+      searchSourceBuilder.searchAfter(QueryCursor.decode(cursor));
+    } else if (skip > 0) {
+      searchSourceBuilder.from(skip);
+    }
+    SearchRequest searchRequest = newSearchRequest();
+    searchRequest.source(searchSourceBuilder);
+    Log.debug("Inside queryPage: "+searchRequest.toString());
+
+    SearchResponse searchResponse;
+    Semaphore permits = acquireSearchPermit();
+    try {
+      searchResponse = search(searchRequest);
+    } catch (ElasticsearchStatusException e) {
+      Log.error("Caught Elastic exception"+e.getMessage());
+      if (isRejectedRequest(e)) {
+        throw new IllegalArgumentException(e.getMessage(), e);
+      }
+      throw new DatabaseException(e.getMessage());
+    } catch (IOException e) {
+      Log.error("Caught Elastic IOException"+e.getMessage());
+      throw new DatabaseException(e.getMessage());
+    } finally {
+      permits.release();
+    }
+
+    SearchHit[] hits = searchResponse.getHits().getHits();
+    String nextCursor = null;
+    if (hits.length == pageSize) {
+      nextCursor = QueryCursor.encode(hits[hits.length - 1].getSortValues());
+    }
+    return new QueryPage(processSearchResponse(searchResponse.getHits()), nextCursor);
+  }
+
+  /**
+   * Counts the records matching the query and aggregates the values of some keys, without
+   * fetching any record.
+   *
+   * @param queryRequest query keywords extracted from the original request
+   * @param operators operators like ANY, ALL that specifies how query keywords should be applied
+   * @param valueKeys keys whose most frequent values are counted
+   * @param cardinalityKeys keys whose distinct values are counted approximately
+   * @param size number of values returned for each of valueKeys
+   * @return the counts
+   * @throws DatabaseException if the search fails
+   * @throws IllegalArgumentException if Elasticsearch rejects the aggregations, such as terms of a
+   *     key whose values cannot be aggregated
+   */
+  public QueryFacets facets(
+      Message queryRequest,
+      Message operators,
+      List<String> valueKeys,
+      List<String> cardinalityKeys,
+      int size)
+      throws DatabaseException {
+    return facets(queryRequest, operators, null, valueKeys, cardinalityKeys, size);
+  }
+
+  /**
+   * Counts the records matching the query and the location filter and aggregates the values of
+   * some keys. See {@link #facets(Message, Message, List, List, int)}.
+   *
+   * @param geo location filter, or null for records anywhere
+   */
+  public QueryFacets facets(
+      Message queryRequest,
+      Message operators,
+      GeoFilter geo,
+      List<String> valueKeys,
+      List<String> cardinalityKeys,
+      int size)
+      throws DatabaseException {
+    String operator = (String) operators.getMap().get("operator");
+
+    SearchSourceBuilder searchSourceBuilder = new SearchSourceBuilder();
+    searchSourceBuilder.query(buildElasticSearchQuery(queryRequest.getMap(), operator, geo));
+    searchSourceBuilder.size(0);
+    searchSourceBuilder.trackTotalHits(true);
+    // aggregations are named by position since keys may contain characters names cannot
+    for (int i = 0; i < valueKeys.size(); i++) {
+      searchSourceBuilder.aggregation(
+          AggregationBuilders.terms("values" + i)
+              .field(queryCompiler.valuesField(valueKeys.get(i)))
+              .size(size));
+    }
+    for (int i = 0; i < cardinalityKeys.size(); i++) {
+      searchSourceBuilder.aggregation(
+          AggregationBuilders.cardinality("cardinality" + i)
+              .field(queryCompiler.valuesField(cardinalityKeys.get(i))));
+    }
+    SearchRequest searchRequest = newSearchRequest();
+    searchRequest.source(searchSourceBuilder);
+    Log.debug("Inside facets: "+searchRequest.toString());
+
+    SearchResponse searchResponse;
+    Semaphore permits = acquireSearchPermit();
+    try {
+      searchResponse = search(searchRequest);
+    } catch (ElasticsearchStatusException e) {
+      Log.error("Caught Elastic exception"+e.getMessage());
+      if (isRejectedRequest(e)) {
+        throw new IllegalArgumentException(e.getMessage(), e);
+      }
+      throw new DatabaseException(e.getMessage());
+    } catch (IOException e) {
+      Log.error("Caught Elastic IOException"+e.getMessage());
+      throw new DatabaseException(e.getMessage());
+    } finally {
+      permits.release();
+    }
+
+    QueryFacets facets = new QueryFacets(searchResponse.getHits().getTotalHits().value);
+    Aggregations aggregations = searchResponse.getAggregations();
+    for (int i = 0; i < valueKeys.size(); i++) {
+      Terms terms = aggregations.get("values" + i);
+      Map<String, Long> valueCounts = new LinkedHashMap<>();
+      for (Terms.Bucket bucket : terms.getBuckets()) {
+        valueCounts.put(bucket.getKeyAsString(), bucket.getDocCount());
+      }
+      facets.addValues(valueKeys.get(i), valueCounts, terms.getSumOfOtherDocCounts());
+    }
+    for (int i = 0; i < cardinalityKeys.size(); i++) {
+      Cardinality cardinality = aggregations.get("cardinality" + i);
+      facets.addCardinality(cardinalityKeys.get(i), cardinality.getValue());
+    }
+    return facets;
+  }
+
+  /**
+   * Tells whether Elasticsearch refused a search because of what was asked rather than because it
+   * failed. A missing index and a full search queue are failures of the service, not of the
+   * request.
+   */
+  static boolean isRejectedRequest(ElasticsearchStatusException e) {
+    int status = e.status().getStatus();
+    return status >= 400
+        && status < 500
+        && e.status() != RestStatus.NOT_FOUND
+        && e.status() != RestStatus.TOO_MANY_REQUESTS;
+  }
+
+  /** Returns a search request on the record index, or on the read alias when partitioned. */
+  private SearchRequest newSearchRequest() {
+    TimePartitions timePartitions = this.partitions;
+    if (timePartitions == null) {
+      return new SearchRequest(this.indexName);
+    }
+    SearchRequest searchRequest = new SearchRequest(timePartitions.getAlias());
+    // the alias does not exist until the first record is stored
+    searchRequest.indicesOptions(IndicesOptions.lenientExpandOpen());
+    return searchRequest;
+  }
+
+  /** Returns the permits searches currently take, one per running search. */
+  Semaphore getSearchPermits() {
+    return this.searchPermits;
+  }
+
+  /** Sets a hook run by each search once it holds its permit, just before it is sent. */
+  void setBeforeSearch(Runnable beforeSearch) {
+    this.beforeSearch = beforeSearch;
+  }
+
+  // Sends a search, which holds a search permit, and records its latency
+  private SearchResponse search(SearchRequest searchRequest) throws IOException {
+    Runnable hook = this.beforeSearch;
+    if (hook != null) {
+      hook.run();
+    }
+    long start = System.nanoTime();
+    SearchResponse searchResponse = client.search(searchRequest, requestOptions);
+    searchLatency.record(start);
+    return searchResponse;
+  }
+
+  private Semaphore acquireSearchPermit() throws DatabaseException {
+    Semaphore permits = this.searchPermits;
+    try {
+      permits.acquire();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new DatabaseException("Interrupted while waiting to run query");
+    }
+    return permits;
+  }
+
+  private SearchRequest buildElasticSearchRequest(
+      Map queryRequest, int maxResults, String operator, FieldProjection fields, GeoFilter geo) {
     
     Log.info("Inside buildElasticSearchRequest method");
-    SearchRequest searchRequest = new SearchRequest(this.indexName);
+    SearchRequest searchRequest = newSearchRequest();
     SearchSourceBuilder searchSourceBuilder = new SearchSourceBuilder();
 
     if (maxResults != 0) {
@@ -508,85 +1798,30 @@ public class ServiceElasticSearch {
     }else{
       searchSourceBuilder.size(DEFAULT_RESULTS_SIZE);
     }
-    BoolQueryBuilder boolKeywordQueryBuilder = QueryBuilders.boolQuery();
-    if (operator.equalsIgnoreCase("all")) {
-      Log.info("Inside buildElasticSearchRequest ALL case");
-      for (Object key : queryRequest.keySet()) {
-        String keyAsString = (String) key;
-        Object value = queryRequest.get(keyAsString);
-        if (value instanceof String){
-          String valueString = (String) value;
-          if (valueString.contains("*")) {
-            String regexString = processWildCardPattern(valueString);
-            boolKeywordQueryBuilder.must(regexpQuery(keyAsString, regexString));
-            
-          } else {
-            boolKeywordQueryBuilder.must(matchQuery(keyAsString, valueString));
-          }
-        }else if(value instanceof List){
-          Log.debug("Query values are list - ALL case");
-          for (Object eachVal: (List)value ){
-            String eachValString = (String) eachVal;
-            if (eachValString.contains("*")) {
-              String regexString = processWildCardPattern(eachValString);
-              boolKeywordQueryBuilder.must(regexpQuery(keyAsString, eachValString));
-            } else {
-              
-              boolKeywordQueryBuilder.must(matchQuery(keyAsString, eachValString));
-            }
-          }
-        }
-        
-      }
-    } else {
-      Log.debug("Inside buildElasticSearchRequest ANY case");
-      for (Object key : queryRequest.keySet()) {
-        String keyAsString = (String) key;
-        Object value = queryRequest.get(keyAsString);
-        if (value instanceof String){
-          String valueString = (String) value;
-          if (valueString.contains("*")) {
-            String regexString = processWildCardPattern(valueString);
-            boolKeywordQueryBuilder.should(regexpQuery(keyAsString, regexString));
-          } else {
-            boolKeywordQueryBuilder.should(matchQuery(keyAsString, valueString));
-          }
-        }else if(value instanceof List){
-          for (Object eachVal: (List) value ){
-            String eachValString = (String) eachVal;
-            if (eachValString.contains("*")) {
-              String regexString = processWildCardPattern(eachValString);
-              boolKeywordQueryBuilder.should(regexpQuery(keyAsString, regexString));
-            } else {
-              boolKeywordQueryBuilder.should(matchQuery(keyAsString, eachValString));
-            }
-          }
-        }
-        
-      }
-
-    }
     Log.debug(searchSourceBuilder.toString());
-    searchSourceBuilder.query(boolKeywordQueryBuilder);
+    searchSourceBuilder.query(buildElasticSearchQuery(queryRequest, operator, geo));
+    if (fields != null) {
+      searchSourceBuilder.fetchSource(fields.toFetchSourceContext());
+    }
+    if (geo != null && geo.isSortedByDistance()) {
+      searchSourceBuilder.sort(geo.toSort());
+    }
 
     searchRequest.source(searchSourceBuilder);
-    searchRequest.scroll(TimeValue.timeValueSeconds(60));
+    searchRequest.scroll(QueryScroll.KEEP_ALIVE);
     return searchRequest;
   }
 
-private String processWildCardPattern(String searchTerm){
-  if(searchTerm == null || searchTerm.length()<1){
-    return searchTerm;
-  }
-  String regexpSearchTerm = searchTerm;
-  if (searchTerm.contains("*")){
+  private QueryBuilder buildElasticSearchQuery(Map queryRequest, String operator, GeoFilter geo) {
 
-     regexpSearchTerm = searchTerm.toLowerCase().replace("*",".*");
+    QueryBuilder query = queryCompiler.compile(queryRequest, operator);
+    if (geo == null) {
+      return query;
+    }
+    return QueryBuilders.boolQuery().filter(query).filter(geo.toQuery());
   }
-  return regexpSearchTerm;
-}
 
-  private List<Message> processSearchResponse(SearchHits searchHits) {
+  static List<Message> processSearchResponse(SearchHits searchHits) {
     List<Message> result = new ArrayList<>();
     for (SearchHit hit : searchHits.getHits()) {
       Message tmpResult = new Message((Map<String, Object>) hit.getSourceAsMap());
@@ -605,20 +1840,33 @@ private String processWildCardPattern(String searchTerm){
    * @throws DatabaseException if insertion is unsuccessful
    */
   private void insert(Message message) throws DatabaseException {
-    IndexRequest request = new IndexRequest(this.indexName);
-    request.id(message.getURI());
-    Gson gson = new Gson();
-    String json = gson.toJson(message.getMap());
-    request.source(json, XContentType.JSON);
+    IndexRequest request = buildIndexRequest(message);
     try {
-      client.index(request, RequestOptions.DEFAULT);
+      client.index(request, requestOptions);
     } catch (IOException e) {
       Log.error("Throwing DatabaseException"+ e.getMessage());
       throw new DatabaseException(e.getMessage());
+    } finally {
+      invalidateCached(message.getURI());
     }
 
   }
 
+  private IndexRequest buildIndexRequest(Message message) {
+    String index = this.indexName;
+    TimePartitions timePartitions = this.partitions;
+    if (timePartitions != null) {
+      index = timePartitions.indexFor((Long) message.getMap().get("_expiresAsTimestamp"));
+      timePartitions.addKnown(index);
+    }
+    IndexRequest request = new IndexRequest(index);
+    request.id(message.getURI());
+    Gson gson = new Gson();
+    String json = gson.toJson(message.getMap());
+    request.source(json, XContentType.JSON);
+    return request;
+  }
+
   /**
    * Adds a timestamp and a lastupdated field to a given message
    *
@@ -634,6 +1882,12 @@ private String processWildCardPattern(String searchTerm){
     message.add("_expiresAsTimestamp", timestamp.getTime());
 
     message.add("_lastUpdated", new Date());
+
+    // partial updates that carry only one of the location keys leave the location as it was
+    Map<String, Object> location = GeoFilter.locationOf(message.getMap());
+    if (location != null) {
+      message.add(GeoFilter.LOCATION_FIELD, location);
+    }
     return message;
   }
 
@@ -644,6 +1898,7 @@ private String processWildCardPattern(String searchTerm){
 
       messageMap.remove("_id");
       messageMap.remove("_lastUpdated");
+      messageMap.remove(GeoFilter.LOCATION_FIELD);
       return new Message(messageMap);
     } else {
       return new Message();
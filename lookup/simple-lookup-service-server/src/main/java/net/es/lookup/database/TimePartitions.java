@@ -0,0 +1,125 @@
+package net.es.lookup.database;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import org.joda.time.format.DateTimeFormat;
+import org.joda.time.format.DateTimeFormatter;
+
+/**
+ * Names the time-partitioned record indices. Each record lives in the index of the expiry window
+ * its expires time falls in, and each index is named after the end of its window, e.g.
+ * lookup-20261019-0000. Every record in an index has expired once the window end is past, so the
+ * whole index can be dropped. Naming by window end keeps this true even if the window size is
+ * changed between restarts.
+ */
+final class TimePartitions {
+
+  private static final DateTimeFormatter SUFFIX =
+      DateTimeFormat.forPattern("yyyyMMdd-HHmm").withZoneUTC();
+
+  private final String baseName;
+  private final long windowMillis;
+
+  // Partitions known to exist. Lookups by URI only look in these
+  private final Set<String> known = ConcurrentHashMap.newKeySet();
+
+  /**
+   * @param baseName name of the original record index, used as prefix of the partitions
+   * @param windowMillis length of the expiry window covered by one partition
+   */
+  TimePartitions(String baseName, long windowMillis) {
+
+    if (windowMillis < 60000) {
+      throw new IllegalArgumentException("Partition window must be at least one minute");
+    }
+    this.baseName = baseName.toLowerCase();
+    this.windowMillis = windowMillis;
+  }
+
+  /** Alias that covers all partitions and the original index. */
+  String getAlias() {
+
+    return baseName + "-read";
+  }
+
+  /** Index name pattern that matches all partitions. */
+  String getPattern() {
+
+    return baseName + "-*";
+  }
+
+  /** Returns the partition a record expiring at expiresMillis belongs to. */
+  String indexFor(long expiresMillis) {
+
+    long windowEnd = Math.floorDiv(expiresMillis, windowMillis) * windowMillis + windowMillis;
+    return baseName + "-" + SUFFIX.print(windowEnd);
+  }
+
+  /**
+   * Returns the end of the expiry window of the given partition.
+   *
+   * @return window end in milliseconds, or null if index is not a partition
+   */
+  Long windowEnd(String index) {
+
+    String prefix = baseName + "-";
+    if (!index.startsWith(prefix)) {
+      return null;
+    }
+    try {
+      return SUFFIX.parseMillis(index.substring(prefix.length()));
+    } catch (IllegalArgumentException e) {
+      return null;
+    }
+  }
+
+  /**
+   * Returns the partitions whose whole window ends at or before pruneBeforeMillis.
+   *
+   * @param indices index names, entries that are not partitions are ignored
+   */
+  List<String> expired(Collection<String> indices, long pruneBeforeMillis) {
+
+    List<String> expired = new ArrayList<>();
+    for (String index : indices) {
+      Long windowEnd = windowEnd(index);
+      if (windowEnd != null && windowEnd <= pruneBeforeMillis) {
+        expired.add(index);
+      }
+    }
+    Collections.sort(expired);
+    return expired;
+  }
+
+  Set<String> getKnown() {
+
+    return Collections.unmodifiableSet(known);
+  }
+
+  /** Replaces the known partitions with the partitions among indices. */
+  void setKnown(Collection<String> indices) {
+
+    List<String> partitions = new ArrayList<>();
+    for (String index : indices) {
+      if (windowEnd(index) != null) {
+        partitions.add(index);
+      }
+    }
+    known.retainAll(partitions);
+    known.addAll(partitions);
+  }
+
+  void addKnown(String index) {
+
+    known.add(index);
+  }
+
+  void removeKnown(Collection<String> indices) {
+
+    known.removeAll(indices);
+  }
+}
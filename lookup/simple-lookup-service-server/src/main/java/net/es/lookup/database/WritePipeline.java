@@ -0,0 +1,239 @@
+package net.es.lookup.database;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.DocWriteRequest;
+import org.elasticsearch.action.bulk.BulkItemResponse;
+import org.elasticsearch.action.bulk.BulkRequest;
+import org.elasticsearch.action.bulk.BulkResponse;
+import org.elasticsearch.client.RequestOptions;
+import org.elasticsearch.client.RestHighLevelClient;
+
+/**
+ * Coalesces concurrent single-document writes into bulk requests. Writes submitted by different
+ * request threads are collected until either batchSize writes are waiting or lingerMillis has
+ * passed since the first one arrived, and are then sent to Elasticsearch as one BulkRequest. Each
+ * caller gets a future that completes with its own item of the bulk response.
+ *
+ * <p>At most maxInFlightBatches bulk requests are outstanding at any time and at most
+ * maxQueuedWrites writes wait to be flushed; submit blocks when the queue is full.
+ */
+public class WritePipeline implements WritePipelineMXBean {
+
+  private static Logger Log = LogManager.getLogger(WritePipeline.class);
+
+  // sends a bulk request asynchronously, Elasticsearch outside tests
+  private final BiConsumer<BulkRequest, ActionListener<BulkResponse>> bulk;
+  private final int batchSize;
+  private final long lingerMillis;
+  private final Semaphore inFlightBatches;
+  private final int maxInFlightBatches;
+  private final BlockingQueue<PendingWrite> queue;
+  private final Thread flusher;
+  private volatile boolean running = true;
+
+  private final AtomicLong flushCount = new AtomicLong();
+  private final AtomicLong writeCount = new AtomicLong();
+  private final AtomicLong totalFlushLatencyMillis = new AtomicLong();
+  private volatile int lastBatchSize;
+  private volatile long lastFlushLatencyMillis;
+
+  private static class PendingWrite {
+
+    final DocWriteRequest<?> request;
+    final CompletableFuture<BulkItemResponse> result = new CompletableFuture<>();
+
+    PendingWrite(DocWriteRequest<?> request) {
+      this.request = request;
+    }
+  }
+
+  /** @param requestOptions options of the connection, sent with every bulk request */
+  public WritePipeline(
+      RestHighLevelClient client,
+      RequestOptions requestOptions,
+      int batchSize,
+      long lingerMillis,
+      int maxInFlightBatches,
+      int maxQueuedWrites) {
+
+    this(
+        (bulkRequest, listener) -> client.bulkAsync(bulkRequest, requestOptions, listener),
+        batchSize,
+        lingerMillis,
+        maxInFlightBatches,
+        maxQueuedWrites);
+  }
+
+  WritePipeline(
+      BiConsumer<BulkRequest, ActionListener<BulkResponse>> bulk,
+      int batchSize,
+      long lingerMillis,
+      int maxInFlightBatches,
+      int maxQueuedWrites) {
+
+    if (batchSize <= 0 || lingerMillis < 0 || maxInFlightBatches <= 0 || maxQueuedWrites <= 0) {
+      throw new IllegalArgumentException("Invalid write pipeline settings");
+    }
+    this.bulk = bulk;
+    this.batchSize = batchSize;
+    this.lingerMillis = lingerMillis;
+    this.maxInFlightBatches = maxInFlightBatches;
+    this.inFlightBatches = new Semaphore(maxInFlightBatches);
+    this.queue = new LinkedBlockingQueue<>(maxQueuedWrites);
+    this.flusher = new Thread(this::run, "elastic-write-pipeline");
+    this.flusher.setDaemon(true);
+    this.flusher.start();
+  }
+
+  /**
+   * Queues the write for the next bulk flush.
+   *
+   * @param request index, update or delete request
+   * @return future completed with the request's item of the bulk response, or exceptionally if
+   *     the bulk request as a whole failed
+   * @throws InterruptedException if interrupted while waiting for room in the queue
+   */
+  public CompletableFuture<BulkItemResponse> submit(DocWriteRequest<?> request)
+      throws InterruptedException {
+
+    if (!running) {
+      throw new IllegalStateException("Write pipeline is closed");
+    }
+    PendingWrite write = new PendingWrite(request);
+    queue.put(write);
+    return write.result;
+  }
+
+  /** Stops the flusher thread. Writes still queued are flushed before it exits. */
+  public void close() {
+
+    running = false;
+    flusher.interrupt();
+  }
+
+  private void run() {
+
+    while (running || !queue.isEmpty()) {
+      List<PendingWrite> batch = new ArrayList<>(batchSize);
+      try {
+        PendingWrite first = running ? queue.take() : queue.poll();
+        if (first == null) {
+          break;
+        }
+        batch.add(first);
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(lingerMillis);
+        while (batch.size() < batchSize) {
+          long remaining = deadline - System.nanoTime();
+          PendingWrite next =
+              remaining > 0 && running ? queue.poll(remaining, TimeUnit.NANOSECONDS) : queue.poll();
+          if (next == null) {
+            break;
+          }
+          batch.add(next);
+        }
+        inFlightBatches.acquire();
+      } catch (InterruptedException e) {
+        // close() was called; flush what has been collected and drain the rest of the queue
+        if (batch.isEmpty()) {
+          continue;
+        }
+        inFlightBatches.acquireUninterruptibly();
+      }
+      flush(batch);
+    }
+  }
+
+  private void flush(List<PendingWrite> batch) {
+
+    BulkRequest bulkRequest = new BulkRequest();
+    for (PendingWrite write : batch) {
+      bulkRequest.add(write.request);
+    }
+    long start = System.nanoTime();
+    bulk.accept(
+        bulkRequest,
+        new ActionListener<BulkResponse>() {
+          @Override
+          public void onResponse(BulkResponse bulkResponse) {
+            recordFlush(batch.size(), start);
+            BulkItemResponse[] items = bulkResponse.getItems();
+            for (int i = 0; i < batch.size(); i++) {
+              batch.get(i).result.complete(items[i]);
+            }
+          }
+
+          @Override
+          public void onFailure(Exception e) {
+            recordFlush(batch.size(), start);
+            Log.error("Bulk write of " + batch.size() + " requests failed: " + e.getMessage());
+            for (PendingWrite write : batch) {
+              write.result.completeExceptionally(e);
+            }
+          }
+        });
+  }
+
+  private void recordFlush(int size, long start) {
+
+    inFlightBatches.release();
+    long latency = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+    flushCount.incrementAndGet();
+    writeCount.addAndGet(size);
+    totalFlushLatencyMillis.addAndGet(latency);
+    lastBatchSize = size;
+    lastFlushLatencyMillis = latency;
+  }
+
+  @Override
+  public long getFlushCount() {
+    return flushCount.get();
+  }
+
+  @Override
+  public long getWriteCount() {
+    return writeCount.get();
+  }
+
+  @Override
+  public double getAverageBatchSize() {
+    long flushes = flushCount.get();
+    return flushes == 0 ? 0 : (double) writeCount.get() / flushes;
+  }
+
+  @Override
+  public int getLastBatchSize() {
+    return lastBatchSize;
+  }
+
+  @Override
+  public double getAverageFlushLatencyMillis() {
+    long flushes = flushCount.get();
+    return flushes == 0 ? 0 : (double) totalFlushLatencyMillis.get() / flushes;
+  }
+
+  @Override
+  public long getLastFlushLatencyMillis() {
+    return lastFlushLatencyMillis;
+  }
+
+  @Override
+  public int getQueuedWrites() {
+    return queue.size();
+  }
+
+  @Override
+  public int getInFlightBatches() {
+    return maxInFlightBatches - inFlightBatches.availablePermits();
+  }
+}
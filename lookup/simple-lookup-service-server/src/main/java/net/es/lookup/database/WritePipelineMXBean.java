@@ -0,0 +1,21 @@
+package net.es.lookup.database;
+
+/** Metrics of the Elasticsearch write pipeline. */
+public interface WritePipelineMXBean {
+
+  long getFlushCount();
+
+  long getWriteCount();
+
+  double getAverageBatchSize();
+
+  int getLastBatchSize();
+
+  double getAverageFlushLatencyMillis();
+
+  long getLastFlushLatencyMillis();
+
+  int getQueuedWrites();
+
+  int getInFlightBatches();
+}
@@ -0,0 +1,51 @@
+package net.es.lookup.protocol.json;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.List;
+import net.es.lookup.common.Message;
+import net.es.lookup.common.exception.internal.DataFormatException;
+
+/**
+ * Writes a json array of records to a Writer one page at a time. The output is the same as
+ * JSONMessage.toString(List) for all the records written, but only one page is formatted in
+ * memory at any time.
+ */
+public class JSONArrayStreamWriter {
+
+  private final Writer writer;
+  private boolean empty = true;
+
+  public JSONArrayStreamWriter(Writer writer) {
+
+    this.writer = writer;
+  }
+
+  public void begin() throws IOException {
+
+    writer.write('[');
+  }
+
+  /**
+   * Appends the records to the array and flushes them to the underlying writer.
+   */
+  public void writePage(List<Message> records) throws IOException, DataFormatException {
+
+    String page = JSONMessage.toString(records);
+    // strip the enclosing brackets of the page's array
+    if (page.length() > 2) {
+      if (!empty) {
+        writer.write(',');
+      }
+      writer.write(page, 1, page.length() - 2);
+      empty = false;
+    }
+    writer.flush();
+  }
+
+  public void end() throws IOException {
+
+    writer.write(']');
+    writer.flush();
+  }
+}
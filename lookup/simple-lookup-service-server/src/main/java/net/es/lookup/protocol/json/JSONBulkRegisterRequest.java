@@ -0,0 +1,88 @@
+package net.es.lookup.protocol.json;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Parses a bulk register request. The body is either a json array of records or newline
+ * delimited json (one record per line). Records are kept in request order; a record that is not a
+ * json object is kept as a register request with INCORRECT_FORMAT status so that it can be
+ * reported in its position of the response. Parsing stops as soon as the body holds more than the
+ * maximum number of records.
+ */
+public class JSONBulkRegisterRequest {
+
+  public static final int VALID = 1;
+  public static final int INCORRECT_FORMAT = 2;
+  public static final int TOO_MANY_RECORDS = 3;
+
+  /** Maximum number of characters of a bulk body. */
+  public static final int MAX_LENGTH = 16 * 1024 * 1024;
+
+  private final List<JSONRegisterRequest> records = new ArrayList<>();
+  private int status = VALID;
+
+  public JSONBulkRegisterRequest(String message, int maxRecords) {
+
+    this.parseJson(
+        new JSONRecordParser(
+            new StringReader(message), MAX_LENGTH, JSONRecordParser.DEFAULT_MAX_DEPTH),
+        maxRecords);
+  }
+
+  /** Parses the UTF-8 encoded request body as it is read from the stream. */
+  public JSONBulkRegisterRequest(InputStream message, int maxRecords) {
+
+    this.parseJson(
+        new JSONRecordParser(
+            new InputStreamReader(message, StandardCharsets.UTF_8),
+            MAX_LENGTH,
+            JSONRecordParser.DEFAULT_MAX_DEPTH),
+        maxRecords);
+  }
+
+  public int getStatus() {
+
+    return status;
+  }
+
+  public List<JSONRegisterRequest> getRecords() {
+
+    return records;
+  }
+
+  private void parseJson(JSONRecordParser parser, int maxRecords) {
+
+    try {
+
+      while (true) {
+
+        JSONRegisterRequest record = new JSONRegisterRequest();
+        int result = parser.parseNextInto(record);
+        if (result == JSONRecordParser.END) {
+          return;
+        }
+        if (records.size() == maxRecords) {
+          this.status = TOO_MANY_RECORDS;
+          records.clear();
+          return;
+        }
+        if (result == JSONRecordParser.RECORD) {
+          record.keepStrings();
+        } else {
+          record.rejectFormat();
+        }
+        records.add(record);
+      }
+    } catch (IOException | JSONParseException e) {
+
+      this.status = INCORRECT_FORMAT;
+      records.clear();
+    }
+  }
+}
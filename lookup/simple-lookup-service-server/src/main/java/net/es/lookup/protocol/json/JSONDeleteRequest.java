@@ -1,8 +1,10 @@
 package net.es.lookup.protocol.json;
 
 import net.es.lookup.common.DeleteRequest;
-import net.sf.json.JSONObject;
-import net.sf.json.util.JSONTokener;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.StringReader;
 
 public class JSONDeleteRequest extends DeleteRequest {
 
@@ -11,29 +13,32 @@ public class JSONDeleteRequest extends DeleteRequest {
 
     public JSONDeleteRequest(String message) {
 
-        this.parseJSON(message);
+        this.parseJSON(new JSONRecordParser(new StringReader(message)));
 
     }
 
-    private void parseJSON(String message) {
+    /** Parses the request body as it is read from the stream. */
+    public JSONDeleteRequest(InputStream message) {
 
-        if (!message.isEmpty()) {
+        this.parseJSON(new JSONRecordParser(message));
 
-            JSONTokener tokener = new JSONTokener(message);
-            Object obj = tokener.nextValue();
-            JSONObject jsonObj = (JSONObject) obj;
+    }
 
-            for (Object o : ((JSONObject) obj).keySet()) {
+    private void parseJSON(JSONRecordParser parser) {
 
-                this.add(o.toString(), ((JSONObject) obj).get(o));
+        // the body is optional
+        try {
 
-            }
+            parser.parseInto(this);
+            this.status = JSONDeleteRequest.VALID;
 
-        }
+        } catch (IOException | JSONParseException e) {
 
-        this.status = JSONDeleteRequest.VALID;
+            this.status = JSONDeleteRequest.INCORRECT_FORMAT;
+
+        }
 
     }
 
 
-}
\ No newline at end of file
+}
@@ -0,0 +1,9 @@
+package net.es.lookup.protocol.json;
+
+/** Thrown when a request body is not a valid json object or exceeds the parsing limits. */
+public class JSONParseException extends Exception {
+
+  public JSONParseException(String message) {
+    super(message);
+  }
+}
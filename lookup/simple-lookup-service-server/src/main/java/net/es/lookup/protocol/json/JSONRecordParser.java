@@ -0,0 +1,480 @@
+package net.es.lookup.protocol.json;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import net.es.lookup.common.KeyDictionary;
+import net.es.lookup.common.Message;
+
+/**
+ * Pull parser reading the json object of a request body straight into a message. Strings are
+ * kept as String, numbers as Long or Double, arrays as lists sized to their elements and nested
+ * objects as maps. Keys are shared through the KeyDictionary; reserved keys are found there
+ * without building a String.
+ *
+ * <p>Besides standard json, strings may be single quoted as json-lib accepted them. The body is
+ * rejected as soon as it is malformed, longer than the maximum length or nested deeper than the
+ * maximum depth, without reading the rest of it.
+ *
+ * <p>Bulk bodies holding a json array of records or one record per line (newline delimited json)
+ * are read one record at a time with {@link #parseNextInto}.
+ */
+public final class JSONRecordParser {
+
+  /** Maximum number of characters of a body unless another maximum is given. */
+  public static final int DEFAULT_MAX_LENGTH = 1024 * 1024;
+
+  /** Maximum nesting of objects and arrays, the body's object included, unless another is given. */
+  public static final int DEFAULT_MAX_DEPTH = 8;
+
+  /** Returned by parseNextInto when there are no more records. */
+  public static final int END = 0;
+
+  /** Returned by parseNextInto when a record was parsed into the message. */
+  public static final int RECORD = 1;
+
+  /** Returned by parseNextInto for an element or line of a bulk body that is not a json object. */
+  public static final int INVALID_RECORD = 2;
+
+  // Open addressing table of the reserved keys, by String.hashCode(), to look keys up by chars
+  private static final String[] RESERVED_KEYS = reservedKeys();
+
+  private final Reader reader;
+  private final int maxLength;
+  private final int maxDepth;
+
+  private final char[] input = new char[4096];
+  private int position = 0;
+  private int limit = 0;
+  // characters read before the ones in the input buffer
+  private int consumed = 0;
+
+  private char[] text = new char[64];
+  // elements of the arrays being parsed, innermost last
+  private Object[] elements = new Object[32];
+  private int elementCount = 0;
+
+  // the last character read, -1 at the end of the body
+  private int last;
+  // set once the body is longer than the maximum length, which no record can recover from
+  private boolean tooLong = false;
+
+  // state of a bulk body: whether its first record was read, and whether it is an array that is
+  // still open or has one record per line. Line ends are not white space inside a line's record
+  private boolean bulkStarted = false;
+  private boolean inArray = false;
+  private boolean lines = false;
+
+  public JSONRecordParser(Reader reader) {
+
+    this(reader, DEFAULT_MAX_LENGTH, DEFAULT_MAX_DEPTH);
+  }
+
+  public JSONRecordParser(Reader reader, int maxLength, int maxDepth) {
+
+    this.reader = reader;
+    this.maxLength = maxLength;
+    this.maxDepth = maxDepth;
+  }
+
+  /** Parses a UTF-8 encoded body. */
+  public JSONRecordParser(InputStream in) {
+
+    this(new InputStreamReader(in, StandardCharsets.UTF_8));
+  }
+
+  /**
+   * Parses the body into the message.
+   *
+   * @return false if the body is empty or only white space
+   * @throws JSONParseException if the body is not a single json object or exceeds the limits
+   */
+  public boolean parseInto(Message message) throws IOException, JSONParseException {
+
+    int c = nextClean();
+    if (c < 0) {
+      return false;
+    }
+    if (c != '{') {
+      throw error("Expected an object");
+    }
+    @SuppressWarnings("unchecked")
+    Map<String, Object> map = message.getMap();
+    parseObject(map, 1);
+    if (nextClean() >= 0) {
+      throw error("Unexpected content after the object");
+    }
+    return true;
+  }
+
+  /**
+   * Parses the next record of a bulk body into the message. The body holds either a json array of
+   * records or one record per line. A malformed line only makes its own record invalid, while a
+   * malformed array is rejected as a whole.
+   *
+   * @return RECORD if a record was parsed, INVALID_RECORD if the element or line is not a json
+   *     object, or END if there are no more records
+   * @throws JSONParseException if the body is empty, the array is malformed or the body exceeds
+   *     the limits
+   */
+  public int parseNextInto(Message message) throws IOException, JSONParseException {
+
+    if (lines) {
+      int c;
+      do {
+        c = read();
+      } while (c == ' ' || c == '\n' || c == '\r' || c == '\t');
+      return c < 0 ? END : parseLineInto(message, c);
+    }
+    int c = nextClean();
+    if (!bulkStarted) {
+      bulkStarted = true;
+      if (c < 0) {
+        throw error("Empty body");
+      }
+      if (c != '[') {
+        lines = true;
+        return parseLineInto(message, c);
+      }
+      inArray = true;
+      c = nextClean();
+      if (c != ']') {
+        return parseElementInto(message, c);
+      }
+    } else if (!inArray) {
+      return END;
+    } else if (c == ',') {
+      return parseElementInto(message, nextClean());
+    } else if (c != ']') {
+      throw error("Expected ',' or ']'");
+    }
+    inArray = false;
+    if (nextClean() >= 0) {
+      throw error("Unexpected content after the array");
+    }
+    return END;
+  }
+
+  private int parseElementInto(Message message, int c) throws IOException, JSONParseException {
+
+    if (c != '{') {
+      parseValue(c, 0);
+      return INVALID_RECORD;
+    }
+    @SuppressWarnings("unchecked")
+    Map<String, Object> map = message.getMap();
+    parseObject(map, 1);
+    return RECORD;
+  }
+
+  private int parseLineInto(Message message, int c) throws IOException, JSONParseException {
+
+    try {
+      if (c != '{') {
+        throw error("Expected an object");
+      }
+      @SuppressWarnings("unchecked")
+      Map<String, Object> map = message.getMap();
+      parseObject(map, 1);
+      c = nextClean();
+      if (c >= 0 && c != '\n') {
+        throw error("Unexpected content after the object");
+      }
+      return RECORD;
+    } catch (JSONParseException e) {
+      if (tooLong) {
+        throw e;
+      }
+      // the rest of the line belongs to the invalid record
+      while (last >= 0 && last != '\n') {
+        read();
+      }
+      return INVALID_RECORD;
+    }
+  }
+
+  private Object parseValue(int c, int depth) throws IOException, JSONParseException {
+
+    switch (c) {
+      case '{':
+        checkDepth(depth + 1);
+        Map<String, Object> map = new HashMap<>();
+        parseObject(map, depth + 1);
+        return map;
+      case '[':
+        checkDepth(depth + 1);
+        return parseArray(depth + 1);
+      case '"':
+      case '\'':
+        int length = readString(c);
+        return new String(text, 0, length);
+      case 't':
+        expect("rue");
+        return Boolean.TRUE;
+      case 'f':
+        expect("alse");
+        return Boolean.FALSE;
+      case 'n':
+        expect("ull");
+        return null;
+      default:
+        if (c == '-' || (c >= '0' && c <= '9')) {
+          return parseNumber(c);
+        }
+        throw error(c < 0 ? "Unexpected end of the body" : "Expected a value");
+    }
+  }
+
+  private void parseObject(Map<String, Object> target, int depth)
+      throws IOException, JSONParseException {
+
+    int c = nextClean();
+    if (c == '}') {
+      return;
+    }
+    while (true) {
+      if (c != '"' && c != '\'') {
+        throw error("Expected a key");
+      }
+      String key = key(readString(c));
+      if (nextClean() != ':') {
+        throw error("Expected ':' after a key");
+      }
+      target.put(key, parseValue(nextClean(), depth));
+      c = nextClean();
+      if (c == '}') {
+        return;
+      }
+      if (c != ',') {
+        throw error("Expected ',' or '}'");
+      }
+      c = nextClean();
+    }
+  }
+
+  private List<Object> parseArray(int depth) throws IOException, JSONParseException {
+
+    int first = elementCount;
+    int c = nextClean();
+    if (c != ']') {
+      while (true) {
+        Object element = parseValue(c, depth);
+        if (elementCount == elements.length) {
+          elements = Arrays.copyOf(elements, elementCount * 2);
+        }
+        elements[elementCount++] = element;
+        c = nextClean();
+        if (c == ']') {
+          break;
+        }
+        if (c != ',') {
+          throw error("Expected ',' or ']'");
+        }
+        c = nextClean();
+      }
+    }
+    List<Object> list = new ArrayList<>(elementCount - first);
+    for (int i = first; i < elementCount; i++) {
+      list.add(elements[i]);
+      elements[i] = null;
+    }
+    elementCount = first;
+    return list;
+  }
+
+  // Reads a string into text and returns its length
+  private int readString(int quote) throws IOException, JSONParseException {
+
+    int length = 0;
+    while (true) {
+      int c = read();
+      if (c == quote) {
+        return length;
+      }
+      if (c < 0 || c == '\n' || c == '\r') {
+        throw error("Unterminated string");
+      }
+      if (c == '\\') {
+        c = read();
+        switch (c) {
+          case 'b':
+            c = '\b';
+            break;
+          case 't':
+            c = '\t';
+            break;
+          case 'n':
+            c = '\n';
+            break;
+          case 'f':
+            c = '\f';
+            break;
+          case 'r':
+            c = '\r';
+            break;
+          case 'u':
+            c = (hexDigit() << 12) | (hexDigit() << 8) | (hexDigit() << 4) | hexDigit();
+            break;
+          case '"':
+          case '\'':
+          case '\\':
+          case '/':
+            break;
+          default:
+            throw error("Invalid escape in a string");
+        }
+      }
+      if (length == text.length) {
+        text = Arrays.copyOf(text, length * 2);
+      }
+      text[length++] = (char) c;
+    }
+  }
+
+  private int hexDigit() throws IOException, JSONParseException {
+
+    int digit = Character.digit(read(), 16);
+    if (digit < 0) {
+      throw error("Invalid unicode escape in a string");
+    }
+    return digit;
+  }
+
+  private Object parseNumber(int c) throws IOException, JSONParseException {
+
+    int length = 0;
+    boolean integer = true;
+    while (c == '-' || c == '+' || c == '.' || c == 'e' || c == 'E' || (c >= '0' && c <= '9')) {
+      integer &= c != '.' && c != 'e' && c != 'E';
+      if (length == text.length) {
+        text = Arrays.copyOf(text, length * 2);
+      }
+      text[length++] = (char) c;
+      c = read();
+    }
+    if (c >= 0) {
+      position--;
+    }
+    String number = new String(text, 0, length);
+    try {
+      if (integer) {
+        try {
+          return Long.parseLong(number);
+        } catch (NumberFormatException e) {
+          // too large for a long
+        }
+      }
+      return Double.parseDouble(number);
+    } catch (NumberFormatException e) {
+      throw error("Invalid number");
+    }
+  }
+
+  private void expect(String rest) throws IOException, JSONParseException {
+
+    for (int i = 0; i < rest.length(); i++) {
+      if (read() != rest.charAt(i)) {
+        throw error("Expected a value");
+      }
+    }
+  }
+
+  private void checkDepth(int depth) throws JSONParseException {
+
+    if (depth > maxDepth) {
+      throw error("Nested deeper than " + maxDepth + " levels");
+    }
+  }
+
+  // Returns the next character that is not white space, or -1 at the end of the body
+  private int nextClean() throws IOException, JSONParseException {
+
+    while (true) {
+      int c = read();
+      if (c != ' ' && (c != '\n' || lines) && c != '\r' && c != '\t') {
+        return c;
+      }
+    }
+  }
+
+  private int read() throws IOException, JSONParseException {
+
+    if (position == limit && !fill()) {
+      return last = -1;
+    }
+    return last = input[position++];
+  }
+
+  private boolean fill() throws IOException, JSONParseException {
+
+    consumed += limit;
+    position = 0;
+    limit = 0;
+    int count;
+    do {
+      count = reader.read(input, 0, input.length);
+    } while (count == 0);
+    if (count < 0) {
+      return false;
+    }
+    if (consumed + count > maxLength) {
+      tooLong = true;
+      throw new JSONParseException("Body longer than " + maxLength + " characters");
+    }
+    limit = count;
+    return true;
+  }
+
+  private JSONParseException error(String message) {
+
+    return new JSONParseException(message + " at character " + (consumed + position));
+  }
+
+  private String key(int length) {
+
+    int hash = 0;
+    for (int i = 0; i < length; i++) {
+      hash = 31 * hash + text[i];
+    }
+    int mask = RESERVED_KEYS.length - 1;
+    for (int i = hash & mask; RESERVED_KEYS[i] != null; i = (i + 1) & mask) {
+      String reserved = RESERVED_KEYS[i];
+      if (reserved.length() == length && reserved.hashCode() == hash && matches(reserved)) {
+        return reserved;
+      }
+    }
+    return KeyDictionary.intern(new String(text, 0, length));
+  }
+
+  private boolean matches(String reserved) {
+
+    for (int i = 0; i < reserved.length(); i++) {
+      if (reserved.charAt(i) != text[i]) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private static String[] reservedKeys() {
+
+    List<String> keys = KeyDictionary.reservedKeys();
+    int size = Integer.highestOneBit(keys.size() * 4);
+    String[] table = new String[size];
+    for (String key : keys) {
+      int i = key.hashCode() & (size - 1);
+      while (table[i] != null) {
+        i = (i + 1) & (size - 1);
+      }
+      table[i] = key;
+    }
+    return table;
+  }
+}
@@ -0,0 +1,342 @@
+package net.es.lookup.protocol.json;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+import net.es.lookup.common.Message;
+import net.es.lookup.common.exception.internal.DataFormatException;
+
+/**
+ * Writes records in the API's JSON message format as UTF-8 straight to an OutputStream. The
+ * output is byte for byte the one of JSONMessage encoded in UTF-8, including the quirks of
+ * json-lib: the string "null" is written as a JSON null, strings that look like a javascript
+ * function are written unquoted and "&lt;/" is escaped as "&lt;\/".
+ *
+ * <p>Bytes are collected in a buffer that is reused by the next writer of the same thread, so a
+ * writer must be closed, and used by one thread only.
+ */
+public final class JSONRecordWriter implements Closeable {
+
+  private static final int BUFFER_SIZE = 16 * 1024;
+
+  // Room for the longest encoding of one char: a \\u00XX escape or a surrogate pair in UTF-8
+  private static final int MAX_CHAR_BYTES = 6;
+
+  private static final ThreadLocal<byte[]> BUFFERS = new ThreadLocal<>();
+
+  // Escape of each ASCII char, null for the chars written as they are
+  private static final byte[][] ESCAPES = new byte[128][];
+
+  private static final byte[] NULL = ascii("null");
+  private static final byte[] EMPTY_STRING = ascii("\"\"");
+  private static final byte[] ESCAPED_SLASH = ascii("\\/");
+
+  // Same as json-lib's JSONUtils.isFunction
+  private static final Pattern FUNCTION =
+      Pattern.compile("^function[ ]?\\(.*?\\)[ \n\t]*\\{.*?\\}$", Pattern.MULTILINE);
+
+  static {
+    for (int c = 0; c < 0x20; c++) {
+      String hex = "000" + Integer.toHexString(c);
+      ESCAPES[c] = ascii("\\u" + hex.substring(hex.length() - 4));
+    }
+    ESCAPES['\b'] = ascii("\\b");
+    ESCAPES['\t'] = ascii("\\t");
+    ESCAPES['\n'] = ascii("\\n");
+    ESCAPES['\f'] = ascii("\\f");
+    ESCAPES['\r'] = ascii("\\r");
+    ESCAPES['"'] = ascii("\\\"");
+    ESCAPES['\\'] = ascii("\\\\");
+  }
+
+  private final OutputStream out;
+  private byte[] buffer;
+  private int position = 0;
+  private boolean empty = true;
+
+  public JSONRecordWriter(OutputStream out) {
+
+    this.out = out;
+    byte[] threadBuffer = BUFFERS.get();
+    if (threadBuffer == null) {
+      buffer = new byte[BUFFER_SIZE];
+    } else {
+      // taken from the thread while in use, in case another writer is opened before this one closes
+      BUFFERS.set(null);
+      buffer = threadBuffer;
+    }
+  }
+
+  /** Returns the records as a json array, like JSONMessage.toString(List). */
+  public static byte[] toBytes(List<Message> records) throws DataFormatException {
+
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    try (JSONRecordWriter writer = new JSONRecordWriter(bytes)) {
+      writer.beginArray();
+      writer.writeRecords(records);
+      writer.endArray();
+    } catch (IOException e) {
+      // a ByteArrayOutputStream does not fail
+      throw new IllegalStateException(e);
+    }
+    return bytes.toByteArray();
+  }
+
+  /**
+   * Returns the records as a json object holding them in an array, like
+   * JSONMessage.toString(List, String).
+   */
+  public static byte[] toBytes(List<Message> records, String listname) throws DataFormatException {
+
+    if (listname == null || listname.isEmpty()) {
+      throw new DataFormatException("List name was null");
+    }
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    try (JSONRecordWriter writer = new JSONRecordWriter(bytes)) {
+      writer.write('{');
+      writer.writeString(listname);
+      writer.write(':');
+      writer.beginArray();
+      writer.writeRecords(records);
+      writer.endArray();
+      writer.write('}');
+    } catch (IOException e) {
+      throw new IllegalStateException(e);
+    }
+    return bytes.toByteArray();
+  }
+
+  public void beginArray() throws IOException {
+
+    write('[');
+    empty = true;
+  }
+
+  /** Appends the records to the array. Keys holding neither a string nor a list are left out. */
+  public void writeRecords(List<Message> records) throws IOException, DataFormatException {
+
+    for (Message record : records) {
+      writeRecord(record);
+    }
+  }
+
+  /** Appends a record to the array. Keys holding neither a string nor a list are left out. */
+  public void writeRecord(Message record) throws IOException, DataFormatException {
+
+    if (!empty) {
+      write(',');
+    }
+    empty = false;
+    write('{');
+    Map<String, Object> map = record.getMap();
+    boolean first = true;
+    for (Map.Entry<String, Object> entry : map.entrySet()) {
+      Object value = entry.getValue();
+      if (!(value instanceof String) && !(value instanceof List)) {
+        continue;
+      }
+      if (!first) {
+        write(',');
+      }
+      first = false;
+      writeString(entry.getKey());
+      write(':');
+      if (value instanceof String) {
+        writeValue(value);
+      } else {
+        write('[');
+        boolean firstValue = true;
+        for (Object item : (List<?>) value) {
+          if (!firstValue) {
+            write(',');
+          }
+          firstValue = false;
+          writeValue(item);
+        }
+        write(']');
+      }
+    }
+    write('}');
+  }
+
+  public void endArray() throws IOException {
+
+    write(']');
+  }
+
+  /** Writes the buffered bytes to the stream and flushes it. */
+  public void flush() throws IOException {
+
+    drain();
+    out.flush();
+  }
+
+  /**
+   * Writes the buffered bytes to the stream and gives the buffer back to the thread. The stream
+   * is left open.
+   */
+  @Override
+  public void close() throws IOException {
+
+    if (buffer == null) {
+      return;
+    }
+    try {
+      drain();
+      out.flush();
+    } finally {
+      BUFFERS.set(buffer);
+      buffer = null;
+    }
+  }
+
+  // Same as json-lib's JSONUtils.valueToString for the values found in records
+  private void writeValue(Object value) throws IOException, DataFormatException {
+
+    if (value == null || "null".equals(value)) {
+      write(NULL);
+    } else if (value instanceof Number) {
+      writeAscii(numberToString((Number) value));
+    } else if (value instanceof Boolean) {
+      writeAscii(value.toString());
+    } else {
+      writeString(value.toString());
+    }
+  }
+
+  private static String numberToString(Number number) throws DataFormatException {
+
+    if ((number instanceof Double
+            && (((Double) number).isInfinite() || ((Double) number).isNaN()))
+        || (number instanceof Float
+            && (((Float) number).isInfinite() || ((Float) number).isNaN()))) {
+      throw new DataFormatException("Error in elements format");
+    }
+    String text = number.toString();
+    if (text.indexOf('.') > 0 && text.indexOf('e') < 0 && text.indexOf('E') < 0) {
+      int end = text.length();
+      while (text.charAt(end - 1) == '0') {
+        end--;
+      }
+      if (text.charAt(end - 1) == '.') {
+        end--;
+      }
+      text = text.substring(0, end);
+    }
+    return text;
+  }
+
+  // Same as json-lib's JSONUtils.quote, encoded in UTF-8
+  private void writeString(String text) throws IOException {
+
+    int length = text.length();
+    if (length == 0) {
+      write(EMPTY_STRING);
+      return;
+    }
+    if (text.startsWith("function") && FUNCTION.matcher(text).matches()) {
+      writeChars(text, false);
+      return;
+    }
+    write('"');
+    writeChars(text, true);
+    write('"');
+  }
+
+  private void writeChars(String text, boolean escape) throws IOException {
+
+    char previous = 0;
+    int length = text.length();
+    for (int i = 0; i < length; i++) {
+      if (position + MAX_CHAR_BYTES > buffer.length) {
+        drain();
+      }
+      char c = text.charAt(i);
+      if (c < 0x80) {
+        byte[] escaped = escape ? ESCAPES[c] : null;
+        if (escaped != null) {
+          System.arraycopy(escaped, 0, buffer, position, escaped.length);
+          position += escaped.length;
+        } else if (escape && c == '/' && previous == '<') {
+          System.arraycopy(ESCAPED_SLASH, 0, buffer, position, ESCAPED_SLASH.length);
+          position += ESCAPED_SLASH.length;
+        } else {
+          buffer[position++] = (byte) c;
+        }
+      } else if (c < 0x800) {
+        buffer[position++] = (byte) (0xc0 | (c >> 6));
+        buffer[position++] = (byte) (0x80 | (c & 0x3f));
+      } else if (!Character.isSurrogate(c)) {
+        buffer[position++] = (byte) (0xe0 | (c >> 12));
+        buffer[position++] = (byte) (0x80 | ((c >> 6) & 0x3f));
+        buffer[position++] = (byte) (0x80 | (c & 0x3f));
+      } else if (Character.isHighSurrogate(c)
+          && i + 1 < length
+          && Character.isLowSurrogate(text.charAt(i + 1))) {
+        int codePoint = Character.toCodePoint(c, text.charAt(++i));
+        buffer[position++] = (byte) (0xf0 | (codePoint >> 18));
+        buffer[position++] = (byte) (0x80 | ((codePoint >> 12) & 0x3f));
+        buffer[position++] = (byte) (0x80 | ((codePoint >> 6) & 0x3f));
+        buffer[position++] = (byte) (0x80 | (codePoint & 0x3f));
+        c = text.charAt(i);
+      } else {
+        // an unpaired surrogate cannot be encoded, the UTF-8 encoder replaces it the same way
+        buffer[position++] = '?';
+      }
+      previous = c;
+    }
+  }
+
+  private void writeAscii(String text) throws IOException {
+
+    int length = text.length();
+    if (position + length > buffer.length) {
+      drain();
+      if (length > buffer.length) {
+        out.write(ascii(text));
+        return;
+      }
+    }
+    for (int i = 0; i < length; i++) {
+      buffer[position++] = (byte) text.charAt(i);
+    }
+  }
+
+  private void write(byte[] bytes) throws IOException {
+
+    if (position + bytes.length > buffer.length) {
+      drain();
+    }
+    System.arraycopy(bytes, 0, buffer, position, bytes.length);
+    position += bytes.length;
+  }
+
+  private void write(char c) throws IOException {
+
+    if (position == buffer.length) {
+      drain();
+    }
+    buffer[position++] = (byte) c;
+  }
+
+  private void drain() throws IOException {
+
+    if (position > 0) {
+      out.write(buffer, 0, position);
+      position = 0;
+    }
+  }
+
+  private static byte[] ascii(String text) {
+
+    byte[] bytes = new byte[text.length()];
+    for (int i = 0; i < bytes.length; i++) {
+      bytes[i] = (byte) text.charAt(i);
+    }
+    return bytes;
+  }
+}
@@ -1,19 +1,14 @@
 package net.es.lookup.protocol.json;
 
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.StringReader;
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 
-import com.fasterxml.jackson.databind.ObjectMapper;
-import com.google.gson.Gson;
-import com.google.gson.reflect.TypeToken;
-import net.es.lookup.common.Message;
 import net.es.lookup.common.RegisterRequest;
-import net.sf.json.JSONArray;
-import net.sf.json.JSONException;
-import net.sf.json.JSONObject;
-import net.sf.json.util.JSONTokener;
 
 public class JSONRegisterRequest extends RegisterRequest {
 
@@ -22,55 +17,74 @@ public class JSONRegisterRequest extends RegisterRequest {
 
     public JSONRegisterRequest(String message) {
 
-        this.parseJSON(message);
+        this.parseJSON(new JSONRecordParser(new StringReader(message)));
 
     }
 
-    private void parseJSON(String message) {
+    /** Parses the request body as it is read from the stream. */
+    public JSONRegisterRequest(InputStream message) {
 
-        JSONTokener tokener = new JSONTokener(message);
-        Object obj;
+        this.parseJSON(new JSONRecordParser(message));
+
+    }
+
+    /** Record of a bulk request, filled in by its parser. */
+    JSONRegisterRequest() {
+
+    }
+
+    private void parseJSON(JSONRecordParser parser) {
 
         try {
 
-            obj = tokener.nextValue();
+            if (!parser.parseInto(this)) {
+                this.status = JSONRegisterRequest.INCORRECT_FORMAT;
+                return;
+            }
 
-        } catch (JSONException e) {
+        } catch (IOException | JSONParseException e) {
             this.status = JSONRegisterRequest.INCORRECT_FORMAT;
             return;
 
         }
 
-        if (obj != null) {
+        this.keepStrings();
 
-            JSONObject jsonObj = (JSONObject) obj;
+    }
+
+    /** Marks a record of a bulk request that is not a json object. */
+    void rejectFormat() {
 
-            for (Object key : jsonObj.keySet()) {
-                Object value = jsonObj.get(key);
-                if (value instanceof String) {
-                    List<String> tmpList = new ArrayList<String>(1);
-                    tmpList.add((String) value);
-                    this.add(key.toString(), tmpList);
-                } else if (value instanceof List) {
+        this.status = JSONRegisterRequest.INCORRECT_FORMAT;
 
-                    JSONArray jsonArray = new JSONArray();
+    }
 
-                    for(Object o: (List)value){
-                        Object tmp = o;
-                        if(! (o instanceof String)){
-                            tmp = "";
-                        }
-                        jsonArray.add(tmp);
+    /**
+     * Keeps the strings and lists of strings of a parsed record, as lists, with the elements that
+     * are not strings blanked.
+     */
+    void keepStrings() {
+
+        Map<String, Object> map = this.getMap();
+        Iterator<Map.Entry<String, Object>> entries = map.entrySet().iterator();
+        while (entries.hasNext()) {
+            Map.Entry<String, Object> entry = entries.next();
+            Object value = entry.getValue();
+            if (value instanceof String) {
+                List<String> tmpList = new ArrayList<String>(1);
+                tmpList.add((String) value);
+                entry.setValue(tmpList);
+            } else if (value instanceof List) {
+                List<Object> values = (List<Object>) value;
+                for (int i = 0; i < values.size(); i++) {
+                    if (!(values.get(i) instanceof String)) {
+                        values.set(i, "");
                     }
-                    this.add(key.toString(), jsonArray);
                 }
+            } else {
+                entries.remove();
             }
-        } else {
-            this.status = JSONRegisterRequest.INCORRECT_FORMAT;
-            return;
         }
 
     }
-
-
 }
\ No newline at end of file
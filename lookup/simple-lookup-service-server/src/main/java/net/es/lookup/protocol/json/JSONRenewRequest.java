@@ -1,11 +1,10 @@
 package net.es.lookup.protocol.json;
 
 import net.es.lookup.common.RenewRequest;
-import net.sf.json.JSONException;
-import net.sf.json.JSONObject;
-import net.sf.json.util.JSONTokener;
 
-import java.util.Set;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.StringReader;
 
 public class JSONRenewRequest extends RenewRequest {
 
@@ -14,30 +13,26 @@ public class JSONRenewRequest extends RenewRequest {
 
     public JSONRenewRequest(String message) {
 
-        this.parseJSON(message);
+        this.parseJSON(new JSONRecordParser(new StringReader(message)));
 
     }
 
-    private void parseJSON(String message) {
+    /** Parses the request body as it is read from the stream. */
+    public JSONRenewRequest(InputStream message) {
 
-        try {
-
-            JSONTokener tokener = new JSONTokener(message);
-
-            Object obj = tokener.nextValue();
+        this.parseJSON(new JSONRecordParser(message));
 
-            JSONObject jsonObj = (JSONObject) obj;
-            Set keyValues = jsonObj.entrySet();
-
-            for (Object o : ((JSONObject) obj).keySet()) {
+    }
 
-                this.add(o.toString(), ((JSONObject) obj).get(o));
+    private void parseJSON(JSONRecordParser parser) {
 
-            }
+        // an empty body renews with the default ttl
+        try {
 
+            parser.parseInto(this);
             this.status = JSONRenewRequest.VALID;
 
-        } catch (JSONException e) {
+        } catch (IOException | JSONParseException e) {
 
             this.status = JSONRenewRequest.INCORRECT_FORMAT;
 
@@ -46,4 +41,4 @@ public class JSONRenewRequest extends RenewRequest {
     }
 
 
-}
\ No newline at end of file
+}
@@ -1,10 +1,9 @@
 package net.es.lookup.protocol.json;
 
-import java.util.List;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.StringReader;
 import net.es.lookup.common.BulkRenewRequest;
-import net.sf.json.JSONException;
-import net.sf.json.JSONObject;
-import net.sf.json.util.JSONTokener;
 
 public class JsonBulkRenewRequest extends BulkRenewRequest {
 
@@ -13,25 +12,24 @@ public class JsonBulkRenewRequest extends BulkRenewRequest {
 
   public JsonBulkRenewRequest(String message) {
 
-    this.parseJson(message);
+    this.parseJson(new JSONRecordParser(new StringReader(message)));
   }
 
-  private void parseJson(String message) {
+  /** Parses the request body as it is read from the stream. */
+  public JsonBulkRenewRequest(InputStream message) {
 
-    try {
-
-      JSONTokener tokener = new JSONTokener(message);
-
-      Object obj = tokener.nextValue();
+    this.parseJson(new JSONRecordParser(message));
+  }
 
-      for (Object o : ((JSONObject) obj).keySet()) {
+  private void parseJson(JSONRecordParser parser) {
 
-        this.add(o.toString(), ((JSONObject) obj).get(o));
-      }
+    // an empty body leaves the request without keys, which the service rejects
+    try {
 
+      parser.parseInto(this);
       this.status = VALID;
 
-    } catch (JSONException e) {
+    } catch (IOException | JSONParseException e) {
 
       this.status = INCORRECT_FORMAT;
     }
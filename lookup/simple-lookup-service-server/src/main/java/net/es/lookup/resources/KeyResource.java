@@ -1,5 +1,6 @@
 package net.es.lookup.resources;
 
+import java.util.Arrays;
 import javax.ws.rs.GET;
 import javax.ws.rs.Path;
 import javax.ws.rs.PathParam;
@@ -23,6 +24,7 @@ public class KeyResource {
       @PathParam("recordid") String recordid,
       @PathParam("key") String key) {
     String serviceuri = "lookup/" + record + "/" + recordid;
-    return this.accessService.getKeyService(serviceuri, key);
+    // several keys can be requested at once as k1,k2
+    return this.accessService.getKeysService(serviceuri, Arrays.asList(key.split(",")));
   }
 }
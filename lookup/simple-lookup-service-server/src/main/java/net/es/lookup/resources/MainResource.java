@@ -1,6 +1,7 @@
 package net.es.lookup.resources;
 
 import java.io.FileNotFoundException;
+import java.io.InputStream;
 import java.net.URISyntaxException;
 import java.util.ArrayList;
 import java.util.Arrays;
@@ -14,6 +15,7 @@ import javax.ws.rs.PathParam;
 import javax.ws.rs.Produces;
 import javax.ws.rs.core.Context;
 import javax.ws.rs.core.MultivaluedMap;
+import javax.ws.rs.core.Response;
 import javax.ws.rs.core.UriInfo;
 
 import net.es.lookup.api.BulkRenewService;
@@ -21,9 +23,14 @@ import net.es.lookup.api.QueryServices;
 import net.es.lookup.api.RegisterService;
 import net.es.lookup.common.Message;
 import net.es.lookup.common.ReservedKeys;
+import net.es.lookup.common.exception.api.BadRequestException;
 import net.es.lookup.common.exception.api.InternalErrorException;
 import net.es.lookup.common.exception.api.NotSupportedException;
 import net.es.lookup.database.ElasticSearchMaintenanceJob;
+import net.es.lookup.database.FieldProjection;
+import net.es.lookup.database.GeoFilter;
+import net.es.lookup.protocol.json.JSONRegisterRequest;
+import net.es.lookup.protocol.json.JsonBulkRenewRequest;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
@@ -44,44 +51,49 @@ public class MainResource {
   @POST
   @Consumes("application/json")
   @Produces("application/json")
-  public String postHandler(@PathParam("sls") String sls, String message) {
+  public String postHandler(@PathParam("sls") String sls, InputStream message) {
     if (sls.equalsIgnoreCase(prefix)) {
 
-      return this.registerService.registerService(message);
+      return this.registerService.registerService(new JSONRegisterRequest(message));
     } else {
       throw new NotSupportedException("Register Operation not supported");
     }
   }
 
-  /** Post handler to register records in bulk. */
+  /** Post handler to register records in bulk. Accepts a json array or newline delimited json. */
   @POST
   @Path("/bulk")
-  @Consumes("application/json")
+  @Consumes({"application/json", "application/x-ndjson"})
   @Produces("application/json")
-  public String postHandlerBulk(@PathParam("sls") String sls, String message) {
-    
+  public String postHandlerBulk(@PathParam("sls") String sls, InputStream message) {
+    if (sls.equalsIgnoreCase(prefix)) {
+
+      return this.registerService.bulkRegisterService(message);
+    } else {
       throw new NotSupportedException("Bulk Register Operation not supported");
-    
+    }
   }
 
-  /** Get handler to query records. */
+  /**
+   * Get handler to query records. Besides keys and operators, the query may restrict records to
+   * a radius around a point (location-near, location-radius) or to a bounding box (location-box)
+   * and sort them by distance to the point (sort=distance). Records are located by their
+   * location-latitude and location-longitude. Records stored by an older server are located once
+   * they are renewed or a background update started at startup has reached them.
+   */
   @GET
   @Produces("application/json")
-  public String getHandler(@Context UriInfo ui, @PathParam("sls") String sls) {
+  public Response getHandler(@Context UriInfo ui, @PathParam("sls") String sls) {
     MultivaluedMap<String, String> queryParams = ui.getQueryParameters();
     Message message = new Message();
     int maxResults = 0;
     int skip = 0;
+    String cursor = null;
+    FieldProjection fields = null;
 
     for (String key : queryParams.keySet()) {
 
-      if (key.equals(ReservedKeys.RECORD_OPERATOR)) {
-
-        List<String> ops = new ArrayList();
-        ops.add(queryParams.getFirst(key));
-        message.add(key, ops);
-
-      } else if (key.equals(ReservedKeys.RECORD_SKIP)) {
+      if (key.equals(ReservedKeys.RECORD_SKIP)) {
 
         skip = Integer.parseInt(queryParams.getFirst(key));
 
@@ -89,29 +101,127 @@ public class MainResource {
 
         maxResults = Integer.parseInt(queryParams.getFirst(key));
 
-      } else {
+      } else if (key.equals(ReservedKeys.RECORD_CURSOR)) {
+
+        cursor = queryParams.getFirst(key);
+
+      } else if (key.equals(ReservedKeys.RECORD_FIELDS)) {
+
+        fields = FieldProjection.parse(queryParams.getFirst(key));
+
+      } else if (!isLocationParameter(key)) {
+
+        addQueryParameter(message, key, queryParams.getFirst(key));
+      }
+    }
+    return this.queryServices.query(
+        message, maxResults, skip, cursor, fields, locationFilter(queryParams));
+  }
 
-        // Not skip, operator or max-results. Must be key/values pair for the query
-        String[] strArr = queryParams.getFirst(key).split(",");
-        if (strArr.length > 1) {
+  /**
+   * Get handler for counts over the records matching the query. Takes the same query parameters
+   * as the query handler plus the keys to count values of (facets), the keys to count distinct
+   * values of (cardinality) and the number of values returned for each facet (facet-size).
+   */
+  @GET
+  @Path("/_facets")
+  @Produces("application/json")
+  public String facetsHandler(@Context UriInfo ui, @PathParam("sls") String sls) {
+    MultivaluedMap<String, String> queryParams = ui.getQueryParameters();
+    Message message = new Message();
+    List<String> valueKeys = new ArrayList<>();
+    List<String> cardinalityKeys = new ArrayList<>();
+    int size = QueryServices.DEFAULT_FACET_SIZE;
 
-          message.add(key, Arrays.asList(strArr));
+    for (String key : queryParams.keySet()) {
+
+      if (key.equals(ReservedKeys.RECORD_FACETS)) {
+
+        valueKeys = keyList(queryParams.getFirst(key));
 
-        } else {
+      } else if (key.equals(ReservedKeys.RECORD_CARDINALITY)) {
 
-          message.add(key, queryParams.getFirst(key));
+        cardinalityKeys = keyList(queryParams.getFirst(key));
+
+      } else if (key.equals(ReservedKeys.RECORD_FACET_SIZE)) {
+
+        try {
+          size = Integer.parseInt(queryParams.getFirst(key));
+        } catch (NumberFormatException e) {
+          throw new BadRequestException("facet-size must be an integer");
         }
+
+      } else if (!isLocationParameter(key)) {
+
+        addQueryParameter(message, key, queryParams.getFirst(key));
+      }
+    }
+    return this.queryServices.facets(
+        message, locationFilter(queryParams), valueKeys, cardinalityKeys, size);
+  }
+
+  /** Adds an operator or a key/values pair from the url to the query request. */
+  private static void addQueryParameter(Message message, String key, String value) {
+
+    if (key.equals(ReservedKeys.RECORD_OPERATOR)) {
+
+      List<String> ops = new ArrayList();
+      ops.add(value);
+      message.add(key, ops);
+
+    } else {
+
+      String[] strArr = value.split(",");
+      if (strArr.length > 1) {
+
+        message.add(key, Arrays.asList(strArr));
+
+      } else {
+
+        message.add(key, value);
+      }
+    }
+  }
+
+  private static boolean isLocationParameter(String key) {
+
+    return key.equals(ReservedKeys.RECORD_LOCATION_NEAR)
+        || key.equals(ReservedKeys.RECORD_LOCATION_RADIUS)
+        || key.equals(ReservedKeys.RECORD_LOCATION_BOX)
+        || key.equals(ReservedKeys.RECORD_SORT);
+  }
+
+  /** Returns the location filter given by the url, or null if there is none. */
+  private static GeoFilter locationFilter(MultivaluedMap<String, String> queryParams) {
+
+    try {
+      return GeoFilter.parse(
+          queryParams.getFirst(ReservedKeys.RECORD_LOCATION_NEAR),
+          queryParams.getFirst(ReservedKeys.RECORD_LOCATION_RADIUS),
+          queryParams.getFirst(ReservedKeys.RECORD_LOCATION_BOX),
+          queryParams.getFirst(ReservedKeys.RECORD_SORT));
+    } catch (IllegalArgumentException e) {
+      throw new BadRequestException(e.getMessage());
+    }
+  }
+
+  private static List<String> keyList(String keys) {
+
+    List<String> keyList = new ArrayList<>();
+    for (String key : keys.split(",")) {
+      if (!key.trim().isEmpty()) {
+        keyList.add(key.trim());
       }
     }
-    return this.queryServices.query(message, maxResults);
+    return keyList;
   }
 
   /** Put handler for bulk renews of records. */
   @PUT
   @Consumes("application/json")
   @Produces("application/json")
-  public String bulkRenewHandler(String message) {
+  public String bulkRenewHandler(InputStream message) {
 
-      return bulkRenewService.bulkRenew(message);
+      return bulkRenewService.bulkRenew(new JsonBulkRenewRequest(message));
   }
 }
@@ -0,0 +1,41 @@
+package net.es.lookup.resources;
+
+/** Kinds of requests served by the resources, as limited and isolated by the server. */
+public enum Operation {
+  REGISTER,
+  RENEW,
+  DELETE,
+  QUERY,
+  BULK;
+
+  /**
+   * Returns the operation of a request, or null for other requests. Bulk renewals are renewals,
+   * so they share the limits, bulkhead and priority of single renewals.
+   *
+   * @param method http method
+   * @param path path of the request relative to the base uri, as in /{sls}/records
+   */
+  public static Operation of(String method, String path) {
+
+    String[] segments = path.startsWith("/") ? path.substring(1).split("/") : path.split("/");
+    boolean records = segments.length >= 2 && segments[1].equals("records");
+    switch (method) {
+      case "GET":
+        return QUERY;
+      case "POST":
+        if (records && segments.length == 2) {
+          return REGISTER;
+        }
+        if (records && segments.length == 3 && segments[2].equals("bulk")) {
+          return BULK;
+        }
+        return RENEW;
+      case "PUT":
+        return records ? RENEW : null;
+      case "DELETE":
+        return DELETE;
+      default:
+        return null;
+    }
+  }
+}
@@ -0,0 +1,72 @@
+package net.es.lookup.resources;
+
+import java.util.concurrent.TimeUnit;
+import javax.inject.Inject;
+import javax.inject.Provider;
+import javax.ws.rs.container.ContainerRequestContext;
+import javax.ws.rs.container.ContainerRequestFilter;
+import javax.ws.rs.container.PreMatching;
+import net.es.lookup.common.exception.api.TooManyRequestsException;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.glassfish.grizzly.http.server.Request;
+
+/**
+ * Rejects requests beyond the rate allowed to their client with a 429 and a Retry-After header,
+ * before they reach the resources. Does nothing unless the RateLimiter is enabled.
+ */
+@PreMatching
+public class RateLimitFilter implements ContainerRequestFilter {
+
+  private static Logger Log = LogManager.getLogger(RateLimitFilter.class);
+
+  @Inject private Provider<Request> request;
+
+  @Override
+  public void filter(ContainerRequestContext context) {
+
+    RateLimiter limiter = RateLimiter.getInstance();
+    if (limiter == null) {
+      return;
+    }
+    Operation operation = Operation.of(context.getMethod(), context.getUriInfo().getPath());
+    if (operation == null) {
+      return;
+    }
+
+    String header = limiter.getClientHeader();
+    String client =
+        clientOf(
+            header == null ? null : context.getHeaderString(header),
+            request == null ? null : request.get().getRemoteAddr());
+    long waitNanos = limiter.acquire(operation, client, System.nanoTime());
+    if (waitNanos > 0) {
+      Log.debug("Throttled " + operation + " request from " + client);
+      throw new TooManyRequestsException(
+          "Too many requests. Please try later", retryAfterSeconds(waitNanos));
+    }
+  }
+
+  /**
+   * Returns the client of a request: the last address of the client header if the request has
+   * one, or else the address of the connection. Proxies append the address they received the
+   * request from, so the last one is the only address set by the trusted proxy; the ones before it
+   * are sent by the client and can be anything.
+   */
+  static String clientOf(String headerValue, String remoteAddress) {
+
+    if (headerValue != null) {
+      String client = headerValue.substring(headerValue.lastIndexOf(',') + 1).trim();
+      if (!client.isEmpty()) {
+        return client;
+      }
+    }
+    return remoteAddress == null ? "" : remoteAddress;
+  }
+
+  static int retryAfterSeconds(long waitNanos) {
+
+    long second = TimeUnit.SECONDS.toNanos(1);
+    return (int) Math.max(1, (waitNanos + second - 1) / second);
+  }
+}
@@ -0,0 +1,181 @@
+package net.es.lookup.resources;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import net.es.lookup.utils.jmx.MBeanRegistrar;
+
+/**
+ * Limits the rate of requests of each client per operation, with a token bucket per client and
+ * operation.
+ *
+ * <p>At most maxClients buckets are kept. A full bucket is the same as a new one, so when the
+ * bound is reached the full buckets of idle clients are dropped, at most once per second. If all
+ * buckets are in use, new clients share one bucket per operation until some become idle.
+ */
+public final class RateLimiter implements RateLimiterMXBean {
+
+  /** Rate and burst allowed to each client for an operation. */
+  public static final class Limit {
+
+    final double requestsPerSecond;
+    final int burst;
+
+    /**
+     * @param requestsPerSecond sustained rate, must be positive
+     * @param burst number of requests allowed at once after an idle period
+     */
+    public Limit(double requestsPerSecond, int burst) {
+
+      if (requestsPerSecond <= 0) {
+        throw new IllegalArgumentException("Rate must be positive");
+      }
+      this.requestsPerSecond = requestsPerSecond;
+      this.burst = burst;
+    }
+  }
+
+  private static final long SWEEP_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+  private static volatile RateLimiter instance;
+
+  private final Map<Operation, Limit> limits;
+  private final String clientHeader;
+  private final int maxClients;
+  private final Map<Operation, ConcurrentHashMap<String, TokenBucket>> buckets =
+      new EnumMap<>(Operation.class);
+  private final Map<Operation, TokenBucket> overflow = new EnumMap<>(Operation.class);
+  private final AtomicLong lastSweep;
+
+  private final AtomicLong throttled = new AtomicLong();
+  private final AtomicLong overflowed = new AtomicLong();
+  private final AtomicLong evicted = new AtomicLong();
+
+  /**
+   * @param limits limits of the operations, the others are not limited
+   * @param clientHeader header identifying the client by its last address, such as
+   *     X-Forwarded-For behind a proxy, or null to use the address of the connection
+   * @param maxClients number of buckets kept
+   */
+  RateLimiter(Map<Operation, Limit> limits, String clientHeader, int maxClients, long nowNanos) {
+
+    if (maxClients <= 0) {
+      throw new IllegalArgumentException("Number of clients must be positive");
+    }
+    this.limits = new EnumMap<>(Operation.class);
+    this.limits.putAll(limits);
+    this.clientHeader = clientHeader == null || clientHeader.isEmpty() ? null : clientHeader;
+    this.maxClients = maxClients;
+    for (Map.Entry<Operation, Limit> limit : this.limits.entrySet()) {
+      buckets.put(limit.getKey(), new ConcurrentHashMap<>());
+      overflow.put(
+          limit.getKey(),
+          new TokenBucket(limit.getValue().requestsPerSecond, limit.getValue().burst, nowNanos));
+    }
+    this.lastSweep = new AtomicLong(nowNanos - SWEEP_INTERVAL_NANOS);
+  }
+
+  /** Limits request rates from now on. */
+  public static void enable(Map<Operation, Limit> limits, String clientHeader, int maxClients) {
+
+    RateLimiter limiter = new RateLimiter(limits, clientHeader, maxClients, System.nanoTime());
+    MBeanRegistrar.register("RateLimiter", "requests", limiter);
+    instance = limiter;
+  }
+
+  /** Returns the limiter, or null if request rates are not limited. */
+  public static RateLimiter getInstance() {
+
+    return instance;
+  }
+
+  /** Returns the header identifying clients, or null to use the address of the connection. */
+  public String getClientHeader() {
+
+    return clientHeader;
+  }
+
+  /**
+   * Takes a token for a request of the client.
+   *
+   * @return 0 if the request is allowed, otherwise the nanoseconds until it would be
+   */
+  public long acquire(Operation operation, String client, long nowNanos) {
+
+    Map<String, TokenBucket> clients = buckets.get(operation);
+    if (clients == null) {
+      return 0;
+    }
+    TokenBucket bucket = clients.get(client);
+    if (bucket == null) {
+      bucket = newBucket(operation, client, nowNanos);
+    }
+    long waitNanos = bucket.take(nowNanos);
+    if (waitNanos > 0) {
+      throttled.incrementAndGet();
+    }
+    return waitNanos;
+  }
+
+  private TokenBucket newBucket(Operation operation, String client, long nowNanos) {
+
+    if (getClients() >= maxClients) {
+      sweep(nowNanos);
+      if (getClients() >= maxClients) {
+        overflowed.incrementAndGet();
+        return overflow.get(operation);
+      }
+    }
+    Limit limit = limits.get(operation);
+    TokenBucket bucket = new TokenBucket(limit.requestsPerSecond, limit.burst, nowNanos);
+    TokenBucket existing = buckets.get(operation).putIfAbsent(client, bucket);
+    return existing == null ? bucket : existing;
+  }
+
+  private void sweep(long nowNanos) {
+
+    long last = lastSweep.get();
+    if (nowNanos - last < SWEEP_INTERVAL_NANOS || !lastSweep.compareAndSet(last, nowNanos)) {
+      return;
+    }
+    for (ConcurrentHashMap<String, TokenBucket> clients : buckets.values()) {
+      for (Map.Entry<String, TokenBucket> entry : clients.entrySet()) {
+        if (entry.getValue().isFull(nowNanos) && clients.remove(entry.getKey(), entry.getValue())) {
+          evicted.incrementAndGet();
+        }
+      }
+    }
+  }
+
+  @Override
+  public int getClients() {
+
+    int clients = 0;
+    for (ConcurrentHashMap<String, TokenBucket> operationClients : buckets.values()) {
+      clients += operationClients.size();
+    }
+    return clients;
+  }
+
+  @Override
+  public int getMaxClients() {
+    return maxClients;
+  }
+
+  @Override
+  public long getThrottled() {
+    return throttled.get();
+  }
+
+  @Override
+  public long getOverflowed() {
+    return overflowed.get();
+  }
+
+  @Override
+  public long getEvicted() {
+    return evicted.get();
+  }
+}
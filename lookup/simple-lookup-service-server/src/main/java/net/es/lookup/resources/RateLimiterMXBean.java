@@ -0,0 +1,15 @@
+package net.es.lookup.resources;
+
+/** Metrics of the request rate limiter. */
+public interface RateLimiterMXBean {
+
+  int getClients();
+
+  int getMaxClients();
+
+  long getThrottled();
+
+  long getOverflowed();
+
+  long getEvicted();
+}
@@ -3,13 +3,18 @@ package net.es.lookup.resources;
 import net.es.lookup.api.AccessService;
 import net.es.lookup.api.EditService;
 import net.es.lookup.common.exception.api.NotSupportedException;
+import net.es.lookup.protocol.json.JSONDeleteRequest;
+import net.es.lookup.protocol.json.JSONRenewRequest;
 
+import java.io.InputStream;
 import javax.ws.rs.DELETE;
+import javax.ws.rs.DefaultValue;
 import javax.ws.rs.GET;
 import javax.ws.rs.POST;
 import javax.ws.rs.Path;
 import javax.ws.rs.PathParam;
 import javax.ws.rs.Produces;
+import javax.ws.rs.QueryParam;
 
 /**
  * This class and other similar resource classes need to be explicitly loaded in the
@@ -35,19 +40,20 @@ public class RecordResource {
     return this.accessService.getService(serviceuri);
   }
 
-  /** Post handler to handle renewals. */
+  /** Post handler to handle renewals. Add ?full=true to get the full record back. */
   @POST
   @Produces("application/json")
   public String renewHandler(
       @PathParam("sls") String path,
       @PathParam("record") String record,
       @PathParam("recordid") String recordid,
-      String message) {
+      @DefaultValue("false") @QueryParam("full") boolean full,
+      InputStream message) {
     if (!path.equals(recordPrefix)) {
       throw new NotSupportedException("Operation not supported");
     }
     String serviceuri = path + "/" + record + "/" + recordid;
-    return this.editService.renewService(serviceuri, message);
+    return this.editService.renewService(serviceuri, new JSONRenewRequest(message), full);
   }
 
   /** This method handles record deletions. * */
@@ -57,11 +63,11 @@ public class RecordResource {
       @PathParam("sls") String path,
       @PathParam("record") String record,
       @PathParam("recordid") String recordid,
-      String service) {
+      InputStream service) {
     if (!path.equals(recordPrefix)) {
       throw new NotSupportedException("Operation not supported");
     }
     String serviceuri = path + "/" + record + "/" + recordid;
-    return this.editService.deleteService(serviceuri, service);
+    return this.editService.deleteService(serviceuri, new JSONDeleteRequest(service));
   }
 }
@@ -0,0 +1,57 @@
+package net.es.lookup.resources;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Token bucket holding up to burst tokens and refilled at a fixed rate, with one token taken per
+ * request. The state is the time at which the bucket is full again, so taking a token is one
+ * compare-and-set and a bucket whose full time has passed carries no state at all.
+ */
+final class TokenBucket {
+
+  private final long intervalNanos;
+  private final long capacityNanos;
+  private final AtomicLong fullAt;
+
+  /**
+   * @param requestsPerSecond rate at which tokens are added, must be positive
+   * @param burst number of tokens the bucket holds, at least one
+   * @param nowNanos current System.nanoTime
+   */
+  TokenBucket(double requestsPerSecond, int burst, long nowNanos) {
+
+    if (requestsPerSecond <= 0) {
+      throw new IllegalArgumentException("Rate must be positive");
+    }
+    this.intervalNanos = Math.max(1, (long) (1e9 / requestsPerSecond));
+    this.capacityNanos = intervalNanos * Math.max(1, burst);
+    this.fullAt = new AtomicLong(nowNanos);
+  }
+
+  /**
+   * Takes a token.
+   *
+   * @param nowNanos current System.nanoTime
+   * @return 0 if a token was taken, otherwise the nanoseconds until one is available
+   */
+  long take(long nowNanos) {
+
+    while (true) {
+      long current = fullAt.get();
+      long next = (current - nowNanos < 0 ? nowNanos : current) + intervalNanos;
+      long excess = next - nowNanos - capacityNanos;
+      if (excess > 0) {
+        return excess;
+      }
+      if (fullAt.compareAndSet(current, next)) {
+        return 0;
+      }
+    }
+  }
+
+  /** Tells whether the bucket is full, in which case dropping it loses nothing. */
+  boolean isFull(long nowNanos) {
+
+    return fullAt.get() - nowNanos <= 0;
+  }
+}
@@ -0,0 +1,127 @@
+package net.es.lookup.service;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Worker threads and queue reserved for one kind of request, so that a flood of one kind cannot
+ * take the threads the others need. A request is admitted if it can run or wait in the queue,
+ * and is rejected otherwise.
+ */
+public final class Bulkhead implements BulkheadMXBean {
+
+  private final String name;
+  private final int threads;
+  private final int maxQueued;
+  private final ThreadPoolExecutor executor;
+
+  // requests running or queued
+  private final AtomicInteger admitted = new AtomicInteger();
+  private final AtomicLong completed = new AtomicLong();
+  private final AtomicLong rejected = new AtomicLong();
+
+  /**
+   * @param name name of the bulkhead, used for its threads
+   * @param threads number of requests run at once
+   * @param maxQueued number of requests waiting for a thread
+   */
+  public Bulkhead(String name, int threads, int maxQueued) {
+
+    if (threads <= 0 || maxQueued < 0) {
+      throw new IllegalArgumentException("Bulkhead " + name + " needs at least one thread");
+    }
+    this.name = name;
+    this.threads = threads;
+    this.maxQueued = maxQueued;
+    AtomicInteger count = new AtomicInteger();
+    ThreadFactory threadFactory =
+        runnable -> new Thread(runnable, "bulkhead-" + name + "-" + count.incrementAndGet());
+    // admission bounds the queue, so the executor itself never rejects
+    this.executor =
+        new ThreadPoolExecutor(
+            threads, threads, 0, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<>(), threadFactory);
+  }
+
+  public String getName() {
+
+    return name;
+  }
+
+  /** Returns the executor running the admitted requests. */
+  public ExecutorService getExecutor() {
+
+    return executor;
+  }
+
+  /**
+   * Admits a request, which must call release when done.
+   *
+   * @return false if the threads are busy and the queue is full
+   */
+  public boolean tryAcquire() {
+
+    int limit = threads + maxQueued;
+    while (true) {
+      int current = admitted.get();
+      if (current >= limit) {
+        rejected.incrementAndGet();
+        return false;
+      }
+      if (admitted.compareAndSet(current, current + 1)) {
+        return true;
+      }
+    }
+  }
+
+  /** Releases an admitted request. */
+  public void release() {
+
+    admitted.decrementAndGet();
+    completed.incrementAndGet();
+  }
+
+  public void shutdown() {
+
+    executor.shutdown();
+  }
+
+  @Override
+  public int getThreads() {
+    return threads;
+  }
+
+  @Override
+  public int getMaxQueued() {
+    return maxQueued;
+  }
+
+  @Override
+  public int getActive() {
+    return Math.min(admitted.get(), threads);
+  }
+
+  @Override
+  public int getQueued() {
+    return Math.max(admitted.get() - threads, 0);
+  }
+
+  @Override
+  public double getUtilization() {
+    return (double) getActive() / threads;
+  }
+
+  @Override
+  public long getCompleted() {
+    return completed.get();
+  }
+
+  @Override
+  public long getRejected() {
+    return rejected.get();
+  }
+}
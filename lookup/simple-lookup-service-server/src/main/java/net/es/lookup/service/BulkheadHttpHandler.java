@@ -0,0 +1,148 @@
+package net.es.lookup.service;
+
+import java.io.IOException;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import net.es.lookup.resources.Operation;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.glassfish.grizzly.http.server.HttpHandler;
+import org.glassfish.grizzly.http.server.Request;
+import org.glassfish.grizzly.http.server.Response;
+import org.glassfish.grizzly.http.util.HttpStatus;
+
+/**
+ * Runs the requests of each operation in the operation's bulkhead, and the others in Grizzly's
+ * worker pool. Grizzly's worker only hands the request over, so a bulkhead whose requests block,
+ * such as queries waiting on Elasticsearch scrolls, holds its own threads and nobody else's.
+ * Requests that do not fit in their bulkhead are rejected with a 503.
+ *
+ * <p>With an overload controller, requests are also shed by priority when they arrive and when
+ * they leave a queue after waiting too long, and the time queued requests waited is reported to
+ * the controller.
+ */
+class BulkheadHttpHandler extends HttpHandler {
+
+  private static Logger LOG = LogManager.getLogger(BulkheadHttpHandler.class);
+
+  private static final String OPERATION = BulkheadHttpHandler.class.getName() + ".operation";
+  private static final String QUEUED_AT = BulkheadHttpHandler.class.getName() + ".queuedAt";
+  private static final String ADMITTED = BulkheadHttpHandler.class.getName() + ".admitted";
+  private static final String REJECTED = BulkheadHttpHandler.class.getName() + ".rejected";
+
+  private static final int RETRY_AFTER_SECONDS = 1;
+
+  private final HttpHandler container;
+  private final Map<Operation, Bulkhead> bulkheads;
+  private final OverloadController overload;
+
+  /**
+   * @param container handler of the requests, the Jersey container
+   * @param bulkheads bulkheads of the operations that are isolated
+   * @param overload controller shedding requests under overload, or null
+   */
+  BulkheadHttpHandler(
+      HttpHandler container, Map<Operation, Bulkhead> bulkheads, OverloadController overload) {
+
+    this.container = container;
+    this.bulkheads = new EnumMap<>(Operation.class);
+    this.bulkheads.putAll(bulkheads);
+    this.overload = overload;
+  }
+
+  @Override
+  protected ExecutorService getThreadPool(Request request) {
+
+    Operation operation = Operation.of(request.getMethod().getMethodString(), pathOf(request));
+    if (operation == null) {
+      return super.getThreadPool(request);
+    }
+    request.setAttribute(OPERATION, operation);
+    long now = System.nanoTime();
+    if (overload != null && overload.shed(operation, 0, now)) {
+      // rejected on the current thread, which only writes the 503
+      request.setAttribute(REJECTED, "Server is overloaded. Please try later");
+      return null;
+    }
+
+    Bulkhead bulkhead = bulkheads.get(operation);
+    ExecutorService executor;
+    if (bulkhead == null) {
+      executor = super.getThreadPool(request);
+    } else if (bulkhead.tryAcquire()) {
+      request.setAttribute(ADMITTED, bulkhead);
+      executor = bulkhead.getExecutor();
+    } else {
+      LOG.debug("Bulkhead " + bulkhead.getName() + " is full, rejecting request");
+      request.setAttribute(REJECTED, "Server is busy. Please try later");
+      return null;
+    }
+    if (executor != null) {
+      request.setAttribute(QUEUED_AT, now);
+    }
+    return executor;
+  }
+
+  @Override
+  public void service(Request request, Response response) throws Exception {
+
+    String rejected = (String) request.getAttribute(REJECTED);
+    if (rejected != null) {
+      reject(response, rejected);
+      return;
+    }
+
+    Bulkhead admitted = (Bulkhead) request.getAttribute(ADMITTED);
+    try {
+      Long queuedAt = (Long) request.getAttribute(QUEUED_AT);
+      if (overload != null && queuedAt != null) {
+        Operation operation = (Operation) request.getAttribute(OPERATION);
+        long now = System.nanoTime();
+        long delay = now - queuedAt;
+        overload.recordDelay(operation, delay, now);
+        if (overload.shed(operation, delay, now)) {
+          reject(response, "Server is overloaded. Please try later");
+          return;
+        }
+      }
+      container.service(request, response);
+    } finally {
+      if (admitted != null) {
+        admitted.release();
+      }
+    }
+  }
+
+  private static void reject(Response response, String message) throws IOException {
+
+    response.setStatus(HttpStatus.SERVICE_UNAVAILABLE_503);
+    response.setHeader("Retry-After", String.valueOf(RETRY_AFTER_SECONDS));
+    response.setContentType("text/plain");
+    response.getWriter().write(message);
+  }
+
+  private static String pathOf(Request request) {
+
+    String uri = request.getRequestURI();
+    String contextPath = request.getContextPath();
+    return contextPath != null && uri.startsWith(contextPath)
+        ? uri.substring(contextPath.length())
+        : uri;
+  }
+
+  @Override
+  public void start() {
+
+    container.start();
+  }
+
+  @Override
+  public void destroy() {
+
+    container.destroy();
+    for (Bulkhead bulkhead : bulkheads.values()) {
+      bulkhead.shutdown();
+    }
+  }
+}
@@ -0,0 +1,19 @@
+package net.es.lookup.service;
+
+/** Metrics of a bulkhead. Utilization is the fraction of its threads running requests. */
+public interface BulkheadMXBean {
+
+  int getThreads();
+
+  int getMaxQueued();
+
+  int getActive();
+
+  int getQueued();
+
+  double getUtilization();
+
+  long getCompleted();
+
+  long getRejected();
+}
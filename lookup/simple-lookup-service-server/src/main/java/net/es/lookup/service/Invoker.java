@@ -3,21 +3,28 @@ package net.es.lookup.service;
 import joptsimple.OptionParser;
 import joptsimple.OptionSet;
 import joptsimple.OptionSpec;
-import net.es.lookup.common.MemoryManager;
+import net.es.lookup.api.QueryResultCache;
+import net.es.lookup.common.MemoryGovernor;
 import net.es.lookup.common.exception.internal.DatabaseException;
+import net.es.lookup.database.ElasticConnection;
 import net.es.lookup.database.ElasticSearchMaintenanceJob;
 import net.es.lookup.database.ServiceElasticSearch;
+import net.es.lookup.resources.Operation;
+import net.es.lookup.resources.RateLimiter;
 import net.es.lookup.timer.Scheduler;
 import net.es.lookup.utils.config.reader.IndexMapReader;
 import net.es.lookup.utils.config.reader.LookupServiceConfigReader;
 import net.es.lookup.utils.config.reader.QueueServiceConfigReader;
+import org.apache.http.HttpHost;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.quartz.JobDetail;
 import org.quartz.Trigger;
 
+import java.util.EnumMap;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
 
 import static java.util.Arrays.asList;
 import static org.quartz.JobBuilder.newJob;
@@ -90,10 +97,70 @@ public class Invoker {
 
     List<String> services = new LinkedList<>();
 
+    if (lookupServiceConfigReader.isMemoryGovernorEnabled()) {
+      MemoryGovernor.enable(
+          lookupServiceConfigReader.getMemoryGovernorHeapThresholdPercent(),
+          lookupServiceConfigReader.getMemoryGovernorMaxInFlightPercent(),
+          lookupServiceConfigReader.getMemoryGovernorQueueTimeoutMillis(),
+          lookupServiceConfigReader.getMemoryGovernorRetryAfterSeconds());
+    }
+
     // Initialize services
     try {
 
-      new ServiceElasticSearch(elasticHost, elasticPort, restClientPort, dbname, elasticIndexMapping);
+      ElasticConnection connection;
+      if (lookupServiceConfigReader.getElasticNodes().isEmpty()) {
+        connection =
+            new ElasticConnection(
+                asList(
+                    new HttpHost(elasticHost, elasticPort, "http"),
+                    new HttpHost(elasticHost, restClientPort, "http")));
+      } else {
+        connection = ElasticConnection.of(lookupServiceConfigReader.getElasticNodes());
+      }
+      connection.setSniffIntervalMillis(
+          lookupServiceConfigReader.getElasticSniffIntervalSeconds() * 1000L);
+      connection.setLatencyAwareRouting(lookupServiceConfigReader.isElasticLatencyAwareRouting());
+      connection.setCompression(lookupServiceConfigReader.isElasticCompression());
+      connection.setMaxConnections(
+          lookupServiceConfigReader.getElasticMaxConnectionsPerRoute(),
+          lookupServiceConfigReader.getElasticMaxConnectionsTotal());
+      connection.setTimeouts(
+          lookupServiceConfigReader.getElasticConnectTimeoutMillis(),
+          lookupServiceConfigReader.getElasticSocketTimeoutMillis());
+      connection.setKeepAliveMillis(lookupServiceConfigReader.getElasticKeepAliveSeconds() * 1000L);
+      ServiceElasticSearch elasticSearch =
+          new ServiceElasticSearch(connection, dbname, elasticIndexMapping);
+      elasticSearch.setMaxConcurrentSearches(
+          lookupServiceConfigReader.getElasticMaxConcurrentSearches());
+      if (lookupServiceConfigReader.isWritePipelineEnabled()) {
+        elasticSearch.enableWritePipeline(
+            lookupServiceConfigReader.getWritePipelineBatchSize(),
+            lookupServiceConfigReader.getWritePipelineLingerMillis(),
+            lookupServiceConfigReader.getWritePipelineMaxInFlightBatches(),
+            lookupServiceConfigReader.getWritePipelineMaxQueuedWrites());
+      }
+      elasticSearch.configurePruning(
+          lookupServiceConfigReader.getPruneMaxDocsPerSecond(),
+          lookupServiceConfigReader.getPruneSlices(),
+          lookupServiceConfigReader.getPruneQueryLatencySloMillis());
+      if (lookupServiceConfigReader.isRecordCacheEnabled()) {
+        elasticSearch.enableRecordCache(
+            lookupServiceConfigReader.getRecordCacheMaxRecords(),
+            lookupServiceConfigReader.getRecordCacheMaxTtlSeconds() * 1000L);
+      }
+      if (lookupServiceConfigReader.isQueryCacheEnabled()) {
+        QueryResultCache.enable(
+            lookupServiceConfigReader.getQueryCacheMaxEntries(),
+            lookupServiceConfigReader.getQueryCacheMaxBytes(),
+            lookupServiceConfigReader.getQueryCacheMaxEntryBytes(),
+            lookupServiceConfigReader.getQueryCacheMaxStalenessMillis());
+      }
+      if (lookupServiceConfigReader.isTimePartitioningEnabled()) {
+        elasticSearch.enableTimePartitioning(
+            lookupServiceConfigReader.getTimePartitioningWindowHours() * 3600 * 1000L);
+      }
+      elasticSearch.backfillLocations();
 
     } catch (DatabaseException e) {
       LOG.fatal("Unable to initialize database" + e.getMessage());
@@ -101,9 +168,50 @@ public class Invoker {
     }
     services.add(LookupService.LOOKUP_SERVICE);
 
+    if (lookupServiceConfigReader.isRateLimitEnabled()) {
+      Map<Operation, RateLimiter.Limit> limits = new EnumMap<>(Operation.class);
+      for (Operation operation : Operation.values()) {
+        int requestsPerSecond =
+            lookupServiceConfigReader.getRateLimitRequestsPerSecond(operation.name());
+        if (requestsPerSecond > 0) {
+          limits.put(
+              operation,
+              new RateLimiter.Limit(
+                  requestsPerSecond,
+                  lookupServiceConfigReader.getRateLimitBurst(operation.name())));
+        }
+      }
+      RateLimiter.enable(
+          limits,
+          lookupServiceConfigReader.getRateLimitClientHeader(),
+          lookupServiceConfigReader.getRateLimitMaxClients());
+    }
+
     LOG.info("starting Lookup Service");
     // Create the REST service
     Invoker.lookupService = new LookupService(Invoker.host, Invoker.port);
+    if (lookupServiceConfigReader.isBulkheadsEnabled()) {
+      Map<Operation, Bulkhead> bulkheads = new EnumMap<>(Operation.class);
+      for (Operation operation : Operation.values()) {
+        int threads = lookupServiceConfigReader.getBulkheadThreads(operation.name());
+        if (threads > 0) {
+          bulkheads.put(
+              operation,
+              new Bulkhead(
+                  operation.name().toLowerCase(),
+                  threads,
+                  lookupServiceConfigReader.getBulkheadMaxQueued(operation.name())));
+        }
+      }
+      Invoker.lookupService.setBulkheads(bulkheads);
+    }
+    if (lookupServiceConfigReader.isOverloadControlEnabled()) {
+      Invoker.lookupService.setOverloadController(
+          new OverloadController(
+              lookupServiceConfigReader.getOverloadControlTargetDelayMillis(),
+              lookupServiceConfigReader.getOverloadControlIntervalMillis(),
+              System.nanoTime()));
+    }
 
     // Start the service
     Invoker.lookupService.startService();
@@ -152,22 +260,6 @@ public class Invoker {
       publishService.startService();
     }*/
 
-    JobDetail gcInvoker =
-        newJob(MemoryManager.class).withIdentity("gc", "MemoryManagement").build();
-
-    Trigger gcTrigger =
-        newTrigger()
-            .withIdentity("gc trigger", "MemoryManagement")
-            .startNow()
-            .withSchedule(
-                simpleSchedule()
-                    .withIntervalInMinutes(10)
-                    .repeatForever()
-                    .withMisfireHandlingInstructionIgnoreMisfires())
-            .build();
-
-    scheduler.schedule(gcInvoker, gcTrigger);
-
     // Block forever
     Object blockMe = new Object();
     synchronized (blockMe) {
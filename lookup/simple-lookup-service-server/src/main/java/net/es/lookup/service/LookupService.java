@@ -1,10 +1,15 @@
 package net.es.lookup.service;
 
 import java.io.IOException;
+import java.net.URI;
+import java.util.EnumMap;
+import java.util.Map;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
 import javax.ws.rs.core.UriBuilder;
+import net.es.lookup.resources.Operation;
+import net.es.lookup.utils.jmx.MBeanRegistrar;
 import org.apache.logging.log4j.Logger;
 import org.apache.logging.log4j.LogManager;
 import org.glassfish.grizzly.http.server.HttpServer;
@@ -14,7 +19,9 @@ import org.glassfish.grizzly.nio.transport.TCPNIOTransport;
 import org.glassfish.grizzly.nio.transport.TCPNIOTransportBuilder;
 import org.glassfish.grizzly.strategies.SameThreadIOStrategy;
 import org.glassfish.grizzly.threadpool.ThreadPoolConfig;
+import org.glassfish.jersey.grizzly2.httpserver.GrizzlyHttpContainer;
 import org.glassfish.jersey.grizzly2.httpserver.GrizzlyHttpServerFactory;
+import org.glassfish.jersey.server.ContainerFactory;
 import org.glassfish.jersey.server.ResourceConfig;
 
 /**
@@ -29,6 +36,8 @@ public class LookupService {
 
   private String datadirectory = "../elements";
   private HttpServer httpServer = null;
+  private Map<Operation, Bulkhead> bulkheads = new EnumMap<>(Operation.class);
+  private OverloadController overloadController = null;
   private static LookupService instance = null;
   public static final String LOOKUP_SERVICE = "lookup";
 
@@ -64,6 +73,22 @@ public class LookupService {
     this.datadirectory = datadirectory;
   }
 
+  /**
+   * Runs the requests of some operations in their own worker pools instead of Grizzly's. Takes
+   * effect when the service is started.
+   */
+  public void setBulkheads(Map<Operation, Bulkhead> bulkheads) {
+
+    this.bulkheads = new EnumMap<>(Operation.class);
+    this.bulkheads.putAll(bulkheads);
+  }
+
+  /** Sheds requests by priority under overload. Takes effect when the service is started. */
+  public void setOverloadController(OverloadController overloadController) {
+
+    this.overloadController = overloadController;
+  }
+
   public static LookupService getInstance() {
 
     return LookupService.instance;
@@ -125,14 +150,32 @@ public class LookupService {
     rc.register(net.es.lookup.resources.KeyResource.class);
     rc.register(net.es.lookup.resources.MainResource.class);
     rc.register(net.es.lookup.resources.RecordResource.class);
+    rc.register(net.es.lookup.resources.RateLimitFilter.class);
 
     LOG.info("Creating Resource..."+rc.getResources().toString());
     LOG.info("Starting grizzly...");
     String hosturl = "http://" + this.host + "/";
 
-    HttpServer server =
-        GrizzlyHttpServerFactory.createHttpServer(
-            UriBuilder.fromUri(hosturl).port(this.port).build(), rc);
+    URI uri = UriBuilder.fromUri(hosturl).port(this.port).build();
+    if (bulkheads.isEmpty() && overloadController == null) {
+      return GrizzlyHttpServerFactory.createHttpServer(uri, rc);
+    }
+
+    // the Jersey container is wrapped so that its requests can be handed to the bulkheads and
+    // shed before they reach it
+    for (Bulkhead bulkhead : bulkheads.values()) {
+      MBeanRegistrar.register("Bulkhead", bulkhead.getName(), bulkhead);
+    }
+    if (overloadController != null) {
+      MBeanRegistrar.register("OverloadController", "requests", overloadController);
+    }
+    GrizzlyHttpContainer container =
+        ContainerFactory.createContainer(GrizzlyHttpContainer.class, rc);
+    HttpServer server = GrizzlyHttpServerFactory.createHttpServer(uri, false);
+    server
+        .getServerConfiguration()
+        .addHttpHandler(new BulkheadHttpHandler(container, bulkheads, overloadController), "/");
+    server.start();
 
     return server;
   }
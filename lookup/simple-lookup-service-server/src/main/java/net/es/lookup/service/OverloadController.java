@@ -0,0 +1,153 @@
+package net.es.lookup.service;
+
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import net.es.lookup.resources.Operation;
+
+/**
+ * Sheds requests by priority when they queue too long.
+ *
+ * <p>As in CoDel, requests of a priority have a standing queue when even the shortest queueing
+ * delay of an interval is above a target: a queue that never drains, not a burst. Each interval
+ * in which some priority has a standing queue raises the shedding level by one and each other
+ * interval lowers it by one, so shedding goes no further than needed to drain the queues. Level 1
+ * sheds queries and key lookups, which clients just retry, level 2 also registrations, bulk
+ * registrations and deletes, and level 3 also renewals, single or bulk, since a lost renewal lets
+ * the record expire and costs a new registration. Requests shed on arrival are not measured, so shedding cannot
+ * keep the level up by itself.
+ */
+public final class OverloadController implements OverloadControllerMXBean {
+
+  static final int MAX_LEVEL = 3;
+
+  private final long targetNanos;
+  private final long intervalNanos;
+
+  private long intervalEnd;
+  // shortest delay of each priority in the current interval
+  private final long[] minDelayNanos = new long[MAX_LEVEL + 1];
+  private long lastDelayNanos;
+  private volatile int level;
+
+  private final Map<Operation, AtomicLong> shed = new EnumMap<>(Operation.class);
+
+  /**
+   * @param targetDelayMillis queueing delay above which requests are queueing too long
+   * @param intervalMillis interval over which the shortest delay is taken
+   */
+  public OverloadController(long targetDelayMillis, long intervalMillis, long nowNanos) {
+
+    if (intervalMillis <= 0) {
+      throw new IllegalArgumentException("Interval must be positive");
+    }
+    this.targetNanos = TimeUnit.MILLISECONDS.toNanos(targetDelayMillis);
+    this.intervalNanos = TimeUnit.MILLISECONDS.toNanos(intervalMillis);
+    this.intervalEnd = nowNanos + intervalNanos;
+    Arrays.fill(minDelayNanos, Long.MAX_VALUE);
+    for (Operation operation : Operation.values()) {
+      shed.put(operation, new AtomicLong());
+    }
+  }
+
+  /** Returns the level from which requests of the operation are shed. */
+  static int priority(Operation operation) {
+
+    switch (operation) {
+      case QUERY:
+        return 1;
+      case RENEW:
+        return 3;
+      default:
+        return 2;
+    }
+  }
+
+  /**
+   * Tells whether a request of the operation is to be shed, and counts it if so.
+   *
+   * @param delayNanos time the request has waited so far, 0 when it arrives
+   */
+  public boolean shed(Operation operation, long delayNanos, long nowNanos) {
+
+    advance(nowNanos);
+    int current = level;
+    if (current < priority(operation)) {
+      return false;
+    }
+    // when it arrives, a request of a shed operation is shed; once it has waited, only if the
+    // wait was too long
+    if (delayNanos > 0 && delayNanos <= targetNanos) {
+      return false;
+    }
+    shed.get(operation).incrementAndGet();
+    return true;
+  }
+
+  /** Records the time an admitted request waited in a queue before it started. */
+  public synchronized void recordDelay(Operation operation, long delayNanos, long nowNanos) {
+
+    advance(nowNanos);
+    int priority = priority(operation);
+    minDelayNanos[priority] = Math.min(minDelayNanos[priority], delayNanos);
+  }
+
+  private synchronized void advance(long nowNanos) {
+
+    while (nowNanos - intervalEnd >= 0) {
+      // priorities without queued requests in the interval have no standing queue
+      long delayNanos = 0;
+      for (int priority = 1; priority <= MAX_LEVEL; priority++) {
+        if (minDelayNanos[priority] != Long.MAX_VALUE) {
+          delayNanos = Math.max(delayNanos, minDelayNanos[priority]);
+        }
+      }
+      boolean overloaded = delayNanos > targetNanos;
+      lastDelayNanos = delayNanos;
+      level = overloaded ? Math.min(level + 1, MAX_LEVEL) : Math.max(level - 1, 0);
+      Arrays.fill(minDelayNanos, Long.MAX_VALUE);
+      intervalEnd += intervalNanos;
+      if (level == 0 && nowNanos - intervalEnd >= 0) {
+        // the level cannot go lower, so the intervals left are skipped at once
+        intervalEnd = nowNanos + intervalNanos;
+      }
+    }
+  }
+
+  @Override
+  public int getLevel() {
+    return level;
+  }
+
+  @Override
+  public synchronized double getQueueDelayMillis() {
+    return lastDelayNanos / 1e6;
+  }
+
+  @Override
+  public long getShedQueries() {
+    return shed.get(Operation.QUERY).get();
+  }
+
+  @Override
+  public long getShedRegistrations() {
+    return shed.get(Operation.REGISTER).get();
+  }
+
+  @Override
+  public long getShedRenewals() {
+    return shed.get(Operation.RENEW).get();
+  }
+
+  @Override
+  public long getShedDeletes() {
+    return shed.get(Operation.DELETE).get();
+  }
+
+  @Override
+  public long getShedBulk() {
+    return shed.get(Operation.BULK).get();
+  }
+}
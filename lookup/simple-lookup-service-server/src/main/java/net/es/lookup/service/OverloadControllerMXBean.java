@@ -0,0 +1,22 @@
+package net.es.lookup.service;
+
+/**
+ * Metrics of the overload controller. The queue delay is the standing queue delay of the last
+ * interval, the longest over the priorities, and the requests shed are counted per operation.
+ */
+public interface OverloadControllerMXBean {
+
+  int getLevel();
+
+  double getQueueDelayMillis();
+
+  long getShedQueries();
+
+  long getShedRegistrations();
+
+  long getShedRenewals();
+
+  long getShedDeletes();
+
+  long getShedBulk();
+}
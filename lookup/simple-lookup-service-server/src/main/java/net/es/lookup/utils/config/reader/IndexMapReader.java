@@ -1,5 +1,10 @@
 package net.es.lookup.utils.config.reader;
 
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import java.util.Map;
 import org.apache.logging.log4j.Logger;
 import org.apache.logging.log4j.LogManager;
 
@@ -9,9 +14,34 @@ import java.io.*;
  * Author: sowmya
  *
  * This class reads the json mapping file for elastic search index.
+ *
+ * If the mapping file has a "generate" block with "enabled": true, the mapping is generated from
+ * it: every key, listed or not, is indexed as a keyword with a lowercase normalizer, optionally
+ * with a reversed sub-field for suffix wildcards and a trigram sub-field for infix wildcards.
+ * Keys starting with an underscore are internal and keep their own mapping.
  */
 public class IndexMapReader {
 
+    public static final String NORMALIZER = "lowercase_keyword";
+
+    public static final String REVERSED_FIELD = "reversed";
+    public static final String REVERSED_ANALYZER = "reversed_keyword";
+
+    public static final String NGRAM_FIELD = "ngram";
+    public static final String NGRAM_ANALYZER = "trigram_keyword";
+    public static final int NGRAM_SIZE = 3;
+
+    /** Index settings defining the normalizer and analyzers used by generated mappings. */
+    public static final String ANALYSIS_SETTINGS =
+        "{\"analysis\": {"
+            + "\"normalizer\": {\"" + NORMALIZER + "\": {\"type\": \"custom\", \"filter\": [\"lowercase\"]}},"
+            + "\"tokenizer\": {\"trigram\": {\"type\": \"ngram\", \"min_gram\": " + NGRAM_SIZE
+            + ", \"max_gram\": " + NGRAM_SIZE + "}},"
+            + "\"analyzer\": {"
+            + "\"" + REVERSED_ANALYZER + "\": {\"type\": \"custom\", \"tokenizer\": \"keyword\", \"filter\": [\"lowercase\", \"reverse\"]},"
+            + "\"" + NGRAM_ANALYZER + "\": {\"type\": \"custom\", \"tokenizer\": \"trigram\", \"filter\": [\"lowercase\"]}"
+            + "}}}";
+
     private static IndexMapReader instance;
     private static Logger LOG = LogManager.getLogger(BaseConfigReader.class);
 
@@ -65,7 +95,86 @@ public class IndexMapReader {
             LOG.error("Error reading mapping file");
             System.exit(1);
         }
-        return mapping.toString();
+        return generate(mapping.toString());
+    }
+
+    /**
+     * Expands the "generate" block of a mapping, if any, and returns the mapping without it.
+     *
+     * @throws IllegalArgumentException if the mapping is not a JSON object
+     */
+    public String generate(String mapping) {
+
+        JsonElement parsed = new JsonParser().parse(mapping);
+        if (!parsed.isJsonObject()) {
+            throw new IllegalArgumentException("Mapping must be a JSON object");
+        }
+        JsonObject root = parsed.getAsJsonObject();
+        JsonElement generate = root.remove("generate");
+        if (generate == null) {
+            return mapping;
+        }
+        JsonObject options = generate.getAsJsonObject();
+        if (!flag(options, "enabled", false)) {
+            return root.toString();
+        }
+        boolean reversed = flag(options, "reversed", true);
+        boolean ngram = flag(options, "ngram", false);
+
+        JsonObject properties = root.has("properties") ? root.getAsJsonObject("properties") : new JsonObject();
+        for (Map.Entry<String, JsonElement> property : properties.entrySet()) {
+            JsonObject field = property.getValue().getAsJsonObject();
+            if (!property.getKey().startsWith("_")
+                && field.has("type") && "keyword".equals(field.get("type").getAsString())) {
+                property.setValue(keywordField(reversed, ngram));
+            }
+        }
+        root.add("properties", properties);
+
+        JsonObject strings = new JsonObject();
+        strings.addProperty("match_mapping_type", "string");
+        strings.addProperty("unmatch", "_*");
+        strings.add("mapping", keywordField(reversed, ngram));
+        JsonObject template = new JsonObject();
+        template.add("sls_keys", strings);
+        JsonArray templates = root.has("dynamic_templates") ? root.getAsJsonArray("dynamic_templates") : new JsonArray();
+        templates.add(template);
+        root.add("dynamic_templates", templates);
+        return root.toString();
+    }
+
+    private static JsonObject keywordField(boolean reversed, boolean ngram) {
+
+        JsonObject field = new JsonObject();
+        field.addProperty("type", "keyword");
+        field.addProperty("normalizer", NORMALIZER);
+        JsonObject subFields = new JsonObject();
+        if (reversed) {
+            subFields.add(REVERSED_FIELD, textField(REVERSED_ANALYZER, "docs"));
+        }
+        if (ngram) {
+            // phrase queries over adjacent grams need positions
+            subFields.add(NGRAM_FIELD, textField(NGRAM_ANALYZER, "positions"));
+        }
+        if (subFields.size() > 0) {
+            field.add("fields", subFields);
+        }
+        return field;
+    }
+
+    private static JsonObject textField(String analyzer, String indexOptions) {
+
+        JsonObject field = new JsonObject();
+        field.addProperty("type", "text");
+        field.addProperty("analyzer", analyzer);
+        field.addProperty("index_options", indexOptions);
+        field.addProperty("norms", false);
+        return field;
+    }
+
+    private static boolean flag(JsonObject options, String name, boolean defaultValue) {
+
+        return options.has(name) ? options.get(name).getAsBoolean() : defaultValue;
     }
 
 }
@@ -1,8 +1,11 @@
 package net.es.lookup.utils.config.reader;
 
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
+import net.es.lookup.database.ServiceElasticSearch;
 import org.apache.logging.log4j.Logger;
 import org.apache.logging.log4j.LogManager;
 
@@ -29,6 +32,30 @@ public class LookupServiceConfigReader {
   private int minlease;
   private int defaultlease;
 
+  // memory governor
+  private boolean memoryGovernorEnabled = false;
+  private int memoryGovernorHeapThresholdPercent = 85;
+  private int memoryGovernorMaxInFlightPercent = 25;
+  private int memoryGovernorQueueTimeoutMillis = 2000;
+  private int memoryGovernorRetryAfterSeconds = 5;
+
+  // rate limits per client, by operation in lower case
+  private boolean rateLimitEnabled = false;
+  private String rateLimitClientHeader = null;
+  private int rateLimitMaxClients = 100000;
+  private Map<String, Integer> rateLimitRequestsPerSecond = new HashMap<>();
+  private Map<String, Integer> rateLimitBurst = new HashMap<>();
+
+  // bulkheads, by operation in lower case
+  private boolean bulkheadsEnabled = false;
+  private Map<String, Integer> bulkheadThreads = new HashMap<>();
+  private Map<String, Integer> bulkheadMaxQueued = new HashMap<>();
+
+  // overload control
+  private boolean overloadControlEnabled = false;
+  private int overloadControlTargetDelayMillis = 50;
+  private int overloadControlIntervalMillis = 500;
+
   // database
   private String dburl = "127.0.0.1";
   private int dbport = 27017;
@@ -42,6 +69,46 @@ public class LookupServiceConfigReader {
   private int elasticServerPort;
   private int elasticRestClientPort;
   private String elasticDbName;
+  private int elasticMaxConcurrentSearches = ServiceElasticSearch.DEFAULT_MAX_CONCURRENT_SEARCHES;
+
+  // elastic connection
+  private List<String> elasticNodes = new ArrayList<>();
+  private int elasticSniffIntervalSeconds = 0;
+  private boolean elasticLatencyAwareRouting = false;
+  private boolean elasticCompression = false;
+  private int elasticMaxConnectionsPerRoute = 10;
+  private int elasticMaxConnectionsTotal = 30;
+  private int elasticConnectTimeoutMillis = 1000;
+  private int elasticSocketTimeoutMillis = 30000;
+  private int elasticKeepAliveSeconds = 0;
+
+  // write pipeline
+  private boolean writePipelineEnabled = false;
+  private int writePipelineBatchSize = 200;
+  private int writePipelineLingerMillis = 5;
+  private int writePipelineMaxInFlightBatches = 4;
+  private int writePipelineMaxQueuedWrites = 10000;
+
+  // time partitioned indices
+  private boolean timePartitioningEnabled = false;
+  private int timePartitioningWindowHours = 24;
+
+  // expiry pruning
+  private int pruneMaxDocsPerSecond = 500;
+  private int pruneSlices = 0;
+  private int pruneQueryLatencySloMillis = 200;
+
+  // record cache
+  private boolean recordCacheEnabled = false;
+  private int recordCacheMaxRecords = 10000;
+  private int recordCacheMaxTtlSeconds = 30;
+
+  // query result cache
+  private boolean queryCacheEnabled = false;
+  private int queryCacheMaxEntries = 1000;
+  private int queryCacheMaxBytes = 64 * 1024 * 1024;
+  private int queryCacheMaxEntryBytes = 1024 * 1024;
+  private int queryCacheMaxStalenessMillis = 2000;
 
   /** Constructor - private because this is a Singleton. */
   private LookupServiceConfigReader() {}
@@ -156,6 +223,188 @@ public class LookupServiceConfigReader {
     this.elasticDbName = elasticDbName;
   }
 
+  public int getElasticMaxConcurrentSearches() {
+    return elasticMaxConcurrentSearches;
+  }
+
+  public List<String> getElasticNodes() {
+    return elasticNodes;
+  }
+
+  public int getElasticSniffIntervalSeconds() {
+    return elasticSniffIntervalSeconds;
+  }
+
+  public boolean isElasticLatencyAwareRouting() {
+    return elasticLatencyAwareRouting;
+  }
+
+  public boolean isElasticCompression() {
+    return elasticCompression;
+  }
+
+  public int getElasticMaxConnectionsPerRoute() {
+    return elasticMaxConnectionsPerRoute;
+  }
+
+  public int getElasticMaxConnectionsTotal() {
+    return elasticMaxConnectionsTotal;
+  }
+
+  public int getElasticConnectTimeoutMillis() {
+    return elasticConnectTimeoutMillis;
+  }
+
+  public int getElasticSocketTimeoutMillis() {
+    return elasticSocketTimeoutMillis;
+  }
+
+  public int getElasticKeepAliveSeconds() {
+    return elasticKeepAliveSeconds;
+  }
+
+  public boolean isWritePipelineEnabled() {
+    return writePipelineEnabled;
+  }
+
+  public int getWritePipelineBatchSize() {
+    return writePipelineBatchSize;
+  }
+
+  public int getWritePipelineLingerMillis() {
+    return writePipelineLingerMillis;
+  }
+
+  public int getWritePipelineMaxInFlightBatches() {
+    return writePipelineMaxInFlightBatches;
+  }
+
+  public int getWritePipelineMaxQueuedWrites() {
+    return writePipelineMaxQueuedWrites;
+  }
+
+  public boolean isTimePartitioningEnabled() {
+    return timePartitioningEnabled;
+  }
+
+  public int getTimePartitioningWindowHours() {
+    return timePartitioningWindowHours;
+  }
+
+  public int getPruneMaxDocsPerSecond() {
+    return pruneMaxDocsPerSecond;
+  }
+
+  public int getPruneSlices() {
+    return pruneSlices;
+  }
+
+  public int getPruneQueryLatencySloMillis() {
+    return pruneQueryLatencySloMillis;
+  }
+
+  public boolean isMemoryGovernorEnabled() {
+    return memoryGovernorEnabled;
+  }
+
+  public int getMemoryGovernorHeapThresholdPercent() {
+    return memoryGovernorHeapThresholdPercent;
+  }
+
+  public int getMemoryGovernorMaxInFlightPercent() {
+    return memoryGovernorMaxInFlightPercent;
+  }
+
+  public int getMemoryGovernorQueueTimeoutMillis() {
+    return memoryGovernorQueueTimeoutMillis;
+  }
+
+  public int getMemoryGovernorRetryAfterSeconds() {
+    return memoryGovernorRetryAfterSeconds;
+  }
+
+  public boolean isRateLimitEnabled() {
+    return rateLimitEnabled;
+  }
+
+  public String getRateLimitClientHeader() {
+    return rateLimitClientHeader;
+  }
+
+  public int getRateLimitMaxClients() {
+    return rateLimitMaxClients;
+  }
+
+  /** Returns the requests per second allowed to a client for the operation, 0 if unlimited. */
+  public int getRateLimitRequestsPerSecond(String operation) {
+    Integer requestsPerSecond = rateLimitRequestsPerSecond.get(operation.toLowerCase());
+    return requestsPerSecond == null ? 0 : requestsPerSecond;
+  }
+
+  public int getRateLimitBurst(String operation) {
+    Integer burst = rateLimitBurst.get(operation.toLowerCase());
+    return burst == null ? 1 : burst;
+  }
+
+  public boolean isBulkheadsEnabled() {
+    return bulkheadsEnabled;
+  }
+
+  /** Returns the number of threads of the operation's bulkhead, 0 if it has none. */
+  public int getBulkheadThreads(String operation) {
+    Integer threads = bulkheadThreads.get(operation.toLowerCase());
+    return threads == null ? 0 : threads;
+  }
+
+  public int getBulkheadMaxQueued(String operation) {
+    Integer maxQueued = bulkheadMaxQueued.get(operation.toLowerCase());
+    return maxQueued == null ? 0 : maxQueued;
+  }
+
+  public boolean isOverloadControlEnabled() {
+    return overloadControlEnabled;
+  }
+
+  public int getOverloadControlTargetDelayMillis() {
+    return overloadControlTargetDelayMillis;
+  }
+
+  public int getOverloadControlIntervalMillis() {
+    return overloadControlIntervalMillis;
+  }
+
+  public boolean isRecordCacheEnabled() {
+    return recordCacheEnabled;
+  }
+
+  public int getRecordCacheMaxRecords() {
+    return recordCacheMaxRecords;
+  }
+
+  public int getRecordCacheMaxTtlSeconds() {
+    return recordCacheMaxTtlSeconds;
+  }
+
+  public boolean isQueryCacheEnabled() {
+    return queryCacheEnabled;
+  }
+
+  public int getQueryCacheMaxEntries() {
+    return queryCacheMaxEntries;
+  }
+
+  public int getQueryCacheMaxBytes() {
+    return queryCacheMaxBytes;
+  }
+
+  public int getQueryCacheMaxEntryBytes() {
+    return queryCacheMaxEntryBytes;
+  }
+
+  public int getQueryCacheMaxStalenessMillis() {
+    return queryCacheMaxStalenessMillis;
+  }
+
   private void setInfo(String configPath) {
 
     BaseConfigReader cfg = BaseConfigReader.getInstance();
@@ -173,6 +422,50 @@ public class LookupServiceConfigReader {
       minlease = (Integer) leaseTimeMap.get("min");
       defaultlease = (Integer) leaseTimeMap.get("default");
 
+      Map<String, Object> memoryGovernorMap = (Map) lookupServiceMap.get("MemoryGovernor");
+      if (memoryGovernorMap != null) {
+        memoryGovernorEnabled = (Boolean) memoryGovernorMap.get("Enabled");
+        memoryGovernorHeapThresholdPercent = (Integer) memoryGovernorMap.get("HeapThresholdPercent");
+        memoryGovernorMaxInFlightPercent = (Integer) memoryGovernorMap.get("MaxInFlightPercent");
+        memoryGovernorQueueTimeoutMillis = (Integer) memoryGovernorMap.get("QueueTimeoutMillis");
+        memoryGovernorRetryAfterSeconds = (Integer) memoryGovernorMap.get("RetryAfterSeconds");
+      }
+
+      Map<String, Object> rateLimitMap = (Map) lookupServiceMap.get("RateLimit");
+      if (rateLimitMap != null) {
+        rateLimitEnabled = (Boolean) rateLimitMap.get("Enabled");
+        rateLimitClientHeader = (String) rateLimitMap.get("ClientHeader");
+        rateLimitMaxClients = (Integer) rateLimitMap.get("MaxClients");
+        for (Map.Entry<String, Object> entry : rateLimitMap.entrySet()) {
+          if (entry.getValue() instanceof Map) {
+            Map<String, Object> limitMap = (Map) entry.getValue();
+            String operation = entry.getKey().toLowerCase();
+            rateLimitRequestsPerSecond.put(operation, (Integer) limitMap.get("RequestsPerSecond"));
+            rateLimitBurst.put(operation, (Integer) limitMap.get("Burst"));
+          }
+        }
+      }
+
+      Map<String, Object> bulkheadsMap = (Map) lookupServiceMap.get("Bulkheads");
+      if (bulkheadsMap != null) {
+        bulkheadsEnabled = (Boolean) bulkheadsMap.get("Enabled");
+        for (Map.Entry<String, Object> entry : bulkheadsMap.entrySet()) {
+          if (entry.getValue() instanceof Map) {
+            Map<String, Object> bulkheadMap = (Map) entry.getValue();
+            String operation = entry.getKey().toLowerCase();
+            bulkheadThreads.put(operation, (Integer) bulkheadMap.get("Threads"));
+            bulkheadMaxQueued.put(operation, (Integer) bulkheadMap.get("MaxQueued"));
+          }
+        }
+      }
+
+      Map<String, Object> overloadControlMap = (Map) lookupServiceMap.get("OverloadControl");
+      if (overloadControlMap != null) {
+        overloadControlEnabled = (Boolean) overloadControlMap.get("Enabled");
+        overloadControlTargetDelayMillis = (Integer) overloadControlMap.get("TargetDelayMillis");
+        overloadControlIntervalMillis = (Integer) overloadControlMap.get("IntervalMillis");
+      }
+
       HashMap<String, Object> databaseMap = (HashMap) yamlMap.get("database");
       dburl = (String) databaseMap.get("DBUrl");
       dbport = (Integer) databaseMap.get("DBPort");
@@ -186,6 +479,62 @@ public class LookupServiceConfigReader {
       elasticServerPort = (Integer) elasticMap.get("DBPort1");
       elasticRestClientPort = (Integer) elasticMap.get("DBPort2");
       elasticDbName = (String) elasticMap.get("ElasticDBName");
+      if (elasticMap.get("MaxConcurrentSearches") != null) {
+        elasticMaxConcurrentSearches = (Integer) elasticMap.get("MaxConcurrentSearches");
+      }
+
+      Map<String, Object> connectionMap = (Map) elasticMap.get("Connection");
+      if (connectionMap != null) {
+        if (connectionMap.get("Nodes") != null) {
+          elasticNodes = (List<String>) connectionMap.get("Nodes");
+        }
+        elasticSniffIntervalSeconds = (Integer) connectionMap.get("SniffIntervalSeconds");
+        elasticLatencyAwareRouting = (Boolean) connectionMap.get("LatencyAwareRouting");
+        elasticCompression = (Boolean) connectionMap.get("Compression");
+        elasticMaxConnectionsPerRoute = (Integer) connectionMap.get("MaxConnectionsPerRoute");
+        elasticMaxConnectionsTotal = (Integer) connectionMap.get("MaxConnectionsTotal");
+        elasticConnectTimeoutMillis = (Integer) connectionMap.get("ConnectTimeoutMillis");
+        elasticSocketTimeoutMillis = (Integer) connectionMap.get("SocketTimeoutMillis");
+        elasticKeepAliveSeconds = (Integer) connectionMap.get("KeepAliveSeconds");
+      }
+
+      Map<String, Object> writePipelineMap = (Map) elasticMap.get("WritePipeline");
+      if (writePipelineMap != null) {
+        writePipelineEnabled = (Boolean) writePipelineMap.get("Enabled");
+        writePipelineBatchSize = (Integer) writePipelineMap.get("BatchSize");
+        writePipelineLingerMillis = (Integer) writePipelineMap.get("LingerMillis");
+        writePipelineMaxInFlightBatches = (Integer) writePipelineMap.get("MaxInFlightBatches");
+        writePipelineMaxQueuedWrites = (Integer) writePipelineMap.get("MaxQueuedWrites");
+      }
+
+      Map<String, Object> timePartitioningMap = (Map) elasticMap.get("TimePartitioning");
+      if (timePartitioningMap != null) {
+        timePartitioningEnabled = (Boolean) timePartitioningMap.get("Enabled");
+        timePartitioningWindowHours = (Integer) timePartitioningMap.get("WindowHours");
+      }
+
+      Map<String, Object> pruneMap = (Map) elasticMap.get("Prune");
+      if (pruneMap != null) {
+        pruneMaxDocsPerSecond = (Integer) pruneMap.get("MaxDocsPerSecond");
+        pruneSlices = (Integer) pruneMap.get("Slices");
+        pruneQueryLatencySloMillis = (Integer) pruneMap.get("QueryLatencySloMillis");
+      }
+
+      Map<String, Object> recordCacheMap = (Map) elasticMap.get("RecordCache");
+      if (recordCacheMap != null) {
+        recordCacheEnabled = (Boolean) recordCacheMap.get("Enabled");
+        recordCacheMaxRecords = (Integer) recordCacheMap.get("MaxRecords");
+        recordCacheMaxTtlSeconds = (Integer) recordCacheMap.get("MaxTtlSeconds");
+      }
+
+      Map<String, Object> queryCacheMap = (Map) elasticMap.get("QueryCache");
+      if (queryCacheMap != null) {
+        queryCacheEnabled = (Boolean) queryCacheMap.get("Enabled");
+        queryCacheMaxEntries = (Integer) queryCacheMap.get("MaxEntries");
+        queryCacheMaxBytes = (Integer) queryCacheMap.get("MaxBytes");
+        queryCacheMaxEntryBytes = (Integer) queryCacheMap.get("MaxEntryBytes");
+        queryCacheMaxStalenessMillis = (Integer) queryCacheMap.get("MaxStalenessMillis");
+      }
 
     } catch (Exception e) {
       LOG.error("Error parsing config file. Please check config parameters " + e.toString());
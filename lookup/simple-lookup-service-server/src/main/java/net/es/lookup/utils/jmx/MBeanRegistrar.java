@@ -0,0 +1,39 @@
+package net.es.lookup.utils.jmx;
+
+import java.lang.management.ManagementFactory;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Registers the lookup service's runtime metrics with the platform MBean server, where they can
+ * be read with jconsole, jmxterm or a JMX exporter. Beans are named
+ * net.es.lookup:type=TYPE,name=NAME.
+ */
+public class MBeanRegistrar {
+
+  private static Logger LOG = LogManager.getLogger(MBeanRegistrar.class);
+
+  private MBeanRegistrar() {}
+
+  /**
+   * Registers the bean, replacing any bean already registered under the same name. Failures are
+   * logged and otherwise ignored since metrics must never stop the service.
+   */
+  public static void register(String type, String name, Object bean) {
+
+    try {
+      MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+      ObjectName objectName =
+          new ObjectName("net.es.lookup:type=" + type + ",name=" + ObjectName.quote(name));
+      if (server.isRegistered(objectName)) {
+        server.unregisterMBean(objectName);
+      }
+      server.registerMBean(bean, objectName);
+    } catch (JMException e) {
+      LOG.warn("Unable to register metrics for " + type + " " + name + ": " + e.getMessage());
+    }
+  }
+}
@@ -0,0 +1,250 @@
+package net.es.lookup.api;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import net.es.lookup.common.Message;
+import org.junit.Test;
+
+public class QueryResultCacheTest {
+
+  private static final long HOUR = 3600 * 1000L;
+
+  private final QueryResultCache cache = new QueryResultCache(100, 1024 * 1024, 1024, HOUR);
+
+  @Test
+  public void normalizesQueries() {
+
+    QueryResultCache.Key key =
+        key(query("type", Arrays.asList("host", "service")), operators("all"), 0);
+    assertEquals(
+        key.text, key(query("type", Arrays.asList("service", "host")), operators("ALL"), 0).text);
+    assertNotEquals(
+        key.text, key(query("type", Arrays.asList("host", "service")), operators("any"), 0).text);
+    assertNotEquals(
+        key.text, key(query("type", Arrays.asList("host", "service")), operators("all"), 10).text);
+    assertNotEquals(key(query("a", "b:1"), operators("all"), 0).text,
+        key(query("a:1", "b"), operators("all"), 0).text);
+  }
+
+  @Test
+  public void findsTheRecordTypesAQueryCanMatch() {
+
+    assertEquals(2, key(query("type", Arrays.asList("host", "Service")), operators("any"), 0)
+        .types.size());
+    assertNull(key(query("type", "host*"), operators("all"), 0).types);
+    assertNull(key(query("host-name", "a"), operators("all"), 0).types);
+
+    Message hostNamed = query("type", "host");
+    hostNamed.add("host-name", "a");
+    assertEquals(1, key(hostNamed, operators("all"), 0).types.size());
+    assertNull(key(hostNamed, operators("any"), 0).types);
+
+    assertEquals("host", QueryResultCache.typeOf("lookup/host/1234"));
+    assertNull(QueryResultCache.typeOf("1234"));
+  }
+
+  @Test
+  public void sharesOneLoadBetweenIdenticalQueries() throws Exception {
+
+    QueryResultCache.Key key = key(query("type", "host"), operators("all"), 0);
+    QueryResultCache.Lookup first = cache.lookup(key);
+    assertNull(first.result);
+    assertNotNull(first.load);
+
+    ExecutorService executor = Executors.newSingleThreadExecutor();
+    CountDownLatch waiting = new CountDownLatch(1);
+    Future<QueryResultCache.Lookup> second =
+        executor.submit(
+            () -> {
+              waiting.countDown();
+              return cache.lookup(key(query("type", "host"), operators("all"), 0));
+            });
+    waiting.await();
+    while (cache.getSharedLoads() == 0) {
+      Thread.sleep(1);
+    }
+    QueryResultCache.Result result = result("[]");
+    cache.finish(key, first.load, result);
+
+    assertSame(result, second.get(1, TimeUnit.SECONDS).result);
+    assertSame(result, cache.lookup(key).result);
+    assertEquals(1, cache.getLoads());
+    executor.shutdown();
+  }
+
+  @Test
+  public void streamedQueriesDoNotWaitForLoads() {
+
+    QueryResultCache.Key key = key(new Message(), operators("all"), 0);
+    QueryResultCache.Lookup first = cache.lookup(key, false);
+    assertNotNull(first.load);
+
+    QueryResultCache.Lookup second = cache.lookup(key, false);
+    assertNull(second.result);
+    assertNull(second.load);
+    assertEquals(0, cache.getSharedLoads());
+
+    cache.finish(key, first.load, result("[]"));
+    assertNotNull(cache.lookup(key, false).result);
+  }
+
+  @Test
+  public void runsTheQueryAgainWhenASharedLoadFails() {
+
+    QueryResultCache.Key key = key(query("type", "host"), operators("all"), 0);
+    QueryResultCache.Lookup first = cache.lookup(key);
+    cache.finish(key, first.load, null);
+
+    QueryResultCache.Lookup second = cache.lookup(key);
+    assertNull(second.result);
+    assertNotNull(second.load);
+    assertEquals(1, cache.getFailedLoads());
+  }
+
+  @Test
+  public void invalidatesByRecordType() {
+
+    QueryResultCache.Key hosts = key(query("type", "host"), operators("all"), 0);
+    QueryResultCache.Key everything = key(new Message(), operators("all"), 0);
+    load(hosts, "[1]");
+    load(everything, "[2]");
+
+    cache.invalidate("service");
+    assertNotNull(cache.lookup(hosts).result);
+    assertMiss(everything);
+
+    load(everything, "[2]");
+    cache.invalidate("Host");
+    assertMiss(hosts);
+    assertMiss(everything);
+
+    load(hosts, "[1]");
+    cache.invalidate(null);
+    assertMiss(hosts);
+  }
+
+  @Test
+  public void ignoresLoadsThatRacedWithAWrite() {
+
+    QueryResultCache.Key key = key(query("type", "host"), operators("all"), 0);
+    QueryResultCache.Lookup lookup = cache.lookup(key);
+    cache.invalidate("host");
+    cache.finish(key, lookup.load, result("[]"));
+
+    assertNull(cache.lookup(key).result);
+    assertEquals(0, cache.getSize());
+  }
+
+  @Test
+  public void expiresResponsesAfterTheMaximumStaleness() throws Exception {
+
+    QueryResultCache shortLived = new QueryResultCache(100, 1024, 1024, 20);
+    QueryResultCache.Key key = key(query("type", "host"), operators("all"), 0);
+    QueryResultCache.Lookup lookup = shortLived.lookup(key);
+    shortLived.finish(key, lookup.load, result("[]"));
+    assertNotNull(shortLived.lookup(key).result);
+
+    Thread.sleep(40);
+    assertNull(shortLived.lookup(key).result);
+  }
+
+  @Test
+  public void bypassesResponsesTooLargeToCache() throws Exception {
+
+    QueryResultCache.Key key = key(new Message(), operators("all"), 0);
+    QueryResultCache.Lookup lookup = cache.lookup(key);
+    ByteArrayOutputStream client = new ByteArrayOutputStream();
+    QueryResultCache.Capture capture = cache.capture(key, lookup.load, client);
+    capture.write(new byte[600]);
+    capture.write(new byte[600]);
+    capture.finish(true);
+    assertEquals(1200, client.size());
+
+    QueryResultCache.Lookup next = cache.lookup(key);
+    assertNull(next.result);
+    assertNull(next.load);
+    assertEquals(1, cache.getTooLarge());
+    assertEquals(0, cache.getBytes());
+  }
+
+  @Test
+  public void capturesStreamedResponses() throws Exception {
+
+    QueryResultCache.Key key = key(new Message(), operators("all"), 0);
+    QueryResultCache.Lookup lookup = cache.lookup(key);
+    QueryResultCache.Capture capture =
+        cache.capture(key, lookup.load, new ByteArrayOutputStream());
+    capture.write("[{}]".getBytes(StandardCharsets.UTF_8));
+    capture.finish(true);
+
+    assertArrayEquals(
+        "[{}]".getBytes(StandardCharsets.UTF_8), cache.lookup(key).result.body);
+  }
+
+  @Test
+  public void evictsTheLeastRecentlyUsedResponses() {
+
+    QueryResultCache small = new QueryResultCache(2, 1024, 1024, HOUR);
+    QueryResultCache.Key[] keys = new QueryResultCache.Key[3];
+    for (int i = 0; i < keys.length; i++) {
+      keys[i] = key(query("type", "t" + i), operators("all"), 0);
+      QueryResultCache.Lookup lookup = small.lookup(keys[i]);
+      small.finish(keys[i], lookup.load, result("[" + i + "]"));
+    }
+    assertEquals(2, small.getSize());
+    assertEquals(1, small.getEvictions());
+    assertNull(small.lookup(keys[0]).result);
+  }
+
+  private void load(QueryResultCache.Key key, String body) {
+
+    QueryResultCache.Lookup lookup = cache.lookup(key);
+    cache.finish(key, lookup.load, result(body));
+  }
+
+  // a miss makes the caller load the query, which fails here so the next lookup loads again
+  private void assertMiss(QueryResultCache.Key key) {
+
+    QueryResultCache.Lookup lookup = cache.lookup(key);
+    assertNull(lookup.result);
+    cache.finish(key, lookup.load, null);
+  }
+
+  private static QueryResultCache.Key key(Message query, Message operators, int maxResult) {
+
+    return QueryResultCache.key(
+        "page", query, operators, maxResult, 0, null, null, null);
+  }
+
+  private static Message query(String key, Object value) {
+
+    Message query = new Message();
+    query.add(key, value);
+    return query;
+  }
+
+  private static Message operators(String operator) {
+
+    Message operators = new Message();
+    operators.add("operator", operator);
+    return operators;
+  }
+
+  private static QueryResultCache.Result result(String body) {
+
+    return new QueryResultCache.Result(body.getBytes(StandardCharsets.UTF_8), null);
+  }
+}
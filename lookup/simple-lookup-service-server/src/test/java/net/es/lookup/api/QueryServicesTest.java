@@ -0,0 +1,15 @@
+package net.es.lookup.api;
+
+import net.es.lookup.common.Message;
+import net.es.lookup.common.exception.api.BadRequestException;
+import org.junit.Test;
+
+public class QueryServicesTest {
+
+  @Test(expected = BadRequestException.class)
+  public void skipWithCursor() {
+
+    // rejected before the cursor is even decoded
+    new QueryServices().query(new Message(), 10, 5, "bG9va3VwL2hvc3QvMQ");
+  }
+}
@@ -0,0 +1,88 @@
+package net.es.lookup.common;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import net.es.lookup.protocol.json.JSONRegisterRequest;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.openjdk.jol.info.GraphLayout;
+
+/**
+ * Logs the heap taken per record by a Message and by a CompactRecord for host, service and
+ * interface records as registered by perfSONAR, with the keys the server adds. Sizes include
+ * everything reachable from the records, so shared keys count once for all the records. Not run
+ * by the build; after mvn test-compile run main with the test classpath.
+ */
+public class CompactRecordFootprintBenchmark {
+
+  private static Logger Log = LogManager.getLogger(CompactRecordFootprintBenchmark.class);
+
+  private static final int RECORDS = 1000;
+
+  private static final String HOST =
+      "{\"type\":[\"host\"],\"host-name\":[\"ps%1$d.es.net\",\"198.129.%2$d.30\"],"
+          + "\"host-hardware-memory\":[\"16384 MB\"],\"host-hardware-processorspeed\":[\"2400 MHz\"],"
+          + "\"host-hardware-processorcount\":[\"2\"],\"host-os-name\":[\"CentOS\"],"
+          + "\"host-os-version\":[\"7.9.2009\"],\"host-os-kernel\":[\"Linux 3.10.0-1160.el7.x86_64\"],"
+          + "\"host-net-tcp-congestionalgorithm\":[\"htcp\"],"
+          + "\"host-net-interfaces\":[\"lookup/interface/%3$s\"],"
+          + "\"host-administrators\":[\"lookup/person/%3$s\"],\"location-sitename\":[\"ESnet\"],"
+          + "\"location-city\":[\"Berkeley\"],\"location-country\":[\"US\"],"
+          + "\"location-latitude\":[\"37.8762\"],\"location-longitude\":[\"-122.2474\"],"
+          + "\"group-communities\":[\"ESnet\",\"LHC\",\"perfSONAR\"],"
+          + "\"pshost-toolkitversion\":[\"4.4.0\"],\"client-uuid\":[\"%3$s\"]}";
+
+  private static final String SERVICE =
+      "{\"type\":[\"service\"],\"service-type\":[\"owamp\"],"
+          + "\"service-name\":[\"OWAMP Server at ps%1$d.es.net\"],"
+          + "\"service-locator\":[\"tcp://ps%1$d.es.net:861\",\"tcp://198.129.%2$d.30:861\"],"
+          + "\"service-host\":[\"lookup/host/%3$s\"],\"service-version\":[\"4.4.0\"],"
+          + "\"location-sitename\":[\"ESnet\"],\"location-city\":[\"Berkeley\"],"
+          + "\"location-country\":[\"US\"],\"location-latitude\":[\"37.8762\"],"
+          + "\"location-longitude\":[\"-122.2474\"],\"group-communities\":[\"ESnet\",\"LHC\"],"
+          + "\"client-uuid\":[\"%3$s\"]}";
+
+  private static final String INTERFACE =
+      "{\"type\":[\"interface\"],\"interface-name\":[\"eth%1$d\"],"
+          + "\"interface-addresses\":[\"ps%1$d.es.net\",\"198.129.%2$d.30\"],"
+          + "\"interface-subnet\":[\"198.129.%2$d.0/24\"],\"interface-capacity\":[\"10000000000\"],"
+          + "\"interface-mac\":[\"00:1b:21:8a:9c:%2$02x\"],\"interface-mtu\":[\"9000\"],"
+          + "\"client-uuid\":[\"%3$s\"]}";
+
+  public static void main(String[] args) {
+
+    Log.info("record     message B  compact B");
+    report("host", HOST);
+    report("service", SERVICE);
+    report("interface", INTERFACE);
+  }
+
+  private static void report(String type, String body) {
+
+    List<Message> messages = records(type, body);
+    List<CompactRecord> compact = new ArrayList<>();
+    for (Message message : records(type, body)) {
+      compact.add(CompactRecord.of(message));
+    }
+    long messageBytes = GraphLayout.parseInstance(messages.toArray()).totalSize() / RECORDS;
+    long compactBytes = GraphLayout.parseInstance(compact.toArray()).totalSize() / RECORDS;
+    Log.info(String.format("%-10s %9d  %9d", type, messageBytes, compactBytes));
+  }
+
+  // records as stored by a register: the parsed body plus the keys added by the server
+  private static List<Message> records(String type, String body) {
+
+    List<Message> records = new ArrayList<>();
+    for (int i = 0; i < RECORDS; i++) {
+      String uuid = UUID.randomUUID().toString();
+      Message record = new JSONRegisterRequest(String.format(body, i, i % 256, uuid));
+      record.add(ReservedKeys.RECORD_URI, "lookup/" + type + "/" + uuid);
+      record.add(ReservedKeys.RECORD_TTL, "PT2H");
+      record.add(ReservedKeys.RECORD_EXPIRES, "2020-06-01T12:00:00.000Z");
+      record.add(ReservedKeys.RECORD_STATE, "registered");
+      records.add(record);
+    }
+    return records;
+  }
+}
@@ -0,0 +1,101 @@
+package net.es.lookup.common;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import org.junit.Test;
+
+public class CompactRecordTest {
+
+  private static Message host() {
+
+    Message message = new Message();
+    message.add("uri", "lookup/host/1");
+    message.add("type", new ArrayList<>(Collections.singletonList("host")));
+    message.add("host-name", new ArrayList<>(Arrays.asList("a.es.net", "b.es.net")));
+    message.add("host-net-interfaces", new ArrayList<String>());
+    message.add("host-count", 3L);
+    Map<String, Object> location = new HashMap<>();
+    location.put("lat", 37.8);
+    message.add("_location", location);
+    return message;
+  }
+
+  @Test
+  public void convertsBackToTheSameMessage() {
+
+    Message message = host();
+    Message copy = CompactRecord.of(message).toMessage();
+
+    assertEquals(message.getMap(), copy.getMap());
+    assertTrue(copy.getKey("uri") instanceof String);
+    assertTrue(copy.getKey("type") instanceof List);
+
+    // the copy is modifiable and independent of the record
+    ((List<String>) copy.getKey("host-name")).add("c.es.net");
+    CompactRecord record = CompactRecord.of(message);
+    record.toMessage().add("uri", "lookup/host/2");
+    assertEquals("lookup/host/1", record.getFirst("uri"));
+  }
+
+  @Test
+  public void readsValuesWithoutConverting() {
+
+    CompactRecord record = CompactRecord.of(host());
+
+    assertEquals(6, record.size());
+    assertEquals("host", record.getFirst("type"));
+    assertEquals("a.es.net", record.getFirst("host-name"));
+    assertNull(record.getFirst("host-net-interfaces"));
+    assertEquals(Collections.singletonList("host"), record.get("type"));
+    assertEquals(Arrays.asList("a.es.net", "b.es.net"), record.get("host-name"));
+    assertEquals(3L, record.get("host-count"));
+    assertTrue(record.hasKey("_location"));
+    assertFalse(record.hasKey("host-os-name"));
+    assertNull(record.get("host-os-name"));
+  }
+
+  @Test(expected = UnsupportedOperationException.class)
+  public void isImmutable() {
+
+    ((List<String>) CompactRecord.of(host()).get("host-name")).add("c.es.net");
+  }
+
+  @Test
+  public void sharesKeys() {
+
+    Map<String, Object> map = new HashMap<>();
+    map.put(new String("uri"), "lookup/host/1");
+    map.put(new String("x-custom-key"), "value");
+    CompactRecord record = CompactRecord.of(map);
+
+    Map<String, Object> copy = record.toMap();
+    for (String key : copy.keySet()) {
+      assertSame(KeyDictionary.intern(new String(key)), key);
+    }
+    assertSame(ReservedKeys.RECORD_URI, KeyDictionary.intern(new String("uri")));
+  }
+
+  @Test
+  public void dropsKeysNoRecordUses() throws InterruptedException {
+
+    int before = KeyDictionary.size();
+    for (int i = 0; i < 1000; i++) {
+      KeyDictionary.intern("x-unused-" + i);
+    }
+    for (int i = 0; i < 100 && KeyDictionary.size() >= before + 1000; i++) {
+      System.gc();
+      Thread.sleep(10);
+    }
+    assertTrue(KeyDictionary.size() < before + 1000);
+  }
+}
@@ -0,0 +1,121 @@
+package net.es.lookup.common;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BooleanSupplier;
+import net.es.lookup.common.exception.api.ServiceUnavailableTemporarilyException;
+import org.junit.Test;
+
+public class MemoryGovernorTest {
+
+  @Test
+  public void admitsWithinBudget() {
+
+    MemoryGovernor governor = new MemoryGovernor(() -> false, 100, 0, 5);
+
+    MemoryGovernor.Reservation first = governor.admit(60);
+    MemoryGovernor.Reservation second = governor.admit(40);
+    assertEquals(100, governor.getInFlightBytes());
+    assertEquals(2, governor.getInFlight());
+
+    first.close();
+    first.close();
+    second.close();
+    assertEquals(0, governor.getInFlightBytes());
+    assertEquals(2, governor.getAdmitted());
+  }
+
+  @Test
+  public void heapTightUntilOccupancyDrops() {
+
+    AtomicBoolean exceeded = new AtomicBoolean(true);
+    AtomicLong used = new AtomicLong(90);
+    BooleanSupplier heapTight = MemoryGovernor.heapTight(exceeded::get, used::get, 85);
+    assertTrue(heapTight.getAsBoolean());
+
+    // freed without a new collection of the pool, the flag is stale
+    used.set(40);
+    assertFalse(heapTight.getAsBoolean());
+
+    used.set(90);
+    exceeded.set(false);
+    assertFalse(heapTight.getAsBoolean());
+  }
+
+  @Test
+  public void admitsLargeReservationAlone() {
+
+    MemoryGovernor governor = new MemoryGovernor(() -> false, 100, 0, 5);
+
+    try (MemoryGovernor.Reservation reservation = governor.admit(500)) {
+      assertEquals(500, governor.getInFlightBytes());
+    }
+  }
+
+  @Test
+  public void rejectsOverBudgetAfterQueueTimeout() {
+
+    MemoryGovernor governor = new MemoryGovernor(() -> false, 100, 50, 7);
+    governor.admit(80);
+
+    try {
+      governor.admit(40);
+      fail("Expected a 503");
+    } catch (ServiceUnavailableTemporarilyException e) {
+      assertEquals(503, e.getResponse().getStatus());
+      assertEquals("7", e.getResponse().getHeaderString("Retry-After"));
+    }
+    assertEquals(1, governor.getQueued());
+    assertEquals(1, governor.getRejected());
+    assertEquals(80, governor.getInFlightBytes());
+  }
+
+  @Test
+  public void queuesUntilReleased() throws Exception {
+
+    MemoryGovernor governor = new MemoryGovernor(() -> false, 100, 10000, 5);
+    MemoryGovernor.Reservation held = governor.admit(80);
+    CountDownLatch admitted = new CountDownLatch(1);
+
+    Thread waiter =
+        new Thread(
+            () -> {
+              governor.admit(40);
+              admitted.countDown();
+            });
+    waiter.start();
+    assertEquals(false, admitted.await(100, TimeUnit.MILLISECONDS));
+
+    held.close();
+    assertTrue(admitted.await(5, TimeUnit.SECONDS));
+    assertEquals(40, governor.getInFlightBytes());
+    assertEquals(1, governor.getQueued());
+  }
+
+  @Test
+  public void holdsBackWhileHeapIsTight() throws Exception {
+
+    AtomicBoolean tight = new AtomicBoolean(true);
+    MemoryGovernor governor = new MemoryGovernor(tight::get, 100, 10000, 5);
+    CountDownLatch admitted = new CountDownLatch(1);
+
+    Thread waiter =
+        new Thread(
+            () -> {
+              governor.admit(10);
+              admitted.countDown();
+            });
+    waiter.start();
+    assertEquals(false, admitted.await(200, TimeUnit.MILLISECONDS));
+
+    tight.set(false);
+    assertTrue(admitted.await(5, TimeUnit.SECONDS));
+  }
+}
@@ -0,0 +1,54 @@
+package net.es.lookup.common;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import org.junit.Test;
+
+public class RecordFingerprintTest {
+
+  @Test
+  public void sameRecordSameFingerprint() {
+
+    Map<String, Object> first = new HashMap<>();
+    first.put("type", Collections.singletonList("host"));
+    first.put("host-name", Arrays.asList("a.es.net", "b.es.net"));
+
+    Map<String, Object> second = new HashMap<>();
+    second.put("host-name", Arrays.asList(" b.es.net", "a.es.net "));
+    second.put("type", "host");
+
+    assertEquals(RecordFingerprint.fingerprint(first), RecordFingerprint.fingerprint(second));
+  }
+
+  @Test
+  public void differentValuesDifferentFingerprint() {
+
+    Map<String, Object> first = new HashMap<>();
+    first.put("type", "host");
+    first.put("host-name", "a.es.net");
+
+    Map<String, Object> second = new HashMap<>();
+    second.put("type", "host");
+    second.put("host-name", "b.es.net");
+
+    assertNotEquals(RecordFingerprint.fingerprint(first), RecordFingerprint.fingerprint(second));
+  }
+
+  @Test
+  public void valuesDoNotBleedAcrossKeys() {
+
+    Map<String, Object> first = new HashMap<>();
+    first.put("a", Arrays.asList("b", "c"));
+
+    Map<String, Object> second = new HashMap<>();
+    second.put("a", "b");
+    second.put("c", Collections.emptyList());
+
+    assertNotEquals(RecordFingerprint.fingerprint(first), RecordFingerprint.fingerprint(second));
+  }
+}
@@ -0,0 +1,73 @@
+package net.es.lookup.database;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import org.apache.http.HttpHost;
+import org.elasticsearch.client.Node;
+import org.junit.Test;
+
+public class ElasticNodesTest {
+
+  private final ElasticNodes nodes = new ElasticNodes();
+  private final Node fast = new Node(new HttpHost("fast", 9200));
+  private final Node close = new Node(new HttpHost("close", 9200));
+  private final Node slow = new Node(new HttpHost("slow", 9200));
+
+  @Test
+  public void prefersTheNodesWithTheLowestLatency() {
+
+    record(fast, 10);
+    record(close, 12);
+    record(slow, 100);
+
+    Map<Node, Integer> selections = new HashMap<>();
+    for (int i = 0; i < 1000; i++) {
+      for (Node node : select(fast, close, slow)) {
+        selections.merge(node, 1, Integer::sum);
+      }
+    }
+    assertEquals(1000, (int) selections.get(fast));
+    assertEquals(1000, (int) selections.get(close));
+    // some requests still go to the slow node to keep measuring it
+    assertTrue(selections.get(slow) > 0);
+    assertTrue(selections.get(slow) < 200);
+  }
+
+  @Test
+  public void measuresNodesWithoutRecentLatency() {
+
+    record(fast, 10);
+    for (int i = 0; i < 100; i++) {
+      assertTrue(select(fast, slow).contains(slow));
+    }
+  }
+
+  @Test
+  public void countsRequestsAndFailures() {
+
+    record(fast, 10);
+    nodes.recordFailure(fast.getHost());
+    ElasticNodes.Stats stats = nodes.statsOf(fast.getHost());
+    assertEquals(1, stats.getRequests());
+    assertEquals(1, stats.getErrors());
+    assertTrue(stats.getAverageLatencyMillis() >= 10);
+  }
+
+  private void record(Node node, long latencyMillis) {
+
+    nodes.recordResponse(node.getHost(), System.nanoTime() - latencyMillis * 1000000);
+  }
+
+  private List<Node> select(Node... candidates) {
+
+    List<Node> selected = new ArrayList<>(Arrays.asList(candidates));
+    nodes.select(selected);
+    return selected;
+  }
+}
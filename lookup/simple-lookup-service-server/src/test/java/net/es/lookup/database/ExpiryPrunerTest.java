@@ -0,0 +1,68 @@
+package net.es.lookup.database;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.util.Arrays;
+import java.util.Collections;
+import org.elasticsearch.index.reindex.DeleteByQueryAction;
+import org.elasticsearch.tasks.TaskId;
+import org.elasticsearch.tasks.TaskInfo;
+import org.junit.Test;
+
+public class ExpiryPrunerTest {
+
+  private static TaskInfo task(String node, long id, String description, TaskId parent) {
+
+    return new TaskInfo(
+        new TaskId(node, id),
+        "transport",
+        DeleteByQueryAction.NAME,
+        description,
+        null,
+        0,
+        0,
+        true,
+        parent,
+        Collections.emptyMap());
+  }
+
+  @Test
+  public void resumesThePruneOfTheIndex() {
+
+    // tasks left running by a server that restarted: the prune of the index, one of its slices
+    // and the prune of another index
+    TaskId pruneTask = new TaskId("node-a", 7);
+    TaskInfo prune = task("node-a", 7, "delete-by-query [lookup]", TaskId.EMPTY_TASK_ID);
+    TaskInfo slice = task("node-b", 8, "delete-by-query [lookup]", pruneTask);
+    TaskInfo other = task("node-a", 9, "delete-by-query [lookup-archive]", TaskId.EMPTY_TASK_ID);
+
+    assertEquals(
+        pruneTask, ExpiryPruner.runningPrune(Arrays.asList(slice, other, prune), "lookup"));
+    assertNull(ExpiryPruner.runningPrune(Arrays.asList(slice, other), "lookup"));
+  }
+
+  @Test
+  public void findsNoPruneWhenNoneRuns() {
+
+    assertNull(ExpiryPruner.runningPrune(Collections.emptyList(), "lookup"));
+  }
+
+  @Test
+  public void slowsDownWhileSearchesAreSlow() {
+
+    assertEquals(250, ExpiryPruner.throttledRate(500, 100, 150, 500), 0);
+    assertEquals(250, ExpiryPruner.throttledRate(500, 100, 150, Float.POSITIVE_INFINITY), 0);
+    // never stops altogether
+    assertEquals(1, ExpiryPruner.throttledRate(500, 100, 150, 1), 0);
+  }
+
+  @Test
+  public void speedsUpToTheBudgetOnceSearchesAreFast() {
+
+    assertEquals(200, ExpiryPruner.throttledRate(500, 100, 50, 100), 0);
+    assertEquals(500, ExpiryPruner.throttledRate(500, 100, 50, 400), 0);
+    // close to the SLO the rate is kept
+    assertEquals(100, ExpiryPruner.throttledRate(500, 100, 90, 100), 0);
+  }
+}
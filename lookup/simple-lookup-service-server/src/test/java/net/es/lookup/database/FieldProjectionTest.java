@@ -0,0 +1,53 @@
+package net.es.lookup.database;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.util.Arrays;
+import net.es.lookup.common.Message;
+import org.junit.Test;
+
+public class FieldProjectionTest {
+
+  @Test
+  public void parsesIncludesAndExcludes() {
+
+    FieldProjection fields = FieldProjection.parse(" uri, service-locator ,-service-*,");
+    assertEquals(Arrays.asList("service-locator", "uri"), Arrays.asList(fields.getIncludes()));
+    assertEquals(Arrays.asList("service-*"), Arrays.asList(fields.getExcludes()));
+  }
+
+  @Test
+  public void ignoresEmptyProjections() {
+
+    assertNull(FieldProjection.parse(null));
+    assertNull(FieldProjection.parse(""));
+    assertNull(FieldProjection.parse(" , -"));
+  }
+
+  @Test
+  public void hasACanonicalForm() {
+
+    assertEquals(
+        FieldProjection.parse("uri,type,-ttl").toString(),
+        FieldProjection.parse("-ttl, type,uri").toString());
+    assertEquals("type,uri,-ttl", FieldProjection.parse("uri,type,-ttl").toString());
+  }
+
+  @Test
+  public void projectsRecordsLikeSourceFiltering() {
+
+    Message record = new Message();
+    record.add("uri", "lookup/service/1");
+    record.add("type", "service");
+    record.add("service-locator", Arrays.asList("tcp://a:1"));
+    record.add("service-name", "a");
+
+    Message projected = FieldProjection.parse("uri,service-*,-service-name").apply(record);
+    assertEquals(2, projected.getMap().size());
+    assertEquals("lookup/service/1", projected.getURI());
+    assertEquals(Arrays.asList("tcp://a:1"), projected.getKey("service-locator"));
+
+    assertEquals(3, FieldProjection.parse("-type").apply(record).getMap().size());
+  }
+}
@@ -0,0 +1,95 @@
+package net.es.lookup.database;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import org.junit.Test;
+
+public class GeoFilterTest {
+
+  @Test
+  public void parsesRadiusInKilometersByDefault() {
+
+    GeoFilter geo = GeoFilter.parse("37.87, -122.27", "500", null, null);
+    assertEquals(GeoFilter.parse("37.87,-122.27", "500km", null, null).toString(), geo.toString());
+    assertEquals("near=37.87,-122.27;radius=500000.0", geo.toString());
+    assertFalse(geo.isSortedByDistance());
+    assertEquals(
+        "near=37.87,-122.27;radius=1609.344",
+        GeoFilter.parse("37.87,-122.27", "1mi", null, null).toString());
+  }
+
+  @Test
+  public void ignoresQueriesWithoutLocation() {
+
+    assertNull(GeoFilter.parse(null, null, null, null));
+  }
+
+  @Test
+  public void sortsByDistanceToAPoint() {
+
+    GeoFilter geo = GeoFilter.parse("0,0", null, "10,-10,-10,10", "distance");
+    assertTrue(geo.isSortedByDistance());
+    assertEquals("near=0.0,0.0;box=10.0,-10.0,-10.0,10.0;sort=distance", geo.toString());
+  }
+
+  @Test
+  public void rejectsInvalidParameters() {
+
+    assertInvalid("91,0", "10", null, null);
+    assertInvalid("0", "10", null, null);
+    assertInvalid("0,0", "-10", null, null);
+    assertInvalid("0,0", "ten", null, null);
+    assertInvalid(null, "10", null, null);
+    assertInvalid("0,0", null, null, null);
+    assertInvalid(null, null, "-10,0,10,10", null);
+    assertInvalid(null, null, "10,0,-10", null);
+    assertInvalid(null, null, "10,0,-10,10", "distance");
+    assertInvalid("0,0", null, null, "name");
+  }
+
+  @Test
+  public void locatesRecordsWithBothCoordinates() {
+
+    Map<String, Object> record = new HashMap<>();
+    record.put("location-latitude", Arrays.asList("37.87"));
+    record.put("location-longitude", "-122.27");
+    Map<String, Object> location = GeoFilter.locationOf(record);
+    assertEquals(37.87, (Double) location.get("lat"), 0);
+    assertEquals(-122.27, (Double) location.get("lon"), 0);
+
+    record.put("location-longitude", "unknown");
+    assertNull(GeoFilter.locationOf(record));
+    record.put("location-longitude", "-190");
+    assertNull(GeoFilter.locationOf(record));
+    record.remove("location-longitude");
+    assertNull(GeoFilter.locationOf(record));
+  }
+
+  @Test
+  public void mapsTheLocationAsAGeoPoint() {
+
+    String mapping = GeoFilter.withLocationMapping("{\"properties\": {\"uri\": {\"type\": \"keyword\"}}}");
+    assertEquals(
+        "{\"properties\":{\"uri\":{\"type\":\"keyword\"},\"_location\":{\"type\":\"geo_point\"}}}",
+        mapping);
+    assertEquals(
+        "{\"properties\":{\"_location\":{\"type\":\"geo_point\"}}}",
+        GeoFilter.withLocationMapping(""));
+  }
+
+  private static void assertInvalid(String near, String radius, String box, String sort) {
+
+    try {
+      GeoFilter.parse(near, radius, box, sort);
+    } catch (IllegalArgumentException e) {
+      return;
+    }
+    throw new AssertionError("Accepted " + near + " " + radius + " " + box + " " + sort);
+  }
+}
@@ -0,0 +1,46 @@
+package net.es.lookup.database;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.List;
+import org.apache.http.HttpHost;
+import org.elasticsearch.client.Node;
+import org.junit.Test;
+
+public class NodeSnifferTest {
+
+  private static final String NODES_INFO =
+      "{\"nodes\": {"
+          + "\"a\": {\"name\": \"es-a\", \"version\": \"7.1.1\", \"roles\": [\"master\", \"data\"],"
+          + " \"http\": {\"publish_address\": \"10.0.0.1:9200\"}},"
+          + "\"b\": {\"name\": \"es-b\", \"roles\": [\"data\", \"ingest\"],"
+          + " \"http\": {\"publish_address\": \"es-b.example.org/10.0.0.2:9201\"}},"
+          + "\"c\": {\"name\": \"es-c\", \"roles\": [\"master\"],"
+          + " \"http\": {\"publish_address\": \"10.0.0.3:9200\"}},"
+          + "\"d\": {\"name\": \"es-d\", \"roles\": [\"data\"]}}}";
+
+  @Test
+  public void findsTheDataNodes() {
+
+    List<Node> nodes = NodeSniffer.nodesOf(NODES_INFO, "http");
+    assertEquals(2, nodes.size());
+    assertEquals(new HttpHost("10.0.0.1", 9200, "http"), nodes.get(0).getHost());
+    assertEquals("es-a", nodes.get(0).getName());
+    assertTrue(nodes.get(0).getRoles().isMasterEligible());
+    assertEquals(new HttpHost("es-b.example.org", 9201, "http"), nodes.get(1).getHost());
+    assertTrue(nodes.get(1).getRoles().isIngest());
+  }
+
+  @Test
+  public void usesTheSchemeOfTheSeeds() {
+
+    assertEquals("https", NodeSniffer.nodesOf(NODES_INFO, "https").get(0).getHost().getSchemeName());
+  }
+
+  @Test
+  public void findsNoNodesInAnEmptyResponse() {
+
+    assertTrue(NodeSniffer.nodesOf("{}", "http").isEmpty());
+  }
+}
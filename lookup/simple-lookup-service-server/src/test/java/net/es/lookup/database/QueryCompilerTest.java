@@ -0,0 +1,221 @@
+package net.es.lookup.database;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import org.elasticsearch.index.query.BoolQueryBuilder;
+import org.elasticsearch.index.query.ConstantScoreQueryBuilder;
+import org.elasticsearch.index.query.ExistsQueryBuilder;
+import org.elasticsearch.index.query.MatchPhraseQueryBuilder;
+import org.elasticsearch.index.query.MatchQueryBuilder;
+import org.elasticsearch.index.query.PrefixQueryBuilder;
+import org.elasticsearch.index.query.QueryBuilder;
+import org.elasticsearch.index.query.RegexpQueryBuilder;
+import org.elasticsearch.index.query.TermQueryBuilder;
+import org.elasticsearch.index.query.TermsQueryBuilder;
+import org.elasticsearch.index.query.TermsSetQueryBuilder;
+import org.junit.Test;
+
+public class QueryCompilerTest {
+
+  private final QueryCompiler compiler =
+      new QueryCompiler(new HashSet<>(Arrays.asList("type", "host-name")));
+
+  @Test
+  public void readsKeywordFieldsFromMapping() {
+
+    String mapping =
+        "{\"properties\": {\"type\": {\"type\": \"keyword\"}, \"ttl\": {\"type\": \"text\"}}}";
+    QueryCompiler fromMapping = QueryCompiler.forMapping(mapping);
+    assertTrue(filterOf(fromMapping, "type", "host") instanceof TermQueryBuilder);
+    assertTrue(filterOf(fromMapping, "ttl", "PT10M") instanceof MatchQueryBuilder);
+    assertTrue(filterOf(QueryCompiler.forMapping(""), "type", "host") instanceof MatchQueryBuilder);
+  }
+
+  @Test
+  public void generatedKeywordsIgnoreCase() {
+
+    TermQueryBuilder term = (TermQueryBuilder) filterOf(generated(), "host-name", "Host.ES.net");
+    assertEquals("host.es.net", term.value());
+  }
+
+  @Test
+  public void generatedKeywordsTreatDotsLiterally() {
+
+    assertEquals(
+        "host.es", ((PrefixQueryBuilder) filterOf(generated(), "host-name", "Host.ES*")).value());
+    assertEquals(
+        "a\\.b.*c", ((RegexpQueryBuilder) filterOf(generated(), "host-name", "A.b*c")).value());
+  }
+
+  @Test
+  public void suffixUsesReversedField() {
+
+    PrefixQueryBuilder prefix = (PrefixQueryBuilder) filterOf(generated(), "host-name", "*.ES.net");
+    assertEquals("host-name.reversed", prefix.fieldName());
+    assertEquals("ten.se.", prefix.value());
+  }
+
+  @Test
+  public void infixUsesNgramField() {
+
+    MatchPhraseQueryBuilder phrase =
+        (MatchPhraseQueryBuilder) filterOf(generated(), "host-name", "*Internet2*");
+    assertEquals("host-name.ngram", phrase.fieldName());
+    assertEquals("internet2", phrase.value());
+
+    // too short for a trigram
+    assertTrue(filterOf(generated(), "host-name", "*es*") instanceof RegexpQueryBuilder);
+  }
+
+  @Test
+  public void loneWildcardIsExists() {
+
+    assertTrue(filterOf(generated(), "host-name", "*") instanceof ExistsQueryBuilder);
+  }
+
+  @Test
+  public void templateAppliesToUnmappedKeys() {
+
+    assertTrue(filterOf(generated(), "group-domains", "*.net") instanceof PrefixQueryBuilder);
+    assertTrue(filterOf(generated(), "_internal", "x") instanceof MatchQueryBuilder);
+    assertTrue(filterOf(generated(), "_expiresAsTimestamp", "1") instanceof MatchQueryBuilder);
+  }
+
+  @Test
+  public void exactValueIsTermFilter() {
+
+    BoolQueryBuilder bool = compile(Collections.singletonMap("type", "host"), "all");
+    assertEquals(1, bool.filter().size());
+    assertTrue(bool.filter().get(0) instanceof TermQueryBuilder);
+    assertTrue(bool.must().isEmpty());
+  }
+
+  @Test
+  public void trailingWildcardIsLowercasePrefix() {
+
+    BoolQueryBuilder bool = compile(Collections.singletonMap("host-name", "Host-ES*"), "all");
+    PrefixQueryBuilder prefix = (PrefixQueryBuilder) bool.filter().get(0);
+    assertEquals("host-es", prefix.value());
+    // a dot matches any character in a regexp, so that prefix stays one
+    bool = compile(Collections.singletonMap("host-name", "Host.ES*"), "all");
+    assertEquals("host.es.*", ((RegexpQueryBuilder) bool.filter().get(0)).value());
+  }
+
+  @Test
+  public void otherWildcardsStayRegexp() {
+
+    BoolQueryBuilder bool =
+        compile(Collections.singletonMap("host-name", Arrays.asList("*es*", "a+*")), "all");
+    assertEquals(".*es.*", ((RegexpQueryBuilder) bool.filter().get(0)).value());
+    assertEquals("a+.*", ((RegexpQueryBuilder) bool.filter().get(1)).value());
+  }
+
+  @Test
+  public void allOverListIsTermsSet() {
+
+    BoolQueryBuilder bool =
+        compile(Collections.singletonMap("type", Arrays.asList("host", "service")), "all");
+    assertEquals(1, bool.filter().size());
+    assertTrue(bool.filter().get(0) instanceof TermsSetQueryBuilder);
+  }
+
+  @Test
+  public void anyOverListIsTerms() {
+
+    BoolQueryBuilder bool =
+        compile(Collections.singletonMap("type", Arrays.asList("host", "service")), "any");
+    assertEquals(1, bool.should().size());
+    assertTrue(bool.should().get(0) instanceof TermsQueryBuilder);
+    assertEquals("1", bool.minimumShouldMatch());
+  }
+
+  @Test
+  public void analyzedFieldsKeepMatch() {
+
+    BoolQueryBuilder bool = compile(Collections.singletonMap("ttl", "PT10M"), "all");
+    assertTrue(bool.filter().get(0) instanceof MatchQueryBuilder);
+  }
+
+  @Test
+  public void emptyQueryMatchesAll() {
+
+    BoolQueryBuilder bool = compile(Collections.emptyMap(), "any");
+    assertTrue(bool.should().isEmpty());
+    assertTrue(bool.filter().isEmpty());
+  }
+
+  @Test
+  public void cachesOneEntryPerShape() {
+
+    QueryCompiler cached = new QueryCompiler(Collections.singleton("type"));
+    cached.compile(query("type", "host", "host-name", "a*"), "all");
+    cached.compile(query("type", "service", "host-name", "b*"), "all");
+    assertEquals(1, cached.cachedShapes());
+
+    cached.compile(query("type", "service", "host-name", "b"), "all");
+    cached.compile(query("type", "service", "host-name", "b"), "any");
+    assertEquals(3, cached.cachedShapes());
+  }
+
+  @Test
+  public void keysDoNotCollideInShape() {
+
+    QueryCompiler cached = new QueryCompiler(Collections.<String>emptySet());
+    cached.compile(Collections.singletonMap("a:e|1:b", "x"), "all");
+    BoolQueryBuilder bool =
+        (BoolQueryBuilder)
+            ((ConstantScoreQueryBuilder) cached.compile(query("a", "x", "b", "y"), "all"))
+                .innerQuery();
+    assertEquals(2, bool.filter().size());
+  }
+
+  @Test
+  public void aggregatesKeywordValues() {
+
+    assertEquals("type", compiler.valuesField("type"));
+    assertEquals("location-country.keyword", compiler.valuesField("location-country"));
+    assertEquals("location-country", generated().valuesField("location-country"));
+  }
+
+  private static QueryCompiler generated() {
+
+    String field =
+        "{\"type\": \"keyword\", \"normalizer\": \"lowercase_keyword\", \"fields\": {"
+            + "\"reversed\": {\"type\": \"text\", \"analyzer\": \"reversed_keyword\"},"
+            + "\"ngram\": {\"type\": \"text\", \"analyzer\": \"trigram_keyword\"}}}";
+    return QueryCompiler.forMapping(
+        "{\"properties\": {\"host-name\": "
+            + field
+            + ", \"_expiresAsTimestamp\": {\"type\": \"long\"}},"
+            + "\"dynamic_templates\": [{\"sls_keys\": {\"match_mapping_type\": \"string\","
+            + "\"unmatch\": \"_*\", \"mapping\": "
+            + field
+            + "}}]}");
+  }
+
+  private static QueryBuilder filterOf(QueryCompiler compiler, String key, String value) {
+
+    QueryBuilder compiled = compiler.compile(Collections.singletonMap(key, value), "all");
+    return ((BoolQueryBuilder) ((ConstantScoreQueryBuilder) compiled).innerQuery()).filter().get(0);
+  }
+
+  private BoolQueryBuilder compile(Map query, String operator) {
+
+    QueryBuilder compiled = compiler.compile(query, operator);
+    return (BoolQueryBuilder) ((ConstantScoreQueryBuilder) compiled).innerQuery();
+  }
+
+  private static Map<String, Object> query(String key1, Object value1, String key2, Object value2) {
+
+    Map<String, Object> query = new LinkedHashMap<>();
+    query.put(key1, value1);
+    query.put(key2, value2);
+    return query;
+  }
+}
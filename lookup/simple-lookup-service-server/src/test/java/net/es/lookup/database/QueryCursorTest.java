@@ -0,0 +1,50 @@
+package net.es.lookup.database;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.elasticsearch.ElasticsearchStatusException;
+import org.elasticsearch.rest.RestStatus;
+import org.junit.Test;
+
+public class QueryCursorTest {
+
+  @Test
+  public void roundTrip() {
+
+    Object[] sortValues = {"lookup/host/0a8c6b2e-7f3e-4b8f-9c1d-3e2f1a0b9c8d"};
+    String cursor = QueryCursor.encode(sortValues);
+    assertArrayEquals(sortValues, QueryCursor.decode(cursor));
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void invalidCursor() {
+
+    QueryCursor.decode("not a cursor!");
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void emptyCursor() {
+
+    QueryCursor.decode(QueryCursor.encode(new Object[0]));
+  }
+
+  @Test
+  public void rejectedPagesAreBadRequests() {
+
+    // a search_after not matching the sort or a page beyond max_result_window
+    assertTrue(
+        ServiceElasticSearch.isRejectedRequest(
+            new ElasticsearchStatusException("Result window is too large", RestStatus.BAD_REQUEST)));
+    assertFalse(
+        ServiceElasticSearch.isRejectedRequest(
+            new ElasticsearchStatusException("no such index", RestStatus.NOT_FOUND)));
+    assertFalse(
+        ServiceElasticSearch.isRejectedRequest(
+            new ElasticsearchStatusException("rejected execution", RestStatus.TOO_MANY_REQUESTS)));
+    assertFalse(
+        ServiceElasticSearch.isRejectedRequest(
+            new ElasticsearchStatusException("shard failure", RestStatus.INTERNAL_SERVER_ERROR)));
+  }
+}
@@ -0,0 +1,121 @@
+package net.es.lookup.database;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import net.es.lookup.common.Message;
+import org.junit.Test;
+
+public class RecordCacheTest {
+
+  private static final long HOUR = 3600 * 1000L;
+
+  private final RecordCache cache = new RecordCache(100, HOUR);
+
+  @Test
+  public void servesCopiesOfLoadedRecords() {
+
+    load(cache, "a", System.currentTimeMillis() + HOUR);
+    Message cached = cache.get("a");
+    assertEquals("a", cached.getURI());
+
+    cached.add("type", "changed");
+    assertEquals("test", cache.get("a").getRecordType());
+    assertEquals(2, cache.getHits());
+    assertEquals(1, cache.getLoads());
+  }
+
+  @Test
+  public void doesNotKeepRecordsPastTheirExpiry() {
+
+    load(cache, "expired", System.currentTimeMillis() - 1);
+    assertNull(cache.get("expired"));
+    assertEquals(1, cache.getRejectedLoads());
+
+    load(cache, "expiring", System.currentTimeMillis() + 20);
+    assertNotNull(cache.get("expiring"));
+    sleep(40);
+    assertNull(cache.get("expiring"));
+    assertEquals(1, cache.getExpirations());
+  }
+
+  @Test
+  public void ignoresLoadsThatRacedWithAWrite() {
+
+    long stamp = cache.startLoad("a");
+    cache.invalidate("a");
+    cache.put("a", record("a"), System.currentTimeMillis() + HOUR, stamp, System.nanoTime());
+    assertNull(cache.get("a"));
+
+    load(cache, "a", System.currentTimeMillis() + HOUR);
+    cache.invalidate("a");
+    assertNull(cache.get("a"));
+    assertEquals(1, cache.getInvalidations());
+  }
+
+  @Test
+  public void invalidatesExpiredRecords() {
+
+    long now = System.currentTimeMillis();
+    load(cache, "early", now + HOUR);
+    load(cache, "late", now + 2 * HOUR);
+    cache.invalidateExpired(now + HOUR);
+    assertNull(cache.get("early"));
+    assertNotNull(cache.get("late"));
+
+    cache.invalidateAll();
+    assertEquals(0, cache.getSize());
+  }
+
+  @Test
+  public void keepsPopularRecordsDuringAScan() {
+
+    long expires = System.currentTimeMillis() + HOUR;
+    for (int i = 0; i < 100; i++) {
+      String uri = "hot" + i;
+      for (int j = 0; j < 5; j++) {
+        if (cache.get(uri) == null) {
+          load(cache, uri, expires);
+        }
+      }
+    }
+    for (int i = 0; i < 1000; i++) {
+      cache.get("cold" + i);
+      load(cache, "cold" + i, expires);
+    }
+
+    int hot = 0;
+    for (int i = 0; i < 100; i++) {
+      if (cache.get("hot" + i) != null) {
+        hot++;
+      }
+    }
+    assertTrue("only " + hot + " popular records left", hot >= 90);
+    assertTrue(cache.getSize() <= 100);
+    assertTrue(cache.getEvictions() >= 1000);
+  }
+
+  private static void load(RecordCache cache, String uri, long expires) {
+
+    cache.put(uri, record(uri), expires, cache.startLoad(uri), System.nanoTime());
+  }
+
+  private static Message record(String uri) {
+
+    Message record = new Message();
+    record.add("uri", uri);
+    record.add("type", "test");
+    return record;
+  }
+
+  private static void sleep(long millis) {
+
+    try {
+      Thread.sleep(millis);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+}
@@ -0,0 +1,54 @@
+package net.es.lookup.database;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import net.es.lookup.common.Message;
+import net.es.lookup.common.ReservedValues;
+import net.es.lookup.protocol.json.JSONMessage;
+import net.es.lookup.protocol.json.JSONParser;
+import net.es.lookup.records.Network.ServiceRecord;
+import net.es.lookup.records.Record;
+import org.joda.time.DateTime;
+import org.junit.Test;
+
+/** Checks that the short renew response can be read by the client. */
+public class RenewResponseTest {
+
+  private static final String URI = "lookup/service/0a8c6b2e-7f3e-4b8f-9c1d-3e2f1a0b9c8d";
+
+  @Test
+  public void clientParsesLeaseFields() throws Exception {
+
+    String expires = new DateTime().plusHours(2).toString();
+    Message renewed =
+        ServiceElasticSearch.leaseFields(
+            URI,
+            Collections.singletonList(ReservedValues.RECORD_VALUE_TYPE_SERVICE),
+            new ArrayList<>(),
+            expires,
+            ReservedValues.RECORD_VALUE_STATE_RENEW);
+
+    Record record = JSONParser.toRecord(JSONMessage.toString(renewed));
+    assertEquals(ServiceRecord.class, record.getClass());
+    assertEquals(URI, record.getURI());
+    assertNotNull(record.getExpires());
+  }
+
+  @Test
+  public void typeTakenFromUri() throws Exception {
+
+    Message renewed =
+        ServiceElasticSearch.leaseFields(
+            "lookup/host/0a8c6b2e-7f3e-4b8f-9c1d-3e2f1a0b9c8d",
+            null,
+            "PT2H",
+            new DateTime().toString(),
+            ReservedValues.RECORD_VALUE_STATE_RENEW);
+
+    Record record = JSONParser.toRecord(JSONMessage.toString(renewed));
+    assertEquals(ReservedValues.RECORD_VALUE_TYPE_HOST, record.getRecordType());
+  }
+}
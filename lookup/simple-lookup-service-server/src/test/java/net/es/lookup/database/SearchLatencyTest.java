@@ -0,0 +1,30 @@
+package net.es.lookup.database;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.TimeUnit;
+import org.junit.Test;
+
+public class SearchLatencyTest {
+
+  @Test
+  public void noSearchesMeansNoLatency() {
+
+    assertEquals(0, new SearchLatency().getRecentMillis());
+  }
+
+  @Test
+  public void averagesRecentSearches() {
+
+    SearchLatency latency = new SearchLatency();
+    latency.record(System.nanoTime() - TimeUnit.MILLISECONDS.toNanos(100));
+    long first = latency.getRecentMillis();
+    assertTrue(first >= 100);
+
+    latency.record(System.nanoTime());
+    long second = latency.getRecentMillis();
+    assertTrue(second < first);
+    assertTrue(second >= 70);
+  }
+}
@@ -17,9 +17,18 @@ import org.junit.Before;
 import org.junit.BeforeClass;
 import org.junit.Test;
 import java.net.URISyntaxException;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static org.junit.Assert.*;
 
@@ -598,4 +607,109 @@ public class ServiceElasticSearchTest {
     keyValueMap.put(key, record.getKey(key));
     assertNull(keyValueMap.get("random"));
   }
+
+  /**
+   * Queries are not serialized: with more threads than permits, as many searches are in flight at
+   * once as there are permits, and never more. The first searches to get a permit wait for each
+   * other, so the peak does not depend on how fast Elasticsearch answers.
+   *
+   * @throws Exception error running queries
+   */
+  @Test
+  public void searchesRunConcurrentlyUpToThePermits() throws Exception {
+
+    this.queryAndPublishService();
+    Thread.sleep(1000);
+
+    final Message query = new Message();
+    query.add("type", "test");
+    final Message operators = new Message();
+    operators.add("operator", ReservedValues.RECORD_OPERATOR_ALL);
+    operators.add("type", ReservedValues.RECORD_OPERATOR_ALL);
+
+    int permits = 3;
+    int threads = 8;
+    int queries = 40;
+    client.setMaxConcurrentSearches(permits);
+    AtomicInteger inFlight = new AtomicInteger();
+    AtomicInteger peak = new AtomicInteger();
+    CountDownLatch firstSearches = new CountDownLatch(permits);
+    client.setBeforeSearch(
+        () -> {
+          peak.accumulateAndGet(inFlight.incrementAndGet(), Math::max);
+          firstSearches.countDown();
+          try {
+            firstSearches.await(10, TimeUnit.SECONDS);
+          } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+          }
+          inFlight.decrementAndGet();
+        });
+
+    ExecutorService executor = Executors.newFixedThreadPool(threads);
+    List<Future<List<Message>>> results = new ArrayList<>();
+    try {
+      for (int i = 0; i < queries; i++) {
+        results.add(executor.submit(() -> client.query(query, query, operators)));
+      }
+      for (Future<List<Message>> result : results) {
+        assertEquals(1, result.get(10, TimeUnit.SECONDS).size());
+      }
+      assertEquals(permits, peak.get());
+    } finally {
+      executor.shutdownNow();
+      client.setBeforeSearch(null);
+      client.setMaxConcurrentSearches(ServiceElasticSearch.DEFAULT_MAX_CONCURRENT_SEARCHES);
+    }
+  }
+
+  /**
+   * Queries wait for nothing but a search permit: with every permit taken they queue on the
+   * permits, and as many of them run as there are permits released.
+   *
+   * @throws Exception error running queries
+   */
+  @Test
+  public void queriesWaitOnlyForSearchPermits() throws Exception {
+
+    this.queryAndPublishService();
+    Thread.sleep(1000);
+
+    final Message query = new Message();
+    query.add("type", "test");
+    final Message operators = new Message();
+    operators.add("operator", ReservedValues.RECORD_OPERATOR_ALL);
+    operators.add("type", ReservedValues.RECORD_OPERATOR_ALL);
+
+    int queries = 3;
+    client.setMaxConcurrentSearches(queries);
+    Semaphore permits = client.getSearchPermits();
+    // the test stands for searches holding every permit
+    permits.acquire(queries);
+
+    ExecutorService executor = Executors.newFixedThreadPool(queries);
+    List<Future<List<Message>>> results = new ArrayList<>();
+    try {
+      for (int i = 0; i < queries; i++) {
+        results.add(executor.submit(() -> client.query(query, query, operators)));
+      }
+      long deadline = System.currentTimeMillis() + 10000;
+      while (permits.getQueueLength() < queries && System.currentTimeMillis() < deadline) {
+        Thread.sleep(10);
+      }
+      assertEquals(queries, permits.getQueueLength());
+      for (Future<List<Message>> result : results) {
+        assertFalse(result.isDone());
+      }
+
+      permits.release(queries);
+      for (Future<List<Message>> result : results) {
+        assertEquals(1, result.get(10, TimeUnit.SECONDS).size());
+      }
+      assertEquals(queries, permits.availablePermits());
+    } finally {
+      executor.shutdownNow();
+      client.setMaxConcurrentSearches(ServiceElasticSearch.DEFAULT_MAX_CONCURRENT_SEARCHES);
+    }
+  }
 }
@@ -0,0 +1,64 @@
+package net.es.lookup.database;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Collections;
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+import org.junit.Test;
+
+public class TimePartitionsTest {
+
+  private static final long HOUR = 3600 * 1000L;
+
+  private final TimePartitions partitions = new TimePartitions("Lookup", 24 * HOUR);
+
+  @Test
+  public void namesPartitionAfterWindowEnd() {
+
+    long expires = new DateTime(2026, 10, 18, 13, 45, DateTimeZone.UTC).getMillis();
+    assertEquals("lookup-20261019-0000", partitions.indexFor(expires));
+  }
+
+  @Test
+  public void windowEndBelongsToNextPartition() {
+
+    long midnight = new DateTime(2026, 10, 19, 0, 0, DateTimeZone.UTC).getMillis();
+    assertEquals("lookup-20261019-0000", partitions.indexFor(midnight - 1));
+    assertEquals("lookup-20261020-0000", partitions.indexFor(midnight));
+  }
+
+  @Test
+  public void parsesWindowEnd() {
+
+    long midnight = new DateTime(2026, 10, 19, 0, 0, DateTimeZone.UTC).getMillis();
+    assertEquals(Long.valueOf(midnight), partitions.windowEnd("lookup-20261019-0000"));
+    assertNull(partitions.windowEnd("lookup"));
+    assertNull(partitions.windowEnd("lookup-read"));
+    assertNull(partitions.windowEnd("other-20261019-0000"));
+  }
+
+  @Test
+  public void expiredPartitionsEndBeforePruneTime() {
+
+    long pruneBefore = new DateTime(2026, 10, 19, 0, 0, DateTimeZone.UTC).getMillis();
+    assertEquals(
+        Arrays.asList("lookup-20261018-0000", "lookup-20261019-0000"),
+        partitions.expired(
+            Arrays.asList(
+                "lookup-20261020-0000", "lookup-20261019-0000", "lookup", "lookup-20261018-0000"),
+            pruneBefore));
+  }
+
+  @Test
+  public void knownPartitionsIgnoreOtherIndices() {
+
+    partitions.addKnown("lookup-20261018-0000");
+    partitions.setKnown(Arrays.asList("lookup", "lookup-20261019-0000"));
+    assertEquals(Collections.singleton("lookup-20261019-0000"), partitions.getKnown());
+    assertTrue(partitions.expired(partitions.getKnown(), 0).isEmpty());
+  }
+}
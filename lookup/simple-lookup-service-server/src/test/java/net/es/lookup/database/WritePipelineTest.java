@@ -0,0 +1,188 @@
+package net.es.lookup.database;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.DocWriteRequest;
+import org.elasticsearch.action.bulk.BulkItemResponse;
+import org.elasticsearch.action.bulk.BulkRequest;
+import org.elasticsearch.action.bulk.BulkResponse;
+import org.elasticsearch.action.index.IndexRequest;
+import org.elasticsearch.action.index.IndexResponse;
+import org.elasticsearch.index.shard.ShardId;
+import org.junit.After;
+import org.junit.Test;
+
+public class WritePipelineTest {
+
+  private static final long LONG_LINGER_MILLIS = TimeUnit.MINUTES.toMillis(10);
+
+  /** Bulk request sent by the pipeline, answered by the test. */
+  private static class Sent {
+
+    final BulkRequest request;
+    final ActionListener<BulkResponse> listener;
+
+    Sent(BulkRequest request, ActionListener<BulkResponse> listener) {
+      this.request = request;
+      this.listener = listener;
+    }
+  }
+
+  private final BlockingQueue<Sent> sent = new LinkedBlockingQueue<>();
+  private WritePipeline pipeline;
+
+  private WritePipeline pipeline(int batchSize, long lingerMillis) {
+
+    pipeline =
+        new WritePipeline(
+            (request, listener) -> sent.add(new Sent(request, listener)),
+            batchSize,
+            lingerMillis,
+            1,
+            100);
+    return pipeline;
+  }
+
+  @After
+  public void tearDown() {
+
+    if (pipeline != null) {
+      pipeline.close();
+    }
+  }
+
+  private static IndexRequest write(int i) {
+
+    return new IndexRequest("lookup").id("lookup/host/" + i).source("i", i);
+  }
+
+  private static BulkItemResponse indexed(int i) {
+
+    return new BulkItemResponse(
+        i,
+        DocWriteRequest.OpType.INDEX,
+        new IndexResponse(
+            new ShardId("lookup", "_na_", 0), "_doc", "lookup/host/" + i, 0, 1, 1, true));
+  }
+
+  private static BulkItemResponse failed(int i) {
+
+    return new BulkItemResponse(
+        i,
+        DocWriteRequest.OpType.INDEX,
+        new BulkItemResponse.Failure(
+            "lookup", "_doc", "lookup/host/" + i, new IllegalArgumentException("bad mapping")));
+  }
+
+  private Sent nextBulk() throws InterruptedException {
+
+    Sent bulk = sent.poll(5, TimeUnit.SECONDS);
+    assertNotNull("no bulk request was sent", bulk);
+    return bulk;
+  }
+
+  @Test
+  public void flushesWhenBatchIsFull() throws Exception {
+
+    pipeline(3, LONG_LINGER_MILLIS);
+    for (int i = 0; i < 3; i++) {
+      pipeline.submit(write(i));
+    }
+
+    // sent long before the linger is over
+    assertEquals(3, nextBulk().request.numberOfActions());
+  }
+
+  @Test
+  public void flushesWhenLingerIsOver() throws Exception {
+
+    pipeline(100, 50);
+    long start = System.nanoTime();
+    pipeline.submit(write(0));
+    pipeline.submit(write(1));
+
+    Sent bulk = nextBulk();
+    assertEquals(2, bulk.request.numberOfActions());
+    assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(50));
+  }
+
+  @Test
+  public void answersEachWriteWithItsItem() throws Exception {
+
+    pipeline(4, LONG_LINGER_MILLIS);
+    List<CompletableFuture<BulkItemResponse>> results = new ArrayList<>();
+    for (int i = 0; i < 8; i++) {
+      results.add(pipeline.submit(write(i)));
+    }
+
+    Sent first = nextBulk();
+    assertEquals(4, first.request.numberOfActions());
+    // a single batch is in flight until the first one is answered
+    assertNull(sent.poll(100, TimeUnit.MILLISECONDS));
+    BulkItemResponse[] items = {indexed(0), indexed(1), indexed(2), indexed(3)};
+    first.listener.onResponse(new BulkResponse(items, 1));
+
+    Sent second = nextBulk();
+    assertEquals(4, second.request.numberOfActions());
+    assertEquals("lookup/host/4", second.request.requests().get(0).id());
+    for (int i = 0; i < 4; i++) {
+      assertSame(items[i], results.get(i).get(1, TimeUnit.SECONDS));
+    }
+    assertFalse(results.get(4).isDone());
+    assertEquals(1, pipeline.getFlushCount());
+    assertEquals(4, pipeline.getLastBatchSize());
+  }
+
+  @Test
+  public void failsOnlyTheFailedItem() throws Exception {
+
+    pipeline(2, LONG_LINGER_MILLIS);
+    CompletableFuture<BulkItemResponse> ok = pipeline.submit(write(0));
+    CompletableFuture<BulkItemResponse> rejected = pipeline.submit(write(1));
+
+    BulkItemResponse[] items = {indexed(0), failed(1)};
+    nextBulk().listener.onResponse(new BulkResponse(items, 1));
+
+    assertFalse(ok.get(1, TimeUnit.SECONDS).isFailed());
+    BulkItemResponse item = rejected.get(1, TimeUnit.SECONDS);
+    assertTrue(item.isFailed());
+    assertEquals("lookup/host/1", item.getFailure().getId());
+  }
+
+  @Test
+  public void failsEveryWriteOfAFailedBulk() throws Exception {
+
+    pipeline(2, LONG_LINGER_MILLIS);
+    List<CompletableFuture<BulkItemResponse>> results = new ArrayList<>();
+    results.add(pipeline.submit(write(0)));
+    results.add(pipeline.submit(write(1)));
+
+    IOException failure = new IOException("connection reset");
+    nextBulk().listener.onFailure(failure);
+
+    for (CompletableFuture<BulkItemResponse> result : results) {
+      try {
+        result.get(1, TimeUnit.SECONDS);
+        fail("write did not fail");
+      } catch (ExecutionException e) {
+        assertSame(failure, e.getCause());
+      }
+    }
+    assertEquals(0, pipeline.getInFlightBatches());
+  }
+}
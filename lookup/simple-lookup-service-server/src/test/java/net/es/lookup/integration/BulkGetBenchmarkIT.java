@@ -0,0 +1,91 @@
+package net.es.lookup.integration;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import net.es.lookup.common.LeaseManager;
+import net.es.lookup.common.Message;
+import net.es.lookup.common.exception.internal.DatabaseException;
+import net.es.lookup.database.ServiceElasticSearch;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * Compares fetching the records of a bulk renew one GET at a time with a single multi-get.
+ * Timings are logged; the test only checks that both paths return the same records.
+ */
+public class BulkGetBenchmarkIT {
+
+  private static Logger Log = LogManager.getLogger(BulkGetBenchmarkIT.class);
+
+  private static ServiceElasticSearch database;
+
+  @BeforeClass
+  public static void connectsToDatabase() throws Exception {
+
+    if (ServiceElasticSearch.getInstance() != null) {
+      database = ServiceElasticSearch.getInstance();
+    } else {
+      database = new ServiceElasticSearch("localhost", 9200, 9300, "lookup");
+    }
+  }
+
+  @Test
+  public void compareGetAndMultiGet() throws Exception {
+
+    for (int size : new int[] {10, 100, 1000}) {
+
+      database.deleteAllRecords();
+      List<String> uris = publishRecords(size);
+      Thread.sleep(1000);
+
+      // warm up both paths once before timing
+      getOneByOne(uris);
+      database.getRecordsByURIs(uris);
+
+      long start = System.nanoTime();
+      int found = getOneByOne(uris);
+      long sequentialMillis = (System.nanoTime() - start) / 1000000;
+
+      start = System.nanoTime();
+      Map<String, Message> records = database.getRecordsByURIs(uris);
+      long multiGetMillis = (System.nanoTime() - start) / 1000000;
+
+      Log.info(
+          size + " uris: sequential get " + sequentialMillis + "ms, multi-get " + multiGetMillis + "ms");
+      assertEquals(size, found);
+      assertEquals(size, records.size());
+    }
+  }
+
+  private List<String> publishRecords(int count) throws DatabaseException {
+
+    List<String> uris = new ArrayList<>();
+    for (int i = 0; i < count; i++) {
+      Message message = new Message();
+      message.add("type", "test");
+      message.add("uri", "lookup/test/" + i);
+      message.add("test-id", String.valueOf(i));
+      message.add("ttl", "PT10M");
+      LeaseManager.getInstance().requestLease(message);
+      database.publishService(message);
+      uris.add("lookup/test/" + i);
+    }
+    return uris;
+  }
+
+  private int getOneByOne(List<String> uris) throws DatabaseException {
+
+    int found = 0;
+    for (String uri : uris) {
+      if (database.getRecordByURI(uri) != null) {
+        found++;
+      }
+    }
+    return found;
+  }
+}
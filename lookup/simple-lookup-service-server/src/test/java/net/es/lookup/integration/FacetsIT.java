@@ -0,0 +1,103 @@
+package net.es.lookup.integration;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Map;
+import net.es.lookup.common.LeaseManager;
+import net.es.lookup.common.Message;
+import net.es.lookup.database.QueryFacets;
+import net.es.lookup.database.ServiceElasticSearch;
+import org.apache.http.HttpHost;
+import org.elasticsearch.action.admin.indices.refresh.RefreshRequest;
+import org.elasticsearch.client.RequestOptions;
+import org.elasticsearch.client.RestClient;
+import org.elasticsearch.client.RestHighLevelClient;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/** Checks record counts and value facets computed by Elasticsearch aggregations. */
+public class FacetsIT {
+
+  private static final String INDEX = "lookup-facets-it";
+
+  private static ServiceElasticSearch database;
+
+  @BeforeClass
+  public static void publishesCorpus() throws Exception {
+
+    database = new ServiceElasticSearch("localhost", 9200, 9300, INDEX);
+    database.deleteAllRecords();
+
+    String[][] corpus = {
+      {"host", "US"}, {"host", "US"}, {"host", "DE"}, {"service", "US"}, {"service", "FR"}
+    };
+    for (int i = 0; i < corpus.length; i++) {
+      Message message = new Message();
+      message.add("type", corpus[i][0]);
+      message.add("uri", "lookup/facets/" + i);
+      message.add("location-country", corpus[i][1]);
+      message.add("ttl", "PT10M");
+      LeaseManager.getInstance().requestLease(message);
+      database.publishService(message);
+    }
+    try (RestHighLevelClient client =
+        new RestHighLevelClient(RestClient.builder(new HttpHost("localhost", 9200, "http")))) {
+      client.indices().refresh(new RefreshRequest(INDEX), RequestOptions.DEFAULT);
+    }
+  }
+
+  @AfterClass
+  public static void removesCorpus() throws Exception {
+
+    database.deleteAllRecords();
+  }
+
+  @Test
+  public void countsValuesOfMatchingRecords() throws Exception {
+
+    Message query = new Message();
+    query.add("type", "host");
+    QueryFacets facets =
+        database.facets(
+            query,
+            operators(),
+            Collections.singletonList("location-country"),
+            Collections.singletonList("location-country"),
+            10);
+
+    assertEquals(3, facets.getCount());
+    Map<String, Long> countries = facets.getValues().get("location-country");
+    assertEquals(Arrays.asList("US", "DE"), Arrays.asList(countries.keySet().toArray()));
+    assertEquals(Long.valueOf(2), countries.get("US"));
+    assertEquals(Long.valueOf(2), facets.getCardinalities().get("location-country"));
+  }
+
+  @Test
+  public void reportsValuesLeftOut() throws Exception {
+
+    QueryFacets facets =
+        database.facets(
+            new Message(),
+            operators(),
+            Arrays.asList("type", "location-country"),
+            Collections.<String>emptyList(),
+            1);
+
+    assertEquals(5, facets.getCount());
+    assertEquals(Long.valueOf(3), facets.getValues().get("type").get("host"));
+    assertEquals(Long.valueOf(2), facets.getOtherCounts().get("type"));
+    assertEquals(Long.valueOf(2), facets.getOtherCounts().get("location-country"));
+    assertTrue(facets.getCardinalities().isEmpty());
+  }
+
+  private static Message operators() {
+
+    Message operators = new Message();
+    operators.add("operator", "all");
+    return operators;
+  }
+}
@@ -0,0 +1,139 @@
+package net.es.lookup.integration;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeSet;
+import net.es.lookup.database.QueryCompiler;
+import net.es.lookup.utils.config.reader.IndexMapReader;
+import org.apache.http.HttpHost;
+import org.elasticsearch.action.admin.indices.delete.DeleteIndexRequest;
+import org.elasticsearch.action.bulk.BulkRequest;
+import org.elasticsearch.action.index.IndexRequest;
+import org.elasticsearch.action.search.SearchRequest;
+import org.elasticsearch.action.support.WriteRequest;
+import org.elasticsearch.client.RequestOptions;
+import org.elasticsearch.client.RestClient;
+import org.elasticsearch.client.RestHighLevelClient;
+import org.elasticsearch.client.indices.CreateIndexRequest;
+import org.elasticsearch.client.indices.GetIndexRequest;
+import org.elasticsearch.common.xcontent.XContentType;
+import org.elasticsearch.index.query.QueryBuilder;
+import org.elasticsearch.index.query.QueryBuilders;
+import org.elasticsearch.search.SearchHit;
+import org.elasticsearch.search.builder.SearchSourceBuilder;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * Checks that the reversed and n-gram sub-fields of a generated mapping return the same records
+ * as a regexp on the normalized keyword.
+ */
+public class GeneratedMappingIT {
+
+  private static final String INDEX = "lookup-generated-it";
+
+  private static RestHighLevelClient client;
+  private static QueryCompiler compiler;
+
+  @BeforeClass
+  public static void indexesCorpus() throws Exception {
+
+    client = new RestHighLevelClient(RestClient.builder(new HttpHost("localhost", 9200, "http")));
+    if (client.indices().exists(new GetIndexRequest(INDEX), RequestOptions.DEFAULT)) {
+      client.indices().delete(new DeleteIndexRequest(INDEX), RequestOptions.DEFAULT);
+    }
+    String mapping =
+        IndexMapReader.getInstance()
+            .generate(
+                "{\"generate\": {\"enabled\": true, \"reversed\": true, \"ngram\": true},"
+                    + " \"properties\": {\"host-name\": {\"type\": \"keyword\"}}}");
+    CreateIndexRequest create = new CreateIndexRequest(INDEX);
+    create.settings(IndexMapReader.ANALYSIS_SETTINGS, XContentType.JSON);
+    create.mapping(mapping, XContentType.JSON);
+    client.indices().create(create, RequestOptions.DEFAULT);
+    compiler = QueryCompiler.forMapping(mapping);
+
+    String[] hosts = {
+      "host.es.net", "Host.ES.net", "hostXesYnet", "perfsonar.internet2.edu", "ps.geant.org",
+      "es.net", "Internet2", "a.es.net.org"
+    };
+    BulkRequest bulk = new BulkRequest().setRefreshPolicy(WriteRequest.RefreshPolicy.IMMEDIATE);
+    for (int i = 0; i < hosts.length; i++) {
+      Map<String, Object> source = new HashMap<>();
+      source.put("uri", "lookup/generated/" + i);
+      source.put("host-name", Arrays.asList(hosts[i], "node" + i + ".example.org"));
+      source.put("group-domains", hosts[(i + 1) % hosts.length]);
+      bulk.add(new IndexRequest(INDEX).id(Integer.toString(i)).source(source));
+    }
+    client.bulk(bulk, RequestOptions.DEFAULT);
+  }
+
+  @AfterClass
+  public static void removesIndex() throws Exception {
+
+    client.indices().delete(new DeleteIndexRequest(INDEX), RequestOptions.DEFAULT);
+    client.close();
+  }
+
+  @Test
+  public void suffixes() throws Exception {
+
+    compare("host-name", "*.es.net", "*.ES.NET", "*net", "*.org");
+    compare("group-domains", "*.es.net", "*Internet2");
+  }
+
+  @Test
+  public void infixes() throws Exception {
+
+    compare("host-name", "*.es.*", "*INTERNET*", "*example*", "*ps.g*");
+    compare("group-domains", "*.es.*");
+  }
+
+  @Test
+  public void otherGlobs() throws Exception {
+
+    compare("host-name", "HOST*", "host.*.net", "*", "*es*", "ps.geant.org");
+  }
+
+  private void compare(String key, String... globs) throws Exception {
+
+    for (String glob : globs) {
+      TreeSet<String> expected =
+          search(QueryBuilders.regexpQuery(key, regexpOf(glob.toLowerCase())));
+      TreeSet<String> actual =
+          search(compiler.compile(Collections.singletonMap(key, glob), "all"));
+      assertEquals(key + "=" + glob, expected, actual);
+      assertFalse(key + "=" + glob + " matches nothing", expected.isEmpty());
+    }
+  }
+
+  private static String regexpOf(String glob) {
+
+    StringBuilder regexp = new StringBuilder();
+    for (char c : glob.toCharArray()) {
+      if (c == '*') {
+        regexp.append(".*");
+      } else {
+        regexp.append(Character.isLetterOrDigit(c) ? "" : "\\").append(c);
+      }
+    }
+    return regexp.toString();
+  }
+
+  private static TreeSet<String> search(QueryBuilder query) throws Exception {
+
+    SearchRequest request = new SearchRequest(INDEX);
+    request.source(new SearchSourceBuilder().query(query).size(1000));
+    TreeSet<String> uris = new TreeSet<>();
+    for (SearchHit hit : client.search(request, RequestOptions.DEFAULT).getHits().getHits()) {
+      uris.add((String) hit.getSourceAsMap().get("uri"));
+    }
+    return uris;
+  }
+}
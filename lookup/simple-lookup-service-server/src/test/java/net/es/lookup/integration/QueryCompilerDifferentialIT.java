@@ -0,0 +1,195 @@
+package net.es.lookup.integration;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import net.es.lookup.common.LeaseManager;
+import net.es.lookup.common.Message;
+import net.es.lookup.database.ServiceElasticSearch;
+import net.es.lookup.utils.config.reader.IndexMapReader;
+import org.apache.http.HttpHost;
+import org.elasticsearch.action.admin.indices.refresh.RefreshRequest;
+import org.elasticsearch.action.search.SearchRequest;
+import org.elasticsearch.client.RequestOptions;
+import org.elasticsearch.client.RestClient;
+import org.elasticsearch.client.RestHighLevelClient;
+import org.elasticsearch.index.query.BoolQueryBuilder;
+import org.elasticsearch.index.query.QueryBuilders;
+import org.elasticsearch.search.SearchHit;
+import org.elasticsearch.search.builder.SearchSourceBuilder;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * Runs the same queries through the query compiler and through the scored match/regexp query the
+ * server built before, and checks that both return the same records.
+ */
+public class QueryCompilerDifferentialIT {
+
+  private static final String INDEX = "lookup-compiler-it";
+
+  private static ServiceElasticSearch database;
+  private static RestHighLevelClient client;
+
+  @BeforeClass
+  public static void publishesCorpus() throws Exception {
+
+    // the shipped mapping, without the generated keyword fields
+    String mapping =
+        IndexMapReader.getInstance()
+            .generate(
+                new String(Files.readAllBytes(Paths.get("etc/mapping.json")), StandardCharsets.UTF_8));
+    database = new ServiceElasticSearch("localhost", 9200, 9300, INDEX, mapping);
+    client = new RestHighLevelClient(RestClient.builder(new HttpHost("localhost", 9200, "http")));
+    database.deleteAllRecords();
+
+    String[][] corpus = {
+      {"host", "host.es.net", "Berkeley Lab"},
+      {"host", "Host.ES.net", "berkeley"},
+      {"host", "perfsonar.internet2.edu", "Ann Arbor"},
+      {"interface", "host.es.net", "lab"},
+      {"service", "ps.geant.org", "Cambridge Lab"},
+      {"service", "host", "Berkeley"},
+    };
+    for (int i = 0; i < corpus.length; i++) {
+      Message message = new Message();
+      message.add("type", corpus[i][0]);
+      message.add("uri", "lookup/compiler/" + i);
+      message.add("host-name", Arrays.asList(corpus[i][1], "node" + i + ".example.org"));
+      message.add("test-label", corpus[i][2]);
+      message.add("ttl", "PT10M");
+      LeaseManager.getInstance().requestLease(message);
+      database.publishService(message);
+    }
+    client.indices().refresh(new RefreshRequest(INDEX), RequestOptions.DEFAULT);
+  }
+
+  @AfterClass
+  public static void removesCorpus() throws Exception {
+
+    database.deleteAllRecords();
+    client.close();
+  }
+
+  @Test
+  public void exactValues() throws Exception {
+
+    compare(query("type", "host"), "all");
+    compare(query("type", "host"), "any");
+    compare(query("host-name", "Host.ES.net"), "all");
+    compare(query("type", "missing"), "all");
+  }
+
+  @Test
+  public void wildcards() throws Exception {
+
+    compare(query("host-name", "host*"), "all");
+    compare(query("host-name", "Host.ES*"), "any");
+    compare(query("host-name", "*es*"), "all");
+    compare(query("host-name", "*"), "any");
+    compare(query("host-name", "perfsonar.internet2.*"), "all");
+  }
+
+  @Test
+  public void lists() throws Exception {
+
+    compare(query("type", Arrays.asList("host", "service")), "any");
+    compare(query("type", Arrays.asList("host", "service")), "all");
+    compare(query("host-name", Arrays.asList("host.es.net", "node0.example.org")), "all");
+    compare(query("host-name", Arrays.asList("host.es.net", "ps*")), "any");
+  }
+
+  @Test
+  public void severalKeys() throws Exception {
+
+    Map<String, Object> query = new LinkedHashMap<>();
+    query.put("type", "host");
+    query.put("host-name", "host*");
+    compare(query, "all");
+    compare(query, "any");
+  }
+
+  @Test
+  public void analyzedFields() throws Exception {
+
+    compare(query("test-label", "Berkeley"), "all");
+    compare(query("test-label", "lab"), "any");
+    compare(query("test-label", "berk*"), "all");
+  }
+
+  @Test
+  public void emptyQuery() throws Exception {
+
+    compare(Collections.<String, Object>emptyMap(), "any");
+  }
+
+  private static Map<String, Object> query(String key, Object value) {
+
+    return Collections.singletonMap(key, value);
+  }
+
+  private void compare(Map<String, Object> query, String operator) throws Exception {
+
+    SearchRequest legacy = new SearchRequest(INDEX);
+    legacy.source(new SearchSourceBuilder().query(legacyQuery(query, operator)).size(1000));
+    TreeSet<String> expected = new TreeSet<>();
+    for (SearchHit hit : client.search(legacy, RequestOptions.DEFAULT).getHits().getHits()) {
+      expected.add((String) hit.getSourceAsMap().get("uri"));
+    }
+
+    Message queryRequest = new Message(query);
+    Message operators = new Message();
+    operators.add("operator", operator);
+    TreeSet<String> actual = new TreeSet<>();
+    for (Message record : database.query(new Message(), queryRequest, operators, 1000)) {
+      actual.add(record.getURI());
+    }
+
+    assertEquals(operator + " " + query, expected, actual);
+    if (!query.isEmpty() && !query.containsValue("missing")) {
+      assertFalse(operator + " " + query + " matches nothing", expected.isEmpty());
+    }
+  }
+
+  /**
+   * The query the server built before the compiler. A wildcard in a list under "all" used to be
+   * sent without conversion, which the compiler fixes, so it is converted here as well.
+   */
+  private static BoolQueryBuilder legacyQuery(Map<String, Object> query, String operator) {
+
+    boolean all = operator.equalsIgnoreCase("all");
+    BoolQueryBuilder bool = QueryBuilders.boolQuery();
+    for (Map.Entry<String, Object> entry : query.entrySet()) {
+      List<?> values =
+          entry.getValue() instanceof List
+              ? (List<?>) entry.getValue()
+              : Collections.singletonList(entry.getValue());
+      for (Object each : values) {
+        String value = (String) each;
+        if (value.contains("*")) {
+          String regex = value.toLowerCase().replace("*", ".*");
+          if (all) {
+            bool.must(QueryBuilders.regexpQuery(entry.getKey(), regex));
+          } else {
+            bool.should(QueryBuilders.regexpQuery(entry.getKey(), regex));
+          }
+        } else if (all) {
+          bool.must(QueryBuilders.matchQuery(entry.getKey(), value));
+        } else {
+          bool.should(QueryBuilders.matchQuery(entry.getKey(), value));
+        }
+      }
+    }
+    return bool;
+  }
+}
@@ -0,0 +1,54 @@
+package net.es.lookup.protocol.json;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import net.es.lookup.common.Message;
+import org.junit.Test;
+
+public class JSONArrayStreamWriterTest {
+
+  private Message record(int i) {
+
+    Message message = new Message();
+    message.add("type", Collections.singletonList("host"));
+    message.add("uri", "lookup/host/" + i);
+    message.add("host-name", Arrays.asList("host" + i + ".es.net", "alias" + i + ".es.net"));
+    return message;
+  }
+
+  @Test
+  public void pagedOutputMatchesJSONMessage() throws Exception {
+
+    List<Message> all = new ArrayList<>();
+    List<Message> first = Arrays.asList(record(1), record(2));
+    List<Message> second = Collections.singletonList(record(3));
+    all.addAll(first);
+    all.addAll(second);
+
+    StringWriter out = new StringWriter();
+    JSONArrayStreamWriter writer = new JSONArrayStreamWriter(out);
+    writer.begin();
+    writer.writePage(first);
+    writer.writePage(Collections.<Message>emptyList());
+    writer.writePage(second);
+    writer.end();
+
+    assertEquals(JSONMessage.toString(all), out.toString());
+  }
+
+  @Test
+  public void emptyOutputMatchesJSONMessage() throws Exception {
+
+    StringWriter out = new StringWriter();
+    JSONArrayStreamWriter writer = new JSONArrayStreamWriter(out);
+    writer.begin();
+    writer.end();
+
+    assertEquals(JSONMessage.toString(new ArrayList<Message>()), out.toString());
+  }
+}
@@ -0,0 +1,133 @@
+package net.es.lookup.protocol.json;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import org.junit.Test;
+
+public class JSONBulkRegisterRequestTest {
+
+  @Test
+  public void parsesJsonArray() {
+
+    String bulkRegister =
+        "[{'type':['host'],'host-name':['a.es.net']},{'type':['interface'],'interface-name':['eth0']}]";
+    JSONBulkRegisterRequest request = new JSONBulkRegisterRequest(bulkRegister, 10);
+
+    assertEquals(JSONBulkRegisterRequest.VALID, request.getStatus());
+    assertEquals(2, request.getRecords().size());
+    assertEquals("host", request.getRecords().get(0).getRecordType());
+    assertEquals("interface", request.getRecords().get(1).getRecordType());
+  }
+
+  @Test
+  public void parsesNdjson() {
+
+    String bulkRegister =
+        "{\"type\":[\"host\"],\"host-name\":[\"a.es.net\"]}\n"
+            + "\n"
+            + "{\"type\":[\"service\"],\"service-name\":[\"bwctl\"]}\n";
+    JSONBulkRegisterRequest request = new JSONBulkRegisterRequest(bulkRegister, 10);
+
+    assertEquals(JSONBulkRegisterRequest.VALID, request.getStatus());
+    assertEquals(2, request.getRecords().size());
+    assertEquals("service", request.getRecords().get(1).getRecordType());
+  }
+
+  @Test
+  public void keepsPositionOfMalformedRecord() {
+
+    String bulkRegister = "[{'type':['host']}, 'not a record', {'type':['person']}]";
+    JSONBulkRegisterRequest request = new JSONBulkRegisterRequest(bulkRegister, 10);
+
+    assertEquals(JSONBulkRegisterRequest.VALID, request.getStatus());
+    assertEquals(3, request.getRecords().size());
+    assertEquals(
+        JSONRegisterRequest.INCORRECT_FORMAT, request.getRecords().get(1).getStatus());
+    assertEquals("person", request.getRecords().get(2).getRecordType());
+  }
+
+  @Test
+  public void keepsPositionOfMalformedLine() {
+
+    String bulkRegister =
+        "{\"type\":[\"host\"]}\n"
+            + "{\"type\":[\"host\"],\n"
+            + "{\"type\":[\"service\"]} trailing\n"
+            + "{\"type\":[\"person\"]}";
+    JSONBulkRegisterRequest request = new JSONBulkRegisterRequest(bulkRegister, 10);
+
+    assertEquals(JSONBulkRegisterRequest.VALID, request.getStatus());
+    assertEquals(4, request.getRecords().size());
+    assertEquals(
+        JSONRegisterRequest.INCORRECT_FORMAT, request.getRecords().get(1).getStatus());
+    assertEquals(
+        JSONRegisterRequest.INCORRECT_FORMAT, request.getRecords().get(2).getStatus());
+    assertEquals("person", request.getRecords().get(3).getRecordType());
+  }
+
+  @Test
+  public void rejectsMalformedArray() {
+
+    JSONBulkRegisterRequest request =
+        new JSONBulkRegisterRequest("[{'type':['host']} {'type':['person']}]", 10);
+
+    assertEquals(JSONBulkRegisterRequest.INCORRECT_FORMAT, request.getStatus());
+    assertTrue(request.getRecords().isEmpty());
+  }
+
+  @Test
+  public void stopsReadingPastTheMaximumRecords() {
+
+    StringBuilder records = new StringBuilder();
+    for (int i = 0; i < 3; i++) {
+      records.append("{\"type\":[\"host\"]}\n");
+    }
+    // nothing after the record beyond the maximum is read
+    InputStream body =
+        new ByteArrayInputStream(
+            (records + "{\"type\":[\"host\"]}\n" + "not json").getBytes(StandardCharsets.UTF_8));
+
+    assertEquals(
+        JSONBulkRegisterRequest.VALID,
+        new JSONBulkRegisterRequest(records.toString(), 3).getStatus());
+    JSONBulkRegisterRequest request = new JSONBulkRegisterRequest(body, 2);
+    assertEquals(JSONBulkRegisterRequest.TOO_MANY_RECORDS, request.getStatus());
+    assertTrue(request.getRecords().isEmpty());
+  }
+
+  @Test
+  public void keepsOnlyStrings() {
+
+    JSONBulkRegisterRequest request =
+        new JSONBulkRegisterRequest("[{'type':'host','host-name':['a',1],'ttl':2}]", 10);
+
+    assertEquals(1, request.getRecords().size());
+    JSONRegisterRequest record = request.getRecords().get(0);
+    assertEquals("host", record.getRecordType());
+    assertEquals(Arrays.asList("a", ""), record.getMap().get("host-name"));
+    assertNull(record.getMap().get("ttl"));
+  }
+
+  @Test
+  public void acceptsEmptyArray() {
+
+    JSONBulkRegisterRequest request = new JSONBulkRegisterRequest(" [ ] ", 10);
+
+    assertEquals(JSONBulkRegisterRequest.VALID, request.getStatus());
+    assertTrue(request.getRecords().isEmpty());
+  }
+
+  @Test
+  public void rejectsEmptyBody() {
+
+    JSONBulkRegisterRequest request = new JSONBulkRegisterRequest("  ", 10);
+
+    assertEquals(JSONBulkRegisterRequest.INCORRECT_FORMAT, request.getStatus());
+  }
+}
@@ -0,0 +1,121 @@
+package net.es.lookup.protocol.json;
+
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import net.es.lookup.common.Message;
+import net.sf.json.JSONArray;
+import net.sf.json.JSONObject;
+import net.sf.json.util.JSONTokener;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Compares parsing register bodies with json-lib, as JSONRegisterRequest used to, with
+ * JSONRecordParser. The bodies are host and interface records as registered by perfSONAR. Run
+ * with -prof gc to compare allocations too. Not run by the build; after mvn test-compile run main
+ * with the test classpath.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class JSONRecordParserBenchmark {
+
+  private static final String HOST =
+      "{\"type\":[\"host\"],\"host-name\":[\"ps1.es.net\",\"198.129.254.30\","
+          + "\"2001:400:201:1150::3\"],\"host-hardware-memory\":[\"16384 MB\"],"
+          + "\"host-hardware-processorspeed\":[\"2400 MHz\"],\"host-hardware-processorcount\":[\"2\"],"
+          + "\"host-hardware-processorcore\":[\"16\"],\"host-os-name\":[\"CentOS\"],"
+          + "\"host-os-version\":[\"7.9.2009\"],\"host-os-kernel\":[\"Linux 3.10.0-1160.el7.x86_64\"],"
+          + "\"host-net-tcp-congestionalgorithm\":[\"htcp\"],\"host-net-tcp-maxbuffer-send\":[\"536870912 bytes\"],"
+          + "\"host-net-tcp-maxbuffer-recv\":[\"536870912 bytes\"],\"host-net-interfaces\":["
+          + "\"lookup/interface/2d1d4d2c-76c8-4a4c-8e5c-3a0f0b8c2a11\"],"
+          + "\"host-administrators\":[\"lookup/person/6f1e2b0a-0c5d-4b8e-9d33-1f8d5c7e2b44\"],"
+          + "\"location-sitename\":[\"ESnet\"],\"location-city\":[\"Berkeley\"],"
+          + "\"location-state\":[\"CA\"],\"location-country\":[\"US\"],\"location-code\":[\"94720\"],"
+          + "\"location-latitude\":[\"37.8762\"],\"location-longitude\":[\"-122.2474\"],"
+          + "\"group-communities\":[\"ESnet\",\"LHC\",\"perfSONAR\"],"
+          + "\"pshost-bundle\":[\"perfsonar-toolkit\"],\"pshost-bundle-version\":[\"4.4.0\"],"
+          + "\"pshost-toolkitversion\":[\"4.4.0\"],\"ttl\":[\"PT2H\"],"
+          + "\"client-uuid\":[\"0d0ac0d2-1c3e-4bb9-a0a8-7e52a3f6d9a1\"]}";
+
+  private static final String INTERFACE =
+      "{\"type\":[\"interface\"],\"interface-name\":[\"eth0\"],"
+          + "\"interface-addresses\":[\"ps1.es.net\",\"198.129.254.30\",\"2001:400:201:1150::3\"],"
+          + "\"interface-subnet\":[\"198.129.254.0/24\"],\"interface-capacity\":[\"10000000000\"],"
+          + "\"interface-mac\":[\"00:1b:21:8a:9c:3d\"],\"interface-mtu\":[\"9000\"],"
+          + "\"group-communities\":[\"ESnet\",\"LHC\"],\"ttl\":[\"PT2H\"],"
+          + "\"client-uuid\":[\"0d0ac0d2-1c3e-4bb9-a0a8-7e52a3f6d9a1\"]}";
+
+  @Param({"host", "interface"})
+  public String record;
+
+  private String body;
+  private byte[] bytes;
+
+  @Setup
+  public void selectsRecord() {
+
+    body = record.equals("host") ? HOST : INTERFACE;
+    bytes = body.getBytes(StandardCharsets.UTF_8);
+  }
+
+  @Benchmark
+  public Message jsonLib() {
+
+    // what JSONRegisterRequest did before JSONRecordParser
+    Message message = new Message();
+    JSONObject object = (JSONObject) new JSONTokener(body).nextValue();
+    for (Object key : object.keySet()) {
+      Object value = object.get(key);
+      if (value instanceof String) {
+        List<String> values = new ArrayList<>(1);
+        values.add((String) value);
+        message.add(key.toString(), values);
+      } else if (value instanceof List) {
+        JSONArray values = new JSONArray();
+        for (Object o : (List) value) {
+          values.add(o instanceof String ? o : "");
+        }
+        message.add(key.toString(), values);
+      }
+    }
+    return message;
+  }
+
+  @Benchmark
+  public Message recordParserFromString() {
+
+    return new JSONRegisterRequest(body);
+  }
+
+  @Benchmark
+  public Message recordParserFromStream() {
+
+    return new JSONRegisterRequest(new ByteArrayInputStream(bytes));
+  }
+
+  public static void main(String[] args) throws RunnerException {
+
+    new Runner(
+            new OptionsBuilder().include(JSONRecordParserBenchmark.class.getSimpleName()).build())
+        .run();
+  }
+}
@@ -0,0 +1,151 @@
+package net.es.lookup.protocol.json;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import net.es.lookup.common.Message;
+import net.es.lookup.common.ReservedKeys;
+import org.junit.Test;
+
+public class JSONRecordParserTest {
+
+  private static Message parse(String body) throws Exception {
+
+    Message message = new Message();
+    assertTrue(new JSONRecordParser(new StringReader(body)).parseInto(message));
+    return message;
+  }
+
+  private static void assertRejected(JSONRecordParser parser) throws Exception {
+
+    try {
+      parser.parseInto(new Message());
+      fail("parsed a body that should be rejected");
+    } catch (JSONParseException e) {
+      // expected
+    }
+  }
+
+  private static void assertRejected(String body) throws Exception {
+
+    assertRejected(new JSONRecordParser(new StringReader(body)));
+  }
+
+  @Test
+  public void parsesValues() throws Exception {
+
+    Message message =
+        parse(
+            "{\"type\": [\"host\"], 'host-name': ['a.es.net', \"b\\\\\\\"\\u00e9\\n\"],"
+                + " \"n\": -12, \"x\": 1.5e3, \"t\": true, \"f\": false, \"z\": null,"
+                + " \"o\": {\"k\": []}}");
+
+    assertEquals(Collections.singletonList("host"), message.getKey("type"));
+    assertEquals(Arrays.asList("a.es.net", "b\\\"\u00e9\n"), message.getKey("host-name"));
+    assertEquals(-12L, message.getKey("n"));
+    assertEquals(1500.0, message.getKey("x"));
+    assertEquals(Boolean.TRUE, message.getKey("t"));
+    assertEquals(Boolean.FALSE, message.getKey("f"));
+    assertTrue(message.hasKey("z"));
+    assertNull(message.getKey("z"));
+    assertEquals(Collections.emptyList(), ((Map) message.getKey("o")).get("k"));
+  }
+
+  @Test
+  public void sharesReservedKeys() throws Exception {
+
+    Message message = parse("{\"uri\": \"lookup/host/1\", \"not-reserved\": \"\"}");
+    for (Object key : message.getMap().keySet()) {
+      if (key.equals(ReservedKeys.RECORD_URI)) {
+        assertSame(ReservedKeys.RECORD_URI, key);
+      }
+    }
+  }
+
+  @Test
+  public void reportsEmptyBodies() throws Exception {
+
+    assertFalse(new JSONRecordParser(new StringReader(" \n ")).parseInto(new Message()));
+  }
+
+  @Test
+  public void rejectsMalformedBodies() throws Exception {
+
+    assertRejected("[]");
+    assertRejected("{\"a\": }");
+    assertRejected("{\"a\": [1,]}");
+    assertRejected("{\"a\": \"b\"");
+    assertRejected("{\"a\": \"b\"} {}");
+    assertRejected("{a: \"b\"}");
+    assertRejected("{\"a\": \"b\nc\"}");
+    assertRejected("{\"a\": nul}");
+    assertRejected("{\"a\": 1.2.3}");
+  }
+
+  @Test
+  public void enforcesLimits() throws Exception {
+
+    String nested = "{\"a\": [[[\"b\"]]]}";
+    parse(nested);
+    assertRejected(new JSONRecordParser(new StringReader(nested), 1024, 3));
+
+    char[] value = new char[10000];
+    Arrays.fill(value, 'x');
+    String body = "{\"a\": \"" + new String(value) + "\"}";
+    parse(body);
+    assertRejected(new JSONRecordParser(new StringReader(body), 5000, 8));
+  }
+
+  @Test
+  public void readsUtf8Streams() throws Exception {
+
+    Message message = new Message();
+    new JSONRecordParser(
+            new ByteArrayInputStream(
+                "{\"location-city\": [\"Z\u00fcrich\"]}".getBytes(StandardCharsets.UTF_8)))
+        .parseInto(message);
+    assertEquals(Collections.singletonList("Z\u00fcrich"), message.getKey("location-city"));
+  }
+
+  @Test
+  public void keepsRegisterRequestFormat() {
+
+    JSONRegisterRequest request =
+        new JSONRegisterRequest("{'type': 'host', 'host-name': ['a', 1], 'ttl': 2}");
+    assertEquals(0, request.getStatus());
+    assertEquals(Collections.singletonList("host"), request.getKey("type"));
+    assertEquals(Arrays.asList("a", ""), request.getKey("host-name"));
+    assertFalse(request.hasKey("ttl"));
+
+    assertEquals(
+        JSONRegisterRequest.INCORRECT_FORMAT, new JSONRegisterRequest("").getStatus());
+    assertEquals(
+        JSONRegisterRequest.INCORRECT_FORMAT, new JSONRegisterRequest("['host']").getStatus());
+  }
+
+  @Test
+  public void acceptsEmptyRenewAndDeleteBodies() {
+
+    assertEquals(JSONRenewRequest.VALID, new JSONRenewRequest("").getStatus());
+    assertEquals(JSONDeleteRequest.VALID, new JSONDeleteRequest("").getStatus());
+    assertEquals(
+        JSONRenewRequest.INCORRECT_FORMAT, new JSONRenewRequest("{'ttl':").getStatus());
+
+    List<?> uris =
+        (List<?>)
+            new JsonBulkRenewRequest("{\"record-uris\": [\"a\", \"b\"]}")
+                .getKey(ReservedKeys.RECORD_BULK_URIS);
+    assertEquals(2, uris.size());
+  }
+}
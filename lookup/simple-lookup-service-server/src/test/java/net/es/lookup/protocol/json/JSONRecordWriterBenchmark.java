@@ -0,0 +1,118 @@
+package net.es.lookup.protocol.json;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import net.es.lookup.common.Message;
+import net.es.lookup.common.exception.internal.DataFormatException;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Compares serializing a page of records with JSONMessage and encoding the string to UTF-8, as
+ * responses used to be written, with JSONRecordWriter. The records look like the host and
+ * service records returned by a query-all. Not run by the build; after mvn test-compile run
+ * main with the test classpath.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class JSONRecordWriterBenchmark {
+
+  @Param({"10", "1000"})
+  public int records;
+
+  private List<Message> page;
+
+  @Setup
+  public void createsRecords() {
+
+    page = new ArrayList<>();
+    for (int i = 0; i < records; i++) {
+      Message message = new Message();
+      message.add("type", Arrays.asList("service"));
+      message.add("uri", "lookup/service/" + i);
+      message.add("expires", "2020-01-01T00:00:00.000Z");
+      message.add("ttl", Arrays.asList("PT2H"));
+      message.add("service-name", Arrays.asList("perfSONAR BWCTL Server at host" + i));
+      message.add("service-locator", Arrays.asList("tcp://host" + i + ".es.net:4823"));
+      message.add("service-type", Arrays.asList("bwctl"));
+      message.add("location-city", Arrays.asList("Z\u00fcrich"));
+      message.add("location-latitude", Arrays.asList("47.3769"));
+      message.add("location-longitude", Arrays.asList("8.5417"));
+      message.add("group-communities", Arrays.asList("ESnet", "LHC", "Internet2"));
+      page.add(message);
+    }
+  }
+
+  @Benchmark
+  public void jsonMessage(Blackhole blackhole) throws DataFormatException {
+
+    blackhole.consume(JSONMessage.toString(page).getBytes(StandardCharsets.UTF_8));
+  }
+
+  @Benchmark
+  public void recordWriterToBytes(Blackhole blackhole) throws DataFormatException {
+
+    blackhole.consume(JSONRecordWriter.toBytes(page));
+  }
+
+  @Benchmark
+  public void recordWriterToStream(Blackhole blackhole)
+      throws IOException, DataFormatException {
+
+    try (JSONRecordWriter writer = new JSONRecordWriter(new BlackholeStream(blackhole))) {
+      writer.beginArray();
+      writer.writeRecords(page);
+      writer.endArray();
+    }
+  }
+
+  public static void main(String[] args) throws RunnerException {
+
+    new Runner(
+            new OptionsBuilder().include(JSONRecordWriterBenchmark.class.getSimpleName()).build())
+        .run();
+  }
+
+  /** Stands for the response stream, without the cost of copying the bytes. */
+  private static final class BlackholeStream extends OutputStream {
+
+    private final Blackhole blackhole;
+
+    BlackholeStream(Blackhole blackhole) {
+      this.blackhole = blackhole;
+    }
+
+    @Override
+    public void write(int b) {
+      blackhole.consume(b);
+    }
+
+    @Override
+    public void write(byte[] bytes, int offset, int length) {
+      blackhole.consume(bytes);
+      blackhole.consume(length);
+    }
+  }
+}
@@ -0,0 +1,88 @@
+package net.es.lookup.protocol.json;
+
+import static org.junit.Assert.assertArrayEquals;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import net.es.lookup.common.Message;
+import org.junit.Test;
+
+public class JSONRecordWriterTest {
+
+  private Message record(int i) {
+
+    Message message = new Message();
+    message.add("type", Collections.singletonList("host"));
+    message.add("uri", "lookup/host/" + i);
+    message.add("host-name", Arrays.asList("host" + i + ".es.net", "alias" + i + ".es.net"));
+    return message;
+  }
+
+  private static byte[] utf8(String text) {
+
+    return text.getBytes(StandardCharsets.UTF_8);
+  }
+
+  @Test
+  public void matchesJSONMessage() throws Exception {
+
+    List<Message> records = Arrays.asList(record(1), record(2), record(3));
+    assertArrayEquals(utf8(JSONMessage.toString(records)), JSONRecordWriter.toBytes(records));
+    assertArrayEquals(
+        utf8(JSONMessage.toString(records, "records")),
+        JSONRecordWriter.toBytes(records, "records"));
+    assertArrayEquals(
+        utf8(JSONMessage.toString(new ArrayList<Message>())),
+        JSONRecordWriter.toBytes(new ArrayList<Message>()));
+  }
+
+  @Test
+  public void escapesLikeJSONMessage() throws Exception {
+
+    Message message = new Message();
+    message.add("quotes", "say \"hi\" \\ there");
+    message.add("controls", "a\bb\tc\nd\fe\rf\u0001g\u001fh");
+    message.add("slashes", "</script> a/b <a/>");
+    message.add("unicode", "caf\u00e9 \u6771\u4eac \ud83d\ude00 \u007f");
+    message.add("null", "null");
+    message.add("empty", "");
+    message.add("function", "function(a) { return a; }");
+    message.add("key \"quoted\"", Arrays.asList("null", "", "x</y"));
+    message.add("numbers", Arrays.<Object>asList(1L, 2.50, 3.0, 1e21, 7));
+    message.add("flags", Arrays.<Object>asList(true, null));
+    message.add("expires", 12L);
+    List<Message> records = Arrays.asList(message, new Message());
+
+    assertArrayEquals(utf8(JSONMessage.toString(records)), JSONRecordWriter.toBytes(records));
+  }
+
+  @Test
+  public void streamsLikeJSONMessage() throws Exception {
+
+    // long enough values to run over the buffer several times
+    List<Message> records = new ArrayList<>();
+    for (int i = 0; i < 200; i++) {
+      Message message = record(i);
+      char[] description = new char[500];
+      Arrays.fill(description, i % 2 == 0 ? '\u00e9' : '\n');
+      message.add("description", new String(description));
+      records.add(message);
+    }
+
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    try (JSONRecordWriter writer = new JSONRecordWriter(out)) {
+      writer.beginArray();
+      writer.writeRecords(records.subList(0, 50));
+      writer.writeRecords(Collections.<Message>emptyList());
+      writer.flush();
+      writer.writeRecords(records.subList(50, 200));
+      writer.endArray();
+    }
+
+    assertArrayEquals(utf8(JSONMessage.toString(records)), out.toByteArray());
+  }
+}
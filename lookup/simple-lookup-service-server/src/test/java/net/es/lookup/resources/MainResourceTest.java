@@ -14,7 +14,10 @@ import org.junit.Before;
 import org.junit.BeforeClass;
 import org.junit.Test;
 
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
 import java.net.URISyntaxException;
+import java.nio.charset.StandardCharsets;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.UUID;
@@ -101,7 +104,7 @@ public class MainResourceTest {
       }
     }
     sb.append("]}");
-    String response = request.bulkRenewHandler(sb.toString());
+    String response = request.bulkRenewHandler(body(sb.toString()));
     Map<String, String> responseMap = this.getStringMap(response);
     assertEquals("2", responseMap.get("renewed"));
   }
@@ -129,7 +132,7 @@ public class MainResourceTest {
       }
     }
     sb.append("]}");
-    String response = request.bulkRenewHandler(sb.toString());
+    String response = request.bulkRenewHandler(body(sb.toString()));
     Map<String, String> responseMap = this.getStringMap(response);
     assertEquals("1", responseMap.get("renewed"));
   }
@@ -139,7 +142,7 @@ public class MainResourceTest {
    *
    * @return json Message as string
    */
-  private String jsonMessage(int seed) {
+  private InputStream jsonMessage(int seed) {
     Message message = new Message();
     message.add("type", "test");
 
@@ -156,7 +159,11 @@ public class MainResourceTest {
     DateTime dateTime = new DateTime();
     message.add("expires", dateTime.plus(10000).plus(seed).toString());
     Gson gson = new Gson();
-    return gson.toJson(message.getMap());
+    return body(gson.toJson(message.getMap()));
+  }
+
+  private static InputStream body(String json) {
+    return new ByteArrayInputStream(json.getBytes(StandardCharsets.UTF_8));
   }
 
   private Map<String, String> getStringMap(String added) {
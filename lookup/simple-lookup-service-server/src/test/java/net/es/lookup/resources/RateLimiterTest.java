@@ -0,0 +1,85 @@
+package net.es.lookup.resources;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import net.es.lookup.resources.RateLimiter.Limit;
+import org.junit.Test;
+
+public class RateLimiterTest {
+
+  private static final long SECOND = TimeUnit.SECONDS.toNanos(1);
+
+  @Test
+  public void findsOperations() {
+
+    assertEquals(Operation.REGISTER, Operation.of("POST", "lookup/records"));
+    assertEquals(Operation.REGISTER, Operation.of("POST", "/lookup/records/"));
+    assertEquals(Operation.BULK, Operation.of("POST", "lookup/records/bulk"));
+    assertEquals(Operation.RENEW, Operation.of("PUT", "lookup/records"));
+    assertEquals(Operation.QUERY, Operation.of("GET", "lookup/records"));
+    assertEquals(Operation.QUERY, Operation.of("GET", "lookup/records/_facets"));
+    assertEquals(Operation.QUERY, Operation.of("GET", "lookup/service/1234"));
+    assertEquals(Operation.RENEW, Operation.of("POST", "lookup/service/1234"));
+    assertEquals(Operation.DELETE, Operation.of("DELETE", "lookup/service/1234"));
+    assertNull(Operation.of("OPTIONS", "lookup/records"));
+  }
+
+  @Test
+  public void limitsEachClientAndOperation() {
+
+    long now = 0;
+    Map<Operation, Limit> limits = new EnumMap<>(Operation.class);
+    limits.put(Operation.QUERY, new Limit(1, 2));
+    RateLimiter limiter = new RateLimiter(limits, null, 100, now);
+
+    assertEquals(0, limiter.acquire(Operation.QUERY, "a", now));
+    assertEquals(0, limiter.acquire(Operation.QUERY, "a", now));
+    assertEquals(SECOND, limiter.acquire(Operation.QUERY, "a", now));
+    assertEquals(0, limiter.acquire(Operation.QUERY, "b", now));
+    // operations without a limit are not counted
+    assertEquals(0, limiter.acquire(Operation.REGISTER, "a", now));
+    assertEquals(2, limiter.getClients());
+    assertEquals(1, limiter.getThrottled());
+  }
+
+  @Test
+  public void boundsClients() {
+
+    long now = 0;
+    RateLimiter limiter =
+        new RateLimiter(Collections.singletonMap(Operation.QUERY, new Limit(1, 1)), "", 2, now);
+
+    limiter.acquire(Operation.QUERY, "a", now);
+    limiter.acquire(Operation.QUERY, "b", now);
+    // c and d share the overflow bucket while a and b are busy
+    assertEquals(0, limiter.acquire(Operation.QUERY, "c", now));
+    assertTrue(limiter.acquire(Operation.QUERY, "d", now) > 0);
+    assertEquals(2, limiter.getClients());
+    assertEquals(2, limiter.getOverflowed());
+
+    // once a and b are idle their buckets make room for new clients
+    now += 10 * SECOND;
+    assertEquals(0, limiter.acquire(Operation.QUERY, "d", now));
+    assertEquals(2, limiter.getEvicted());
+    assertEquals(1, limiter.getClients());
+  }
+
+  @Test
+  public void identifiesClients() {
+
+    assertEquals("10.0.0.1", RateLimitFilter.clientOf("10.0.0.1", "127.0.0.1"));
+    // the addresses before the one the proxy appended are up to the client
+    assertEquals("10.0.0.1", RateLimitFilter.clientOf("192.168.1.1, 10.0.0.1", "127.0.0.1"));
+    assertEquals("10.0.0.1", RateLimitFilter.clientOf("1.2.3.4,10.0.0.1", "127.0.0.1"));
+    assertEquals("127.0.0.1", RateLimitFilter.clientOf(null, "127.0.0.1"));
+    assertEquals("127.0.0.1", RateLimitFilter.clientOf(" ", "127.0.0.1"));
+    assertEquals(1, RateLimitFilter.retryAfterSeconds(1));
+    assertEquals(2, RateLimitFilter.retryAfterSeconds(SECOND + 1));
+  }
+}
@@ -18,10 +18,15 @@ import org.junit.Before;
 import org.junit.BeforeClass;
 import org.junit.Test;
 
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
 import java.net.URISyntaxException;
+import java.nio.charset.StandardCharsets;
 import java.util.UUID;
 
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
 public class RecordResourceTest {
@@ -123,11 +128,31 @@ public class RecordResourceTest {
     this.queryAndPublishService();
     RecordResource request = new RecordResource();
 
-    String output = request.renewHandler("lookup", "interface", "2", jsonMessage());
+    String output = request.renewHandler("lookup", "interface", "2", false, jsonMessage());
 
     assertNotNull(output);
   }
 
+  /**
+   * Renew returns only the uri, type and lease fields unless the full record is requested
+   *
+   * @throws DatabaseException Error in adding or looking up the record
+   * @throws DuplicateEntryException Record already exists before test
+   */
+  @Test
+  public void renewHandlerFullRecord() throws DatabaseException, DuplicateEntryException {
+
+    this.queryAndPublishService();
+    RecordResource request = new RecordResource();
+
+    String minimal = request.renewHandler("lookup", "interface", "2", false, jsonMessage());
+    assertFalse(minimal.contains("test-id"));
+    assertTrue(minimal.contains("\"type\""));
+
+    String full = request.renewHandler("lookup", "interface", "2", true, jsonMessage());
+    assertTrue(full.contains("test-id"));
+  }
+
   /**
    * Curl request for renewing a URI that doesn't exist
    *
@@ -141,7 +166,7 @@ public class RecordResourceTest {
     RecordResource request = new RecordResource();
 
     try {
-      String output = request.renewHandler("lookup", "interface", "3", jsonMessage());
+      String output = request.renewHandler("lookup", "interface", "3", false, jsonMessage());
       fail();
     } catch (NotFoundException e) {
       Log.info("URI not found, test passed");
@@ -183,9 +208,9 @@ public class RecordResourceTest {
   /**
    * Creates a json message
    *
-   * @return json Message as string
+   * @return json Message as request body
    */
-  private String jsonMessage() {
+  private InputStream jsonMessage() {
     Message message = new Message();
     message.add("type", "test");
 
@@ -202,6 +227,6 @@ public class RecordResourceTest {
     DateTime dateTime = new DateTime();
     message.add("expires", dateTime.toString());
     Gson gson = new Gson();
-    return gson.toJson(message.getMap());
+    return new ByteArrayInputStream(gson.toJson(message.getMap()).getBytes(StandardCharsets.UTF_8));
   }
 }
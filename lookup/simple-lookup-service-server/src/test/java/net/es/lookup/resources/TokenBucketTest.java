@@ -0,0 +1,44 @@
+package net.es.lookup.resources;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.TimeUnit;
+import org.junit.Test;
+
+public class TokenBucketTest {
+
+  private static final long SECOND = TimeUnit.SECONDS.toNanos(1);
+
+  @Test
+  public void allowsBurstThenRate() {
+
+    long now = 1000 * SECOND;
+    TokenBucket bucket = new TokenBucket(2, 3, now);
+
+    assertEquals(0, bucket.take(now));
+    assertEquals(0, bucket.take(now));
+    assertEquals(0, bucket.take(now));
+    assertEquals(SECOND / 2, bucket.take(now));
+
+    assertEquals(0, bucket.take(now + SECOND / 2));
+    assertTrue(bucket.take(now + SECOND / 2) > 0);
+  }
+
+  @Test
+  public void refillsUpToBurst() {
+
+    long now = -5 * SECOND;
+    TokenBucket bucket = new TokenBucket(1, 2, now);
+    bucket.take(now);
+    bucket.take(now);
+    assertFalse(bucket.isFull(now));
+
+    now += 60 * SECOND;
+    assertTrue(bucket.isFull(now));
+    assertEquals(0, bucket.take(now));
+    assertEquals(0, bucket.take(now));
+    assertEquals(SECOND, bucket.take(now));
+  }
+}
@@ -0,0 +1,53 @@
+package net.es.lookup.service;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import org.junit.Test;
+
+public class BulkheadTest {
+
+  @Test
+  public void admitsThreadsPlusQueue() {
+
+    Bulkhead bulkhead = new Bulkhead("query", 2, 1);
+
+    assertTrue(bulkhead.tryAcquire());
+    assertTrue(bulkhead.tryAcquire());
+    assertTrue(bulkhead.tryAcquire());
+    assertFalse(bulkhead.tryAcquire());
+    assertEquals(2, bulkhead.getActive());
+    assertEquals(1, bulkhead.getQueued());
+    assertEquals(1.0, bulkhead.getUtilization(), 0);
+    assertEquals(1, bulkhead.getRejected());
+
+    bulkhead.release();
+    bulkhead.release();
+    assertTrue(bulkhead.tryAcquire());
+    assertEquals(0, bulkhead.getQueued());
+    assertEquals(2, bulkhead.getCompleted());
+    bulkhead.shutdown();
+  }
+
+  @Test
+  public void runsOnItsOwnThreads() throws Exception {
+
+    Bulkhead bulkhead = new Bulkhead("renew", 1, 0);
+    CountDownLatch ran = new CountDownLatch(1);
+    String[] thread = new String[1];
+
+    bulkhead
+        .getExecutor()
+        .execute(
+            () -> {
+              thread[0] = Thread.currentThread().getName();
+              ran.countDown();
+            });
+    assertTrue(ran.await(5, TimeUnit.SECONDS));
+    assertEquals("bulkhead-renew-1", thread[0]);
+    bulkhead.shutdown();
+  }
+}
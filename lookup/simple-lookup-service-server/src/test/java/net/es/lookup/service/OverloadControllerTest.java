@@ -0,0 +1,96 @@
+package net.es.lookup.service;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.TimeUnit;
+import net.es.lookup.resources.Operation;
+import org.junit.Test;
+
+public class OverloadControllerTest {
+
+  private static final long MILLI = TimeUnit.MILLISECONDS.toNanos(1);
+
+  // queues every operation for delayMillis during the interval that ends at end
+  private static void queue(OverloadController controller, long delayMillis, long end) {
+
+    for (Operation operation : Operation.values()) {
+      controller.recordDelay(operation, delayMillis * MILLI, end - MILLI);
+    }
+  }
+
+  @Test
+  public void shedsNothingWithoutStandingQueue() {
+
+    OverloadController controller = new OverloadController(50, 100, 0);
+    controller.recordDelay(Operation.QUERY, 500 * MILLI, 10 * MILLI);
+    // a burst: another query went through without waiting
+    controller.recordDelay(Operation.QUERY, 0, 20 * MILLI);
+
+    assertFalse(controller.shed(Operation.QUERY, 0, 100 * MILLI));
+    assertEquals(0, controller.getLevel());
+  }
+
+  @Test
+  public void shedsByPriority() {
+
+    OverloadController controller = new OverloadController(50, 100, 0);
+
+    queue(controller, 80, 100 * MILLI);
+    assertTrue(controller.shed(Operation.QUERY, 0, 100 * MILLI));
+    assertFalse(controller.shed(Operation.REGISTER, 0, 100 * MILLI));
+    assertFalse(controller.shed(Operation.RENEW, 0, 100 * MILLI));
+    assertEquals(80.0, controller.getQueueDelayMillis(), 0);
+
+    queue(controller, 80, 200 * MILLI);
+    assertTrue(controller.shed(Operation.REGISTER, 0, 200 * MILLI));
+    assertTrue(controller.shed(Operation.BULK, 0, 200 * MILLI));
+    assertFalse(controller.shed(Operation.RENEW, 0, 200 * MILLI));
+    queue(controller, 80, 300 * MILLI);
+    assertTrue(controller.shed(Operation.RENEW, 0, 300 * MILLI));
+    // a renewal that waited less than the target is served at any level
+    assertFalse(controller.shed(Operation.RENEW, 10 * MILLI, 300 * MILLI));
+    assertTrue(controller.shed(Operation.RENEW, 80 * MILLI, 300 * MILLI));
+
+    assertEquals(3, controller.getLevel());
+    assertEquals(1, controller.getShedQueries());
+    assertEquals(1, controller.getShedRegistrations());
+    assertEquals(2, controller.getShedRenewals());
+  }
+
+  @Test
+  public void keepsBulkRenewals() {
+
+    OverloadController controller = new OverloadController(50, 100, 0);
+    queue(controller, 80, 100 * MILLI);
+    queue(controller, 80, 200 * MILLI);
+    controller.shed(Operation.QUERY, 0, 200 * MILLI);
+    assertEquals(2, controller.getLevel());
+
+    assertTrue(controller.shed(Operation.of("POST", "lookup/records/bulk"), 0, 200 * MILLI));
+    assertFalse(controller.shed(Operation.of("PUT", "lookup/records"), 0, 200 * MILLI));
+  }
+
+  @Test
+  public void recoversWhenQueuesDrain() {
+
+    OverloadController controller = new OverloadController(50, 100, 0);
+    queue(controller, 80, 100 * MILLI);
+    queue(controller, 80, 200 * MILLI);
+    controller.shed(Operation.QUERY, 0, 200 * MILLI);
+    assertEquals(2, controller.getLevel());
+
+    // one standing queue is enough to keep escalating
+    controller.recordDelay(Operation.RENEW, 80 * MILLI, 250 * MILLI);
+    controller.recordDelay(Operation.QUERY, 0, 250 * MILLI);
+    controller.shed(Operation.QUERY, 0, 300 * MILLI);
+    assertEquals(3, controller.getLevel());
+
+    // intervals without queued requests lower the level one at a time
+    controller.shed(Operation.QUERY, 0, 400 * MILLI);
+    assertEquals(2, controller.getLevel());
+    assertFalse(controller.shed(Operation.QUERY, 0, 10000 * MILLI));
+    assertEquals(0, controller.getLevel());
+  }
+}
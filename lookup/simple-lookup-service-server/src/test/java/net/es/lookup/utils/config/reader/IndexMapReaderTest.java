@@ -0,0 +1,75 @@
+package net.es.lookup.utils.config.reader;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import org.junit.Test;
+
+public class IndexMapReaderTest {
+
+  private static final String PROPERTIES =
+      "\"properties\": {\"host-name\": {\"type\": \"keyword\"},"
+          + " \"_expiresAsTimestamp\": {\"type\": \"long\"}}";
+
+  private final IndexMapReader reader = IndexMapReader.getInstance();
+
+  @Test
+  public void leavesPlainMappingAlone() {
+
+    String mapping = "{" + PROPERTIES + "}";
+    assertEquals(mapping, reader.generate(mapping));
+  }
+
+  @Test
+  public void removesDisabledGenerateBlock() {
+
+    JsonObject mapping = parse(reader.generate("{\"generate\": {\"enabled\": false}, " + PROPERTIES + "}"));
+    assertFalse(mapping.has("generate"));
+    assertFalse(mapping.has("dynamic_templates"));
+    assertFalse(hostName(mapping).has("normalizer"));
+  }
+
+  @Test
+  public void generatesNormalizedKeywords() {
+
+    JsonObject mapping =
+        parse(
+            reader.generate(
+                "{\"generate\": {\"enabled\": true, \"ngram\": true}, " + PROPERTIES + "}"));
+    JsonObject hostName = hostName(mapping);
+    assertEquals(IndexMapReader.NORMALIZER, hostName.get("normalizer").getAsString());
+    assertTrue(hostName.getAsJsonObject("fields").has(IndexMapReader.REVERSED_FIELD));
+    assertTrue(hostName.getAsJsonObject("fields").has(IndexMapReader.NGRAM_FIELD));
+
+    JsonObject expires = mapping.getAsJsonObject("properties").getAsJsonObject("_expiresAsTimestamp");
+    assertEquals("long", expires.get("type").getAsString());
+
+    JsonObject template =
+        mapping.getAsJsonArray("dynamic_templates").get(0).getAsJsonObject().getAsJsonObject("sls_keys");
+    assertEquals("_*", template.get("unmatch").getAsString());
+    assertEquals(hostName, template.getAsJsonObject("mapping"));
+  }
+
+  @Test
+  public void subFieldsAreOptional() {
+
+    JsonObject mapping =
+        parse(
+            reader.generate(
+                "{\"generate\": {\"enabled\": true, \"reversed\": false}, " + PROPERTIES + "}"));
+    assertFalse(hostName(mapping).has("fields"));
+  }
+
+  private static JsonObject parse(String json) {
+
+    return new JsonParser().parse(json).getAsJsonObject();
+  }
+
+  private static JsonObject hostName(JsonObject mapping) {
+
+    return mapping.getAsJsonObject("properties").getAsJsonObject("host-name");
+  }
+}